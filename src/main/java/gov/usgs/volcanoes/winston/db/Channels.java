@@ -342,6 +342,53 @@ public class Channels {
     return null;
   }
 
+  /**
+   * Get the start of the database's lookback. Channels which end before it are left out of
+   * getChannels() and getTimeSpans().
+   *
+   * @return lookback start, J2kSec
+   */
+  public double getLookBack() {
+    return J2kSec.now() - winston.maxDays * Time.DAY_IN_S;
+  }
+
+  /**
+   * Get time span of every channel, without the joins needed for full channel details. Channels
+   * are left out as in getChannels(), but start times are not limited to the lookback, so spans
+   * read at different times can be compared. Callers limit them with getLookBack().
+   *
+   * @return Map of channel ID to start and end times, J2kSec, or null on error
+   */
+  public Map<Integer, double[]> getTimeSpans() {
+    if (!winston.checkConnect())
+      return null;
+
+    try {
+      winston.useRootDatabase();
+      final double lookBack = getLookBack();
+      final Map<Integer, double[]> spans = new HashMap<Integer, double[]>();
+      final ResultSet rs =
+          winston.getStatement().executeQuery("SELECT sid, code, st, et FROM channels");
+      while (rs.next()) {
+        final double et = rs.getDouble(4);
+        if (et <= lookBack)
+          continue;
+
+        try {
+          Scnl.parse(rs.getString(2));
+        } catch (UtilException e) {
+          continue;
+        }
+        spans.put(rs.getInt(1), new double[] {rs.getDouble(3), et});
+      }
+      rs.close();
+      return spans;
+    } catch (final Exception e) {
+      LOGGER.error("Could not get channel time spans. ({})", e.getLocalizedMessage());
+    }
+    return null;
+  }
+
   /**
    * Check existence of channel w/ code
    * 
@@ -5,12 +5,15 @@ import java.sql.Blob;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.slf4j.Logger;
@@ -38,6 +41,10 @@ public class Data {
   private static final Logger LOGGER = LoggerFactory.getLogger(Data.class);
 
   private static final int ONE_DAY = 60 * 60 * 24;
+
+  /** length of an Earthworm TRACEBUF2 header */
+  private static final int TRACEBUF_HEADER_LENGTH = 64;
+
   private final WinstonDatabase winston;
   private final Channels channels;
   private final DateFormat dateFormat;
@@ -371,18 +378,129 @@ public class Data {
   public List<byte[]> getTraceBufBytes(final String code, double t1, final double t2,
       final int maxrows) throws UtilException {
 
+    final ArrayList<byte[]> bufs = new ArrayList<byte[]>();
+    final boolean read = visitTraceBufs(code, t1, t2, maxrows, new TraceBufVisitor() {
+      public boolean visit(double st, double et, double sr, String dataType, byte[] traceBuf) {
+        bufs.add(traceBuf);
+        return true;
+      }
+    });
+
+    return read ? bufs : null;
+  }
+
+  /**
+   * Count the TraceBufs which start between t1 and t2, reading only the index.
+   *
+   * @param code channel code
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @return number of TraceBufs, or -1 if the channel could not be read
+   */
+  public int countTraceBufs(final String code, final double t1, final double t2) {
+    if (!winston.checkConnect() || !winston.useDatabase(code))
+      return -1;
+
+    int count = 0;
+    for (final String date : daysBetween(t1, t2)) {
+      try {
+        final PreparedStatement ps = winston.getPreparedStatement(
+            "SELECT COUNT(*) FROM `" + code + "$$" + date + "` WHERE st>=? AND st<=?");
+        ps.setDouble(1, t1);
+        ps.setDouble(2, t2);
+        final ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+          count += rs.getInt(1);
+        }
+        rs.close();
+      } catch (final SQLException e) {
+        LOGGER.debug("No table found for {}$${}", code, date);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Sum the lengths of the TraceBufs which start after t1 and no later than t2, computed from
+   * their rows as getTraceBufLength does, so no TraceBuf is read or decompressed.
+   *
+   * @param code channel code
+   * @param t1 start time, J2kSec, exclusive
+   * @param t2 end time, J2kSec
+   * @return number of TraceBufs, their total length in bytes and the latest end time, or null if
+   *         the channel could not be read
+   */
+  public double[] sumTraceBufLengths(final String code, double t1, final double t2) {
     t1 = applyLookback(t1);
-    if (t1 >= t2) {
+    if (!winston.checkConnect() || !winston.useDatabase(code))
       return null;
+
+    final double[] sums = new double[] {0, 0, Double.NaN};
+    for (final String date : daysBetween(t1, t2)) {
+      try {
+        final PreparedStatement ps = winston.getPreparedStatement("SELECT COUNT(*), SUM("
+            + TRACEBUF_HEADER_LENGTH + " + ROUND((et-st)*sr) * SUBSTRING(datatype, 2, 1)), MAX(et)"
+            + " FROM `" + code + "$$" + date + "` WHERE st>? AND st<=?");
+        ps.setDouble(1, t1);
+        ps.setDouble(2, t2);
+        final ResultSet rs = ps.executeQuery();
+        if (rs.next() && rs.getInt(1) > 0) {
+          sums[0] += rs.getInt(1);
+          sums[1] += rs.getLong(2);
+          sums[2] = rs.getDouble(3);
+        }
+        rs.close();
+      } catch (final SQLException e) {
+        LOGGER.debug("No table found for {}$${}", code, date);
+      }
+    }
+    return sums;
+  }
+
+  /**
+   * Return the length of a TraceBuf as handed out by visitTraceBufs, from the columns of its row: a
+   * header followed by one sample for each sample period between st and et, each as many bytes
+   * wide as the data type says.
+   *
+   * @param st start time, J2kSec
+   * @param et end time, J2kSec
+   * @param sr sampling rate
+   * @param dataType Earthworm data type, such as s4
+   * @return length in bytes
+   */
+  public static long getTraceBufLength(final double st, final double et, final double sr,
+      final String dataType) {
+    return TRACEBUF_HEADER_LENGTH + Math.round((et - st) * sr) * (dataType.charAt(1) - '0');
+  }
+
+  /**
+   * Hand each TraceBuf between t1 and t2 to a visitor, in time order, as it is read. Rows are
+   * streamed from the server and only one decompressed TraceBuf is held at a time, so memory use
+   * does not grow with the length of the request. The visitor must not use this database while it
+   * is being called.
+   *
+   * @param code channel code
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @param maxrows cap on number of samples read, 0 for no cap
+   * @param visitor receives each TraceBuf
+   * @return false if the channel could not be read
+   * @throws UtilException when maxrows is exceeded
+   */
+  public boolean visitTraceBufs(final String code, double t1, final double t2, final int maxrows,
+      final TraceBufVisitor visitor) throws UtilException {
+
+    t1 = applyLookback(t1);
+    if (t1 >= t2) {
+      return false;
     }
 
     int numSamplesCounter = 0;
     if (!winston.checkConnect() || !winston.useDatabase(code))
-      return null;
+      return false;
     try {
       double ct = t1;
 
-      final ArrayList<byte[]> bufs = new ArrayList<byte[]>((int) Math.ceil(t2 - t1) + 1);
       final String endDate = dateFormat.format(J2kSec.asDate(t2));
       boolean done = false;
       ResultSet rs = null;
@@ -407,14 +525,16 @@ public class Data {
           rs = ps.executeQuery();
           if (rs.next()) {
             if (t1 >= rs.getDouble(1) && t1 <= rs.getDouble(2)) {
-              final byte[] buf = getTraceBufBytes(rs);
               numSamplesCounter += getNumSamples(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3));
               if (maxrows > 0 && numSamplesCounter > maxrows) {
                 throw new UtilException("Max rows (" + maxrows + " rows) "
                     + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "")
                     + "exceeded.");
               }
-              bufs.add(buf);
+              if (!visit(rs, visitor)) {
+                rs.close();
+                return true;
+              }
             }
           }
           rs.close();
@@ -432,34 +552,45 @@ public class Data {
         final String sql = "SELECT st, et, sr, datatype, tracebuf FROM `" + code + "$$" + date
             + "` WHERE st>=" + t1 + " AND st<=" + t2 + " ORDER BY st ASC";
 
+        final Statement statement = winston.getStreamingStatement();
         try {
-          rs = winston.getStatement().executeQuery(sql);
-        } catch (final SQLException e) {
-          // table not found
-          LOGGER.debug("No table found for {}$${})", code, date);
+          try {
+            rs = statement.executeQuery(sql);
+          } catch (final SQLException e) {
+            // table not found
+            LOGGER.debug("No table found for {}$${})", code, date);
+            ct += ONE_DAY;
+            continue;
+          }
+          while (rs.next()) {
+            numSamplesCounter += getNumSamples(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3));
+            if (maxrows > 0 && numSamplesCounter > maxrows)
+              throw new UtilException("Max rows (" + maxrows + " rows) "
+                  + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "")
+                  + "exceeded.");
+            if (!visit(rs, visitor)) {
+              return true;
+            }
+          }
           ct += ONE_DAY;
-          continue;
+        } finally {
+          statement.close();
         }
-        while (rs.next()) {
-
-          final byte[] buf = getTraceBufBytes(rs);
-          numSamplesCounter += getNumSamples(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3));
-          if (maxrows > 0 && numSamplesCounter > maxrows)
-            throw new UtilException("Max rows (" + maxrows + " rows) "
-                + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
-          bufs.add(buf);
-        }
-        rs.close();
-        ct += ONE_DAY;
       }
-      return bufs;
+      return true;
     } catch (final SQLException e) {
       LOGGER.debug("Could not get TraceBuf bytes for {}, {}->{}", code, t1, t2);
     } catch (final IOException e) {
       LOGGER.debug("Could not get TraceBuf bytes for {}, {}->{}", code, t1, t2);
     }
-    return null;
+    return false;
+
+  }
 
+  private boolean visit(final ResultSet rs, final TraceBufVisitor visitor)
+      throws SQLException, IOException {
+    return visitor.visit(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3), rs.getString(4),
+        getTraceBufBytes(rs));
   }
 
   /**
@@ -483,20 +614,29 @@ public class Data {
 
   public List<TraceBuf> getTraceBufs(final String code, final double t1, final double t2,
       final int maxrows) throws UtilException {
-    final List<byte[]> rawBufs = getTraceBufBytes(code, t1, t2, maxrows);
-    if (rawBufs == null || rawBufs.size() == 0)
-      return null;
-
-    try {
-      final List<TraceBuf> traceBufs = new ArrayList<TraceBuf>(rawBufs.size());
-      for (final byte[] buf : rawBufs)
-        traceBufs.add(new TraceBuf(buf));
+    final List<TraceBuf> traceBufs = new ArrayList<TraceBuf>();
+    final IOException[] error = new IOException[1];
+    final boolean read = visitTraceBufs(code, t1, t2, maxrows, new TraceBufVisitor() {
+      public boolean visit(double st, double et, double sr, String dataType, byte[] traceBuf) {
+        try {
+          traceBufs.add(new TraceBuf(traceBuf));
+          return true;
+        } catch (final IOException e) {
+          error[0] = e;
+          return false;
+        }
+      }
+    });
 
-      return traceBufs;
-    } catch (final IOException e) {
+    if (error[0] != null) {
       LOGGER.error("Could not get TraceBufs for {}, {}->{}", code, t1, t2);
+      return null;
     }
-    return null;
+
+    if (!read || traceBufs.size() == 0)
+      return null;
+
+    return traceBufs;
   }
 
   /**
@@ -528,30 +668,106 @@ public class Data {
 
   public HelicorderData getHelicorderData(final Scnl scnl, double t1, final double t2,
       final int maxrows) throws UtilException {
+    return getHelicorderData(scnl, t1, t2, maxrows, 0);
+  }
+
+  /**
+   * Return helicorder data, read from minute or hour rollups where the plot's bins are at least
+   * that long.
+   *
+   * @param scnl channel
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @param maxrows cap on number of rows in a single day, 0 for no cap
+   * @param binSize seconds of data drawn in a single bin, 0 to read every second
+   * @return helicorder data, or null if the channel could not be read
+   * @throws UtilException when maxrows is exceeded
+   */
+  public HelicorderData getHelicorderData(final Scnl scnl, double t1, final double t2,
+      final int maxrows, final double binSize) throws UtilException {
+
+    final ArrayList<double[]> list = new ArrayList<double[]>();
+    final boolean read =
+        visitHelicorderData(scnl, t1, t2, maxrows, binSize, new HelicorderVisitor() {
+          public boolean visit(double j2ksec, double min, double max) {
+            list.add(new double[] {j2ksec, min, max});
+            return true;
+          }
+        });
+
+    return read ? new HelicorderData(list) : null;
+  }
+
+  /**
+   * Hand each helicorder row between t1 and t2 to a visitor, in time order, as it is read. Rows
+   * are streamed from the server. The visitor must not use this database while it is being called.
+   *
+   * @param scnl channel
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @param maxrows cap on number of rows in a single day, 0 for no cap
+   * @param visitor receives each row
+   * @return false if the channel could not be read
+   * @throws UtilException when maxrows is exceeded
+   */
+  public boolean visitHelicorderData(final Scnl scnl, double t1, final double t2,
+      final int maxrows, final HelicorderVisitor visitor) throws UtilException {
+    return visitHelicorderData(scnl, t1, t2, maxrows, 0, visitor);
+  }
+
+  /**
+   * Hand each helicorder row between t1 and t2 to a visitor, in time order, as it is read. Days
+   * with rollups are read at the coarsest resolution no longer than binSize, each row giving the
+   * extremes of a bin starting at its time.
+   *
+   * @param scnl channel
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @param maxrows cap on number of rows in a single day, 0 for no cap
+   * @param binSize seconds of data drawn in a single bin, 0 to read every second
+   * @param visitor receives each row
+   * @return false if the channel could not be read
+   * @throws UtilException when maxrows is exceeded
+   */
+  public boolean visitHelicorderData(final Scnl scnl, double t1, final double t2,
+      final int maxrows, final double binSize, final HelicorderVisitor visitor)
+      throws UtilException {
 
     t1 = applyLookback(t1);
     if (t1 >= t2) {
-      return null;
+      return false;
     }
 
     String code = DbUtils.scnlAsWinstonCode(scnl);
 
     if (!winston.checkConnect() || !winston.useDatabase(code))
-      return null;
+      return false;
     try {
       double ct = t1;
       // this 'fixes' problems when a start time of 0000 UTC is asked for
       // and that data are actually stored in the previous day. Some
       // issues remain.
       final String endDate = dateFormat.format(J2kSec.asDate(t2));
+      final int resolution = HelicorderRollup.getResolution(binSize);
+      final Set<String> rolledUp = resolution > 1
+          ? HelicorderRollup.getRolledUpDays(winston, code, dateFormat.format(J2kSec.asDate(t1)),
+              endDate)
+          : Collections.<String>emptySet();
       boolean done = false;
-      final ArrayList<double[]> list = new ArrayList<double[]>((int) (t2 - t1) + 2);
       while (!done) {
         final String date = dateFormat.format(J2kSec.asDate(ct));
         if (date.equals(endDate))
           done = true;
         ct += ONE_DAY;
-        final String table = code + "$$H" + date;
+        String table = code + "$$H" + date;
+        double lo = t1;
+        double hi = t2;
+        if (rolledUp.contains(date)) {
+          final double dayStart = HelicorderRollup.getDayStart(date);
+          table = HelicorderRollup.table(code, resolution);
+          lo = Math.max(Math.floor(t1 / resolution) * resolution, dayStart);
+          hi = Math.min(t2, dayStart + ONE_DAY - 1);
+        }
         ResultSet rs = null;
         String sql = "SELECT j2ksec, smin, smax, rcnt FROM `" + table
             + "` WHERE j2ksec>=? AND j2ksec<=? ORDER BY j2ksec ASC";
@@ -565,53 +781,87 @@ public class Data {
           final PreparedStatement s = winston.getPreparedStatement(
               "SELECT COUNT(*) FROM (SELECT 1 " + sql.substring(sql.indexOf("FROM")) + ") as T");
           try {
-            s.setDouble(1, t1);
-            s.setDouble(2, t2);
+            s.setDouble(1, lo);
+            s.setDouble(2, hi);
             rs = s.executeQuery();
           } catch (final Exception e) {
             // table not found
             continue;
           }
-          if (rs.next() && rs.getInt(1) > maxrows)
+          final boolean exceeded = rs.next() && rs.getInt(1) > maxrows;
+          rs.close();
+          if (exceeded)
             throw new UtilException("Max rows (" + maxrows + " rows) "
                 + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
         }
 
         final PreparedStatement select = winston.getPreparedStatement(sql);
         try {
-          select.setDouble(1, t1);
-          select.setDouble(2, t2);
+          WinstonDatabase.streamResults(select);
+          select.setDouble(1, lo);
+          select.setDouble(2, hi);
           rs = select.executeQuery();
         } catch (final Exception e) {
           // table not found
           continue;
         }
 
-        while (rs.next()) {
-          final double[] d = new double[] {rs.getDouble(1), rs.getDouble(2), rs.getDouble(3)}; // ,
-                                                                                               // rs.getInt(4)
-          // };
-          list.add(d);
+        try {
+          while (rs.next()) {
+            if (!visitor.visit(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3))) {
+              return true;
+            }
+          }
+        } finally {
+          rs.close();
         }
-        rs.close();
       }
-      return new HelicorderData(list);
+      return true;
     } catch (final SQLException e) {
       LOGGER.error("Could not get helicorder for {}, {}->{}", code, t1, t2);
     }
-    return null;
+    return false;
   }
 
   public RSAMData getRSAMData(final Scnl scnl, double t1, final double t2,
       final int maxrows, final DownsamplingType ds, final int dsInt) throws UtilException {
 
+    final ArrayList<double[]> list = new ArrayList<double[]>();
+    final boolean read = visitRSAMData(scnl, t1, t2, maxrows, ds, dsInt, new RSAMVisitor() {
+      public boolean visit(double j2ksec, double rsam) {
+        list.add(new double[] {j2ksec, rsam});
+        return true;
+      }
+    });
+
+    return read ? new RSAMData(list) : null;
+  }
+
+  /**
+   * Hand each RSAM row between t1 and t2 to a visitor, in time order, as it is read. Rows are
+   * streamed from the server. The visitor must not use this database while it is being called.
+   *
+   * @param scnl channel
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @param maxrows cap on number of rows, 0 for no cap
+   * @param ds downsampling type
+   * @param dsInt downsampling interval
+   * @param visitor receives each row
+   * @return false if the channel could not be read
+   * @throws UtilException when maxrows is exceeded or downsampling is misconfigured
+   */
+  public boolean visitRSAMData(final Scnl scnl, double t1, final double t2, final int maxrows,
+      final DownsamplingType ds, final int dsInt, final RSAMVisitor visitor)
+      throws UtilException {
+
     t1 = applyLookback(t1);
     if (t1 >= t2) {
-      return null;
+      return false;
     }
 
     if (!winston.checkConnect() || !winston.useDatabase(DbUtils.scnlAsWinstonCode(scnl)))
-      return null;
+      return false;
 
     try {
       double ct = t1;
@@ -619,22 +869,39 @@ public class Data {
       // and that data are actually stored in the previous day. Some
       // issues remain.
       final String endDate = dateFormat.format(J2kSec.asDate(t2));
+      final String code = DbUtils.scnlAsWinstonCode(scnl);
+
+      // means over bins which are whole minutes or hours, starting on a minute or hour, are read
+      // from rollups
+      final int resolution =
+          ds.equals(DownsamplingType.MEAN) ? HelicorderRollup.getMeanResolution(dsInt, t1) : 1;
+      final Set<String> rolledUp = resolution > 1
+          ? HelicorderRollup.getRolledUpDays(winston, code, dateFormat.format(J2kSec.asDate(t1)),
+              endDate)
+          : Collections.<String>emptySet();
+
       boolean done = false;
       int numSamplesCounter = 0;
-      final ArrayList<double[]> list = new ArrayList<double[]>((int) (t2 - t1) + 2);
       while (!done) {
         final String date = dateFormat.format(J2kSec.asDate(ct));
         if (date.equals(endDate))
           done = true;
         ct += ONE_DAY;
-        final String table = DbUtils.scnlAsWinstonCode(scnl) + "$$H" + date;
         ResultSet rs = null;
-        String sql = "SELECT j2ksec, rsam" + " FROM `" + table + "` WHERE j2ksec>=" + t1
-            + " AND j2ksec<=" + t2 + " AND rcnt>0" + " ORDER BY j2ksec";
-        try {
-          sql = getDownsamplingSQL(sql, t1, ds, dsInt);
-        } catch (final UtilException e) {
-          throw new UtilException("Can't downsample dataset: " + e.getMessage());
+        String sql;
+        // the last day is read from rollups only if t2 ends a bin
+        if (rolledUp.contains(date)
+            && (!done || HelicorderRollup.endsBin(t2, resolution))) {
+          sql = getRollupMeanSQL(code, date, resolution, t1, t2, dsInt);
+        } else {
+          final String table = code + "$$H" + date;
+          sql = "SELECT j2ksec, rsam" + " FROM `" + table + "` WHERE j2ksec>=" + t1
+              + " AND j2ksec<=" + t2 + " AND rcnt>0" + " ORDER BY j2ksec";
+          try {
+            sql = getDownsamplingSQL(sql, t1, ds, dsInt);
+          } catch (final UtilException e) {
+            throw new UtilException("Can't downsample dataset: " + e.getMessage());
+          }
         }
         if (maxrows != 0) {
           sql += " LIMIT " + (maxrows + 1);
@@ -657,7 +924,9 @@ public class Data {
               // table not found
               continue;
             }
-            if (rs.next() && rs.getInt(1) > maxrows) {
+            final boolean exceeded = rs.next() && rs.getInt(1) > maxrows;
+            rs.close();
+            if (exceeded) {
               throw new UtilException("Max rows (" + maxrows + " rows) "
                   + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "")
                   + "exceeded.");
@@ -665,33 +934,53 @@ public class Data {
           }
         }
 
+        final Statement statement = winston.getStreamingStatement();
         try {
-          rs = winston.getStatement().executeQuery(sql);
-        } catch (final Exception e) {
-          // table not found
-          continue;
-        }
+          try {
+            rs = statement.executeQuery(sql);
+          } catch (final Exception e) {
+            // table not found
+            continue;
+          }
 
-        // Check for the amount of data returned in a downsampled query. Non-downsampled queries are
-        // checked above.
-        if (!ds.equals(DownsamplingType.NONE) && maxrows != 0) {
-          numSamplesCounter += getResultSetSize(rs);
-          if (numSamplesCounter > maxrows) {
-            throw new UtilException("Max rows (" + maxrows + " rows) "
-                + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "") + "exceeded.");
+          // Downsampled queries are counted as they are read. Non-downsampled queries are
+          // checked above.
+          final boolean countRows = !ds.equals(DownsamplingType.NONE) && maxrows != 0;
+          while (rs.next()) {
+            if (countRows && ++numSamplesCounter > maxrows) {
+              throw new UtilException("Max rows (" + maxrows + " rows) "
+                  + (vdxName.length() > 0 ? ("for data source " + vdxName + " ") : "")
+                  + "exceeded.");
+            }
+            if (!visitor.visit(rs.getDouble(1), rs.getDouble(2))) {
+              return true;
+            }
           }
+        } finally {
+          statement.close();
         }
-        while (rs.next()) {
-          final double[] d = new double[] {rs.getDouble(1), rs.getDouble(2)};
-          list.add(d);
-        }
-        rs.close();
       }
-      return new RSAMData(list);
+      return true;
     } catch (final SQLException e) {
       LOGGER.error("Could not get RSAM for {}, {}->{}", DbUtils.scnlAsWinstonCode(scnl), t1, t2);
     }
-    return null;
+    return false;
+  }
+
+  /**
+   * Return SQL for mean RSAM of a day read from rollups. Bins are counted from t1, which must start
+   * a rollup bin, so the result matches that of getDownsamplingSQL as long as t2 ends a rollup bin
+   * or falls after the day.
+   */
+  private static String getRollupMeanSQL(final String code, final String date,
+      final int resolution, final double t1, final double t2, final int dsInt) {
+    final double dayStart = HelicorderRollup.getDayStart(date);
+    final double lo = Math.max(t1, dayStart);
+    final double hi = Math.min(t2, dayStart + ONE_DAY - 1);
+    return "SELECT SUM(j2ksum) / SUM(secs), SUM(rsamsum) / SUM(secs), ((j2ksec-" + t1
+        + ") DIV " + dsInt + ") intNum FROM `" + HelicorderRollup.table(code, resolution)
+        + "` WHERE j2ksec>=" + lo + " AND j2ksec<=" + hi + " AND secs>0 GROUP BY intNum"
+        + " ORDER BY intNum";
   }
 
   /**
@@ -1,14 +1,27 @@
 package gov.usgs.volcanoes.winston.db;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import gov.usgs.volcanoes.core.CodeTimer;
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
 import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.time.Time;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
@@ -16,6 +29,13 @@ import gov.usgs.volcanoes.core.util.UtilException;
 /**
  * A class to recalculate stored RSAM values
  *
+ * Work is divided into channel days which are taken by a pool of workers, each with its own
+ * connections. Each finished day is recorded in the deriverprogress table of the ROOT database, so
+ * an interrupted run picks up where it stopped. Days whose helicorder rows already account for
+ * every wave sample are skipped unless force is set; the check compares sample counts only, so
+ * force is needed to repair RSAM or extremes which are wrong but complete. The rollups of each
+ * whole day are rebuilt.
+ *
  * @author Dan Cervelli
  * @author Tom Parker
  */
@@ -24,21 +44,31 @@ public class Deriver {
 
   private static final String DEFAULT_CONFIG_FILENAME = "Deriver.config";
   private static final double DEFAULT_CHUNK_SIZE = 600.0;
+  private static final int DEFAULT_WORKERS = 1;
+  private static final boolean DEFAULT_FORCE = false;
+  private static final boolean DEFAULT_RESTART = false;
 
   private static final boolean DEFAULT_RSAM_ENABLE = true;
   private static final int DEFAULT_RSAM_DELTA = 10;
   private static final int DEFAULT_RSAM_DURATION = 60;
 
+  private static final String PROGRESS_TABLE = "deriverprogress";
+  private static final double ONE_DAY = 86400;
+
+  /** seconds between progress reports */
+  private static final int REPORT_INTERVAL = 10;
+
   private WinstonDatabase winston;
-  private final InputEW input;
-  private final Data data;
 
   private double startTime;
   private double endTime;
 
-  private double chunkSize = 3600;
+  private double chunkSize = DEFAULT_CHUNK_SIZE;
+  private int workers = DEFAULT_WORKERS;
+  private boolean force = DEFAULT_FORCE;
+  private boolean restart = DEFAULT_RESTART;
 
-  private final boolean quit = false;
+  private volatile boolean quit = false;
 
   private boolean rsamEnable = DEFAULT_RSAM_ENABLE;
   private int rsamDelta = DEFAULT_RSAM_DELTA;
@@ -48,11 +78,24 @@ public class Deriver {
 
   private List<String> sourceChannels;
 
+  private final AtomicInteger daysDerived;
+  private final AtomicInteger daysSkipped;
+  private final AtomicInteger daysFailed;
+  private final AtomicLong traceBufCount;
+
   public Deriver() {
     config = new ConfigFile(DEFAULT_CONFIG_FILENAME);
+    daysDerived = new AtomicInteger();
+    daysSkipped = new AtomicInteger();
+    daysFailed = new AtomicInteger();
+    traceBufCount = new AtomicLong();
     processConfigFile();
-    input = new InputEW(winston);
-    data = new Data(winston);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        quit = true;
+      }
+    });
     deriveAll();
   }
 
@@ -72,6 +115,9 @@ public class Deriver {
     }
 
     chunkSize = StringUtils.stringToDouble(config.getString("chunkSize"), DEFAULT_CHUNK_SIZE);
+    workers = Math.max(1, StringUtils.stringToInt(config.getString("workers"), DEFAULT_WORKERS));
+    force = StringUtils.stringToBoolean(config.getString("force"), DEFAULT_FORCE);
+    restart = StringUtils.stringToBoolean(config.getString("restart"), DEFAULT_RESTART);
 
     rsamEnable = StringUtils.stringToBoolean(config.getString("rsam.enable"), DEFAULT_RSAM_ENABLE);
     rsamDelta = StringUtils.stringToInt(config.getString("rsam.delta"), DEFAULT_RSAM_DELTA);
@@ -79,39 +125,371 @@ public class Deriver {
         StringUtils.stringToInt(config.getString("rsam.duration"), DEFAULT_RSAM_DURATION);
   }
 
+  /**
+   * Derive every day of the configured channels which touches the time range, using the
+   * configured number of workers.
+   */
   public void deriveAll() {
-    for (final String channel : sourceChannels) {
-      LOGGER.info("Working on {}", channel);
-      derive(channel, startTime, endTime);
+    if (!createProgressTable()) {
+      return;
     }
+    if (restart) {
+      clearProgress();
+    }
+
+    final Map<String, double[]> progress = getProgress();
+    final ConcurrentLinkedQueue<DayJob> jobs = new ConcurrentLinkedQueue<DayJob>();
+    int done = 0;
+    for (final String code : getCodes()) {
+      for (final DayJob job : getDays(code)) {
+        final double[] span = progress.get(job.code + " " + job.day);
+        if (span != null && span[0] <= job.t1 && span[1] >= job.t2) {
+          done++;
+        } else {
+          jobs.add(job);
+        }
+      }
+    }
+    LOGGER.info("Deriving {} channel days with {} workers, {} already done.", jobs.size(), workers,
+        done);
+
+    final long start = System.currentTimeMillis();
+    final List<Thread> threads = new ArrayList<Thread>(workers);
+    for (int i = 0; i < workers; i++) {
+      final Thread thread = new Thread(new Worker(jobs), "Deriver-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+
+    try {
+      for (final Thread thread : threads) {
+        while (thread.isAlive()) {
+          thread.join(REPORT_INTERVAL * 1000);
+          if (thread.isAlive()) {
+            report(start, jobs.size());
+          }
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      quit = true;
+    }
+
+    report(start, jobs.size());
+    winston.close();
+  }
+
+  private void report(final long start, final int remaining) {
+    final double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    LOGGER.info(String.format(
+        "Derived %d channel days, skipped %d, failed %d, %d left; %d TraceBufs, %.1f TraceBufs/s",
+        daysDerived.get(), daysSkipped.get(), daysFailed.get(), remaining, traceBufCount.get(),
+        traceBufCount.get() / seconds));
   }
 
-  private void derive(final String ch, final double t1, final double t2) {
-    input.setRowParameters((int) chunkSize + 65, 60);
+  /**
+   * Return the channels to derive. Each configured channel may be a code or a SQL LIKE pattern;
+   * with none configured, every channel is derived.
+   */
+  private List<String> getCodes() {
+    final Channels channels = new Channels(winston);
+    final List<String> patterns = new ArrayList<String>();
+    if (sourceChannels == null || sourceChannels.isEmpty()) {
+      patterns.add("%");
+    } else {
+      patterns.addAll(sourceChannels);
+    }
+
+    final Set<String> codes = new LinkedHashSet<String>();
+    for (final String pattern : patterns) {
+      final List<String> matches = channels.getChannelCodes(pattern);
+      if (matches == null || matches.isEmpty()) {
+        LOGGER.warn("No channels match {}", pattern);
+      } else {
+        codes.addAll(matches);
+      }
+    }
+    return new ArrayList<String>(codes);
+  }
 
-    double ct = t1 - chunkSize;
-    List<TraceBuf> tbs = null;
-    while (ct < t2) {
-      if (quit)
-        break;
-      ct += chunkSize;
+  /**
+   * Return the days of a channel which touch the time range, in order.
+   */
+  private List<DayJob> getDays(final String code) {
+    final List<DayJob> days = new ArrayList<DayJob>();
+    final List<String> tables = new Input(winston).getDayTables(code);
+    if (tables == null) {
+      return days;
+    }
 
-      final double ret = Math.min(ct + chunkSize, t2);
-      final CodeTimer netTimer = new CodeTimer("net");
+    final SimpleDateFormat dateFormat =
+        new SimpleDateFormat(WinstonDatabase.WINSTON_TABLE_DATE_FORMAT);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    for (final String table : tables) {
+      final String day = table.substring(table.indexOf("$$") + 2);
+      final double dayStart;
       try {
-        tbs = data.getTraceBufs(ch, ct, ret, 0);
-      } catch (final UtilException e) {
+        dayStart = J2kSec.fromDate(dateFormat.parse(day));
+      } catch (final ParseException e) {
+        continue;
+      }
+      if (dayStart < endTime && dayStart + ONE_DAY > startTime) {
+        days.add(new DayJob(code, day, Math.max(dayStart, startTime),
+            Math.min(dayStart + ONE_DAY, endTime)));
       }
-      netTimer.stop();
+    }
+    return days;
+  }
 
-      if (tbs != null && tbs.size() > 0) {
-        final CodeTimer inputTimer = new CodeTimer("input");
-        input.rederive(tbs, rsamEnable, rsamDelta, rsamDuration);
-        inputTimer.stop();
+  private boolean createProgressTable() {
+    try {
+      winston.useRootDatabase();
+      winston.getStatement().execute("CREATE TABLE IF NOT EXISTS " + PROGRESS_TABLE
+          + " (code VARCHAR(50), day CHAR(10), t1 DOUBLE, t2 DOUBLE, tracebufs INT, "
+          + "derived DATETIME, PRIMARY KEY (code, day)) " + winston.tableEngine);
+      return true;
+    } catch (final SQLException e) {
+      LOGGER.error("Could not create {} table. Are permissions set properly? ({})",
+          PROGRESS_TABLE, e.getMessage());
+    }
+    return false;
+  }
 
-        LOGGER.info(String.format("Derived %d TraceBufs in %.3fms, insert completed in %.3fms",
-            tbs.size(), netTimer.getRunTimeMillis(), inputTimer.getRunTimeMillis()));
+  private void clearProgress() {
+    try {
+      winston.useRootDatabase();
+      winston.getStatement().execute("DELETE FROM " + PROGRESS_TABLE);
+      LOGGER.info("Cleared derivation progress.");
+    } catch (final SQLException e) {
+      LOGGER.error("Could not clear derivation progress. ({})", e.getMessage());
+    }
+  }
+
+  /**
+   * Return the span derived of each channel day, keyed by code and day.
+   */
+  private Map<String, double[]> getProgress() {
+    final Map<String, double[]> progress = new HashMap<String, double[]>();
+    try {
+      winston.useRootDatabase();
+      final ResultSet rs =
+          winston.getStatement().executeQuery("SELECT code, day, t1, t2 FROM " + PROGRESS_TABLE);
+      while (rs.next()) {
+        progress.put(rs.getString(1) + " " + rs.getString(2),
+            new double[] {rs.getDouble(3), rs.getDouble(4)});
       }
+      rs.close();
+    } catch (final SQLException e) {
+      LOGGER.error("Could not read derivation progress. ({})", e.getMessage());
+    }
+    return progress;
+  }
+
+  /**
+   * Record a finished channel day in the ROOT database.
+   */
+  private static void checkpoint(final WinstonDatabase db, final DayJob job,
+      final int traceBufs) {
+    try {
+      db.useRootDatabase();
+      final PreparedStatement ps = db.getPreparedStatement("REPLACE INTO " + PROGRESS_TABLE
+          + " (code, day, t1, t2, tracebufs, derived) VALUES (?, ?, ?, ?, ?, UTC_TIMESTAMP())");
+      ps.setString(1, job.code);
+      ps.setString(2, job.day);
+      ps.setDouble(3, job.t1);
+      ps.setDouble(4, job.t2);
+      ps.setInt(5, traceBufs);
+      ps.executeUpdate();
+    } catch (final SQLException e) {
+      LOGGER.warn("Could not record progress for {} {}. ({})", job.code, job.day, e.getMessage());
+    }
+  }
+
+  /**
+   * Return true if the helicorder rows of a channel day hold every sample of its wave rows. A
+   * TraceBuf which crosses either end of the span puts some samples on the other side, so the
+   * counts may differ by up to two TraceBufs.
+   *
+   * Only sample counts are compared. Helicorder rows which count every sample but hold wrong
+   * extremes or RSAM, for instance from an older derivation with other RSAM parameters, are not
+   * detected.
+   */
+  static boolean isConsistent(final WinstonDatabase db, final DayJob job)
+      throws SQLException {
+    if (!db.useDatabase(job.code)) {
+      return false;
+    }
+
+    final PreparedStatement waves = db.getPreparedStatement(
+        "SELECT COUNT(*), SUM(ROUND((et - st) * sr)), MAX(ROUND((et - st) * sr)) FROM `"
+            + job.code + "$$" + job.day + "` WHERE st>=? AND st<?");
+    waves.setDouble(1, job.t1);
+    waves.setDouble(2, job.t2);
+    ResultSet rs = waves.executeQuery();
+    rs.next();
+    final int waveRows = rs.getInt(1);
+    final long samples = rs.getLong(2);
+    final long maxSamples = rs.getLong(3);
+    rs.close();
+    if (waveRows == 0) {
+      return true;
+    }
+
+    if (!db.tableExists(job.code, job.code + "$$H" + job.day)) {
+      return false;
+    }
+    final PreparedStatement helis = db.getPreparedStatement("SELECT COUNT(*), SUM(rcnt) FROM `"
+        + job.code + "$$H" + job.day + "` WHERE j2ksec>=? AND j2ksec<?");
+    helis.setDouble(1, Math.floor(job.t1));
+    helis.setDouble(2, job.t2);
+    rs = helis.executeQuery();
+    rs.next();
+    final int heliRows = rs.getInt(1);
+    final long counted = rs.getLong(2);
+    rs.close();
+
+    return heliRows > 0 && Math.abs(samples - counted) <= 2 * maxSamples;
+  }
+
+  /**
+   * A span of a single channel day.
+   */
+  static class DayJob {
+    final String code;
+    final String day;
+    final double t1;
+    final double t2;
+
+    DayJob(final String code, final String day, final double t1, final double t2) {
+      this.code = code;
+      this.day = day;
+      this.t1 = t1;
+      this.t2 = t2;
+    }
+  }
+
+  /**
+   * Derives channel days taken from a shared queue. TraceBufs are streamed over one connection
+   * and helicorder rows are written over another.
+   */
+  private class Worker implements Runnable {
+    private final ConcurrentLinkedQueue<DayJob> jobs;
+
+    Worker(final ConcurrentLinkedQueue<DayJob> jobs) {
+      this.jobs = jobs;
+    }
+
+    public void run() {
+      final WinstonDatabase reader = new WinstonDatabase(winston.dbDriver, winston.dbURL,
+          winston.databasePrefix, winston.tableEngine, winston.cacheCap);
+      final WinstonDatabase writer = new WinstonDatabase(winston.dbDriver, winston.dbURL,
+          winston.databasePrefix, winston.tableEngine, winston.cacheCap);
+      final Data data = new Data(reader);
+      final InputEW input = new InputEW(writer);
+      try {
+        DayJob job;
+        while (!quit && (job = jobs.poll()) != null) {
+          try {
+            if (!force && isConsistent(reader, job)) {
+              LOGGER.debug("{} {} is consistent, skipping", job.code, job.day);
+              daysSkipped.incrementAndGet();
+              rollup(writer, job);
+              checkpoint(writer, job, 0);
+              continue;
+            }
+          } catch (final SQLException e) {
+            LOGGER.warn("Could not check {} {}, deriving. ({})", job.code, job.day,
+                e.getMessage());
+          }
+
+          final int count = derive(data, input, job);
+          if (count >= 0) {
+            daysDerived.incrementAndGet();
+            rollup(writer, job);
+            checkpoint(writer, job, count);
+          } else if (!quit) {
+            daysFailed.incrementAndGet();
+            LOGGER.error("Could not derive {} {}", job.code, job.day);
+          }
+        }
+      } finally {
+        reader.close();
+        writer.close();
+      }
+    }
+
+    /**
+     * Rebuild the rollups of a whole day. Rows written for part of a day update their rollups as
+     * they are written.
+     */
+    private void rollup(final WinstonDatabase db, final DayJob job) {
+      if (job.t2 - job.t1 >= ONE_DAY) {
+        HelicorderRollup.rebuild(db, job.code, job.day);
+      }
+    }
+
+    /**
+     * Derive a channel day a chunk at a time.
+     *
+     * @return number of TraceBufs read, or -1 if the day was not finished
+     */
+    private int derive(final Data data, final InputEW input, final DayJob job) {
+      // start early enough that the RSAM mean is known at the first row
+      final double lookback = rsamEnable ? rsamDelta + rsamDuration : 0;
+      input.setRowParameters((int) (chunkSize + lookback) + 65, 60);
+
+      final List<TraceBuf> chunk = new ArrayList<TraceBuf>();
+      final double[] chunkEnd = {job.t1 - lookback + chunkSize};
+      final int[] count = {0};
+      final boolean[] failed = {false};
+
+      final TraceBufVisitor visitor = new TraceBufVisitor() {
+        public boolean visit(final double st, final double et, final double sr,
+            final String dataType, final byte[] traceBuf) {
+          if (quit) {
+            failed[0] = true;
+            return false;
+          }
+          if (st >= chunkEnd[0] && !chunk.isEmpty()) {
+            if (!input.rederive(chunk, rsamEnable, rsamDelta, rsamDuration, job.t1, job.t2)) {
+              failed[0] = true;
+              return false;
+            }
+            traceBufCount.addAndGet(chunk.size());
+            chunk.clear();
+            while (chunkEnd[0] <= st) {
+              chunkEnd[0] += chunkSize;
+            }
+          }
+          try {
+            chunk.add(new TraceBuf(traceBuf));
+            count[0]++;
+          } catch (final Exception e) {
+            LOGGER.warn("Could not read TraceBuf at {} for {}", st, job.code);
+          }
+          return true;
+        }
+      };
+
+      try {
+        if (!data.visitTraceBufs(job.code, job.t1 - lookback, job.t2, 0, visitor)) {
+          return -1;
+        }
+      } catch (final UtilException e) {
+        return -1;
+      }
+      if (failed[0]) {
+        return -1;
+      }
+      if (!chunk.isEmpty()) {
+        if (!input.rederive(chunk, rsamEnable, rsamDelta, rsamDuration, job.t1, job.t2)) {
+          return -1;
+        }
+        traceBufCount.addAndGet(chunk.size());
+      }
+
+      LOGGER.info("Derived {} {} from {} TraceBufs", job.code, job.day, count[0]);
+      return count[0];
     }
   }
 
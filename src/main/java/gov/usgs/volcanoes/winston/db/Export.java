@@ -3,18 +3,31 @@ package gov.usgs.volcanoes.winston.db;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.data.Scnl;
 import gov.usgs.volcanoes.core.data.Wave;
 import gov.usgs.volcanoes.core.data.file.SeismicDataFile;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.UtilException;
 
 /**
+ * Exports channels from a Winston to files. Text files are built from waves an hour at a time;
+ * miniSEED, SAC and TraceBuf files are written as TraceBufs are streamed from the database, so
+ * memory use does not grow with the length of the export. Several channels may be exported at
+ * once.
  *
  * $Log: not supported by cvs2svn $
  * 
@@ -22,8 +35,33 @@ import gov.usgs.volcanoes.core.util.UtilException;
  */
 public class Export {
   private static final Logger LOGGER = LoggerFactory.getLogger(Export.class);
+
+  public static final int DEFAULT_THREADS = 1;
+
+  /** output formats, with their file extensions */
+  public enum Format {
+    TEXT("txt"), MSEED("mseed"), SAC("sac"), TRACEBUF("tb");
+
+    public final String extension;
+
+    private Format(final String extension) {
+      this.extension = extension;
+    }
+
+    public static Format parse(final String s) {
+      for (final Format format : values()) {
+        if (format.extension.equalsIgnoreCase(s) || format.name().equalsIgnoreCase(s)) {
+          return format;
+        }
+      }
+      throw new IllegalArgumentException("Unknown format: " + s);
+    }
+  }
+
   private final WinstonDatabase winston;
   private final Data data;
+  private final AtomicLong samplesWritten;
+  private final AtomicLong bytesRead;
 
   private static String dbDriver;
   private static String dbURL;
@@ -32,6 +70,8 @@ public class Export {
   public Export(final WinstonDatabase w) {
     winston = w;
     data = new Data(winston);
+    samplesWritten = new AtomicLong();
+    bytesRead = new AtomicLong();
   }
 
   public static void readConfigFile() {
@@ -75,10 +115,158 @@ public class Export {
     }
   }
 
+  /**
+   * Export a channel in a streamed format.
+   *
+   * @param code channel code
+   * @param pre output file name prefix
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @param format output format, other than TEXT
+   * @return false if the channel could not be exported
+   */
+  public boolean export(final String code, final String pre, final double t1, final double t2,
+      final Format format) {
+    if (format == Format.TEXT) {
+      export(code, pre, t1, t2);
+      return true;
+    }
+
+    final ExportWriter writer;
+    try {
+      writer = ExportWriter.create(format, Scnl.parse(code), pre + "_" + code);
+    } catch (final UtilException e) {
+      LOGGER.error("Cannot parse channel code {}.", code);
+      return false;
+    } catch (final IOException e) {
+      LOGGER.error("Unable to create file for {}: {}", code, e.getMessage());
+      return false;
+    }
+
+    final ExportWriter.SampleWriter sampleWriter = writer instanceof ExportWriter.SampleWriter
+        ? (ExportWriter.SampleWriter) writer : null;
+    final ExportWriter.TraceBufWriter traceBufWriter =
+        writer instanceof ExportWriter.TraceBufWriter ? (ExportWriter.TraceBufWriter) writer
+            : null;
+
+    final IOException[] error = new IOException[1];
+    boolean read = false;
+    try {
+      read = data.visitTraceBufs(code, t1, t2, 0, new TraceBufVisitor() {
+        public boolean visit(double st, double et, double sr, String dataType, byte[] traceBuf) {
+          bytesRead.addAndGet(traceBuf.length);
+          try {
+            if (sampleWriter != null) {
+              writeSamples(sampleWriter, new TraceBuf(traceBuf), t1, t2);
+            } else {
+              traceBufWriter.writeTraceBuf(traceBuf);
+            }
+            return true;
+          } catch (final IOException e) {
+            error[0] = e;
+            return false;
+          }
+        }
+      });
+    } catch (final UtilException e) {
+      LOGGER.error("Export error: {}", e);
+    } finally {
+      try {
+        writer.close();
+      } catch (final IOException e) {
+        error[0] = e;
+      }
+    }
+
+    if (error[0] != null) {
+      LOGGER.error("Unable to export {}: {}", code, error[0].getMessage());
+      return false;
+    }
+    return read;
+  }
+
+  /**
+   * Write samples of a TraceBuf which fall between t1 and t2.
+   */
+  private void writeSamples(final ExportWriter.SampleWriter writer, final TraceBuf tb,
+      final double t1, final double t2) throws IOException {
+    final double start = tb.getStartTimeJ2K();
+    final double sr = tb.samplingRate();
+    final int[] samples = tb.samples();
+
+    final int first = (int) Math.max(0, Math.ceil((t1 - start) * sr));
+    final int last = (int) Math.min(samples.length, Math.ceil((t2 - start) * sr));
+    if (first < last) {
+      writer.writeSamples(start + first / sr, sr, samples, first, last - first);
+      samplesWritten.addAndGet(last - first);
+    }
+  }
+
+  /**
+   * Export several channels, each on its own connection.
+   *
+   * @param codes channel codes
+   * @param pre output file name prefix
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @param format output format
+   * @param threads number of channels exported at once
+   */
+  public void export(final List<String> codes, final String pre, final double t1, final double t2,
+      final Format format, final int threads) {
+    final long start = System.currentTimeMillis();
+    final List<Export> exports = new ArrayList<Export>();
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    for (final String code : codes) {
+      executor.execute(new Runnable() {
+        public void run() {
+          final WinstonDatabase w =
+              new WinstonDatabase(winston.dbDriver, winston.dbURL, winston.databasePrefix);
+          final Export export = new Export(w);
+          synchronized (exports) {
+            exports.add(export);
+          }
+          try {
+            if (export.export(code, pre, t1, t2, format)) {
+              LOGGER.info("Exported {}.", code);
+            }
+          } finally {
+            w.close();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+
+    try {
+      while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+        report(exports, start);
+      }
+    } catch (final InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    report(exports, start);
+  }
+
+  private static void report(final List<Export> exports, final long start) {
+    long samples = 0;
+    long bytes = 0;
+    synchronized (exports) {
+      for (final Export export : exports) {
+        samples += export.samplesWritten.get();
+        bytes += export.bytesRead.get();
+      }
+    }
+    final double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    LOGGER.info(String.format("Read %.1f MB of TraceBufs (%.1f MB/s), wrote %d samples (%.0f/s)",
+        bytes / 1e6, bytes / 1e6 / seconds, samples, samples / seconds));
+  }
+
   public static void main(final String[] args) throws ParseException {
-    if (args.length != 4) {
-      System.out.println(
-          "Usage: java gov.usgs.volcanoes.winston.db.Export [code] [prefix] [yyyymmddhhmmss] [yyyymmddhhmmss]");
+    if (args.length < 4 || args.length > 6) {
+      System.out.println("Usage: java gov.usgs.volcanoes.winston.db.Export [code] [prefix] "
+          + "[yyyymmddhhmmss] [yyyymmddhhmmss] [format] [threads]");
       System.out.println();
       System.out.println("Database parameters ('winston.url', 'winston.driver', 'winston.prefix')\n"
           + "must be in 'Winston.config'.");
@@ -86,8 +274,14 @@ public class Export {
       System.out.println("Input time is in GMT.");
       System.out.println();
       System.out.println("[code] is $ separated, example: CRP$EHZ$AV");
+      System.out.println("Several channels may be given, comma separated.");
       System.out.println();
-      System.out.println("Output files will have names like: '[prefix]_[code]_[number].txt'.");
+      System.out.println("[format] is one of txt, mseed, sac or tb (raw TraceBufs); default txt.");
+      System.out.println("[threads] is the number of channels exported at once; default "
+          + DEFAULT_THREADS + ".");
+      System.out.println();
+      System.out.println("Output files will have names like: '[prefix]_[code]_[number].txt',\n"
+          + "'[prefix]_[code].mseed', '[prefix]_[code]_[number].sac' or '[prefix]_[code].tb'.");
       System.exit(1);
     }
 
@@ -99,8 +293,14 @@ public class Export {
     final double t1 = J2kSec.fromDate(dateFormat.parse(args[2]));
     final double t2 = J2kSec.fromDate(dateFormat.parse(args[3]));
     System.out.println("Attempting to extract " + (t2 - t1) + " seconds from " + code);
+    final Format format = args.length > 4 ? Format.parse(args[4]) : Format.TEXT;
+    final int threads = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_THREADS;
     final WinstonDatabase winston = new WinstonDatabase(dbDriver, dbURL, dbPrefix);
     final Export export = new Export(winston);
-    export.export(code, prefix, t1, t2);
+    if (args.length == 4) {
+      export.export(code, prefix, t1, t2);
+    } else {
+      export.export(Arrays.asList(code.split(",")), prefix, t1, t2, format, threads);
+    }
   }
 }
@@ -0,0 +1,151 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.winston.format.MiniSeedWriter;
+import gov.usgs.volcanoes.winston.format.SacWriter;
+
+/**
+ * Writes one channel's data to a file as it is read. Each format holds no more than a record or a
+ * buffer of data, however long the export. Formats are written either from samples, by a
+ * SampleWriter, or from TraceBufs as stored, by a TraceBufWriter.
+ */
+abstract class ExportWriter {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Finish writing.
+   *
+   * @throws IOException when the file cannot be written
+   */
+  abstract void close() throws IOException;
+
+  /**
+   * Create a writer.
+   *
+   * @param format output format
+   * @param scnl channel written
+   * @param fileBase file name without extension
+   * @return the writer
+   * @throws IOException when the file cannot be created
+   */
+  static ExportWriter create(Export.Format format, Scnl scnl, String fileBase)
+      throws IOException {
+    switch (format) {
+      case MSEED:
+        return new MiniSeed(scnl, fileBase + ".mseed");
+      case SAC:
+        return new Sac(scnl, fileBase);
+      case TRACEBUF:
+        return new TraceBufs(fileBase + ".tb");
+      default:
+        throw new IllegalArgumentException("No streaming writer for " + format);
+    }
+  }
+
+  /**
+   * A writer of samples, which are decoded from each TraceBuf.
+   */
+  abstract static class SampleWriter extends ExportWriter {
+    /**
+     * Write samples.
+     *
+     * @param startTime time of the first sample, J2kSec
+     * @param sampleRate samples per second
+     * @param samples samples
+     * @param offset index of first sample to write
+     * @param length number of samples to write
+     * @throws IOException when the file cannot be written
+     */
+    abstract void writeSamples(double startTime, double sampleRate, int[] samples, int offset,
+        int length) throws IOException;
+  }
+
+  /**
+   * A writer of TraceBufs as read from the database.
+   */
+  abstract static class TraceBufWriter extends ExportWriter {
+    /**
+     * Write a TraceBuf.
+     *
+     * @param traceBuf decompressed TraceBuf
+     * @throws IOException when the file cannot be written
+     */
+    abstract void writeTraceBuf(byte[] traceBuf) throws IOException;
+  }
+
+  /**
+   * Steim2 miniSEED, 4096 byte records.
+   */
+  private static class MiniSeed extends SampleWriter {
+    private final OutputStream out;
+    private final MiniSeedWriter writer;
+
+    MiniSeed(Scnl scnl, String fileName) throws IOException {
+      out = new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE);
+      writer = new MiniSeedWriter(scnl, MiniSeedWriter.DEFAULT_RECORD_LENGTH, out);
+    }
+
+    @Override
+    void writeSamples(double startTime, double sampleRate, int[] samples, int offset, int length)
+        throws IOException {
+      writer.write(startTime, sampleRate, samples, offset, length);
+    }
+
+    @Override
+    void close() throws IOException {
+      try {
+        writer.flush();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * SAC, one file for each continuous segment.
+   */
+  private static class Sac extends SampleWriter {
+    private final SacWriter writer;
+
+    Sac(Scnl scnl, String fileBase) {
+      writer = new SacWriter(scnl, fileBase);
+    }
+
+    @Override
+    void writeSamples(double startTime, double sampleRate, int[] samples, int offset, int length)
+        throws IOException {
+      writer.write(startTime, sampleRate, samples, offset, length);
+    }
+
+    @Override
+    void close() throws IOException {
+      writer.close();
+    }
+  }
+
+  /**
+   * Earthworm TraceBuf packets, one after another, as read by tankplayer.
+   */
+  private static class TraceBufs extends TraceBufWriter {
+    private final OutputStream out;
+
+    TraceBufs(String fileName) throws IOException {
+      out = new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE);
+    }
+
+    @Override
+    void writeTraceBuf(byte[] traceBuf) throws IOException {
+      out.write(traceBuf);
+    }
+
+    @Override
+    void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package gov.usgs.volcanoes.winston.db;
+
+import gov.usgs.volcanoes.winston.db.InputEW.HeliFields;
+
+/**
+ * Adds samples to helicorder rows. Samples are walked one second at a time; each second's
+ * minimum, maximum, sum and absolute sums are found in a single primitive loop and then merged
+ * into its row once.
+ */
+final class HelicorderAggregator {
+
+  private HelicorderAggregator() {}
+
+  /**
+   * Add samples to helicorder rows.
+   *
+   * @param rows rows for each second spanned by the samples, starting at firstSecond
+   * @param firstSecond j2k second of the first row
+   * @param samples sample values
+   * @param count number of samples to add
+   * @param startTime j2k time of the first sample
+   * @param samplingRate samples per second
+   * @param computeRsam if true, update count, RSAM and mean fields
+   */
+  static void addSamples(final double[][] rows, final double firstSecond, final int[] samples,
+      final int count, final double startTime, final double samplingRate,
+      final boolean computeRsam) {
+    int i = 0;
+    while (i < count) {
+      int j = (int) (Math.floor(startTime + i / samplingRate) - firstSecond);
+      j = Math.max(0, Math.min(rows.length - 1, j));
+      final int end = secondEnd(i, count, startTime, samplingRate, firstSecond + j + 1);
+      final double[] d = rows[j];
+
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      if (computeRsam) {
+        final double mu = d[HeliFields.MU];
+        long sum = 0;
+        long absSum = 0;
+        double devSum = 0;
+        for (int k = i; k < end; k++) {
+          final int s = samples[k];
+          min = s < min ? s : min;
+          max = s > max ? s : max;
+          sum += s;
+          absSum += s < 0 ? -(long) s : s;
+          devSum += Math.abs(s - mu);
+        }
+
+        final double n = d[HeliFields.RCNT];
+        final double total = n + (end - i);
+        d[HeliFields.RSAM] = (d[HeliFields.RSAM] * n + absSum) / total;
+        d[HeliFields.MEAN] = (d[HeliFields.MEAN] * n + sum) / total;
+        d[HeliFields.WEIGHTED_RSAM] = (d[HeliFields.WEIGHTED_RSAM] * n + devSum) / total;
+        d[HeliFields.RCNT] = total;
+      } else {
+        for (int k = i; k < end; k++) {
+          final int s = samples[k];
+          min = s < min ? s : min;
+          max = s > max ? s : max;
+        }
+      }
+      d[HeliFields.SMIN] = Math.min(d[HeliFields.SMIN], min);
+      d[HeliFields.SMAX] = Math.max(d[HeliFields.SMAX], max);
+
+      i = end;
+    }
+  }
+
+  /**
+   * Return the index of the first sample at or after a second boundary, and after sample i.
+   */
+  private static int secondEnd(final int i, final int count, final double startTime,
+      final double samplingRate, final double boundary) {
+    int end = (int) Math.ceil((boundary - startTime) * samplingRate);
+    end = Math.max(i + 1, Math.min(count, end));
+    // correct for rounding so samples land in the same second as floor(time) puts them
+    while (end > i + 1 && startTime + (end - 1) / samplingRate >= boundary) {
+      end--;
+    }
+    while (end < count && startTime + end / samplingRate < boundary) {
+      end++;
+    }
+    return end;
+  }
+}
@@ -0,0 +1,80 @@
+package gov.usgs.volcanoes.winston.db;
+
+/**
+ * Recent helicorder rows for a single channel, held in a ring indexed by j2k second. A row is
+ * replaced when a second one ring length later is added, so the ring holds at least the most
+ * recent capacity seconds of a live channel.
+ */
+class HelicorderRing {
+  private final int mask;
+  private final long[] seconds;
+  private final double[][] rows;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity least number of seconds to hold
+   */
+  HelicorderRing(final int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    mask = size - 1;
+    seconds = new long[size];
+    rows = new double[size][];
+  }
+
+  /**
+   * Return the row for a second.
+   *
+   * @param second j2k second
+   * @return the row, or null if it is not held
+   */
+  double[] get(final long second) {
+    final int i = (int) (second & mask);
+    if (rows[i] != null && seconds[i] == second) {
+      return rows[i];
+    }
+    return null;
+  }
+
+  /**
+   * Hold a row, replacing any row in its slot.
+   *
+   * @param second j2k second
+   * @param row the row
+   */
+  void put(final long second, final double[] row) {
+    final int i = (int) (second & mask);
+    seconds[i] = second;
+    rows[i] = row;
+  }
+
+  /**
+   * Return the mean of the samples in the seconds preceding a second, used to remove the DC
+   * offset from RSAM.
+   *
+   * @param second j2k second
+   * @param delta seconds between the end of the averaging window and second
+   * @param duration length of the averaging window in seconds
+   * @return mean sample value, or 0 if no rows are held for the window
+   */
+  double getMu(final long second, final int delta, final int duration) {
+    double sampleSum = 0;
+    double sampleCount = 0;
+    for (long s = second - delta - duration; s < second - delta; s++) {
+      final double[] hr = get(s);
+      if (hr != null) {
+        sampleSum += hr[InputEW.HeliFields.MEAN] * hr[InputEW.HeliFields.RCNT];
+        sampleCount += hr[InputEW.HeliFields.RCNT];
+      }
+    }
+
+    if (sampleCount != 0) {
+      return sampleSum / sampleCount;
+    } else {
+      return 0;
+    }
+  }
+}
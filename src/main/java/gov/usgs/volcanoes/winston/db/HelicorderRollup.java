@@ -0,0 +1,300 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+/**
+ * Minute and hour rollups of a channel's helicorder rows, so long RSAM and helicorder requests
+ * read one row per minute or hour rather than one per second.
+ *
+ * Each channel database holds a table for each resolution, code$$R60 and code$$R3600, with a row
+ * for each bin holding the extremes and sample count of the bin and the sums needed to take means
+ * over seconds with data. Rollups are recomputed from the helicorder rows whenever those are
+ * written. A day is listed in code$$Rdays once its rollups are known to hold all of its rows; reads
+ * use rollups only for days which are listed and fall back to the helicorder rows for others.
+ *
+ * All methods expect the channel database to be in use.
+ */
+final class HelicorderRollup {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HelicorderRollup.class);
+
+  static final int MINUTE = 60;
+  static final int HOUR = 3600;
+
+  /** rollup resolutions, coarsest first */
+  private static final int[] RESOLUTIONS = {HOUR, MINUTE};
+
+  private static final int ONE_DAY = 86400;
+
+  /** channels known to have rollup tables, by database prefix and code */
+  private static final Set<String> created =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private HelicorderRollup() {}
+
+  /**
+   * Return the rollup table of a channel.
+   *
+   * @param code channel code
+   * @param resolution bin length in seconds
+   * @return table name
+   */
+  static String table(final String code, final int resolution) {
+    return code + "$$R" + resolution;
+  }
+
+  private static String daysTable(final String code) {
+    return code + "$$Rdays";
+  }
+
+  /**
+   * Return the coarsest resolution no longer than a bin, for reading extremes.
+   *
+   * @param binSize bin length in seconds
+   * @return resolution, or 1 if helicorder rows should be read
+   */
+  static int getResolution(final double binSize) {
+    for (final int resolution : RESOLUTIONS) {
+      if (resolution <= binSize) {
+        return resolution;
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Return the coarsest resolution which divides a bin evenly and whose bins start at the first
+   * mean's start, for reading means. Means are counted from their start time, so rollup bins which
+   * do not start there would take in seconds from before it.
+   *
+   * @param binSize bin length in seconds
+   * @param t1 start of the first mean, J2kSec
+   * @return resolution, or 1 if helicorder rows should be read
+   */
+  static int getMeanResolution(final int binSize, final double t1) {
+    for (final int resolution : RESOLUTIONS) {
+      if (binSize >= resolution && binSize % resolution == 0 && startsBin(t1, resolution)) {
+        return resolution;
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Return true if a time is the start of a bin. Days start on a bin boundary at each resolution.
+   *
+   * @param t time, J2kSec
+   * @param resolution bin length in seconds
+   * @return true if t is a whole number of bins from the start of its day
+   */
+  static boolean startsBin(final double t, final int resolution) {
+    return t % resolution == 0;
+  }
+
+  /**
+   * Return true if a time falls in the last second of a bin, so helicorder rows up to it fill
+   * whole bins.
+   *
+   * @param t time, J2kSec
+   * @param resolution bin length in seconds
+   * @return true if the second after t starts a bin
+   */
+  static boolean endsBin(final double t, final int resolution) {
+    return startsBin(Math.floor(t) + 1, resolution);
+  }
+
+  /**
+   * Return the start of a day.
+   *
+   * @param date day in yyyy_MM_dd form
+   * @return J2kSec of midnight UTC
+   */
+  static double getDayStart(final String date) {
+    final SimpleDateFormat dateFormat =
+        new SimpleDateFormat(WinstonDatabase.WINSTON_TABLE_DATE_FORMAT);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return J2kSec.fromDate(dateFormat.parse(date));
+    } catch (final ParseException e) {
+      throw new IllegalArgumentException("Bad date: " + date);
+    }
+  }
+
+  /**
+   * Create a channel's rollup tables if they do not already exist.
+   *
+   * @param db the database
+   * @param code channel code
+   * @throws SQLException when the tables cannot be created
+   */
+  static void createTables(final WinstonDatabase db, final String code) throws SQLException {
+    if (created.contains(db.databasePrefix + "_" + code)) {
+      return;
+    }
+    for (final int resolution : RESOLUTIONS) {
+      db.getStatement().execute("CREATE TABLE IF NOT EXISTS `" + table(code, resolution)
+          + "` (j2ksec DOUBLE PRIMARY KEY, smin INT, smax INT, rcnt INT, secs INT, "
+          + "j2ksum DOUBLE, rsamsum DOUBLE) " + db.tableEngine);
+    }
+    db.getStatement().execute("CREATE TABLE IF NOT EXISTS `" + daysTable(code)
+        + "` (day CHAR(10) PRIMARY KEY) " + db.tableEngine);
+    created.add(db.databasePrefix + "_" + code);
+  }
+
+  /**
+   * Recompute the bins holding a span of helicorder rows from a single day table.
+   *
+   * @param db the database
+   * @param code channel code
+   * @param date day of the rows, in yyyy_MM_dd form
+   * @param t1 first row written, J2kSec
+   * @param t2 last row written, J2kSec
+   * @throws SQLException when the rollups cannot be written
+   */
+  static void update(final WinstonDatabase db, final String code, final String date,
+      final double t1, final double t2) throws SQLException {
+    createTables(db, code);
+    try {
+      final double minuteStart = Math.floor(t1 / MINUTE) * MINUTE;
+      final double minuteEnd = Math.floor(t2 / MINUTE) * MINUTE + MINUTE;
+      rollup(db, code + "$$H" + date, table(code, MINUTE), MINUTE, minuteStart, minuteEnd,
+          "SUM(rcnt), SUM(rcnt>0), SUM(IF(rcnt>0, j2ksec, 0)), SUM(IF(rcnt>0, rsam, 0))");
+
+      final double hourStart = Math.floor(t1 / HOUR) * HOUR;
+      final double hourEnd = Math.floor(t2 / HOUR) * HOUR + HOUR;
+      rollup(db, table(code, MINUTE), table(code, HOUR), HOUR, hourStart, hourEnd,
+          "SUM(rcnt), SUM(secs), SUM(j2ksum), SUM(rsamsum)");
+    } catch (final SQLException e) {
+      // the tables may have been dropped with the channel
+      created.remove(db.databasePrefix + "_" + code);
+      throw e;
+    }
+  }
+
+  private static void rollup(final WinstonDatabase db, final String source, final String dest,
+      final int resolution, final double t1, final double t2, final String sums)
+      throws SQLException {
+    final PreparedStatement ps = db.getPreparedStatement("INSERT INTO `" + dest
+        + "` (j2ksec, smin, smax, rcnt, secs, j2ksum, rsamsum) SELECT FLOOR(j2ksec/" + resolution
+        + ")*" + resolution + " AS bin, MIN(smin), MAX(smax), " + sums + " FROM `" + source
+        + "` WHERE j2ksec>=? AND j2ksec<? GROUP BY bin ON DUPLICATE KEY UPDATE "
+        + "smin=VALUES(smin), smax=VALUES(smax), rcnt=VALUES(rcnt), secs=VALUES(secs), "
+        + "j2ksum=VALUES(j2ksum), rsamsum=VALUES(rsamsum)");
+    ps.setDouble(1, t1);
+    ps.setDouble(2, t2);
+    ps.executeUpdate();
+  }
+
+  /**
+   * Recompute the rollups of a whole day from its helicorder rows and list the day as rolled up.
+   *
+   * @param db the database
+   * @param code channel code
+   * @param date day in yyyy_MM_dd form
+   * @return false if the rollups could not be written
+   */
+  static boolean rebuild(final WinstonDatabase db, final String code, final String date) {
+    if (!db.useDatabase(code)) {
+      return false;
+    }
+    final double dayStart = getDayStart(date);
+    try {
+      created.remove(db.databasePrefix + "_" + code);
+      createTables(db, code);
+      drop(db, code, date);
+      update(db, code, date, dayStart, dayStart + ONE_DAY - 1);
+      setRolledUp(db, code, date);
+      return true;
+    } catch (final SQLException e) {
+      LOGGER.warn("Could not roll up {} {}. ({})", code, date, e.getMessage());
+    }
+    return false;
+  }
+
+  /**
+   * List a day as rolled up. Call when a day's helicorder table is created, before any rows are
+   * written to it.
+   *
+   * @param db the database
+   * @param code channel code
+   * @param date day in yyyy_MM_dd form
+   * @throws SQLException when the day cannot be listed
+   */
+  static void setRolledUp(final WinstonDatabase db, final String code, final String date)
+      throws SQLException {
+    // a new day may follow the channel being dropped and created again
+    created.remove(db.databasePrefix + "_" + code);
+    createTables(db, code);
+    final PreparedStatement ps =
+        db.getPreparedStatement("INSERT IGNORE INTO `" + daysTable(code) + "` VALUES (?)");
+    ps.setString(1, date);
+    ps.executeUpdate();
+  }
+
+  /**
+   * Remove a day's rollups, so reads of the day use its helicorder rows. Fails if the channel has
+   * no rollup tables.
+   *
+   * @param db the database
+   * @param code channel code
+   * @param date day in yyyy_MM_dd form
+   * @throws SQLException when the rollups cannot be removed
+   */
+  static void drop(final WinstonDatabase db, final String code, final String date)
+      throws SQLException {
+    PreparedStatement ps =
+        db.getPreparedStatement("DELETE FROM `" + daysTable(code) + "` WHERE day=?");
+    ps.setString(1, date);
+    ps.executeUpdate();
+
+    final double dayStart = getDayStart(date);
+    for (final int resolution : RESOLUTIONS) {
+      ps = db.getPreparedStatement(
+          "DELETE FROM `" + table(code, resolution) + "` WHERE j2ksec>=? AND j2ksec<?");
+      ps.setDouble(1, dayStart);
+      ps.setDouble(2, dayStart + ONE_DAY);
+      ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Return the days between two dates which are rolled up.
+   *
+   * @param db the database
+   * @param code channel code
+   * @param firstDate first day in yyyy_MM_dd form
+   * @param lastDate last day in yyyy_MM_dd form
+   * @return days in yyyy_MM_dd form, empty if the channel has no rollups
+   */
+  static Set<String> getRolledUpDays(final WinstonDatabase db, final String code,
+      final String firstDate, final String lastDate) {
+    final Set<String> days = new HashSet<String>();
+    try {
+      final PreparedStatement ps = db.getPreparedStatement(
+          "SELECT day FROM `" + daysTable(code) + "` WHERE day>=? AND day<=?");
+      ps.setString(1, firstDate);
+      ps.setString(2, lastDate);
+      final ResultSet rs = ps.executeQuery();
+      while (rs.next()) {
+        days.add(rs.getString(1));
+      }
+      rs.close();
+    } catch (final SQLException e) {
+      // no rollups
+    }
+    return days;
+  }
+}
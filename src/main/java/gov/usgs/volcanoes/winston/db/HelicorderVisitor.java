@@ -0,0 +1,16 @@
+package gov.usgs.volcanoes.winston.db;
+
+/**
+ * Receives helicorder rows one at a time as they are read from a channel's day tables.
+ */
+public interface HelicorderVisitor {
+  /**
+   * Accept a single helicorder row. Rows are delivered in time order.
+   *
+   * @param j2ksec time of row, J2kSec
+   * @param min minimum sample value
+   * @param max maximum sample value
+   * @return false to stop reading
+   */
+  public boolean visit(double j2ksec, double min, double max);
+}
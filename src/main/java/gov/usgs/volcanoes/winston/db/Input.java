@@ -75,8 +75,13 @@ public class Input {
   };
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Input.class);
+
+  /** MySQL error code for a table which doesn't exist */
+  private static final int NO_SUCH_TABLE = 1146;
+
   private final HashMap<String, ChannelInputOptimizer> channelOptimizers;
   private final HashSet<String> checkTableCache;
+  private final HashSet<String> rollupsDropped;
 
   private ChannelInputOptimizer currentLock;
   private final Data data;
@@ -140,6 +145,7 @@ public class Input {
     data = new Data(w);
     channelOptimizers = new HashMap<String, ChannelInputOptimizer>();
     checkTableCache = new HashSet<String>();
+    rollupsDropped = new HashSet<String>();
     dateFormat = new SimpleDateFormat("yyyy_MM_dd");
     dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
   }
@@ -293,6 +299,7 @@ public class Input {
 
       String table = code + "$$" + date;
 
+      dropRollups(code, date);
       if (writeLocks && !locks.contains(table)) {
         currentLock = opt;
         locks.add(table);
@@ -411,6 +418,7 @@ public class Input {
       final String date = dateFormat.format(J2kSec.asDate(ts));
       checkTable(code, date);
       String table = code + "$$" + date;
+      dropRollups(code, date);
       if (writeLocks && !locks.contains(table)) {
         currentLock = opt;
         locks.add(table);
@@ -565,6 +573,7 @@ public class Input {
 
           winston.getStatement().execute("DROP TABLE `" + table + "`");
           winston.getStatement().execute("DROP TABLE `" + ss[0] + "$$H" + ss[1] + "`");
+          dropRollups(ss[0], ss[1]);
           deleted = true;
           LOGGER.info("Deleted table: {}", table);
         } catch (final Exception e) {
@@ -638,6 +647,30 @@ public class Input {
     }
   }
 
+  /**
+   * Stop reads of a day from using its rollups, which are not kept up to date here.
+   *
+   * @param code channel code
+   * @param date day in yyyy_MM_dd form
+   */
+  private void dropRollups(final String code, final String date) {
+    final String key = code + "$$" + date;
+    if (rollupsDropped.contains(key)) {
+      return;
+    }
+    try {
+      HelicorderRollup.drop(winston, code, date);
+      rollupsDropped.add(key);
+    } catch (final SQLException e) {
+      if (e.getErrorCode() == NO_SUCH_TABLE) {
+        // no rollups
+        rollupsDropped.add(key);
+      } else {
+        LOGGER.warn("Could not drop rollups for {}${}. ({})", code, date, e.getMessage());
+      }
+    }
+  }
+
   public void setWinston(final WinstonDatabase db) {
     winston = db;
   }
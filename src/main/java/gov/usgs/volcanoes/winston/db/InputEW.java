@@ -1,5 +1,6 @@
 package gov.usgs.volcanoes.winston.db;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -7,17 +8,18 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.SortedSet;
 import java.util.TimeZone;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.Map.Entry;
 import java.util.zip.Deflater;
 
@@ -41,7 +43,7 @@ import gov.usgs.volcanoes.core.time.Time;
  */
 public class InputEW {
 
-  private static class HeliFields {
+  static class HeliFields {
     public static final int MEAN = 5;
     public static final int MU = 6; // DC offset
     public static final int RCNT = 3;
@@ -66,18 +68,44 @@ public class InputEW {
     }
   }
 
-  private static Map<String, double[]> channelTimeSpans = Collections.synchronizedMap(new HashMap<String, double[]>());
+  /**
+   * A TraceBuf waiting to be written to its day table.
+   */
+  private static class PendingInsert {
+    public final InputResult result;
+    public final String date;
+    public final boolean tableCreated;
+
+    public PendingInsert(final InputResult result, final String date, final boolean tableCreated) {
+      this.result = result;
+      this.date = date;
+      this.tableCreated = tableCreated;
+    }
+  }
+
+  /** Most TraceBufs written by a single INSERT */
+  private static final int MAX_INSERT_ROWS = 100;
+
+  /** Most helicorder rows written by a single INSERT */
+  private static final int MAX_HELICORDER_ROWS = 1000;
+
+  /** Most bytes of TraceBufs written by a single INSERT when bulk loading */
+  private static final int MAX_BULK_INSERT_BYTES = 512 * 1024;
+
+  /** Most helicorder rows written by a single INSERT when bulk loading */
+  private static final int MAX_BULK_HELICORDER_ROWS = 10000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InputEW.class);
 
   /*
-   * These two static fields are for optimization purposes. They are static
-   * and synchronized so multiple instances of this class can modify them
-   * simultaneously.
+   * These two fields are for optimization purposes. They belong to each instance, so writers
+   * running side by side, perhaps on different databases, never clear each other's.
    */
-  private static Set<String> checkTableCache;
-  private static final Logger LOGGER = LoggerFactory.getLogger(InputEW.class);
+  private final Map<String, double[]> channelTimeSpans;
+  private final Set<String> checkTableCache;
 
   // TODO: make this synchronized too?
-  private final Map<String, SortedMap<Double, double[]>> channelHelicorderRows;
+  private final Map<String, HelicorderRing> channelHelicorderRows;
 
   private final Map<String, Integer> channelSid;
   private final DateFormat dateFormat;
@@ -97,9 +125,8 @@ public class InputEW {
     setWinston(w);
     checkTableCache =
         MapBackedSet.decorate(Collections.synchronizedMap(new LRUMap(w.cacheCap, true)));
-
     channelTimeSpans = Collections.synchronizedMap(new HashMap<String, double[]>());
-    channelHelicorderRows = new HashMap<String, SortedMap<Double, double[]>>();
+    channelHelicorderRows = new HashMap<String, HelicorderRing>();
     channelSid = new HashMap<String, Integer>();
     dateFormat = new SimpleDateFormat("yyyy_MM_dd");
     dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
@@ -140,6 +167,13 @@ public class InputEW {
           "CREATE TABLE `" + heliTable + "` (j2ksec DOUBLE PRIMARY KEY, smin INT, smax INT, "
               + "rcnt INT, rsam DOUBLE) " + winston.tableEngine);
 
+      // every row of a new day passes through here, so its rollups are complete
+      try {
+        HelicorderRollup.setRolledUp(winston, code, date);
+      } catch (final SQLException e) {
+        LOGGER.warn("Could not create rollup tables for {}. ({})", code, e.getMessage());
+      }
+
       if (enableValarmView) {
         // if there is data from the previous day, we want to union it
         // into our
@@ -210,12 +244,12 @@ public class InputEW {
    */
   private double[] getHelicorderRow(final String channel, final double j2ksec,
       final boolean useDB) {
-    SortedMap<Double, double[]> rows = channelHelicorderRows.get(channel);
+    HelicorderRing rows = channelHelicorderRows.get(channel);
     if (rows == null) {
-      rows = new TreeMap<Double, double[]>();
+      rows = new HelicorderRing(maxRows);
       channelHelicorderRows.put(channel, rows);
     }
-    double[] d = rows.get(j2ksec);
+    double[] d = rows.get((long) j2ksec);
     if (d != null) {
       return d;
     }
@@ -241,12 +275,7 @@ public class InputEW {
       d = new double[] {j2ksec, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0, 0, 0};
     }
 
-    rows.put(j2ksec, d);
-    if (rows.size() > maxRows) {
-      for (int i = 0; i < numRowsToDelete; i++) {
-        rows.remove(rows.firstKey());
-      }
-    }
+    rows.put((long) j2ksec, d);
     return d;
   }
 
@@ -268,9 +297,7 @@ public class InputEW {
       insert.setDouble(2, tb.getEndTimeJ2K());
       insert.setDouble(3, tb.samplingRate());
       insert.setString(4, tb.dataType());
-      final byte[] compressed =
-          Zip.compress(tb.bytes, Deflater.BEST_SPEED, 0, tb.bytes.length - 1);
-      insert.setBytes(5, compressed);
+      insert.setBytes(5, compress(tb));
     } catch (final SQLException e) {
       LOGGER.error("Could not create prepared statement: {}.({})", tb, e);
     }
@@ -278,13 +305,152 @@ public class InputEW {
     return insert;
   }
 
-  private double getRSAMMu(final String channel, final double j2ksec, int delta,
+  private static byte[] compress(final TraceBuf tb) {
+    return Zip.compress(tb.bytes, Deflater.BEST_SPEED, 0, tb.bytes.length - 1);
+  }
+
+  /**
+   * Write TraceBufs to a single day table, up to MAX_INSERT_ROWS at a time. For each batch, rows
+   * already in the table are found with one query and marked as duplicates, the rest are written
+   * with a single multi-row INSERT. Result codes are set only for TraceBufs which could not be
+   * written.
+   *
+   * @param table the day table
+   * @param inserts TraceBufs to write
+   */
+  private void insertTraceBufs(final String table, final List<PendingInsert> inserts) {
+    final Set<Double> seen = new HashSet<Double>();
+    for (int i = 0; i < inserts.size(); i += MAX_INSERT_ROWS) {
+      final List<PendingInsert> batch =
+          inserts.subList(i, Math.min(i + MAX_INSERT_ROWS, inserts.size()));
+
+      final Set<Double> existing;
+      try {
+        existing = getStartTimes(table, batch);
+      } catch (final SQLException ex) {
+        LOGGER.error("Could not insert trace buf: {}", ex);
+        for (final PendingInsert insert : batch) {
+          insert.result.code = InputResult.Code.ERROR_DATABASE;
+        }
+        continue;
+      }
+
+      final List<PendingInsert> rows = new ArrayList<PendingInsert>(batch.size());
+      for (final PendingInsert insert : batch) {
+        final double st = insert.result.traceBuf.getStartTimeJ2K();
+        if (existing.contains(st) || !seen.add(st)) {
+          insert.result.code = InputResult.Code.ERROR_DUPLICATE;
+        } else {
+          rows.add(insert);
+        }
+      }
+
+      if (rows.isEmpty()) {
+        continue;
+      }
+
+      try {
+        executeInsert(table, rows);
+      } catch (final SQLException ex) {
+        if (ex.getMessage().startsWith("Duplicate entry")) {
+          // another writer got there first, find out which rows by inserting one at a time
+          for (final PendingInsert insert : rows) {
+            insertTraceBuf(table, insert.result);
+          }
+        } else {
+          LOGGER.error("Could not insert trace buf: {}", ex);
+          for (final PendingInsert insert : rows) {
+            insert.result.code = InputResult.Code.ERROR_DATABASE;
+          }
+        }
+      }
+    }
+  }
+
+  private Set<Double> getStartTimes(final String table, final List<PendingInsert> inserts)
+      throws SQLException {
+    final Set<Double> startTimes = new HashSet<Double>();
+    final StringBuilder sql = new StringBuilder("SELECT st FROM `" + table + "` WHERE st IN (");
+    for (int i = 0; i < inserts.size(); i++) {
+      sql.append(i == 0 ? "?" : ",?");
+    }
+    sql.append(")");
+
+    final PreparedStatement select = winston.getConnection().prepareStatement(sql.toString());
+    try {
+      int i = 1;
+      for (final PendingInsert insert : inserts) {
+        select.setDouble(i++, insert.result.traceBuf.getStartTimeJ2K());
+      }
+      final ResultSet rs = select.executeQuery();
+      while (rs.next()) {
+        startTimes.add(rs.getDouble(1));
+      }
+      rs.close();
+    } finally {
+      select.close();
+    }
+    return startTimes;
+  }
+
+  private void executeInsert(final String table, final List<PendingInsert> batch)
+      throws SQLException {
+    final List<byte[]> data = new ArrayList<byte[]>(batch.size());
+    for (final PendingInsert pending : batch) {
+      data.add(compress(pending.result.traceBuf));
+    }
+    executeInsert(table, batch, data);
+  }
+
+  private void executeInsert(final String table, final List<PendingInsert> batch,
+      final List<byte[]> data) throws SQLException {
+    final StringBuilder sql = new StringBuilder("INSERT INTO `" + table + "` VALUES ");
+    for (int i = 0; i < batch.size(); i++) {
+      sql.append(i == 0 ? "(?,?,?,?,?)" : ",(?,?,?,?,?)");
+    }
+
+    final PreparedStatement insert = winston.getConnection().prepareStatement(sql.toString());
+    try {
+      int i = 1;
+      for (int j = 0; j < batch.size(); j++) {
+        final TraceBuf tb = batch.get(j).result.traceBuf;
+        insert.setDouble(i++, tb.getStartTimeJ2K());
+        insert.setDouble(i++, tb.getEndTimeJ2K());
+        insert.setDouble(i++, tb.samplingRate());
+        insert.setString(i++, tb.dataType());
+        insert.setBytes(i++, data.get(j));
+      }
+      insert.executeUpdate();
+    } finally {
+      insert.close();
+    }
+  }
+
+  private void insertTraceBuf(final String table, final InputResult result) {
+    try {
+      getInputStatement(table, result.traceBuf).executeUpdate();
+    } catch (final SQLException ex) {
+      if (ex.getMessage().startsWith("Duplicate entry")) {
+        result.code = InputResult.Code.ERROR_DUPLICATE;
+      } else {
+        result.code = InputResult.Code.ERROR_DATABASE;
+        LOGGER.error("Could not insert trace buf: {}", ex);
+      }
+    }
+  }
+
+  private double getRSAMMu(final String channel, final double j2ksec, final int delta,
       final int duration) {
-    final SortedMap<Double, double[]> rows = channelHelicorderRows.get(channel);
+    final HelicorderRing rows = channelHelicorderRows.get(channel);
     if (rows == null) {
       return Double.NaN;
     }
 
+    return rows.getMu((long) j2ksec, delta, duration);
+  }
+
+  private static double getRSAMMu(final Map<Double, double[]> rows, final double j2ksec,
+      int delta, final int duration) {
     delta = -delta;
     double sampleSum = 0;
     double sampleCount = 0;
@@ -431,8 +597,12 @@ public class InputEW {
 
     final ArrayList<InputResult> results = new ArrayList<InputResult>(tbs.size() + 1);
 
-    final SortedSet<Double> modifiedHeliRows = new TreeSet<Double>();
+    final SortedMap<Double, double[]> modifiedHeliRows = new TreeMap<Double, double[]>();
 
+    // Group TraceBufs by day table so each table can be written with a single INSERT
+    final List<PendingInsert> pending = new ArrayList<PendingInsert>(tbs.size());
+    final Map<String, List<PendingInsert>> tableInserts =
+        new LinkedHashMap<String, List<PendingInsert>>();
     final Iterator<TraceBuf> it = tbs.iterator();
     while (it.hasNext()) {
       boolean tableCreated = false;
@@ -453,50 +623,52 @@ public class InputEW {
       final String endDate = dateFormat.format(J2kSec.asDate(tb.getEndTimeJ2K() + 1));
       final String table = channel + "$$" + date;
 
-      try {
-        if (!tableExists(channel, date)) {
-          createDayTable(channel, date);
-          tableCreated = true;
-        }
-        if (!tableExists(channel, endDate)) {
-          createDayTable(channel, endDate);
-          tableCreated = true;
-        }
+      if (!tableExists(channel, date)) {
+        createDayTable(channel, date);
+        tableCreated = true;
+      }
+      if (!tableExists(channel, endDate)) {
+        createDayTable(channel, endDate);
+        tableCreated = true;
+      }
 
-        final PreparedStatement insert = getInputStatement(table, tb);
+      final PendingInsert insert = new PendingInsert(result, date, tableCreated);
+      pending.add(insert);
+      List<PendingInsert> inserts = tableInserts.get(table);
+      if (inserts == null) {
+        inserts = new ArrayList<PendingInsert>();
+        tableInserts.put(table, inserts);
+      }
+      inserts.add(insert);
+      results.add(result);
+    }
 
-        try {
-          insert.executeUpdate();
-        } catch (final SQLException ex) {
-          if (ex.getMessage().startsWith("Duplicate entry")) {
-            result.code = InputResult.Code.ERROR_DUPLICATE;
-          } else {
-            throw ex;
-          }
-        }
+    for (final Entry<String, List<PendingInsert>> entry : tableInserts.entrySet()) {
+      insertTraceBufs(entry.getKey(), entry.getValue());
+    }
 
-        span[0] = Math.min(span[0], tb.getStartTimeJ2K());
-        span[1] = Math.max(span[1], tb.getEndTimeJ2K());
+    for (final PendingInsert insert : pending) {
+      final InputResult result = insert.result;
+      final TraceBuf tb = result.traceBuf;
+      if (result.code == InputResult.Code.ERROR_DATABASE) {
+        continue;
+      }
 
-        if (tb.samplingRate() > 2 && result.code != InputResult.Code.ERROR_DUPLICATE) {
-          updateHelicorderData(modifiedHeliRows, channel, date, tb, computeRsam, delta, duration,
-              true);
-        }
-      } catch (final SQLException ex) {
-        result.code = InputResult.Code.ERROR_DATABASE;
-        LOGGER.error("Could not insert trace buf: {}", ex);
+      span[0] = Math.min(span[0], tb.getStartTimeJ2K());
+      span[1] = Math.max(span[1], tb.getEndTimeJ2K());
+
+      if (tb.samplingRate() > 2 && result.code != InputResult.Code.ERROR_DUPLICATE) {
+        updateHelicorderData(modifiedHeliRows, channel, insert.date, tb, computeRsam, delta,
+            duration, true);
       }
 
       if (result.code == InputResult.Code.NO_CODE) {
-        if (tableCreated) {
+        if (insert.tableCreated) {
           result.code = InputResult.Code.SUCCESS_CREATED_TABLE;
         } else {
           result.code = InputResult.Code.SUCCESS;
         }
       }
-
-      results.add(result);
-      tableCreated = false;
     }
 
     final InputResult heliResult = new InputResult(InputResult.Code.SUCCESS_HELICORDER, null);
@@ -508,6 +680,13 @@ public class InputEW {
 
     results.add(heliResult);
 
+    results.add(updateTimeSpan(channel, span, stBefore));
+
+    return results;
+  }
+
+  private InputResult updateTimeSpan(final String channel, final double[] span,
+      final double stBefore) {
     final InputResult spanResult = new InputResult(InputResult.Code.ERROR_TIME_SPAN, null);
     try {
       if (span[0] == stBefore) {
@@ -519,11 +698,360 @@ public class InputEW {
     } catch (final SQLException ex) {
       LOGGER.error("Could not set time span for channel: {}. ({})", channel, ex);
     }
-    results.add(spanResult);
+    return spanResult;
+  }
+
+  /**
+   * Inserts TraceBufs for a single channel in bulk, for back-filling whole days. Wave and
+   * helicorder rows are computed in memory, each day table is written in a single transaction
+   * with large multi-row INSERTs, and the channel's time span is updated once at the end.
+   *
+   * Days which already hold data are merged: TraceBufs whose start time is already present are
+   * skipped, and an existing helicorder row is combined with a new one only if together they hold
+   * no more samples than a second can. Otherwise the second was already covered, and the row with
+   * more samples is kept rather than counting its samples twice. A bulk load may therefore overlap
+   * earlier imports, or be repeated, without inflating counts or skewing RSAM. Helicorder rows are
+   * held until all TraceBufs are written, so callers should pass no more than a few days at a
+   * time.
+   *
+   * @param tbs
+   *          the list of TraceBufs to insert
+   * @return the result, as for inputTraceBufs
+   */
+  public List<InputResult> bulkInputTraceBufs(final List<TraceBuf> tbs, final boolean computeRsam,
+      final int delta, final int duration) {
+    if (tbs == null || tbs.size() == 0) {
+      return getError(InputResult.Code.ERROR_INPUT);
+    }
+
+    if (!winston.checkConnect()) {
+      return getError(InputResult.Code.ERROR_NO_WINSTON);
+    }
+
+    final String channel = tbs.get(0).toWinstonString();
+    final double[] span = getTimeSpan(channel);
+    if (span == null) {
+      return getError(InputResult.Code.ERROR_TIME_SPAN);
+    }
+
+    final double stBefore = span[0];
+
+    if (!winston.useDatabase(channel)) {
+      return getError(InputResult.Code.ERROR_DATABASE);
+    }
+
+    final List<TraceBuf> sorted = new ArrayList<TraceBuf>(tbs.size());
+    for (final TraceBuf tb : tbs) {
+      if (tb != null && tb.toWinstonString().equals(channel)) {
+        sorted.add(tb);
+      }
+    }
+    Collections.sort(sorted, new Comparator<TraceBuf>() {
+      public int compare(final TraceBuf tb1, final TraceBuf tb2) {
+        return Double.compare(tb1.getStartTimeJ2K(), tb2.getStartTimeJ2K());
+      }
+    });
+
+    final ArrayList<InputResult> results = new ArrayList<InputResult>(sorted.size() + 2);
+    final Map<String, List<PendingInsert>> dayInserts =
+        new LinkedHashMap<String, List<PendingInsert>>();
+    for (final TraceBuf tb : sorted) {
+      boolean tableCreated = false;
+      final String date = dateFormat.format(J2kSec.asDate(tb.getStartTimeJ2K()));
+      final String endDate = dateFormat.format(J2kSec.asDate(tb.getEndTimeJ2K() + 1));
+      if (!tableExists(channel, date)) {
+        createDayTable(channel, date);
+        tableCreated = true;
+      }
+      if (!tableExists(channel, endDate)) {
+        createDayTable(channel, endDate);
+        tableCreated = true;
+      }
+
+      final InputResult result = new InputResult(InputResult.Code.NO_CODE, tb);
+      List<PendingInsert> inserts = dayInserts.get(date);
+      if (inserts == null) {
+        inserts = new ArrayList<PendingInsert>();
+        dayInserts.put(date, inserts);
+      }
+      inserts.add(new PendingInsert(result, date, tableCreated));
+      results.add(result);
+    }
+
+    double maxRate = 0;
+    final SortedMap<Double, double[]> heliRows = new TreeMap<Double, double[]>();
+    for (final Entry<String, List<PendingInsert>> entry : dayInserts.entrySet()) {
+      final List<PendingInsert> inserts = entry.getValue();
+      bulkInsertTraceBufs(channel + "$$" + entry.getKey(), inserts);
+
+      for (final PendingInsert insert : inserts) {
+        final InputResult result = insert.result;
+        final TraceBuf tb = result.traceBuf;
+        if (result.code == InputResult.Code.ERROR_DATABASE) {
+          continue;
+        }
+
+        span[0] = Math.min(span[0], tb.getStartTimeJ2K());
+        span[1] = Math.max(span[1], tb.getEndTimeJ2K());
+
+        if (result.code == InputResult.Code.ERROR_DUPLICATE) {
+          continue;
+        }
+
+        if (tb.samplingRate() > 2) {
+          addHelicorderData(heliRows, tb, computeRsam, delta, duration);
+          maxRate = Math.max(maxRate, tb.samplingRate());
+        }
+
+        if (insert.tableCreated) {
+          result.code = InputResult.Code.SUCCESS_CREATED_TABLE;
+        } else {
+          result.code = InputResult.Code.SUCCESS;
+        }
+      }
+    }
+
+    // cached rows no longer reflect the helicorder tables
+    channelHelicorderRows.remove(channel);
+
+    final InputResult heliResult = new InputResult(InputResult.Code.SUCCESS_HELICORDER, null);
+    // one sample of slack for sample times which round into a neighboring second
+    final int maxSamples = (int) Math.ceil(maxRate) + 1;
+    final double failed = bulkWriteHelicorderData(channel, heliRows, maxSamples);
+    if (!Double.isNaN(failed)) {
+      heliResult.code = InputResult.Code.ERROR_HELICORDER;
+      heliResult.failedHeliJ2K = failed;
+    }
+    results.add(heliResult);
+
+    results.add(updateTimeSpan(channel, span, stBefore));
 
     return results;
   }
 
+  /**
+   * Write TraceBufs to a single day table in one transaction. TraceBufs already in the table are
+   * marked as duplicates. Result codes are set only for TraceBufs which could not be written.
+   *
+   * @param table the day table
+   * @param inserts TraceBufs to write, in time order
+   */
+  private void bulkInsertTraceBufs(final String table, final List<PendingInsert> inserts) {
+    final Set<Double> existing;
+    try {
+      existing = getStartTimes(table);
+    } catch (final SQLException ex) {
+      LOGGER.error("Could not insert trace buf: {}", ex);
+      for (final PendingInsert insert : inserts) {
+        insert.result.code = InputResult.Code.ERROR_DATABASE;
+      }
+      return;
+    }
+
+    final List<PendingInsert> rows = new ArrayList<PendingInsert>(inserts.size());
+    final List<byte[]> data = new ArrayList<byte[]>(inserts.size());
+    for (final PendingInsert insert : inserts) {
+      final TraceBuf tb = insert.result.traceBuf;
+      if (!existing.add(tb.getStartTimeJ2K())) {
+        insert.result.code = InputResult.Code.ERROR_DUPLICATE;
+      } else {
+        rows.add(insert);
+        data.add(compress(tb));
+      }
+    }
+
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    final Connection connection = winston.getConnection();
+    try {
+      connection.setAutoCommit(false);
+      try {
+        int start = 0;
+        int bytes = 0;
+        for (int i = 0; i < rows.size(); i++) {
+          bytes += data.get(i).length;
+          if (bytes >= MAX_BULK_INSERT_BYTES || i == rows.size() - 1) {
+            executeInsert(table, rows.subList(start, i + 1), data.subList(start, i + 1));
+            start = i + 1;
+            bytes = 0;
+          }
+        }
+        connection.commit();
+      } catch (final SQLException ex) {
+        connection.rollback();
+        throw ex;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (final SQLException ex) {
+      if (ex.getMessage().startsWith("Duplicate entry")) {
+        // another writer got there first, find out which rows by checking each batch
+        insertTraceBufs(table, rows);
+      } else {
+        LOGGER.error("Could not insert trace buf: {}", ex);
+        for (final PendingInsert insert : rows) {
+          insert.result.code = InputResult.Code.ERROR_DATABASE;
+        }
+      }
+    }
+  }
+
+  private Set<Double> getStartTimes(final String table) throws SQLException {
+    final Set<Double> startTimes = new HashSet<Double>();
+    final ResultSet rs = winston.getStatement().executeQuery("SELECT st FROM `" + table + "`");
+    while (rs.next()) {
+      startTimes.add(rs.getDouble(1));
+    }
+    rs.close();
+    return startTimes;
+  }
+
+  /**
+   * Add a TraceBuf to helicorder rows held in memory.
+   */
+  private static void addHelicorderData(final SortedMap<Double, double[]> rows,
+      final TraceBuf tb, final boolean computeRsam, final int delta, final int duration) {
+    final double fst = Math.floor(tb.getStartTimeJ2K());
+    final double cet = Math.ceil(tb.getEndTimeJ2K());
+    final double[][] heliList = new double[((int) Math.round(cet - fst)) + 1][];
+    int j = 0;
+    for (int i = (int) Math.round(fst); i <= (int) Math.round(cet); i++) {
+      double[] row = rows.get((double) i);
+      if (row == null) {
+        row = new double[] {i, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0, 0, 0};
+        rows.put((double) i, row);
+      }
+      if (computeRsam) {
+        row[HeliFields.MU] = getRSAMMu(rows, i, delta, duration);
+      }
+      heliList[j++] = row;
+    }
+    addSamples(heliList, fst, tb, computeRsam);
+  }
+
+  /**
+   * Writes helicorder rows held in memory, merging them with rows already in the database. Each
+   * day table is written in one transaction. In case of failure, returns the j2k of the first row
+   * of the table that failed. Returns NaN on success.
+   *
+   * @param maxSamples most samples a second can hold
+   */
+  private double bulkWriteHelicorderData(final String channel,
+      final SortedMap<Double, double[]> rows, final int maxSamples) {
+    final List<double[]> batch = new ArrayList<double[]>();
+    String batchTable = null;
+    for (final double[] row : rows.values()) {
+      // a row without samples only marks the end of a TraceBuf
+      if (row[HeliFields.SMIN] > row[HeliFields.SMAX]) {
+        continue;
+      }
+
+      final String table = channel + "$$H" + dateFormat.format(J2kSec.asDate(row[0]));
+      if (batchTable != null && !batchTable.equals(table)) {
+        if (!bulkWriteHelicorderRows(batchTable, batch, maxSamples)) {
+          return batch.get(0)[0];
+        }
+        batch.clear();
+      }
+      batchTable = table;
+      batch.add(row);
+    }
+
+    if (!batch.isEmpty() && !bulkWriteHelicorderRows(batchTable, batch, maxSamples)) {
+      return batch.get(0)[0];
+    }
+
+    return Double.NaN;
+  }
+
+  private boolean bulkWriteHelicorderRows(final String table, final List<double[]> rows,
+      final int maxSamples) {
+    // creating the rollup tables inside the transaction would commit it early
+    try {
+      HelicorderRollup.createTables(winston, table.substring(0, table.lastIndexOf("$$H")));
+    } catch (final SQLException ex) {
+      LOGGER.warn("Could not create rollup tables for {}. ({})", table, ex.getMessage());
+    }
+
+    final Connection connection = winston.getConnection();
+    try {
+      connection.setAutoCommit(false);
+      try {
+        mergeHelicorderRows(table, rows, maxSamples);
+        for (int i = 0; i < rows.size(); i += MAX_BULK_HELICORDER_ROWS) {
+          executeHelicorderUpsert(table,
+              rows.subList(i, Math.min(i + MAX_BULK_HELICORDER_ROWS, rows.size())));
+        }
+        connection.commit();
+      } catch (final SQLException ex) {
+        connection.rollback();
+        throw ex;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (final SQLException ex) {
+      LOGGER.warn("Could not write helicorder rows: {}", ex.getMessage());
+      LOGGER.warn("Table: {}, rows: {}->{}", table, rows.get(0)[0], rows.get(rows.size() - 1)[0]);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Combine helicorder rows with any rows already in the table for the same seconds. Rows which
+   * together hold more samples than a second can overlap rather than complete each other, so the
+   * one with more samples is kept, the existing row on a tie.
+   *
+   * @param table the helicorder day table
+   * @param rows rows to be written, in time order
+   * @param maxSamples most samples a second can hold
+   */
+  private void mergeHelicorderRows(final String table, final List<double[]> rows,
+      final int maxSamples) throws SQLException {
+    final Map<Double, double[]> byTime = new HashMap<Double, double[]>(rows.size() * 2);
+    for (final double[] row : rows) {
+      byTime.put(row[0], row);
+    }
+
+    final PreparedStatement select = winston.getConnection().prepareStatement(
+        "SELECT j2ksec, smin, smax, rcnt, rsam FROM `" + table + "` WHERE j2ksec BETWEEN ? AND ?");
+    try {
+      select.setDouble(1, rows.get(0)[0]);
+      select.setDouble(2, rows.get(rows.size() - 1)[0]);
+      final ResultSet rs = select.executeQuery();
+      while (rs.next()) {
+        final double[] row = byTime.get(rs.getDouble(1));
+        if (row == null) {
+          continue;
+        }
+        final int rcnt = rs.getInt(4);
+        final double count = row[HeliFields.RCNT] + rcnt;
+        if (count > maxSamples) {
+          if (rcnt >= row[HeliFields.RCNT]) {
+            row[HeliFields.SMIN] = rs.getInt(2);
+            row[HeliFields.SMAX] = rs.getInt(3);
+            row[HeliFields.RCNT] = rcnt;
+            row[HeliFields.WEIGHTED_RSAM] = rs.getDouble(5);
+          }
+          continue;
+        }
+        row[HeliFields.SMIN] = Math.min(row[HeliFields.SMIN], rs.getInt(2));
+        row[HeliFields.SMAX] = Math.max(row[HeliFields.SMAX], rs.getInt(3));
+        if (count > 0) {
+          row[HeliFields.WEIGHTED_RSAM] =
+              (row[HeliFields.WEIGHTED_RSAM] * row[HeliFields.RCNT] + rs.getDouble(5) * rcnt)
+                  / count;
+        }
+        row[HeliFields.RCNT] = count;
+      }
+      rs.close();
+    } finally {
+      select.close();
+    }
+  }
+
   public void purgeTables(final String channel, final int days) {
     if (days <= 0) {
       return;
@@ -558,6 +1086,11 @@ public class InputEW {
           checkTableCache.remove(table);
           winston.getStatement().execute("DROP TABLE `" + table + "`");
           winston.getStatement().execute("DROP TABLE `" + ss[0] + "$$H" + ss[1] + "`");
+          try {
+            HelicorderRollup.drop(winston, ss[0], ss[1]);
+          } catch (final SQLException e) {
+            // no rollups
+          }
 
           deleted = true;
           LOGGER.info("Deleted table: {}", table);
@@ -592,6 +1125,25 @@ public class InputEW {
 
   public boolean rederive(final List<TraceBuf> tbs, final boolean computeRsam, final int delta,
       final int duration) {
+    return rederive(tbs, computeRsam, delta, duration, Double.NEGATIVE_INFINITY,
+        Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Recompute helicorder rows from TraceBufs, writing only the rows from t1 up to t2. TraceBufs
+   * before t1 may be given so the RSAM mean is known at t1; their rows are computed but not
+   * written. Rows are kept between calls, so consecutive chunks of a channel may be given in turn.
+   *
+   * @param tbs TraceBufs of a single channel, in time order
+   * @param computeRsam if true, compute RSAM
+   * @param delta RSAM delta
+   * @param duration RSAM duration
+   * @param t1 first row written, J2kSec
+   * @param t2 rows are written up to, but not including, this time
+   * @return true if the rows were written
+   */
+  public boolean rederive(final List<TraceBuf> tbs, final boolean computeRsam, final int delta,
+      final int duration, final double t1, final double t2) {
     if (tbs == null || tbs.size() == 0) {
       return false;
     }
@@ -606,7 +1158,7 @@ public class InputEW {
       return false;
     }
 
-    final SortedSet<Double> modifiedHeliRows = new TreeSet<Double>();
+    final SortedMap<Double, double[]> modifiedHeliRows = new TreeMap<Double, double[]>();
     final Iterator<TraceBuf> it = tbs.iterator();
     while (it.hasNext()) {
       final TraceBuf tb = it.next();
@@ -625,7 +1177,7 @@ public class InputEW {
           false);
     }
 
-    return Double.isNaN(writeHelicorderData(channel, modifiedHeliRows));
+    return Double.isNaN(writeHelicorderData(channel, modifiedHeliRows.subMap(t1, t2)));
   }
 
   public void setEnableValarmView(final boolean enableValarmView) {
@@ -636,6 +1188,7 @@ public class InputEW {
   public void setRowParameters(final int mr, final int nd) {
     maxRows = mr;
     numRowsToDelete = nd;
+    channelHelicorderRows.clear();
   }
 
   /**
@@ -728,47 +1281,43 @@ public class InputEW {
    * @param tb
    * @throws SQLException
    */
-  private void updateHelicorderData(final Set<Double> modifiedRows, final String channel,
-      final String date, final TraceBuf tb, final boolean computeRsam, final int delta,
-      final int duration, final boolean useDB) // throws SQLException
+  private void updateHelicorderData(final SortedMap<Double, double[]> modifiedRows,
+      final String channel, final String date, final TraceBuf tb, final boolean computeRsam,
+      final int delta, final int duration, final boolean useDB) // throws SQLException
   {
-    // TODO: optimize/simplify
     final double fst = Math.floor(tb.getStartTimeJ2K());
     final double cet = Math.ceil(tb.getEndTimeJ2K());
     final double[][] heliList = new double[((int) Math.round(cet - fst)) + 1][];
     int j = 0;
     for (int i = (int) Math.round(fst); i <= (int) Math.round(cet); i++) {
-      modifiedRows.add((double) i);
-      heliList[j] = getHelicorderRow(channel, i, useDB);
+      // rows modified by this batch are kept even if they have left the ring
+      double[] row = modifiedRows.get((double) i);
+      if (row == null) {
+        row = getHelicorderRow(channel, i, useDB);
+        modifiedRows.put((double) i, row);
+      }
+      heliList[j] = row;
       if (computeRsam) {
         final double mu = getRSAMMu(channel, i, delta, duration);
         heliList[j][HeliFields.MU] = mu;
       }
       j++;
     }
-    double st = tb.getStartTimeJ2K();
-    final double dt = 1 / tb.samplingRate();
+    addSamples(heliList, fst, tb, computeRsam);
+  }
 
-    for (int i = 0; i < tb.numSamples(); i++) {
-      j = (int) (Math.floor(st) - fst);
-      final double[] d = heliList[j];
-      final int sample = tb.samples()[i];
-      d[HeliFields.SMIN] = Math.min(d[HeliFields.SMIN], sample);
-      d[HeliFields.SMAX] = Math.max(d[HeliFields.SMAX], sample);
-      if (computeRsam) {
-        // original RSAM
-        d[HeliFields.RSAM] =
-            (d[HeliFields.RSAM] * d[HeliFields.RCNT] + Math.abs(sample)) / (d[HeliFields.RCNT] + 1);
-        // average of samples
-        d[HeliFields.MEAN] =
-            (d[HeliFields.MEAN] * d[HeliFields.RCNT] + sample) / (d[HeliFields.RCNT] + 1);
-        d[HeliFields.WEIGHTED_RSAM] =
-            (d[HeliFields.WEIGHTED_RSAM] * d[HeliFields.RCNT] + Math.abs(sample - d[HeliFields.MU]))
-                / (d[HeliFields.RCNT] + 1);
-        d[HeliFields.RCNT]++;
-      }
-      st += dt;
-    }
+  /**
+   * Add a TraceBuf's samples to helicorder rows.
+   *
+   * @param heliList rows for each second spanned by the TraceBuf
+   * @param fst time of the first row
+   * @param tb the TraceBuf
+   * @param computeRsam if true, update RSAM fields
+   */
+  private static void addSamples(final double[][] heliList, final double fst, final TraceBuf tb,
+      final boolean computeRsam) {
+    HelicorderAggregator.addSamples(heliList, fst, tb.samples(), tb.numSamples(),
+        tb.getStartTimeJ2K(), tb.samplingRate(), computeRsam);
   }
 
   /**
@@ -779,30 +1328,92 @@ public class InputEW {
    * @param modifiedRows
    * @return
    */
-  private double writeHelicorderData(final String channel, final Set<Double> modifiedRows) // throws
-  // SQLException
+  private double writeHelicorderData(final String channel,
+      final SortedMap<Double, double[]> modifiedRows) // throws SQLException
   {
-    for (final double j2k : modifiedRows) {
+    // rows are in time order, so each day table's rows are contiguous
+    final List<double[]> batch = new ArrayList<double[]>();
+    String batchTable = null;
+    for (final Entry<Double, double[]> row : modifiedRows.entrySet()) {
+      final double j2k = row.getKey();
       final String date = dateFormat.format(J2kSec.asDate(j2k));
       final String table = channel + "$$H" + date;
 
-      final double[] row = getHelicorderRow(channel, j2k, false);
-      final String sql = String.format(
-          "INSERT INTO `%s` (j2ksec, smin, smax, rcnt, rsam) "
-              + "VALUES (%f,%d,%d,%d,%f) ON DUPLICATE KEY UPDATE "
-              + "smin=VALUES(smin), smax=VALUES(smax), rcnt=VALUES(rcnt), rsam=VALUES(rsam)",
-          table, j2k, (int) row[HeliFields.SMIN], (int) row[HeliFields.SMAX],
-          (int) row[HeliFields.RCNT], row[HeliFields.WEIGHTED_RSAM]);
-      try {
-        winston.getStatement().execute(sql);
-      } catch (final SQLException ex) {
-        LOGGER.warn("Could not write helicorder row: {}", ex.getMessage());
-        LOGGER.warn("SQL: {}", sql);
-        return j2k;
+      if (batch.size() == MAX_HELICORDER_ROWS
+          || (batchTable != null && !batchTable.equals(table))) {
+        if (!writeHelicorderRows(batchTable, batch)) {
+          return batch.get(0)[0];
+        }
+        batch.clear();
       }
+      batchTable = table;
+      batch.add(row.getValue());
+    }
+
+    if (!batch.isEmpty() && !writeHelicorderRows(batchTable, batch)) {
+      return batch.get(0)[0];
     }
 
     return Double.NaN;
   }
 
+  /**
+   * Upsert helicorder rows in a single day table with one multi-row statement.
+   *
+   * @param table the helicorder day table
+   * @param rows rows to write
+   * @return false if the rows could not be written
+   */
+  private boolean writeHelicorderRows(final String table, final List<double[]> rows) {
+    try {
+      executeHelicorderUpsert(table, rows);
+    } catch (final SQLException ex) {
+      LOGGER.warn("Could not write helicorder rows: {}", ex.getMessage());
+      LOGGER.warn("Table: {}, rows: {}->{}", table, rows.get(0)[0], rows.get(rows.size() - 1)[0]);
+      return false;
+    }
+    return true;
+  }
+
+  private void executeHelicorderUpsert(final String table, final List<double[]> rows)
+      throws SQLException {
+    final StringBuilder sql =
+        new StringBuilder("INSERT INTO `" + table + "` (j2ksec, smin, smax, rcnt, rsam) VALUES ");
+    for (int i = 0; i < rows.size(); i++) {
+      sql.append(i == 0 ? "(?,?,?,?,?)" : ",(?,?,?,?,?)");
+    }
+    sql.append(" ON DUPLICATE KEY UPDATE "
+        + "smin=VALUES(smin), smax=VALUES(smax), rcnt=VALUES(rcnt), rsam=VALUES(rsam)");
+
+    final PreparedStatement upsert = winston.getConnection().prepareStatement(sql.toString());
+    try {
+      int i = 1;
+      for (final double[] row : rows) {
+        upsert.setDouble(i++, row[0]);
+        upsert.setInt(i++, (int) row[HeliFields.SMIN]);
+        upsert.setInt(i++, (int) row[HeliFields.SMAX]);
+        upsert.setInt(i++, (int) row[HeliFields.RCNT]);
+        upsert.setDouble(i++, row[HeliFields.WEIGHTED_RSAM]);
+      }
+      upsert.executeUpdate();
+    } finally {
+      upsert.close();
+    }
+
+    final int split = table.lastIndexOf("$$H");
+    final String code = table.substring(0, split);
+    final String date = table.substring(split + 3);
+    try {
+      HelicorderRollup.update(winston, code, date, rows.get(0)[0], rows.get(rows.size() - 1)[0]);
+    } catch (final SQLException e) {
+      LOGGER.warn("Could not update rollups for {}. ({})", table, e.getMessage());
+      // stale rollups must not be read, so fall back to per-second rows for the day
+      try {
+        HelicorderRollup.drop(winston, code, date);
+      } catch (final SQLException e2) {
+        LOGGER.warn("Could not drop rollups for {}. ({})", table, e2.getMessage());
+      }
+    }
+  }
+
 }
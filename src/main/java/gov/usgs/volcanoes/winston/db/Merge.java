@@ -2,158 +2,125 @@ package gov.usgs.volcanoes.winston.db;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import gov.usgs.volcanoes.core.CodeTimer;
 import gov.usgs.volcanoes.core.DataUtils;
-import gov.usgs.volcanoes.winston.in.ew.ImportWSJob;
 
 /**
- * A class for merging a table from a source Winston to a destination Winston.
+ * A class for merging tables from a source Winston to a destination Winston.
  *
- * TODO: better parsing of arguments and adjustable log levels.
+ * Each day table is merged in bulk: the destination's times are read once, the source table is
+ * streamed once, and missing rows are copied with multi-row inserts. Several channels or days may
+ * be merged at once, each worker using its own connections.
  *
  * @author Dan Cervelli
  */
 public class Merge {
-  private static final Logger LOGGER = LoggerFactory.getLogger(ImportWSJob.class);
+  private static final Logger LOGGER = LoggerFactory.getLogger(Merge.class);
+
+  public static final String DRIVER = "org.gjt.mm.mysql.Driver";
+  public static final int DEFAULT_WORKERS = 1;
 
   private static final double EPSILON = 0.0001;
+
+  /** most bytes of TraceBufs in a single INSERT */
+  private static final int MAX_INSERT_BYTES = 512 * 1024;
+
+  /** most rows in a single INSERT */
+  private static final int MAX_INSERT_ROWS = 1000;
+
+  /** seconds between progress reports */
+  private static final int REPORT_INTERVAL = 10;
+
+  private String srcURL;
+  private String srcPrefix;
+  private String destURL;
+  private String destPrefix;
   private WinstonDatabase source;
   private WinstonDatabase dest;
+  private int workers;
+
+  private final AtomicLong waveRows;
+  private final AtomicLong heliRows;
 
   public Merge(final String srcURL, final String destURL) {
-    final String driver = "org.gjt.mm.mysql.Driver";
-    source = new WinstonDatabase(driver, srcURL, null);
+    this(srcURL, null, destURL, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param srcURL source database URL
+   * @param srcPrefix source database prefix, or null for the default
+   * @param destURL destination database URL
+   * @param destPrefix destination database prefix, or null for the default
+   */
+  public Merge(final String srcURL, final String srcPrefix, final String destURL,
+      final String destPrefix) {
+    this.srcURL = srcURL;
+    this.srcPrefix = srcPrefix;
+    this.destURL = destURL;
+    this.destPrefix = destPrefix;
+    workers = DEFAULT_WORKERS;
+    waveRows = new AtomicLong();
+    heliRows = new AtomicLong();
+
+    source = new WinstonDatabase(DRIVER, srcURL, srcPrefix);
     LOGGER.info("Connected to source.");
-    dest = new WinstonDatabase(driver, destURL, null);
+    dest = new WinstonDatabase(DRIVER, destURL, destPrefix);
     LOGGER.info("Connected to destination.");
   }
 
+  /**
+   * Set the number of channels or days merged at once.
+   *
+   * @param workers worker count
+   */
+  public void setWorkers(final int workers) {
+    this.workers = Math.max(1, workers);
+  }
+
   public void flip() {
     final WinstonDatabase temp = source;
     source = dest;
     dest = temp;
+
+    final String url = srcURL;
+    srcURL = destURL;
+    destURL = url;
+
+    final String prefix = srcPrefix;
+    srcPrefix = destPrefix;
+    destPrefix = prefix;
   }
 
   public void mergeHelicorders(final String code, final String date) {
-    try {
-      LOGGER.info("Begin merging helicorders.");
-      final Set<Integer> sourceTimes = new HashSet<Integer>();
-      int total = 0;
-      LOGGER.info("Getting source times.");
-      source.useDatabase(code);
-      ResultSet srs =
-          source.getStatement().executeQuery("SELECT j2ksec FROM `" + code + "$$H" + date + "`");
-      while (srs.next()) {
-        total++;
-        sourceTimes.add((int) Math.round(srs.getDouble(1)));
-      }
-
-      LOGGER.info("Getting destination times.");
-      dest.useDatabase(code);
-      final ResultSet drs =
-          dest.getStatement().executeQuery("SELECT j2ksec FROM `" + code + "$$H" + date + "`");
-      total = 0;
-      while (drs.next()) {
-        total++;
-        sourceTimes.remove(Integer.valueOf((int) Math.round(drs.getDouble(1))));
-      }
-
-      total = 0;
-      double read = 0;
-      double write = 0;
-      LOGGER.info("Begin merging.");
-      String sql = "INSERT IGNORE INTO `" + code + "$$H" + date + "` VALUES (?,?,?,?,?)";
-      final PreparedStatement insert = dest.getConnection().prepareStatement(sql);
-      final CodeTimer readTimer = new CodeTimer();
-      for (final Iterator<Integer> it = sourceTimes.iterator(); it.hasNext();) {
-        final int d = it.next().intValue();
-        srs = source.getStatement().executeQuery("SELECT j2ksec, smin, smax, rcnt, rsam FROM `"
-            + code + "$$H" + date + "` WHERE j2ksec=" + d);
-        if (srs.next()) {
-          insert.setDouble(1, srs.getDouble(1));
-          insert.setInt(2, srs.getInt(2));
-          insert.setInt(3, srs.getInt(3));
-          insert.setInt(4, srs.getInt(4));
-          insert.setDouble(5, srs.getDouble(5));
-          final CodeTimer writeTimer = new CodeTimer();
-          insert.execute();
-          writeTimer.stopAndReport();
-          write += writeTimer.getRunTimeMillis();
-          total++;
-        }
-      }
-      insert.close();
-      readTimer.stop();
-      read = readTimer.getRunTimeMillis() - write;
-      LOGGER.info("Done merging, " + read + "ms reading, " + write + "ms writing.");
-      LOGGER.info("Merged " + total + " helicorder rows.");
-    } catch (final Exception e) {
-      LOGGER.error("Could not merge waves. {}", e);
+    LOGGER.info("Begin merging helicorders.");
+    final long start = System.currentTimeMillis();
+    final int total = mergeHelicorders(source, dest, code, date);
+    if (total >= 0) {
+      LOGGER.info("Merged {} helicorder rows, {}", total, rate(total, start));
     }
   }
 
   public void mergeWaves(final String code, final String date) {
-    try {
-      LOGGER.info("Begin merging waves.");
-      final Set<Double> sourceTimes = new HashSet<Double>();
-      int total = 0;
-      LOGGER.info("Getting source times.");
-      source.useDatabase(code);
-      ResultSet srs =
-          source.getStatement().executeQuery("SELECT st FROM `" + code + "$$" + date + "`");
-      while (srs.next()) {
-        total++;
-        sourceTimes.add(DataUtils.register(srs.getDouble(1), EPSILON));
-      }
-
-      LOGGER.info("Getting destination times.");
-      dest.useDatabase(code);
-      final ResultSet drs =
-          dest.getStatement().executeQuery("SELECT st FROM `" + code + "$$" + date + "`");
-      total = 0;
-      while (drs.next()) {
-        total++;
-        sourceTimes.remove(new Double(DataUtils.register(drs.getDouble(1), EPSILON)));
-      }
-
-      total = 0;
-      LOGGER.info("Begin merging.");
-      double read = 0;
-      double write = 0;
-      String sql = "INSERT IGNORE INTO `" + code + "$$" + date + "` VALUES (?,?,?,?,?)";
-      final PreparedStatement insert = dest.getConnection().prepareStatement(sql);
-      final CodeTimer readTimer = new CodeTimer();
-      for (final Iterator<Double> it = sourceTimes.iterator(); it.hasNext();) {
-        final double d = it.next().doubleValue();
-        srs = source.getStatement().executeQuery("SELECT st, et, sr, datatype, tracebuf FROM `"
-            + code + "$$" + date + "` WHERE st>=" + (d - EPSILON) + " AND st<=" + (d + EPSILON));
-        if (srs.next()) {
-          insert.setDouble(1, srs.getDouble(1));
-          insert.setDouble(2, srs.getDouble(2));
-          insert.setDouble(3, srs.getDouble(3));
-          insert.setString(4, srs.getString(4));
-          insert.setBlob(5, srs.getBlob(5));
-          final CodeTimer writeTimer = new CodeTimer();
-          insert.execute();
-          writeTimer.stopAndReport();
-          write += writeTimer.getRunTimeMillis();
-          total++;
-        }
-      }
-      insert.close();
-      readTimer.stop();
-      read = readTimer.getRunTimeMillis() - write;
-      LOGGER.info("Done merging, " + read + "ms reading, " + write + "ms writing.");
-      LOGGER.info("Merged " + total + " wave rows.");
-    } catch (final Exception e) {
-      LOGGER.error("Could not merge waves. {}", e);
+    LOGGER.info("Begin merging waves.");
+    final long start = System.currentTimeMillis();
+    final int total = mergeWaves(source, dest, code, date);
+    if (total >= 0) {
+      LOGGER.info("Merged {} wave rows, {}", total, rate(total, start));
     }
   }
 
@@ -170,15 +137,391 @@ public class Merge {
     mergeHelicorders(code, date);
   }
 
+  /**
+   * Merge days of several channels, using the configured number of workers.
+   *
+   * @param codes channels to merge
+   * @param firstDate first day in yyyy_MM_dd form, or null for the earliest day
+   * @param lastDate last day in yyyy_MM_dd form, or null for the latest day
+   */
+  public void merge(final List<String> codes, final String firstDate, final String lastDate) {
+    final ConcurrentLinkedQueue<String[]> jobs = new ConcurrentLinkedQueue<String[]>();
+    final List<String> jobCodes = new ArrayList<String>();
+    for (final String code : codes) {
+      for (final String date : getDates(source, code)) {
+        if ((firstDate == null || date.compareTo(firstDate) >= 0)
+            && (lastDate == null || date.compareTo(lastDate) <= 0)) {
+          jobs.add(new String[] {code, date});
+          if (!jobCodes.contains(code)) {
+            jobCodes.add(code);
+          }
+        }
+      }
+    }
+    createChannels(jobCodes);
+    LOGGER.info("Merging {} channel days with {} workers.", jobs.size(), workers);
+
+    waveRows.set(0);
+    heliRows.set(0);
+    final long start = System.currentTimeMillis();
+
+    final List<Thread> threads = new ArrayList<Thread>(workers);
+    for (int i = 0; i < workers; i++) {
+      final Thread thread = new Thread(new Worker(jobs), "Merge-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+
+    try {
+      for (final Thread thread : threads) {
+        while (thread.isAlive()) {
+          thread.join(REPORT_INTERVAL * 1000);
+          if (thread.isAlive()) {
+            report(start);
+          }
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (final Thread thread : threads) {
+        thread.interrupt();
+      }
+    }
+
+    LOGGER.info("Done merging, {} channel days left.", jobs.size());
+    report(start);
+  }
+
+  /**
+   * Create channels missing from the destination before any worker starts, so that workers merging
+   * different days of a channel do not race to create it.
+   *
+   * @param codes channels to be merged
+   */
+  private void createChannels(final List<String> codes) {
+    dest.checkDatabase();
+    final Channels channels = new Channels(dest);
+    for (final String code : codes) {
+      if (!dest.useDatabase(code)) {
+        LOGGER.info("Creating channel {} in destination.", code);
+        channels.createChannel(code);
+      }
+    }
+  }
+
+  private void report(final long start) {
+    final long waves = waveRows.get();
+    final long helis = heliRows.get();
+    LOGGER.info("Merged {} wave rows and {} helicorder rows, {}", waves, helis,
+        rate(waves + helis, start));
+  }
+
+  private static String rate(final long rows, final long start) {
+    final double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    return String.format("%.1f rows/s", rows / seconds);
+  }
+
+  /**
+   * Merges days taken from a shared queue with its own connections.
+   */
+  private class Worker implements Runnable {
+    private final ConcurrentLinkedQueue<String[]> jobs;
+
+    Worker(final ConcurrentLinkedQueue<String[]> jobs) {
+      this.jobs = jobs;
+    }
+
+    public void run() {
+      final WinstonDatabase src = new WinstonDatabase(DRIVER, srcURL, srcPrefix);
+      final WinstonDatabase dst = new WinstonDatabase(DRIVER, destURL, destPrefix);
+      try {
+        String[] job;
+        while (!Thread.currentThread().isInterrupted() && (job = jobs.poll()) != null) {
+          final int waves = mergeWaves(src, dst, job[0], job[1]);
+          if (waves > 0) {
+            waveRows.addAndGet(waves);
+          }
+          final int helis = mergeHelicorders(src, dst, job[0], job[1]);
+          if (helis > 0) {
+            heliRows.addAndGet(helis);
+          }
+        }
+      } finally {
+        src.close();
+        dst.close();
+      }
+    }
+  }
+
+  /**
+   * Return the days held for a channel.
+   *
+   * @return days in yyyy_MM_dd form, in order
+   */
+  private static List<String> getDates(final WinstonDatabase winston, final String code) {
+    final List<String> dates = new ArrayList<String>();
+    if (!winston.useDatabase(code)) {
+      return dates;
+    }
+
+    try {
+      final ResultSet rs = winston.getStatement().executeQuery("SHOW TABLES");
+      final String prefix = code + "$$";
+      while (rs.next()) {
+        final String table = rs.getString(1);
+        if (table.startsWith(prefix)) {
+          final String day = table.substring(prefix.length());
+          if (day.length() == 10 && day.charAt(4) == '_' && day.charAt(7) == '_'
+              && Character.isDigit(day.charAt(0)) && Character.isDigit(day.charAt(9))) {
+            dates.add(day);
+          }
+        }
+      }
+      rs.close();
+    } catch (final SQLException e) {
+      LOGGER.error("Could not list tables for {}. {}", code, e);
+    }
+    Collections.sort(dates);
+    return dates;
+  }
+
+  /**
+   * Copy wave rows missing from the destination.
+   *
+   * @return number of rows copied, or -1 on error
+   */
+  private static int mergeWaves(final WinstonDatabase src, final WinstonDatabase dst,
+      final String code, final String date) {
+    final String table = code + "$$" + date;
+    try {
+      if (!prepareTable(src, dst, code, table)) {
+        return -1;
+      }
+
+      final Set<Double> destTimes = new HashSet<Double>();
+      final ResultSet drs = dst.getStatement().executeQuery("SELECT st FROM `" + table + "`");
+      while (drs.next()) {
+        destTimes.add(DataUtils.register(drs.getDouble(1), EPSILON));
+      }
+      drs.close();
+
+      int total = 0;
+      double st = Double.NaN;
+      double et = Double.NaN;
+      final List<Object[]> batch = new ArrayList<Object[]>();
+      int batchBytes = 0;
+      final Statement select = src.getStreamingStatement();
+      try {
+        final ResultSet srs =
+            select.executeQuery("SELECT st, et, sr, datatype, tracebuf FROM `" + table + "`");
+        while (srs.next()) {
+          final double rowSt = srs.getDouble(1);
+          if (destTimes.contains(DataUtils.register(rowSt, EPSILON))) {
+            continue;
+          }
+
+          final byte[] tracebuf = srs.getBytes(5);
+          final double rowEt = srs.getDouble(2);
+          batch.add(new Object[] {rowSt, rowEt, srs.getDouble(3), srs.getString(4), tracebuf});
+          batchBytes += tracebuf == null ? 0 : tracebuf.length;
+          st = Double.isNaN(st) ? rowSt : Math.min(st, rowSt);
+          et = Double.isNaN(et) ? rowEt : Math.max(et, rowEt);
+
+          if (batch.size() >= MAX_INSERT_ROWS || batchBytes >= MAX_INSERT_BYTES) {
+            total += insertWaves(dst, table, batch);
+            batch.clear();
+            batchBytes = 0;
+          }
+        }
+        srs.close();
+      } finally {
+        select.close();
+      }
+      if (!batch.isEmpty()) {
+        total += insertWaves(dst, table, batch);
+      }
+
+      if (total > 0) {
+        updateTimeSpan(dst, code, st, et);
+      }
+      LOGGER.debug("Merged {} wave rows into {}.", total, table);
+      return total;
+    } catch (final SQLException e) {
+      LOGGER.error("Could not merge waves for {}. {}", table, e);
+      return -1;
+    }
+  }
+
+  private static int insertWaves(final WinstonDatabase dst, final String table,
+      final List<Object[]> rows) throws SQLException {
+    final StringBuilder sql = new StringBuilder("INSERT IGNORE INTO `" + table + "` VALUES ");
+    for (int i = 0; i < rows.size(); i++) {
+      sql.append(i == 0 ? "(?,?,?,?,?)" : ",(?,?,?,?,?)");
+    }
+
+    final PreparedStatement insert = dst.getConnection().prepareStatement(sql.toString());
+    try {
+      int i = 1;
+      for (final Object[] row : rows) {
+        insert.setDouble(i++, (Double) row[0]);
+        insert.setDouble(i++, (Double) row[1]);
+        insert.setDouble(i++, (Double) row[2]);
+        insert.setString(i++, (String) row[3]);
+        insert.setBytes(i++, (byte[]) row[4]);
+      }
+      return insert.executeUpdate();
+    } finally {
+      insert.close();
+    }
+  }
+
+  /**
+   * Copy helicorder rows missing from the destination.
+   *
+   * @return number of rows copied, or -1 on error
+   */
+  private static int mergeHelicorders(final WinstonDatabase src, final WinstonDatabase dst,
+      final String code, final String date) {
+    final String table = code + "$$H" + date;
+    try {
+      if (!prepareTable(src, dst, code, table)) {
+        return -1;
+      }
+
+      final Set<Integer> destTimes = new HashSet<Integer>();
+      final ResultSet drs = dst.getStatement().executeQuery("SELECT j2ksec FROM `" + table + "`");
+      while (drs.next()) {
+        destTimes.add((int) Math.round(drs.getDouble(1)));
+      }
+      drs.close();
+
+      int total = 0;
+      final List<double[]> batch = new ArrayList<double[]>();
+      final Statement select = src.getStreamingStatement();
+      try {
+        final ResultSet srs =
+            select.executeQuery("SELECT j2ksec, smin, smax, rcnt, rsam FROM `" + table + "`");
+        while (srs.next()) {
+          final double j2ksec = srs.getDouble(1);
+          if (destTimes.contains((int) Math.round(j2ksec))) {
+            continue;
+          }
+
+          batch.add(new double[] {j2ksec, srs.getInt(2), srs.getInt(3), srs.getInt(4),
+              srs.getDouble(5)});
+          if (batch.size() >= MAX_INSERT_ROWS) {
+            total += insertHelicorders(dst, table, batch);
+            batch.clear();
+          }
+        }
+        srs.close();
+      } finally {
+        select.close();
+      }
+      if (!batch.isEmpty()) {
+        total += insertHelicorders(dst, table, batch);
+      }
+
+      LOGGER.debug("Merged {} helicorder rows into {}.", total, table);
+      if (total > 0) {
+        HelicorderRollup.rebuild(dst, code, date);
+      }
+      return total;
+    } catch (final SQLException e) {
+      LOGGER.error("Could not merge helicorders for {}. {}", table, e);
+      return -1;
+    }
+  }
+
+  private static int insertHelicorders(final WinstonDatabase dst, final String table,
+      final List<double[]> rows) throws SQLException {
+    final StringBuilder sql = new StringBuilder("INSERT IGNORE INTO `" + table + "` VALUES ");
+    for (int i = 0; i < rows.size(); i++) {
+      sql.append(i == 0 ? "(?,?,?,?,?)" : ",(?,?,?,?,?)");
+    }
+
+    final PreparedStatement insert = dst.getConnection().prepareStatement(sql.toString());
+    try {
+      int i = 1;
+      for (final double[] row : rows) {
+        insert.setDouble(i++, row[0]);
+        insert.setInt(i++, (int) row[1]);
+        insert.setInt(i++, (int) row[2]);
+        insert.setInt(i++, (int) row[3]);
+        insert.setDouble(i++, row[4]);
+      }
+      return insert.executeUpdate();
+    } finally {
+      insert.close();
+    }
+  }
+
+  /**
+   * Select the channel's database on both sides, creating the destination channel and table from
+   * the source if they are missing.
+   *
+   * @return false if the source table cannot be read or the destination cannot be created
+   */
+  private static boolean prepareTable(final WinstonDatabase src, final WinstonDatabase dst,
+      final String code, final String table) throws SQLException {
+    if (!src.useDatabase(code) || !src.tableExists(code, table)) {
+      LOGGER.info("No source table {}.", table);
+      return false;
+    }
+
+    if (!dst.useDatabase(code)) {
+      LOGGER.info("Creating channel {} in destination.", code);
+      dst.checkDatabase();
+      new Channels(dst).createChannel(code);
+      if (!dst.useDatabase(code)) {
+        return false;
+      }
+    }
+
+    if (!dst.tableExists(code, table)) {
+      final ResultSet rs = src.getStatement().executeQuery("SHOW CREATE TABLE `" + table + "`");
+      final String create = rs.next() ? rs.getString(2) : null;
+      rs.close();
+      if (create == null) {
+        return false;
+      }
+      dst.getStatement().execute(create);
+    }
+    return true;
+  }
+
+  private static void updateTimeSpan(final WinstonDatabase dst, final String code,
+      final double st, final double et) throws SQLException {
+    dst.getStatement().execute("UPDATE `" + dst.databasePrefix + "_ROOT`.channels SET st=LEAST(st,"
+        + st + "), et=GREATEST(et," + et + ") WHERE code='" + code + "'");
+  }
+
   public static void main(final String[] args) {
-    if (args.length != 4) {
-      System.err.println(
-          "usage: java gov.usgs.volcanoes.winston.db.Merge [srcURL] [destURL] [table] [date]");
-      System.err.println("[table] is case sensitive; example: CRP_SHZ_AK");
-      System.err.println("[date] is in YYYY_MM_DD form; example: 2005_03_27");
+    if (args.length < 4 || args.length > 5) {
+      System.err.println("usage: java gov.usgs.volcanoes.winston.db.Merge [srcURL] [destURL] "
+          + "[table] [date] [workers]");
+      System.err.println("[table] is case sensitive, comma separated; example: CRP_SHZ_AK");
+      System.err.println("[date] is in YYYY_MM_DD form, a range YYYY_MM_DD-YYYY_MM_DD, or 'all'; "
+          + "example: 2005_03_27");
+      System.err.println("[workers] is the number of channel days merged at once; default: "
+          + DEFAULT_WORKERS);
       System.exit(1);
     }
     final Merge merge = new Merge(args[0], args[1]);
-    merge.merge(args[2], args[3]);
+    final List<String> codes = Arrays.asList(args[2].split(","));
+    if (args.length == 5) {
+      merge.setWorkers(Integer.parseInt(args[4]));
+    }
+
+    final String date = args[3];
+    if (codes.size() == 1 && args.length == 4 && date.length() == 10) {
+      merge.merge(codes.get(0), date);
+    } else if ("all".equals(date)) {
+      merge.merge(codes, null, null);
+    } else {
+      final int dash = date.indexOf('-');
+      merge.merge(codes, dash == -1 ? date : date.substring(0, dash),
+          dash == -1 ? date : date.substring(dash + 1));
+    }
   }
 }
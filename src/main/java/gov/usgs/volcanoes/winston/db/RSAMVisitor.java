@@ -0,0 +1,15 @@
+package gov.usgs.volcanoes.winston.db;
+
+/**
+ * Receives RSAM rows one at a time as they are read from a channel's day tables.
+ */
+public interface RSAMVisitor {
+  /**
+   * Accept a single RSAM row. Rows are delivered in time order.
+   *
+   * @param j2ksec time of row, J2kSec
+   * @param rsam RSAM value
+   * @return false to stop reading
+   */
+  public boolean visit(double j2ksec, double rsam);
+}
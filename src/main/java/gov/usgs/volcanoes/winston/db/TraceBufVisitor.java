@@ -0,0 +1,18 @@
+package gov.usgs.volcanoes.winston.db;
+
+/**
+ * Receives TraceBufs one at a time as they are read from a channel's day tables.
+ */
+public interface TraceBufVisitor {
+  /**
+   * Accept a single TraceBuf. TraceBufs are delivered in time order.
+   *
+   * @param st start time, J2kSec
+   * @param et end time, J2kSec
+   * @param sr sample rate
+   * @param dataType earthworm data type
+   * @param traceBuf decompressed TraceBuf
+   * @return false to stop reading
+   */
+  public boolean visit(double st, double et, double sr, String dataType, byte[] traceBuf);
+}
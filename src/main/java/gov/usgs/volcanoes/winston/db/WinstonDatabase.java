@@ -153,6 +153,36 @@ public class WinstonDatabase {
     return winstonConnection.createStatement();
   }
 
+  /**
+   * Create a statement which streams results from the server a row at a time instead of reading
+   * the whole result into memory. Caller must close the statement.
+   *
+   * @return new statement
+   * @throws SQLException when the statement cannot be created
+   * @see #streamResults(Statement)
+   */
+  public Statement getStreamingStatement() throws SQLException {
+    final Statement statement =
+        winstonConnection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    streamResults(statement);
+    return statement;
+  }
+
+  /**
+   * Ask the MySQL driver to stream results from a forward-only, read-only statement. No other
+   * query may be run on the connection until a streamed ResultSet has been read to the end or
+   * closed. Drivers which do not support streaming will read results as usual.
+   *
+   * @param statement statement to stream
+   */
+  public static void streamResults(final Statement statement) {
+    try {
+      statement.setFetchSize(Integer.MIN_VALUE);
+    } catch (final SQLException e) {
+      LOGGER.debug("Driver cannot stream results. ({})", e.getLocalizedMessage());
+    }
+  }
+
   public String getSchemaVersion() {
     useRootDatabase();
     String sv = null;
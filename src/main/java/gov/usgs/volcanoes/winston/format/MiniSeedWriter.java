@@ -0,0 +1,355 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.format;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+/**
+ * Encodes the samples of a single channel as Steim2 compressed miniSEED records. Samples are
+ * buffered only until they fill a record, which is then written to the output stream, so no more
+ * than one record of samples is held at a time. Contiguous samples are packed into full records;
+ * a gap, an overlap, or a change of sample rate ends the current record early.
+ *
+ * Each record has a fixed header and blockette 1000 in its first 64 bytes, followed by Steim2
+ * frames. The encoder is written here rather than taken from seisFile so a record can be filled
+ * exactly from a stream of samples and differences carried from one record to the next;
+ * MiniSeedWriterTest reads its output back with seisFile.
+ */
+public class MiniSeedWriter {
+  /** default record length in bytes */
+  public static final int DEFAULT_RECORD_LENGTH = 4096;
+
+  private static final int HEADER_LENGTH = 64;
+  private static final int FRAME_LENGTH = 64;
+  private static final int WORDS_PER_FRAME = 16;
+  private static final int STEIM2 = 11;
+  private static final int MAX_SEQUENCE = 999999;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /** samples per word and bits per sample of each Steim2 packing, most samples first */
+  private static final int[][] PACKINGS =
+      {{7, 4}, {6, 5}, {5, 6}, {4, 8}, {3, 10}, {2, 15}, {1, 30}};
+
+  private final Scnl scnl;
+  private final int recordLength;
+  private final int frames;
+  private final OutputStream out;
+  private final byte[] record;
+  private final int[] samples;
+  private final Calendar calendar;
+
+  private int count;
+  private double segmentStart;
+  private long segmentSamples;
+  private double sampleRate;
+  private boolean continuous;
+  private int lastSample;
+  private int sequence;
+  private long recordCount;
+
+  /**
+   * Constructor.
+   *
+   * @param scnl channel written
+   * @param recordLength record length in bytes, a power of two of at least 128
+   * @param out stream receiving records
+   */
+  public MiniSeedWriter(Scnl scnl, int recordLength, OutputStream out) {
+    if (recordLength < 128 || Integer.bitCount(recordLength) != 1) {
+      throw new IllegalArgumentException("Invalid record length: " + recordLength);
+    }
+    this.scnl = scnl;
+    this.recordLength = recordLength;
+    this.out = out;
+    frames = (recordLength - HEADER_LENGTH) / FRAME_LENGTH;
+    record = new byte[recordLength];
+
+    // the first frame gives up two words to the integration constants; no word holds more than
+    // seven samples
+    samples = new int[7 * (frames * (WORDS_PER_FRAME - 1) - 2)];
+    calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    sequence = 1;
+  }
+
+  /**
+   * Write samples.
+   *
+   * @param startTime time of the first sample, J2kSec
+   * @param sampleRate samples per second
+   * @param data samples
+   * @param offset index of first sample to write
+   * @param length number of samples to write
+   * @throws IOException when a record cannot be written
+   */
+  public void write(double startTime, double sampleRate, int[] data, int offset, int length)
+      throws IOException {
+    if (length <= 0) {
+      return;
+    }
+
+    if (count > 0 && !isContiguous(startTime, sampleRate)) {
+      flush();
+      continuous = false;
+    } else if (count == 0 && continuous && !isContiguous(startTime, sampleRate)) {
+      continuous = false;
+    }
+
+    if (count == 0 && !continuous) {
+      segmentStart = startTime;
+      segmentSamples = 0;
+      this.sampleRate = sampleRate;
+    }
+
+    while (length > 0) {
+      final int n = Math.min(length, samples.length - count);
+      System.arraycopy(data, offset, samples, count, n);
+      count += n;
+      offset += n;
+      length -= n;
+
+      if (count == samples.length) {
+        writeRecord();
+      }
+    }
+  }
+
+  /**
+   * Write any buffered samples.
+   *
+   * @throws IOException when a record cannot be written
+   */
+  public void flush() throws IOException {
+    while (count > 0) {
+      writeRecord();
+    }
+  }
+
+  /**
+   * Return number of records written.
+   *
+   * @return record count
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  private boolean isContiguous(double time, double rate) {
+    final double expected = segmentStart + (segmentSamples + count) / sampleRate;
+    return rate == sampleRate && Math.abs(time - expected) < 0.5 / sampleRate;
+  }
+
+  /**
+   * Pack as many buffered samples as fit into one record and write it.
+   */
+  private void writeRecord() throws IOException {
+    Arrays.fill(record, (byte) 0);
+    final ByteBuffer buf = ByteBuffer.wrap(record);
+
+    int n = 0;
+    packing: for (int frame = 0; frame < frames; frame++) {
+      final int frameStart = HEADER_LENGTH + frame * FRAME_LENGTH;
+      int nibbles = 0;
+      for (int word = frame == 0 ? 3 : 1; word < WORDS_PER_FRAME && n < count; word++) {
+        final int packed = pack(n);
+        if (packed == 0) {
+          buf.putInt(frameStart, nibbles);
+          break packing;
+        }
+        final int samplesPacked = PACKINGS[packed - 1][0];
+        final int bits = PACKINGS[packed - 1][1];
+        nibbles |= encodeWord(buf, frameStart + word * 4, n, samplesPacked, bits)
+            << (30 - 2 * word);
+        n += samplesPacked;
+      }
+      buf.putInt(frameStart, nibbles);
+    }
+
+    buf.putInt(HEADER_LENGTH + 4, samples[0]);
+    buf.putInt(HEADER_LENGTH + 8, samples[n - 1]);
+    writeHeader(buf, n);
+    out.write(record);
+    recordCount++;
+
+    lastSample = samples[n - 1];
+    continuous = true;
+    count -= n;
+    System.arraycopy(samples, n, samples, 0, count);
+    segmentSamples += n;
+    sequence = sequence == MAX_SEQUENCE ? 1 : sequence + 1;
+  }
+
+  /**
+   * Choose the packing for the word starting at a sample.
+   *
+   * @param index index of first sample in word
+   * @return one more than the index of the packing in PACKINGS, or 0 if the difference to the
+   *         sample is too large to be encoded
+   */
+  private int pack(int index) {
+    for (int p = 0; p < PACKINGS.length; p++) {
+      final int samplesPacked = PACKINGS[p][0];
+      if (index + samplesPacked > count) {
+        continue;
+      }
+      final long limit = 1L << (PACKINGS[p][1] - 1);
+      boolean fits = true;
+      for (int i = index; i < index + samplesPacked && fits; i++) {
+        final long diff = difference(i);
+        fits = diff >= -limit && diff < limit;
+      }
+      if (fits) {
+        return p + 1;
+      }
+    }
+    return 0;
+  }
+
+  private long difference(int index) {
+    if (index > 0) {
+      return (long) samples[index] - samples[index - 1];
+    }
+    if (!continuous) {
+      return 0;
+    }
+
+    // a difference which cannot be encoded is dropped; decoders start from the first sample
+    final long diff = (long) samples[0] - lastSample;
+    return diff >= -(1L << 29) && diff < (1L << 29) ? diff : 0;
+  }
+
+  /**
+   * Write one word of differences.
+   *
+   * @return the word's two bit nibble
+   */
+  private int encodeWord(ByteBuffer buf, int position, int index, int samplesPacked, int bits) {
+    final int mask = (1 << bits) - 1;
+    int word = 0;
+    for (int i = 0; i < samplesPacked; i++) {
+      word = (word << bits) | ((int) difference(index + i) & mask);
+    }
+
+    final int nibble;
+    switch (samplesPacked) {
+      case 4:
+        nibble = 1;
+        break;
+      case 3:
+        word |= 3 << 30;
+        nibble = 2;
+        break;
+      case 2:
+        word |= 2 << 30;
+        nibble = 2;
+        break;
+      case 1:
+        word |= 1 << 30;
+        nibble = 2;
+        break;
+      case 7:
+        word |= 2 << 30;
+        nibble = 3;
+        break;
+      case 6:
+        word |= 1 << 30;
+        nibble = 3;
+        break;
+      default:
+        nibble = 3;
+    }
+    buf.putInt(position, word);
+    return nibble;
+  }
+
+  private void writeHeader(ByteBuffer buf, int numSamples) {
+    putString(buf, 0, String.format("%06d", sequence), 6);
+    buf.put(6, (byte) 'D');
+    buf.put(7, (byte) ' ');
+    putString(buf, 8, scnl.station, 5);
+    putString(buf, 13, "--".equals(scnl.location) ? "" : scnl.location, 2);
+    putString(buf, 15, scnl.channel, 3);
+    putString(buf, 18, scnl.network, 2);
+
+    // BTIME, to a ten thousandth of a second
+    final double startTime = segmentStart + segmentSamples / sampleRate;
+    long ticks = Math.round(startTime * 10000);
+    long millis = ticks / 10;
+    int fraction = (int) (ticks % 10);
+    if (fraction < 0) {
+      fraction += 10;
+      millis--;
+    }
+    calendar.setTimeInMillis(J2kSec.asEpoch(0.0) + millis);
+    buf.putShort(20, (short) calendar.get(Calendar.YEAR));
+    buf.putShort(22, (short) calendar.get(Calendar.DAY_OF_YEAR));
+    buf.put(24, (byte) calendar.get(Calendar.HOUR_OF_DAY));
+    buf.put(25, (byte) calendar.get(Calendar.MINUTE));
+    buf.put(26, (byte) calendar.get(Calendar.SECOND));
+    buf.putShort(28, (short) (calendar.get(Calendar.MILLISECOND) * 10 + fraction));
+
+    buf.putShort(30, (short) numSamples);
+    final short[] rate = rateFactorMultiplier(sampleRate);
+    buf.putShort(32, rate[0]);
+    buf.putShort(34, rate[1]);
+    buf.put(39, (byte) 1);
+    buf.putShort(44, (short) HEADER_LENGTH);
+    buf.putShort(46, (short) 48);
+
+    // blockette 1000
+    buf.putShort(48, (short) 1000);
+    buf.putShort(50, (short) 0);
+    buf.put(52, (byte) STEIM2);
+    buf.put(53, (byte) 1);
+    buf.put(54, (byte) Integer.numberOfTrailingZeros(recordLength));
+  }
+
+  private static void putString(ByteBuffer buf, int position, String value, int length) {
+    final byte[] bytes = (value == null ? "" : value).getBytes(ASCII);
+    for (int i = 0; i < length; i++) {
+      buf.put(position + i, i < bytes.length ? bytes[i] : (byte) ' ');
+    }
+  }
+
+  /**
+   * Express a sample rate as a SEED sample rate factor and multiplier.
+   *
+   * @param rate samples per second
+   * @return factor and multiplier
+   */
+  static short[] rateFactorMultiplier(double rate) {
+    if (rate >= 1) {
+      int multiplier = 1;
+      while (multiplier < 10000 && Math.abs(rate * multiplier - Math.rint(rate * multiplier)) > 1e-6
+          && rate * multiplier * 10 <= Short.MAX_VALUE) {
+        multiplier *= 10;
+      }
+      final short factor = (short) Math.min(Math.rint(rate * multiplier), Short.MAX_VALUE);
+      return new short[] {factor, (short) (multiplier == 1 ? 1 : -multiplier)};
+    } else if (rate > 0) {
+      final double period = 1 / rate;
+      int multiplier = 1;
+      while (multiplier < 10000
+          && Math.abs(period * multiplier - Math.rint(period * multiplier)) > 1e-6
+          && period * multiplier * 10 <= Short.MAX_VALUE) {
+        multiplier *= 10;
+      }
+      final short factor = (short) -Math.min(Math.rint(period * multiplier), Short.MAX_VALUE);
+      return new short[] {factor, (short) multiplier};
+    } else {
+      return new short[] {0, 0};
+    }
+  }
+}
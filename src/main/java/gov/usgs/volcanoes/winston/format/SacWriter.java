@@ -0,0 +1,227 @@
+package gov.usgs.volcanoes.winston.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+/**
+ * Writes the samples of a single channel as binary SAC files. SAC holds one evenly sampled segment
+ * per file, so a gap, an overlap, or a change of sample rate starts a new file. Samples are written
+ * as they arrive; the header is written with the file and completed when the segment ends, so no
+ * more than a buffer of samples is held at a time.
+ */
+public class SacWriter {
+  private static final int HEADER_LENGTH = 632;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final float UNDEFINED = -12345;
+  private static final int UNDEFINED_INT = -12345;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  // header word indices
+  private static final int DELTA = 0;
+  private static final int DEPMIN = 1;
+  private static final int DEPMAX = 2;
+  private static final int B = 5;
+  private static final int E = 6;
+  private static final int DEPMEN = 56;
+  private static final int NZYEAR = 70;
+  private static final int NVHDR = 76;
+  private static final int NPTS = 79;
+  private static final int IFTYPE = 85;
+  private static final int IDEP = 86;
+  private static final int IZTYPE = 87;
+  private static final int LEVEN = 105;
+  private static final int LOVROK = 107;
+  private static final int LCALDA = 108;
+
+  // header string offsets in bytes
+  private static final int KSTNM = 440;
+  private static final int KHOLE = 464;
+  private static final int KCMPNM = 600;
+  private static final int KNETWK = 608;
+
+  private static final int ITIME = 1;
+  private static final int IUNKN = 5;
+  private static final int IB = 9;
+
+  private final Scnl scnl;
+  private final String fileBase;
+  private final Calendar calendar;
+  private final ByteBuffer header;
+  private final ByteBuffer buffer;
+
+  private FileOutputStream out;
+  private int fileCount;
+  private double segmentStart;
+  private double sampleRate;
+  private long segmentSamples;
+  private int min;
+  private int max;
+  private double sum;
+
+  /**
+   * Constructor.
+   *
+   * @param scnl channel written
+   * @param fileBase files are named fileBase_N.sac
+   */
+  public SacWriter(Scnl scnl, String fileBase) {
+    this.scnl = scnl;
+    this.fileBase = fileBase;
+    calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+    header = ByteBuffer.allocate(HEADER_LENGTH);
+    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /**
+   * Write samples.
+   *
+   * @param startTime time of the first sample, J2kSec
+   * @param sampleRate samples per second
+   * @param data samples
+   * @param offset index of first sample to write
+   * @param length number of samples to write
+   * @throws IOException when a file cannot be written
+   */
+  public void write(double startTime, double sampleRate, int[] data, int offset, int length)
+      throws IOException {
+    if (length <= 0) {
+      return;
+    }
+
+    if (out != null && !isContiguous(startTime, sampleRate)) {
+      close();
+    }
+    if (out == null) {
+      open(startTime, sampleRate);
+    }
+
+    for (int i = offset; i < offset + length; i++) {
+      final int sample = data[i];
+      min = Math.min(min, sample);
+      max = Math.max(max, sample);
+      sum += sample;
+      buffer.putFloat(sample);
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+    }
+    segmentSamples += length;
+  }
+
+  /**
+   * Complete the current file.
+   *
+   * @throws IOException when the file cannot be written
+   */
+  public void close() throws IOException {
+    if (out == null) {
+      return;
+    }
+
+    try {
+      drain();
+      header.putInt(NPTS * 4, (int) segmentSamples);
+      header.putFloat(E * 4, (float) ((segmentSamples - 1) / sampleRate));
+      header.putFloat(DEPMIN * 4, min);
+      header.putFloat(DEPMAX * 4, max);
+      header.putFloat(DEPMEN * 4, (float) (sum / segmentSamples));
+      header.rewind();
+      out.getChannel().write(header, 0);
+    } finally {
+      out.close();
+      out = null;
+    }
+  }
+
+  /**
+   * Return number of files started.
+   *
+   * @return file count
+   */
+  public int getFileCount() {
+    return fileCount;
+  }
+
+  private boolean isContiguous(double time, double rate) {
+    final double expected = segmentStart + segmentSamples / sampleRate;
+    return rate == sampleRate && Math.abs(time - expected) < 0.5 / sampleRate;
+  }
+
+  private void open(double startTime, double rate) throws IOException {
+    segmentStart = startTime;
+    sampleRate = rate;
+    segmentSamples = 0;
+    min = Integer.MAX_VALUE;
+    max = Integer.MIN_VALUE;
+    sum = 0;
+
+    writeHeader();
+    out = new FileOutputStream(new File(fileBase + "_" + fileCount + ".sac"));
+    out.write(header.array());
+    fileCount++;
+  }
+
+  private void drain() throws IOException {
+    out.write(buffer.array(), 0, buffer.position());
+    buffer.clear();
+  }
+
+  private void writeHeader() {
+    for (int word = 0; word < 70; word++) {
+      header.putFloat(word * 4, UNDEFINED);
+    }
+    for (int word = 70; word < 105; word++) {
+      header.putInt(word * 4, UNDEFINED_INT);
+    }
+    for (int word = 105; word < 110; word++) {
+      header.putInt(word * 4, 0);
+    }
+    putString(KSTNM, "-12345", 8);
+    putString(KSTNM + 8, "-12345", 16);
+    for (int position = KHOLE; position < HEADER_LENGTH; position += 8) {
+      putString(position, "-12345", 8);
+    }
+
+    header.putFloat(DELTA * 4, (float) (1 / sampleRate));
+    header.putFloat(B * 4, 0);
+
+    // reference time is the first sample, to the millisecond
+    final long millis = Math.round(segmentStart * 1000);
+    calendar.setTimeInMillis(J2kSec.asEpoch(0.0) + millis);
+    header.putInt(NZYEAR * 4, calendar.get(Calendar.YEAR));
+    header.putInt((NZYEAR + 1) * 4, calendar.get(Calendar.DAY_OF_YEAR));
+    header.putInt((NZYEAR + 2) * 4, calendar.get(Calendar.HOUR_OF_DAY));
+    header.putInt((NZYEAR + 3) * 4, calendar.get(Calendar.MINUTE));
+    header.putInt((NZYEAR + 4) * 4, calendar.get(Calendar.SECOND));
+    header.putInt((NZYEAR + 5) * 4, calendar.get(Calendar.MILLISECOND));
+    header.putInt(NVHDR * 4, 6);
+    header.putInt(NPTS * 4, 0);
+    header.putInt(IFTYPE * 4, ITIME);
+    header.putInt(IDEP * 4, IUNKN);
+    header.putInt(IZTYPE * 4, IB);
+    header.putInt(LEVEN * 4, 1);
+    header.putInt(LOVROK * 4, 1);
+    header.putInt(LCALDA * 4, 1);
+
+    putString(KSTNM, scnl.station, 8);
+    putString(KHOLE, "--".equals(scnl.location) ? "" : scnl.location, 8);
+    putString(KCMPNM, scnl.channel, 8);
+    putString(KNETWK, scnl.network, 8);
+  }
+
+  private void putString(int position, String value, int length) {
+    final byte[] bytes = (value == null ? "" : value).getBytes(ASCII);
+    for (int i = 0; i < length; i++) {
+      header.put(position + i, i < bytes.length ? bytes[i] : (byte) ' ');
+    }
+  }
+}
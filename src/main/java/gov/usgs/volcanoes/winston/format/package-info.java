@@ -0,0 +1,6 @@
+/**
+ * Writers which encode waveform samples in standard file formats, shared by the FDSN web
+ * services and the export tools.
+ */
+
+package gov.usgs.volcanoes.winston.format;
@@ -0,0 +1,97 @@
+package gov.usgs.volcanoes.winston.in;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A list of files which have been completely imported, one name per line. Files are appended as
+ * they complete, so an interrupted import can be restarted with the same manifest and will skip
+ * files already written.
+ */
+public class ImportManifest {
+  private final File file;
+  private final Set<String> completed;
+  private BufferedWriter writer;
+
+  /**
+   * Constructor. Reads any files already listed.
+   *
+   * @param file the manifest, which need not exist
+   * @throws IOException if an existing manifest cannot be read
+   */
+  public ImportManifest(final File file) throws IOException {
+    this.file = file;
+    completed = new HashSet<String>();
+    if (file.exists()) {
+      final BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.length() > 0)
+            completed.add(line);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Return true if a file has been completely imported.
+   *
+   * @param fn file name
+   * @return true if the file is listed
+   */
+  public synchronized boolean isCompleted(final String fn) {
+    return completed.contains(fn);
+  }
+
+  /**
+   * Return number of files listed.
+   *
+   * @return count of completed files
+   */
+  public synchronized int size() {
+    return completed.size();
+  }
+
+  /**
+   * List a file as completely imported. The manifest is flushed so the entry survives an
+   * interrupted import.
+   *
+   * @param fn file name
+   * @throws IOException if the manifest cannot be written
+   */
+  public synchronized void complete(final String fn) throws IOException {
+    if (!completed.add(fn))
+      return;
+
+    if (writer == null)
+      writer = new BufferedWriter(new FileWriter(file, true));
+    writer.write(fn);
+    writer.newLine();
+    writer.flush();
+  }
+
+  /**
+   * Close the manifest.
+   */
+  public synchronized void close() {
+    if (writer == null)
+      return;
+
+    try {
+      writer.close();
+    } catch (final IOException e) {
+      System.out.println("Can't close manifest " + file + " (" + e.getLocalizedMessage() + ")");
+    }
+    writer = null;
+  }
+}
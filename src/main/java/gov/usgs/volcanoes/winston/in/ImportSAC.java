@@ -33,9 +33,7 @@ public class ImportSAC extends StaticImporter {
       file.read();
 
       final String ch = file.getChannels().iterator().next();
-      if (channel == null) {
-        channel = ch.replace('_', '$');
-      }
+      final String code = channel == null ? ch.replace('_', '$') : channel;
 
       final Wave sw = file.getWave(ch);
       // compensate for incorrect Trimble leap second.
@@ -45,7 +43,7 @@ public class ImportSAC extends StaticImporter {
         sw.setStartTime(sw.getStartTime() - 1);
       final List<Wave> list = sw.split(1000);
       final Map<String, List<Wave>> map = new HashMap<String, List<Wave>>();
-      map.put(channel, list);
+      map.put(code, list);
       return map;
     } catch (final IOException e) {
       System.err.println("Error reading file: " + fn);
@@ -1,5 +1,6 @@
 package gov.usgs.volcanoes.winston.in;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -15,6 +16,7 @@ import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import com.martiansoftware.jsap.Parameter;
 import com.martiansoftware.jsap.SimpleJSAP;
+import com.martiansoftware.jsap.Switch;
 import com.martiansoftware.jsap.UnflaggedOption;
 
 import gov.usgs.volcanoes.core.data.Scnl;
@@ -52,6 +54,14 @@ public class ImportSeisan extends StaticImporter {
           "Override location identifier\n"),
       new FlaggedOption("rsamDuration", JSAP.INTEGER_PARSER, "60", JSAP.NOT_REQUIRED, 'd',
           "rsamDuration", "Override location identifier\n"),
+      new FlaggedOption("parserThreads", JSAP.INTEGER_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED,
+          'p', "parserThreads", "Number of files to read at once\n"),
+      new FlaggedOption("writerThreads", JSAP.INTEGER_PARSER,
+          String.valueOf(DEFAULT_WRITER_THREADS), JSAP.NOT_REQUIRED, 'w', "writerThreads",
+          "Number of database connections to write with\n"),
+      new FlaggedOption("manifest", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED, 'm',
+          "manifest", "File listing completed files, used to resume an import\n"),
+      new Switch("bulkLoad", 'b', "bulk", "Write whole days with bulk inserts\n"),
       new UnflaggedOption("file", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, JSAP.NOT_REQUIRED,
           JSAP.GREEDY, "files to import.")};
 
@@ -66,6 +76,12 @@ public class ImportSeisan extends StaticImporter {
     this.config = config;
     rsamDelta = config.getInt("rsamDelta");
     rsamDuration = config.getInt("rsamDuration");
+    if (config.contains("parserThreads"))
+      setParserThreads(config.getInt("parserThreads"));
+    setWriterThreads(config.getInt("writerThreads"));
+    if (config.contains("manifest"))
+      setManifest(new File(config.getString("manifest")));
+    setBulkLoad(config.getBoolean("bulkLoad"));
   }
 
   @Override
@@ -3,14 +3,24 @@ package gov.usgs.volcanoes.winston.in;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import gov.usgs.volcanoes.core.CodeTimer;
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
@@ -22,7 +32,6 @@ import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.Data;
 import gov.usgs.volcanoes.winston.db.InputEW;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
-import gov.usgs.volcanoes.winston.in.ew.Options;
 
 
 /**
@@ -32,6 +41,8 @@ import gov.usgs.volcanoes.winston.in.ew.Options;
  *
  * <code>readFile()</code> is responsible for creating a map that maps Winston
  * compatible channel codes to lists of TRACEBUF-sized <code>Wave</code>s.
+ * <code>readFile()</code> is called from several threads at once, so it must
+ * not keep per-file state in the importer.
  *
  *
  * @author Dan Cervelli
@@ -39,6 +50,11 @@ import gov.usgs.volcanoes.winston.in.ew.Options;
 abstract public class StaticImporter {
   protected static StringBuffer instructions = new StringBuffer();
 
+  public static final int DEFAULT_WRITER_THREADS = 1;
+  public static final int DEFAULT_QUEUE_SIZE = 64;
+  private static final int MAX_TRACEBUF_SAMPLES = (int) (Math.pow(2, 16) / 4);
+  private static final int REPORT_INTERVAL = 10;
+
   protected WinstonDatabase winston;
   protected InputEW input;
   protected Channels channels;
@@ -47,16 +63,26 @@ abstract public class StaticImporter {
   protected int rsamDelta = 10;
   protected int rsamDuration = 60;
 
+  protected int parserThreads = Runtime.getRuntime().availableProcessors();
+  protected int writerThreads = DEFAULT_WRITER_THREADS;
+  protected int queueSize = DEFAULT_QUEUE_SIZE;
+  protected File manifest;
+  protected boolean bulkLoad;
+
+  private String driver;
+  private String url;
+  private String prefix;
+
   public StaticImporter() {
     setupWinston();
   }
 
   public void setupWinston() {
     final ConfigFile cf = new ConfigFile("Winston.config");
-    final String driver = cf.getString("winston.driver");
-    final String url = cf.getString("winston.url");
-    final String db = cf.getString("winston.prefix");
-    winston = new WinstonDatabase(driver, url, db);
+    driver = cf.getString("winston.driver");
+    url = cf.getString("winston.url");
+    prefix = cf.getString("winston.prefix");
+    winston = createDatabase();
     if (!winston.checkDatabase()) {
       throw new RuntimeException("Winston database does not exist and could not be created.");
     }
@@ -64,6 +90,15 @@ abstract public class StaticImporter {
     channels = new Channels(winston);
   }
 
+  /**
+   * Open a new connection to the Winston database.
+   *
+   * @return the database
+   */
+  protected WinstonDatabase createDatabase() {
+    return new WinstonDatabase(driver, url, prefix);
+  }
+
   public void importMap(final Map<String, List<Wave>> map) {
     if (map == null) {
       System.out.println("Nothing to import.");
@@ -71,13 +106,8 @@ abstract public class StaticImporter {
     }
 
     final CodeTimer timer = new CodeTimer("import");
-    double minTime = 1E300;
-    double maxTime = -1E300;
-
-    for (final Iterator<Entry<String, List<Wave>>> iter = map.entrySet().iterator(); iter
-        .hasNext();) {
-      Entry<String, List<Wave>> entry = iter.next();
-      String code = entry.getKey();
+    for (final Entry<String, List<Wave>> entry : map.entrySet()) {
+      final String code = entry.getKey();
 
       if (!channels.channelExists(code)) {
         System.out.println("Creating new channel '" + code + "' in Winston.");
@@ -85,79 +115,460 @@ abstract public class StaticImporter {
       }
 
       System.out.printf("Importing channel: %s.%n", code);
-      List<Wave> waves = entry.getValue();
-      System.out.printf("Converting %d waves into TraceBufs.%n", waves.size());
-      final List<TraceBuf> tbs = new ArrayList<TraceBuf>(waves.size());
-
-      final int maxSamples = (int) (Math.pow(2, 16) / 4);
-      final Iterator<Wave> it = waves.iterator();
-      final List<Wave> subWaves = new ArrayList<Wave>();
-      while (it.hasNext()) {
-        final Wave wave = it.next();
-        if (wave.numSamples() > maxSamples) {
-          subWaves.addAll(wave.split(maxSamples));
+      System.out.printf("Converting %d waves into TraceBufs.%n", entry.getValue().size());
+      final Batch batch = buildBatch(code, entry.getValue(), null);
+
+      input.setRowParameters(batch.duration + 5, Math.min(batch.duration, 100));
+      System.out.println("Writing TraceBufs to database.");
+      if (bulkLoad) {
+        input.bulkInputTraceBufs(batch.traceBufs, rsamEnable, rsamDelta, rsamDuration);
+      } else {
+        input.inputTraceBufs(batch.traceBufs, rsamEnable, rsamDelta, rsamDuration);
+      }
+
+      System.out.println("Done.");
+    }
+
+    timer.stop();
+    System.out.printf("Completed in %.2fs%n", timer.getRunTimeMillis() / 1000);
+  }
+
+  /**
+   * Import files. Files are read by a pool of parser threads, their waves are converted to
+   * TraceBufs by a pool of builder threads, and the TraceBufs are written by writer threads each
+   * with its own database connection. Channels are assigned to writers by name, so a channel's
+   * TraceBufs are always written by the same writer. Queues between the stages are bounded so
+   * reading cannot run far ahead of writing.
+   *
+   * Directories are imported recursively. If a manifest is set, files listed in it are skipped
+   * and files are added to it once all of their TraceBufs are written.
+   *
+   * @param files files or directories to import
+   * @param impt the importer
+   */
+  public static void process(final List<String> files, final StaticImporter impt) {
+    final List<String> fileList = new ArrayList<String>();
+    for (final String fn : files) {
+      expandFile(new File(fn), fileList);
+    }
+
+    ImportManifest manifest = null;
+    if (impt.manifest != null) {
+      try {
+        manifest = new ImportManifest(impt.manifest);
+      } catch (final IOException e) {
+        System.out.println(
+            "Can't read manifest " + impt.manifest + " (" + e.getLocalizedMessage() + ")");
+        return;
+      }
+      for (final Iterator<String> it = fileList.iterator(); it.hasNext();) {
+        if (manifest.isCompleted(it.next()))
           it.remove();
-        }
       }
-      waves.addAll(subWaves);
+      System.out.printf("Skipping %d files listed in %s.%n", manifest.size(), impt.manifest);
+    }
+
+    if (fileList.size() == 0) {
+      System.out.println("No files to import.");
+      return;
+    }
 
-      for (Wave wave : waves) {
-        final TraceBuf tb = new TraceBuf(code, wave);
+    new Pipeline(impt, fileList, manifest).run();
+  }
+
+  private static void expandFile(final File f, final List<String> fileList) {
+    if (f.isDirectory()) {
+      final File[] dFiles = f.listFiles();
+      if (dFiles == null)
+        return;
+      Arrays.sort(dFiles);
+      for (final File ff : dFiles) {
+        expandFile(ff, fileList);
+      }
+    } else {
+      // assume files really means files, not resource records --tjp
+      fileList.add(f.getPath());
+    }
+  }
+
+  /**
+   * Convert a channel's waves into TraceBufs no larger than an Earthworm TraceBuf.
+   *
+   * @param file the file the waves were read from, or null if not importing files
+   */
+  private static Batch buildBatch(final String code, final List<Wave> waves,
+      final FileProgress file) {
+    final List<TraceBuf> tbs = new ArrayList<TraceBuf>(waves.size());
+    double minTime = 1E300;
+    double maxTime = -1E300;
+    long samples = 0;
+    for (final Wave wave : waves) {
+      final List<Wave> subWaves;
+      if (wave.numSamples() > MAX_TRACEBUF_SAMPLES) {
+        subWaves = wave.split(MAX_TRACEBUF_SAMPLES);
+      } else {
+        subWaves = Collections.singletonList(wave);
+      }
+      for (final Wave subWave : subWaves) {
+        final TraceBuf tb = new TraceBuf(code, subWave);
         minTime = Math.min(minTime, tb.firstSampleTime());
         maxTime = Math.max(maxTime, tb.lastSampleTime());
         tb.createBytes();
         tbs.add(tb);
-        wave = null; // for garbage collection
+        samples += subWave.numSamples();
       }
-      waves = null;
+    }
+    return new Batch(code, tbs, (int) (maxTime - minTime), samples, file);
+  }
 
-      final int duration = (int) (maxTime - minTime);
-      input.setRowParameters(duration + 5, Math.min(duration, 100));
-      System.out.println("Writing TraceBufs to database.");
-      input.inputTraceBufs(tbs, rsamEnable, rsamDelta, rsamDuration);
+  /**
+   * One file's progress through the pipeline. A file is complete once each of its channels has
+   * been written.
+   */
+  private static class FileProgress {
+    private final String fileName;
+    private final AtomicInteger pending;
+    private volatile boolean failed;
 
-      System.out.println("Done.");
+    private FileProgress(final String fileName, final int channels) {
+      this.fileName = fileName;
+      pending = new AtomicInteger(channels);
     }
 
-    timer.stop();
-    System.out.printf("Completed in %.2fs%n", timer.getRunTimeMillis() / 1000);
+    /**
+     * @return true if this was the file's last channel
+     */
+    private boolean channelDone() {
+      return pending.decrementAndGet() == 0;
+    }
   }
 
-  public static void process(final List<String> files, final StaticImporter impt) {
-    if (files.size() == 0) {
-      System.out.println("No files to import.");
+  /**
+   * TraceBufs for one channel of one file.
+   */
+  private static class Batch {
+    private final String code;
+    private final List<TraceBuf> traceBufs;
+    private final int duration;
+    private final long samples;
+    private final FileProgress file;
+
+    private Batch(final String code, final List<TraceBuf> traceBufs, final int duration,
+        final long samples, final FileProgress file) {
+      this.code = code;
+      this.traceBufs = traceBufs;
+      this.duration = duration;
+      this.samples = samples;
+      this.file = file;
+    }
+  }
+
+  /**
+   * Runs a single import.
+   */
+  private static class Pipeline {
+    private static final Batch END = new Batch(null, null, 0, 0, null);
+
+    private final StaticImporter impt;
+    private final List<String> files;
+    private final ImportManifest manifest;
+    private final ChannelWriter[] writers;
+    private final AtomicLong samplesWritten;
+    private final AtomicInteger filesDone;
+    private final AtomicInteger filesFailed;
+
+    private Pipeline(final StaticImporter impt, final List<String> files,
+        final ImportManifest manifest) {
+      this.impt = impt;
+      this.files = files;
+      this.manifest = manifest;
+      writers = new ChannelWriter[impt.writerThreads];
+      samplesWritten = new AtomicLong();
+      filesDone = new AtomicInteger();
+      filesFailed = new AtomicInteger();
     }
 
-    final ListIterator<String> it = files.listIterator();
-    while (it.hasNext()) {
-      final String fn = it.next();
-      System.out.println("Reading file: " + fn);
+    private void run() {
+      System.out.printf("Importing %d files with %d parser and %d writer threads.%n",
+          files.size(), impt.parserThreads, writers.length);
+      final CodeTimer timer = new CodeTimer("import");
 
-      // assume files really means files, not resource records --tjp
-      final File f = new File(fn);
-      if (f.isDirectory()) {
-        File[] dFiles = f.listFiles();
-        if (dFiles == null)
-          continue;
-        for (final File ff : dFiles) {
-
-          it.add(fn + File.pathSeparatorChar + ff.getName());
+      for (int i = 0; i < writers.length; i++) {
+        writers[i] = new ChannelWriter(i);
+        writers[i].start();
+      }
+
+      final ExecutorService parsers =
+          Executors.newFixedThreadPool(impt.parserThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+              return new Thread(r, "StaticImporter-parser-" + count.getAndIncrement());
+            }
+          });
+
+      // builders run on the parser thread when all are busy, which keeps parsers from running
+      // ahead
+      final ThreadPoolExecutor builders = new ThreadPoolExecutor(impt.parserThreads,
+          impt.parserThreads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(impt.parserThreads * 2), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+              return new Thread(r, "StaticImporter-builder-" + count.getAndIncrement());
+            }
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+      final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+      final long start = System.currentTimeMillis();
+      reporter.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          report(start);
         }
+      }, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+
+      for (final String fn : files) {
+        parsers.execute(new Runnable() {
+          public void run() {
+            parseFile(fn, builders);
+          }
+        });
+      }
+
+      try {
+        parsers.shutdown();
+        parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        builders.shutdown();
+        builders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        for (final ChannelWriter writer : writers) {
+          writer.submit(END);
+        }
+        for (final ChannelWriter writer : writers) {
+          writer.join();
+        }
+      } catch (final InterruptedException e) {
+        System.out.println("Import interrupted.");
+        parsers.shutdownNow();
+        builders.shutdownNow();
+        for (final ChannelWriter writer : writers) {
+          writer.interrupt();
+        }
+        Thread.currentThread().interrupt();
+      } finally {
+        reporter.shutdownNow();
+        if (manifest != null)
+          manifest.close();
+      }
+
+      timer.stop();
+      report(start);
+      if (filesFailed.get() > 0)
+        System.out.printf("%d files were not imported.%n", filesFailed.get());
+      System.out.printf("Completed in %.2fs%n", timer.getRunTimeMillis() / 1000);
+    }
+
+    private void parseFile(final String fn, final ThreadPoolExecutor builders) {
+      System.out.println("Reading file: " + fn);
+      final Map<String, List<Wave>> map;
+      try {
+        map = impt.readFile(fn);
+      } catch (final IOException e) {
+        System.out.println("Can't read " + fn + " (" + e.getLocalizedMessage() + ")");
+        filesFailed.incrementAndGet();
+        return;
+      } catch (final RuntimeException e) {
+        System.out.println("Can't read " + fn + " (" + e.getLocalizedMessage() + ")");
+        filesFailed.incrementAndGet();
+        return;
+      }
+
+      if (map == null) {
+        System.out.println("Nothing to import from " + fn + ".");
+        filesFailed.incrementAndGet();
+        return;
+      }
+
+      final FileProgress file = new FileProgress(fn, map.size());
+      if (map.isEmpty()) {
+        fileDone(file);
+        return;
+      }
+
+      for (final Entry<String, List<Wave>> entry : map.entrySet()) {
+        final String code = entry.getKey();
+        final List<Wave> waves = entry.getValue();
+        builders.execute(new Runnable() {
+          public void run() {
+            final Batch batch = buildBatch(code, waves, file);
+            try {
+              getWriter(code).submit(batch);
+            } catch (final InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      }
+    }
+
+    private ChannelWriter getWriter(final String code) {
+      return writers[(code.hashCode() & Integer.MAX_VALUE) % writers.length];
+    }
+
+    private void batchDone(final Batch batch, final boolean written) {
+      if (written) {
+        samplesWritten.addAndGet(batch.samples);
       } else {
+        batch.file.failed = true;
+      }
+
+      if (batch.file.channelDone())
+        fileDone(batch.file);
+    }
+
+    private void fileDone(final FileProgress file) {
+      if (file.failed) {
+        filesFailed.incrementAndGet();
+        return;
+      }
+
+      filesDone.incrementAndGet();
+      if (manifest == null)
+        return;
+
+      try {
+        manifest.complete(file.fileName);
+      } catch (final IOException e) {
+        System.out.println("Can't write manifest " + impt.manifest + " ("
+            + e.getLocalizedMessage() + ")");
+      }
+    }
+
+    private void report(final long start) {
+      final double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+      final long samples = samplesWritten.get();
+      int queued = 0;
+      for (final ChannelWriter writer : writers) {
+        queued += writer.queue.size();
+      }
+      System.out.printf(
+          "Imported %d of %d files, %d samples (%.0f samples/s), %d channels queued.%n",
+          filesDone.get(), files.size(), samples, samples / seconds, queued);
+    }
+
+    /**
+     * Writes TraceBufs for a share of the channels over its own database connection. If the
+     * writer stops early, for instance because it cannot connect, its batches fail rather than
+     * wait for it.
+     */
+    private class ChannelWriter extends Thread {
+      private final BlockingQueue<Batch> queue;
+      private volatile boolean dead;
+
+      private ChannelWriter(final int id) {
+        super("StaticImporter-writer-" + id);
+        queue = new ArrayBlockingQueue<Batch>(impt.queueSize);
+      }
+
+      /**
+       * Queue a batch, waiting for room. The batch fails if the writer has stopped.
+       *
+       * @throws InterruptedException when interrupted while waiting
+       */
+      private void submit(final Batch batch) throws InterruptedException {
+        while (!dead) {
+          if (queue.offer(batch, 1, TimeUnit.SECONDS)) {
+            // the writer may have stopped and drained its queue while this was offered
+            if (!dead || !queue.remove(batch))
+              return;
+            break;
+          }
+        }
+        if (batch != END)
+          batchDone(batch, false);
+      }
+
+      @Override
+      public void run() {
+        WinstonDatabase winston = null;
+        boolean ended = false;
         try {
-          impt.importMap(impt.readFile(fn));
-        } catch (final IOException e) {
-          System.out.println("Can't read " + fn + " (" + e.getLocalizedMessage() + ")");
+          winston = impt.createDatabase();
+          final InputEW input = new InputEW(winston);
+          final Channels channels = new Channels(winston);
+          while (true) {
+            final Batch batch = queue.take();
+            if (batch == END) {
+              ended = true;
+              break;
+            }
+
+            boolean written = false;
+            try {
+              if (!channels.channelExists(batch.code)) {
+                System.out.println("Creating new channel '" + batch.code + "' in Winston.");
+                channels.createChannel(batch.code);
+              }
+              input.setRowParameters(batch.duration + 5, Math.min(batch.duration, 100));
+              final List<InputEW.InputResult> results;
+              if (impt.bulkLoad) {
+                results = input.bulkInputTraceBufs(batch.traceBufs, impt.rsamEnable,
+                    impt.rsamDelta, impt.rsamDuration);
+              } else {
+                results = input.inputTraceBufs(batch.traceBufs, impt.rsamEnable, impt.rsamDelta,
+                    impt.rsamDuration);
+              }
+              written = checkResults(batch, results);
+            } catch (final RuntimeException e) {
+              System.out.println("Can't write " + batch.code + " from " + batch.file.fileName
+                  + " (" + e.getLocalizedMessage() + ")");
+            }
+            batchDone(batch, written);
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (final RuntimeException e) {
+          System.out.println(getName() + " stopped (" + e.getLocalizedMessage() + ")");
+        } finally {
+          if (!ended) {
+            dead = true;
+            Batch batch;
+            while ((batch = queue.poll()) != null) {
+              if (batch != END)
+                batchDone(batch, false);
+            }
+          }
+          if (winston != null)
+            winston.close();
         }
       }
-    }
 
+      /**
+       * Check that every TraceBuf of a batch was written. Duplicates are already in the database.
+       *
+       * @return true if nothing failed
+       */
+      private boolean checkResults(final Batch batch, final List<InputEW.InputResult> results) {
+        for (final InputEW.InputResult result : results) {
+          if (result.code.name().startsWith("ERROR")
+              && result.code != InputEW.InputResult.Code.ERROR_DUPLICATE) {
+            System.out.println("Can't write " + batch.code + " from " + batch.file.fileName
+                + " (" + result.code + ")");
+            return false;
+          }
+        }
+        return true;
+      }
+    }
   }
 
   protected Set<String> getArgumentSet() {
     final Set<String> kvs = new HashSet<String>();
     kvs.add("-rd");
     kvs.add("-rl");
+    kvs.add("-pt");
+    kvs.add("-wt");
+    kvs.add("-m");
+    kvs.add("-b");
     return kvs;
   }
 
@@ -167,6 +578,12 @@ abstract public class StaticImporter {
     final String rl = args.get("-rl");
     rsamDuration = StringUtils.stringToInt(rl, 60);
     System.out.printf("RSAM parameters: delta=%d, duration=%d.%n", rsamDelta, rsamDuration);
+    setParserThreads(StringUtils.stringToInt(args.get("-pt"), parserThreads));
+    setWriterThreads(StringUtils.stringToInt(args.get("-wt"), writerThreads));
+    final String m = args.get("-m");
+    if (m != null)
+      setManifest(new File(m));
+    setBulkLoad(StringUtils.stringToBoolean(args.get("-b"), false));
   }
 
   public void setRsamDelta(final int i) {
@@ -177,5 +594,31 @@ abstract public class StaticImporter {
     rsamDuration = i;
   }
 
+  public void setParserThreads(final int i) {
+    parserThreads = Math.max(1, i);
+  }
+
+  public void setWriterThreads(final int i) {
+    writerThreads = Math.max(1, i);
+  }
+
+  /**
+   * Set a manifest of completed files. Files listed are skipped and files imported are added.
+   *
+   * @param f the manifest, or null for none
+   */
+  public void setManifest(final File f) {
+    manifest = f;
+  }
+
+  /**
+   * Write each file's channels with bulk inserts, for back-filling whole days of data.
+   *
+   * @param b true to bulk load
+   */
+  public void setBulkLoad(final boolean b) {
+    bulkLoad = b;
+  }
+
   abstract public Map<String, List<Wave>> readFile(String fn) throws IOException;
 }
@@ -0,0 +1,427 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+/**
+ * An append-only, on-disk queue of TraceBufs for a single channel. TraceBufs are appended to
+ * memory-mapped segment files of a fixed size and read back by the channel's writer. A segment is
+ * deleted once every TraceBuf in it has been read and committed.
+ *
+ * Each segment begins with the offset of the first uncommitted record, followed by records of
+ * the form [int length][TraceBuf bytes]. A zero length marks the end of the records in a segment.
+ *
+ * Only the segments being written, read and committed are kept mapped. A segment is forced to
+ * disk when writing moves past it, and its mapping is released as soon as it is no longer one of
+ * these, rather than when it is garbage collected, so finished segments can be deleted on every
+ * platform.
+ */
+public class ChannelSpool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChannelSpool.class);
+
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 4;
+
+  private final String channel;
+  private final File dir;
+  private final int segmentSize;
+  private final boolean force;
+
+  /** indices of segments on disk, oldest first */
+  private final LinkedList<Long> segments;
+
+  /** mapped segments by index */
+  private final Map<Long, MappedByteBuffer> mappings;
+
+  private long writeIndex;
+  private MappedByteBuffer writeBuf;
+  private int writePos;
+
+  private long readIndex;
+  private MappedByteBuffer readBuf;
+  private int readPos;
+
+  private long committedIndex;
+  private int committedPos;
+
+  private int unread;
+  private int uncommitted;
+  private TraceBuf head;
+  private long retryTime;
+
+  /**
+   * Constructor. Recovers any TraceBufs left in the spool directory.
+   *
+   * @param channel channel code
+   * @param dir directory holding this channel's segments
+   * @param segmentSize size of each segment in bytes
+   * @param force if true, force each TraceBuf to disk as it is appended
+   * @throws IOException when the spool cannot be read
+   */
+  public ChannelSpool(final String channel, final File dir, final int segmentSize,
+      final boolean force) throws IOException {
+    this.channel = channel;
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.force = force;
+    segments = new LinkedList<Long>();
+    mappings = new HashMap<Long, MappedByteBuffer>();
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create spool directory " + dir);
+    }
+    recover();
+  }
+
+  private void recover() throws IOException {
+    final String[] names = dir.list(new FilenameFilter() {
+      public boolean accept(final File d, final String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    final long[] indices = new long[names.length];
+    for (int i = 0; i < names.length; i++) {
+      final String index = names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length());
+      indices[i] = Long.parseLong(index);
+    }
+    Arrays.sort(indices);
+
+    for (final long index : indices) {
+      final MappedByteBuffer buf = buffer(index);
+      final long committed = buf.getLong(0);
+      int pos = committed < HEADER_SIZE || committed > segmentSize ? HEADER_SIZE : (int) committed;
+      if (segments.isEmpty()) {
+        readIndex = index;
+        readBuf = buf;
+        readPos = pos;
+        committedIndex = index;
+        committedPos = pos;
+      } else {
+        pos = HEADER_SIZE;
+      }
+      int length;
+      while ((length = recordLength(buf, pos)) > 0) {
+        unread++;
+        pos += RECORD_HEADER_SIZE + length;
+      }
+      segments.add(index);
+      final long previous = writeIndex;
+      writeIndex = index;
+      writeBuf = buf;
+      writePos = pos;
+      if (segments.size() > 1) {
+        release(previous);
+      }
+    }
+
+    if (unread > 0) {
+      LOGGER.info("Recovered {} spooled TraceBufs for {}", unread, channel);
+    }
+  }
+
+  /**
+   * Return the channel code.
+   *
+   * @return channel code
+   */
+  public String getChannel() {
+    return channel;
+  }
+
+  /**
+   * Append a TraceBuf.
+   *
+   * @param tb the TraceBuf
+   * @throws IOException when the TraceBuf cannot be written
+   */
+  public synchronized void append(final TraceBuf tb) throws IOException {
+    final byte[] bytes = tb.bytes;
+    final int recordSize = RECORD_HEADER_SIZE + bytes.length;
+    if (recordSize > segmentSize - HEADER_SIZE) {
+      throw new IOException("TraceBuf too large for spool segment: " + bytes.length + " bytes");
+    }
+
+    if (writeBuf == null || writePos + recordSize > segmentSize) {
+      roll();
+    }
+
+    // write length last so a partial record is never read
+    writeBuf.position(writePos + RECORD_HEADER_SIZE);
+    writeBuf.put(bytes);
+    writeBuf.putInt(writePos, bytes.length);
+    writePos += recordSize;
+    if (force) {
+      writeBuf.force();
+    }
+    unread++;
+  }
+
+  private void roll() throws IOException {
+    final MappedByteBuffer previousBuf = writeBuf;
+    final long previous = writeIndex;
+    writeIndex = writeBuf == null ? 0 : writeIndex + 1;
+    writeBuf = buffer(writeIndex);
+    writeBuf.putLong(0, HEADER_SIZE);
+    writePos = HEADER_SIZE;
+    segments.add(writeIndex);
+
+    if (previousBuf != null) {
+      previousBuf.force();
+      release(previous);
+    }
+
+    if (readBuf == null) {
+      readIndex = writeIndex;
+      readBuf = writeBuf;
+      readPos = HEADER_SIZE;
+      committedIndex = readIndex;
+      committedPos = readPos;
+    }
+  }
+
+  /**
+   * Return number of TraceBufs appended but not yet read.
+   *
+   * @return unread count
+   */
+  public synchronized int size() {
+    return unread;
+  }
+
+  /**
+   * Return the next unread TraceBuf without consuming it. Returns null if there is nothing to
+   * read or a failed write is waiting to be retried.
+   *
+   * @return next TraceBuf or null
+   */
+  public synchronized TraceBuf peek() {
+    if (unread == 0 || System.currentTimeMillis() < retryTime) {
+      return null;
+    }
+    if (head == null) {
+      head = readRecord(false);
+    }
+    return head;
+  }
+
+  /**
+   * Read TraceBufs. TraceBufs read are not removed from the spool until commit() is called.
+   *
+   * @param max most TraceBufs to read
+   * @return TraceBufs in the order they were appended
+   */
+  public synchronized List<TraceBuf> read(final int max) {
+    final List<TraceBuf> tbs = new ArrayList<TraceBuf>(Math.min(max, unread));
+    head = null;
+    while (tbs.size() < max && unread > 0) {
+      final TraceBuf tb = readRecord(true);
+      unread--;
+      uncommitted++;
+      if (tb != null) {
+        tbs.add(tb);
+      }
+    }
+    return tbs;
+  }
+
+  /**
+   * Discard TraceBufs which have been read. Segments holding only discarded TraceBufs are
+   * deleted.
+   */
+  public synchronized void commit() {
+    committedIndex = readIndex;
+    committedPos = readPos;
+    uncommitted = 0;
+    while (!segments.isEmpty() && segments.getFirst() < readIndex) {
+      final long index = segments.removeFirst();
+      release(index);
+      final File file = segmentFile(index);
+      if (!file.delete()) {
+        LOGGER.warn("Unable to delete spool segment {}", file);
+      }
+    }
+    if (readBuf != null) {
+      readBuf.putLong(0, readPos);
+      if (force) {
+        readBuf.force();
+      }
+    }
+  }
+
+  /**
+   * Return TraceBufs which have been read to the spool so they will be read again, no sooner
+   * than a given delay.
+   *
+   * @param delay milliseconds to wait before the TraceBufs may be read again
+   */
+  public synchronized void rewind(final long delay) {
+    try {
+      if (readIndex != committedIndex) {
+        final long previous = readIndex;
+        readIndex = committedIndex;
+        readBuf = buffer(readIndex);
+        release(previous);
+      }
+      readPos = committedPos;
+      unread += uncommitted;
+      uncommitted = 0;
+      head = null;
+      retryTime = System.currentTimeMillis() + delay;
+    } catch (final IOException e) {
+      LOGGER.error("Unable to rewind spool for {}: {}", channel, e.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Read the record at the read position, moving to the next segment if needed.
+   *
+   * @param advance if true, move past the record
+   * @return the TraceBuf or null if there is no record or it could not be parsed
+   */
+  private TraceBuf readRecord(final boolean advance) {
+    int length = recordLength(readBuf, readPos);
+    while (length == 0 && readIndex != writeIndex) {
+      try {
+        final long previous = readIndex;
+        readIndex = segments.get(segments.indexOf(readIndex) + 1);
+        readBuf = buffer(readIndex);
+        readPos = HEADER_SIZE;
+        release(previous);
+        length = recordLength(readBuf, readPos);
+      } catch (final IOException e) {
+        LOGGER.error("Unable to read spool for {}: {}", channel, e.getLocalizedMessage());
+        return null;
+      }
+    }
+    if (length == 0) {
+      return null;
+    }
+
+    final byte[] bytes = new byte[length];
+    readBuf.position(readPos + RECORD_HEADER_SIZE);
+    readBuf.get(bytes);
+    if (advance) {
+      readPos += RECORD_HEADER_SIZE + length;
+    }
+
+    try {
+      return new TraceBuf(bytes);
+    } catch (final IOException e) {
+      LOGGER.error("Unable to parse spooled TraceBuf for {}: {}", channel,
+          e.getLocalizedMessage());
+      return null;
+    }
+  }
+
+  private int recordLength(final MappedByteBuffer buf, final int pos) {
+    if (buf == null || pos + RECORD_HEADER_SIZE > segmentSize) {
+      return 0;
+    }
+    final int length = buf.getInt(pos);
+    if (length < 0 || pos + RECORD_HEADER_SIZE + length > segmentSize) {
+      LOGGER.error("Corrupt spool record for {}, discarding rest of segment", channel);
+      return 0;
+    }
+    return length;
+  }
+
+  private File segmentFile(final long index) {
+    return new File(dir, String.format("%012d%s", index, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Force every mapped segment to disk and release the mappings. The spool must not be used
+   * afterwards.
+   */
+  public synchronized void close() {
+    for (final MappedByteBuffer buf : mappings.values()) {
+      buf.force();
+      unmap(buf);
+    }
+    mappings.clear();
+    readBuf = null;
+    writeBuf = null;
+  }
+
+  /**
+   * Return a segment's mapping, mapping it if it is not already.
+   */
+  private MappedByteBuffer buffer(final long index) throws IOException {
+    MappedByteBuffer buf = mappings.get(index);
+    if (buf == null) {
+      final RandomAccessFile file = new RandomAccessFile(segmentFile(index), "rw");
+      try {
+        file.setLength(segmentSize);
+        buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      } finally {
+        file.close();
+      }
+      mappings.put(index, buf);
+    }
+    return buf;
+  }
+
+  /**
+   * Release a segment's mapping unless it is being written, read or committed.
+   */
+  private void release(final long index) {
+    if (index == writeIndex || index == readIndex || index == committedIndex) {
+      return;
+    }
+    final MappedByteBuffer buf = mappings.remove(index);
+    if (buf != null) {
+      unmap(buf);
+    }
+  }
+
+  /**
+   * Unmap a buffer now rather than when it is garbage collected. There is no public API for this,
+   * so the JVM's own is used where it can be found; otherwise the mapping is left to the garbage
+   * collector. The buffer must not be used afterwards.
+   */
+  private static void unmap(final MappedByteBuffer buf) {
+    try {
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = null;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (final NoSuchMethodException e) {
+        // before Java 9
+      }
+
+      if (invokeCleaner != null) {
+        final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buf);
+      } else {
+        final Method cleanerMethod = buf.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        final Object cleaner = cleanerMethod.invoke(buf);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (final Exception e) {
+      LOGGER.debug("Unable to unmap spool segment: {}", e.getLocalizedMessage());
+    }
+  }
+}
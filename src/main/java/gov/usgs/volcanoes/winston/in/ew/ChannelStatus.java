@@ -10,6 +10,9 @@ import gov.usgs.volcanoes.core.time.Time;
 import gov.usgs.volcanoes.winston.db.InputEW;
 
 /**
+ * Import statistics for a single channel. Updated by the channel's writer and read from the
+ * console, so updates and formatting are synchronized and fields are volatile for the comparator.
+ * Drops and queue peaks are recorded by the threads receiving TraceBufs.
  *
  * $Log: not supported by cvs2svn $
  * 
@@ -17,7 +20,7 @@ import gov.usgs.volcanoes.winston.db.InputEW;
  */
 public class ChannelStatus {
   public enum SortOrder {
-    CHANNEL, LAST_INSERT_TIME, MIN_TIME, MAX_TIME, FAILURES, SUCCESSES;
+    CHANNEL, LAST_INSERT_TIME, MIN_TIME, MAX_TIME, FAILURES, SUCCESSES, DROPS, QUEUE_PEAK;
 
     public static SortOrder parse(final char c) {
       switch (Character.toUpperCase(c)) {
@@ -34,17 +37,23 @@ public class ChannelStatus {
           return SUCCESSES;
         case 'F':
           return FAILURES;
+        case 'D':
+          return DROPS;
+        case 'Q':
+          return QUEUE_PEAK;
       }
     }
   }
 
   private final String channel;
-  private int successes = 0;
-  private int failures = 0;
-  private double lastTime;
-  private double lastBufTime = 0;
-  private double minBufTime = 1E300;
-  private double maxBufTime = -1E300;
+  private volatile int successes = 0;
+  private volatile int failures = 0;
+  private volatile double lastTime;
+  private volatile double lastBufTime = 0;
+  private volatile double minBufTime = 1E300;
+  private volatile double maxBufTime = -1E300;
+  private volatile int drops = 0;
+  private volatile int queuePeak = 0;
   private final SimpleDateFormat dateFormat;
 
   public ChannelStatus(final String c) {
@@ -53,7 +62,7 @@ public class ChannelStatus {
     channel = c;
   }
 
-  public void process(final TraceBuf tb, final InputEW.InputResult.Code code) {
+  public synchronized void process(final TraceBuf tb, final InputEW.InputResult.Code code) {
     if (code == InputEW.InputResult.Code.SUCCESS
         || code == InputEW.InputResult.Code.SUCCESS_CREATED_TABLE) {
       successes++;
@@ -68,20 +77,51 @@ public class ChannelStatus {
     }
   }
 
-  public double timeSinceLast() {
+  /**
+   * Record TraceBufs dropped from a full queue.
+   *
+   * @param count number dropped
+   */
+  public synchronized void recordDrops(final int count) {
+    drops += count;
+  }
+
+  /**
+   * Record the size of the channel's queue, keeping the largest seen.
+   *
+   * @param size number of TraceBufs queued
+   */
+  public void recordQueueSize(final int size) {
+    if (size > queuePeak) {
+      synchronized (this) {
+        queuePeak = Math.max(queuePeak, size);
+      }
+    }
+  }
+
+  public int getDrops() {
+    return drops;
+  }
+
+  public int getQueuePeak() {
+    return queuePeak;
+  }
+
+  public synchronized double timeSinceLast() {
     final double now = J2kSec.now();
     return now - lastTime;
   }
 
   public static String getHeaderString() {
-    return "[C]hannel     [L]ast ins   [M]in time               Ma[x] time               [S]uccess/[F]ailure";
+    return "[C]hannel     [L]ast ins   [M]in time               Ma[x] time               [S]uccess/[F]ailure [D]rops/[Q]ueue peak";
   }
 
   @Override
-  public String toString() {
-    return String.format("%-13s %-12s %-24s %-24s %-12s", channel,
+  public synchronized String toString() {
+    return String.format("%-13s %-12s %-24s %-24s %-19s %s", channel,
         Time.secondsToString(timeSinceLast()), dateFormat.format(J2kSec.asDate(minBufTime)),
-        dateFormat.format(J2kSec.asDate(maxBufTime)), successes + "/" + failures);
+        dateFormat.format(J2kSec.asDate(maxBufTime)), successes + "/" + failures,
+        drops + "/" + queuePeak);
   }
 
   public static Comparator<ChannelStatus> getComparator(final SortOrder order, final boolean desc) {
@@ -108,6 +148,12 @@ public class ChannelStatus {
           case MIN_TIME:
             cmp = Double.compare(cs1.minBufTime, cs2.minBufTime);
             break;
+          case DROPS:
+            cmp = cs1.drops - cs2.drops;
+            break;
+          case QUEUE_PEAK:
+            cmp = cs1.queuePeak - cs2.queuePeak;
+            break;
         }
         if (desc)
           cmp = -cmp;
@@ -1,6 +1,7 @@
 package gov.usgs.volcanoes.winston.in.ew;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.DateFormat;
@@ -17,9 +18,12 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Level;
 import org.slf4j.Logger;
@@ -93,6 +97,19 @@ public class ImportEW extends Thread {
 
   public static final int DEFAULT_REPAIR_RETRY_INTERVAL = 10 * 60;
 
+  public static final int DEFAULT_WRITERS = 1;
+
+  public static final int DEFAULT_SPOOL_SEGMENT_SIZE = 64;
+  public static final boolean DEFAULT_SPOOL_FORCE = false;
+  public static final int SPOOL_RETRY_DELAY = 10000;
+
+  /** longest time in ms to wait between cycles if no channel signals that it is ready */
+  public static final long MAX_CYCLE_WAIT = 1000;
+
+  /** time in ms to wait between cycles which write every channel */
+  public static final long FORCED_CYCLE_WAIT = 10;
+  public static final boolean DEFAULT_LAZY_CYCLE = false;
+
   // JSAP related stuff.
   public static String JSAP_PROGRAM_NAME = "java gov.usgs.volcanoes.winston.in.ew.ImportEW";
   public static String JSAP_EXPLANATION_PREFACE = "Winston ImportEW\n" + "\n"
@@ -105,7 +122,7 @@ public class ImportEW extends Thread {
           + "these commands into the console (followed by [Enter]):\n" + "0: turn logging off.\n"
           + "1: normal logging level (WARNING).\n" + "2: high logging level (FINE).\n"
           + "3: log everything.\n" + "s: display status information.\n"
-          + "c[col][-]: channel list, sorted by col, - for descending. Examples: c, cl-, cx\n"
+          + "c[col][-]: channel list, sorted by col, - for descending. Examples: c, cl-, cx, cd-\n"
           + "i: no longer accept console input.\n" + "q: quit cleanly.\n" + "ctrl-c: quit now.\n"
           + "\n" + "Note that if console input is disabled the only way to\n"
           + "terminate the program is with ctrl-c or by killing the process.\n";
@@ -128,13 +145,18 @@ public class ImportEW extends Thread {
   protected String configFilename;
   protected ConfigFile config;
 
-  private WinstonDatabase winston;
-  private Channels channels;
-  private InputEW input;
+  protected int writerCount;
+  private ChannelWriter[] writers;
+  private final Set<String> scheduledChannels;
 
   protected ImportGeneric importGeneric;
   private final Set<String> existingChannels;
-  private final Map<String, ConcurrentLinkedQueue<TraceBuf>> channelTraceBufs;
+  private final ConcurrentMap<String, TraceBufRing> channelTraceBufs;
+
+  protected File spoolDir;
+  protected int spoolSegmentSize;
+  protected boolean spoolForce;
+  private final Map<String, ChannelSpool> channelSpools;
 
   protected String logFile;
   protected int logNumFiles;
@@ -148,14 +170,13 @@ public class ImportEW extends Thread {
   private final Map<String, Double> attemptedRepair;
   private int repairRetryInterval;
 
-  protected final CodeTimer inputTimer;
-  protected int totalTraceBufsWritten = 0;
-  protected int totalTraceBufs;
-  protected int totalTraceBufsDropped;
-  protected int totalTraceBufsAccepted;
-  protected int totalTraceBufsRejected;
-  protected int totalTraceBufsFailed;
-  protected final Map<String, ChannelStatus> channelStatus;
+  protected final AtomicInteger totalTraceBufsWritten;
+  protected final AtomicInteger totalTraceBufs;
+  protected final AtomicInteger totalTraceBufsDropped;
+  protected final AtomicInteger totalTraceBufsAccepted;
+  protected final AtomicInteger totalTraceBufsRejected;
+  protected final AtomicInteger totalTraceBufsFailed;
+  protected final ConcurrentMap<String, ChannelStatus> channelStatus;
   protected final Date importStartTime;
   protected final DateFormat dateFormat;
   protected final DateFormat winstonDateFormat;
@@ -169,9 +190,19 @@ public class ImportEW extends Thread {
 
   private volatile boolean quit = false;
 
+  /** wakes the main loop when a channel is ready to be written */
+  private final Object cycleLock = new Object();
+  private volatile boolean cycleSignalled = false;
+
+  /** if true, channels are written only when they reach their thresholds */
+  private boolean lazyCycle;
+
   protected List<TraceBufFilter> traceBufFilters;
   protected List<OptionsFilter> optionFilters;
 
+  /** traceBufFilters resolved for each channel */
+  private final Map<String, FilterChain> channelFilters;
+
   public ImportEW(final String fn) {
     this();
 
@@ -203,12 +234,19 @@ public class ImportEW extends Thread {
     dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
     winstonDateFormat = new SimpleDateFormat("yyyy_MM_dd");
     winstonDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-    channelOptions = new HashMap<String, Options>();
-    channelStatus = new HashMap<String, ChannelStatus>();
-
-    inputTimer = new CodeTimer("inputTimer", false);
-    channelTraceBufs =
-        new ConcurrentHashMap<String, ConcurrentLinkedQueue<TraceBuf>>(200, 0.75f, 1);
+    channelOptions = new ConcurrentHashMap<String, Options>();
+    channelFilters = new ConcurrentHashMap<String, FilterChain>();
+    channelStatus = new ConcurrentHashMap<String, ChannelStatus>();
+
+    totalTraceBufsWritten = new AtomicInteger(0);
+    totalTraceBufs = new AtomicInteger(0);
+    totalTraceBufsDropped = new AtomicInteger(0);
+    totalTraceBufsAccepted = new AtomicInteger(0);
+    totalTraceBufsRejected = new AtomicInteger(0);
+    totalTraceBufsFailed = new AtomicInteger(0);
+    scheduledChannels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    channelTraceBufs = new ConcurrentHashMap<String, TraceBufRing>(200, 0.75f, 1);
+    channelSpools = new ConcurrentHashMap<String, ChannelSpool>(200, 0.75f, 1);
     fixer = Executors.newSingleThreadExecutor();
     underRepair = Collections.synchronizedSet(new HashSet<String>());
     attemptedRepair = Collections.synchronizedMap(new HashMap<String, Double>());
@@ -217,7 +255,7 @@ public class ImportEW extends Thread {
 
   /**
    * Try to recover from an {@link OutOfMemoryError} by dropping all
-   * {@link TraceBuf}s from the processing queue. Ideally,
+   * {@link TraceBuf}s from the processing queue. Spooled TraceBufs are kept. Ideally,
    * {@link OutOfMemoryError}s should be prevented by aggressive tuning; this
    * is a last-gasp effort to allow the program to continue running.
    */
@@ -311,6 +349,55 @@ public class ImportEW extends Thread {
     enableValarmView = StringUtils.stringToBoolean(config.getString("import.enableValarmView"),
         DEFAULT_ENABLE_VALARM_VIEW);
 
+    writerCount =
+        Math.max(1, StringUtils.stringToInt(config.getString("import.writers"), DEFAULT_WRITERS));
+    LOGGER.info("config: import.writers=" + writerCount);
+
+    lazyCycle = StringUtils.stringToBoolean(config.getString("import.lazyCycle"),
+        DEFAULT_LAZY_CYCLE);
+    LOGGER.info("config: import.lazyCycle=" + lazyCycle);
+
+    final String spool = config.getString("import.spool.dir");
+    if (spool != null) {
+      spoolDir = new File(spool);
+      spoolSegmentSize = StringUtils.stringToInt(config.getString("import.spool.segmentSize"),
+          DEFAULT_SPOOL_SEGMENT_SIZE);
+      spoolForce = StringUtils.stringToBoolean(config.getString("import.spool.force"),
+          DEFAULT_SPOOL_FORCE);
+      LOGGER.info("config: import.spool.dir=" + spoolDir);
+      LOGGER.info("config: import.spool.segmentSize=" + spoolSegmentSize);
+      LOGGER.info("config: import.spool.force=" + spoolForce);
+      recoverSpool();
+    }
+  }
+
+  /**
+   * Open spools left by a previous run so their TraceBufs are written.
+   */
+  private void recoverSpool() {
+    final File[] dirs = spoolDir.listFiles();
+    if (dirs == null)
+      return;
+
+    for (final File dir : dirs) {
+      if (!dir.isDirectory())
+        continue;
+      try {
+        getSpool(dir.getName());
+      } catch (final IOException e) {
+        LOGGER.error("Unable to recover spool {}: {}", dir, e.getLocalizedMessage());
+      }
+    }
+  }
+
+  private ChannelSpool getSpool(final String channel) throws IOException {
+    ChannelSpool spool = channelSpools.get(channel);
+    if (spool == null) {
+      spool = new ChannelSpool(channel, new File(spoolDir, channel), spoolSegmentSize * 1024 * 1024,
+          spoolForce);
+      channelSpools.put(channel, spool);
+    }
+    return spool;
   }
 
   /**
@@ -340,20 +427,20 @@ public class ImportEW extends Thread {
         StringUtils.stringToInt(config.getString("winston.statementCacheCap"), 100);
     LOGGER.info("config: winston.statementCacheCap=" + winstonStatementCacheCap);
 
-    winston = new WinstonDatabase(winstonDriver, winstonURL, winstonPrefix, winstonTableEngine,
-        winstonStatementCacheCap);
-    if (!winston.checkDatabase())
-      fatalError("Winston database does not exist.");
+    writers = new ChannelWriter[writerCount];
+    for (int i = 0; i < writerCount; i++) {
+      final WinstonDatabase winston = new WinstonDatabase(winstonDriver, winstonURL,
+          winstonPrefix, winstonTableEngine, winstonStatementCacheCap);
+      if (!winston.checkDatabase())
+        fatalError("Winston database does not exist.");
+      writers[i] = new ChannelWriter(i, winston);
+    }
     fixerWinston = new WinstonDatabase(winstonDriver, winstonURL, winstonPrefix, winstonTableEngine,
         winstonStatementCacheCap);
     fixerInput = new InputEW(fixerWinston);
     fixerInput.setEnableValarmView(enableValarmView);
     fixerAdmin = new Admin(fixerWinston);
 
-    channels = new Channels(winston);
-    input = new InputEW(winston);
-    input.setEnableValarmView(enableValarmView);
-
     repairRetryInterval = DEFAULT_REPAIR_RETRY_INTERVAL;
   }
 
@@ -373,6 +460,7 @@ public class ImportEW extends Thread {
   }
 
   protected void processOptions() {
+    channelOptions.clear();
     optionFilters = new ArrayList<OptionsFilter>();
     final List<String> optionSets = config.getList("options");
     for (final String options : optionSets) {
@@ -422,6 +510,7 @@ public class ImportEW extends Thread {
     Collections.sort(traceBufFilters);
     for (final TraceBufFilter filter : traceBufFilters)
       LOGGER.info("config, filter: {}", filter);
+    channelFilters.clear();
   }
 
   /**
@@ -432,13 +521,21 @@ public class ImportEW extends Thread {
    * @return filter that matched, null if no match
    */
   protected TraceBufFilter matchFilter(final TraceBuf tb) {
+    final String channel = tb.toWinstonString();
     final Options options = getOptions(tb);
-    for (final TraceBufFilter filter : traceBufFilters) {
-      if (filter.match(tb, options)) {
+    FilterChain chain = channelFilters.get(channel);
+    if (chain == null) {
+      chain = new FilterChain(tb, options);
+      channelFilters.put(channel, chain);
+    }
+
+    for (int i = 0; i < chain.filters.length; i++) {
+      final TraceBufFilter filter = chain.filters[i];
+      if (chain.matched[i] || filter.match(tb, options)) {
 
         final Map<String, String> m = filter.getMetadata();
         if (m != null)
-          addMetadata(tb.toWinstonString(), m);
+          addMetadata(channel, m);
 
         if (filter.isTerminal())
           return filter;
@@ -448,6 +545,37 @@ public class ImportEW extends Thread {
     return null;
   }
 
+  /**
+   * The filters which apply to a channel. Channel filters are tested once, those which do not
+   * match are left out and those which do are marked as matched. Filters after the first matching
+   * terminal channel filter are left out.
+   */
+  private class FilterChain {
+    private final TraceBufFilter[] filters;
+    private final boolean[] matched;
+
+    private FilterChain(final TraceBuf tb, final Options options) {
+      final List<TraceBufFilter> chain = new ArrayList<TraceBufFilter>();
+      final List<Boolean> chainMatched = new ArrayList<Boolean>();
+      for (final TraceBufFilter filter : traceBufFilters) {
+        if (!filter.isChannelFilter()) {
+          chain.add(filter);
+          chainMatched.add(false);
+        } else if (filter.match(tb, options)) {
+          chain.add(filter);
+          chainMatched.add(true);
+          if (filter.isTerminal())
+            break;
+        }
+      }
+
+      filters = chain.toArray(new TraceBufFilter[chain.size()]);
+      matched = new boolean[filters.length];
+      for (int i = 0; i < matched.length; i++)
+        matched[i] = chainMatched.get(i);
+    }
+  }
+
   private void addMetadata(final String c, final Map<String, String> m) {
     Map<String, String> cm = channelMetadata.get(c);
     if (cm == null) {
@@ -469,7 +597,7 @@ public class ImportEW extends Thread {
    */
   class TraceBufHandler implements MessageListener {
     public void messageReceived(final Message msg) {
-      totalTraceBufs++;
+      totalTraceBufs.incrementAndGet();
       if (!(msg instanceof TraceBuf)) {
         throw new RuntimeException("Expected TraceBuf but received " + msg.getClass());
       }
@@ -491,14 +619,14 @@ public class ImportEW extends Thread {
         LOGGER.debug("No matching filter, rejected: " + tb);
 
       if (accept) {
-        totalTraceBufsAccepted++;
+        totalTraceBufsAccepted.incrementAndGet();
         addTraceBufToQueue(tb);
       } else {
-        totalTraceBufsRejected++;
+        totalTraceBufsRejected.incrementAndGet();
 
         // ack tracebufs that were rejected, so they will not be resent.
         if (msg.sendAck)
-          importGeneric.sendAck(tb.seq);
+          sendAck(tb.seq);
 
         if (matchingFilter.keepRejects()) {
           // TODO: deal with the rejected keepers
@@ -507,50 +635,282 @@ public class ImportEW extends Thread {
     }
   }
 
+  /**
+   * Writes TraceBufs for a share of the channels over its own database connection. Channels are
+   * assigned to writers by name, so a channel is always written by the same writer and its
+   * TraceBufs are inserted in the order received.
+   */
+  private class ChannelWriter {
+    private final Channels channels;
+    private final InputEW input;
+    private final CodeTimer inputTimer;
+    private final ExecutorService executor;
+
+    private ChannelWriter(final int id, final WinstonDatabase winston) {
+      channels = new Channels(winston);
+      input = new InputEW(winston);
+      input.setEnableValarmView(enableValarmView);
+      inputTimer = new CodeTimer("inputTimer", false);
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+          return new Thread(r, "ImportEW-writer-" + id);
+        }
+      });
+    }
+  }
+
   protected void addTraceBufToQueue(final TraceBuf tb) {
     final String channel = tb.toWinstonString();
-    ConcurrentLinkedQueue<TraceBuf> q = channelTraceBufs.get(channel);
-    if (q == null) {
-      q = new ConcurrentLinkedQueue<TraceBuf>();
-      channelTraceBufs.put(channel, q);
-    }
+    if (spoolDir != null && spoolTraceBuf(channel, tb))
+      return;
 
     final Options ip = getOptions(tb);
 
-    q.add(tb);
-    while (q.size() > ip.maxBacklog) {
-      q.poll();
-      // TODO: improve logging of dropped tracebufs
-      totalTraceBufsDropped++;
-      if (totalTraceBufsDropped % 100 == 1) {
-        LOGGER.info("Overfull backlog, dropped TraceBuf");
+    TraceBufRing q = channelTraceBufs.get(channel);
+    if (q == null) {
+      q = new TraceBufRing(ip.maxBacklog);
+      final TraceBufRing existing = channelTraceBufs.putIfAbsent(channel, q);
+      if (existing != null)
+        q = existing;
+    } else if (q.capacity() != Math.max(1, ip.maxBacklog)) {
+      q = resizeQueue(channel, q, ip.maxBacklog);
+    }
+
+    final int dropped = q.offer(tb);
+    // a TraceBuf offered to a queue as it was replaced is moved to the replacement
+    final TraceBufRing current = channelTraceBufs.get(channel);
+    if (current != null && current != q) {
+      moveTraceBufs(channel, q, current);
+      q = current;
+    }
+    final int size = q.size();
+    final ChannelStatus status = getChannelStatus(channel);
+    status.recordQueueSize(size);
+    if (dropped > 0) {
+      totalTraceBufsDropped.addAndGet(dropped);
+      status.recordDrops(dropped);
+      if (status.getDrops() % 100 == 1) {
+        LOGGER.info("Overfull backlog, {} TraceBufs dropped from {}", status.getDrops(), channel);
       }
     }
+
+    if (!scheduledChannels.contains(channel)) {
+      final TraceBuf head = q.peek();
+      if (head != null && ip.thresholdExceeded(head.getStartTimeJ2K(), size))
+        signalCycle();
+    }
+  }
+
+  /**
+   * Replace a channel's queue with one of a new capacity, after its options have changed. Queued
+   * TraceBufs are moved to the new queue, oldest first; if it is smaller the oldest are dropped.
+   *
+   * @return the channel's queue
+   */
+  private TraceBufRing resizeQueue(final String channel, final TraceBufRing q,
+      final int maxBacklog) {
+    final TraceBufRing resized = new TraceBufRing(maxBacklog);
+    if (!channelTraceBufs.replace(channel, q, resized))
+      return channelTraceBufs.get(channel);
+
+    LOGGER.info("Resizing backlog of {} from {} to {}", channel, q.capacity(),
+        resized.capacity());
+    moveTraceBufs(channel, q, resized);
+    return resized;
+  }
+
+  /**
+   * Move TraceBufs from a replaced queue to its replacement, counting any dropped to make room.
+   */
+  private void moveTraceBufs(final String channel, final TraceBufRing from,
+      final TraceBufRing to) {
+    int dropped = 0;
+    TraceBuf tb;
+    while ((tb = from.poll()) != null)
+      dropped += to.offer(tb);
+
+    if (dropped > 0) {
+      totalTraceBufsDropped.addAndGet(dropped);
+      getChannelStatus(channel).recordDrops(dropped);
+    }
   }
 
-  private void cycle(final boolean force) {
+  private ChannelStatus getChannelStatus(final String channel) {
+    ChannelStatus status = channelStatus.get(channel);
+    if (status == null) {
+      status = new ChannelStatus(channel);
+      final ChannelStatus existing = channelStatus.putIfAbsent(channel, status);
+      if (existing != null)
+        status = existing;
+    }
+    return status;
+  }
+
+  /**
+   * Wake the main loop. Called when a channel crosses a threshold or a writer finishes with a
+   * channel which still has TraceBufs queued.
+   */
+  private void signalCycle() {
+    if (cycleSignalled)
+      return;
+
+    synchronized (cycleLock) {
+      cycleSignalled = true;
+      cycleLock.notify();
+    }
+  }
+
+  /**
+   * Wait until signalled or until the time given has passed.
+   *
+   * @param millis most time to wait
+   */
+  private void awaitCycle(final long millis) throws InterruptedException {
+    synchronized (cycleLock) {
+      if (!cycleSignalled)
+        cycleLock.wait(millis);
+      cycleSignalled = false;
+    }
+  }
+
+  /**
+   * Append a TraceBuf to its channel's spool and ack it. If the spool cannot be written the
+   * TraceBuf is left for the in-memory queue, which acks when it is written.
+   *
+   * @return true if the TraceBuf was spooled
+   */
+  private boolean spoolTraceBuf(final String channel, final TraceBuf tb) {
+    final ChannelSpool spool;
+    try {
+      spool = getSpool(channel);
+      spool.append(tb);
+    } catch (final IOException e) {
+      LOGGER.error("Unable to spool TraceBuf for {}: {}", channel, e.getLocalizedMessage());
+      return false;
+    }
+    if (tb.sendAck)
+      sendAck(tb.seq);
+    if (getOptions(tb).thresholdExceeded(tb.getStartTimeJ2K(), spool.size()))
+      signalCycle();
+    return true;
+  }
+
+  /**
+   * Ack a TraceBuf. Acks are sent from several threads, so access to the export connection is
+   * serialized here.
+   */
+  private void sendAck(final int seq) {
+    synchronized (importGeneric) {
+      importGeneric.sendAck(seq);
+    }
+  }
+
+  /**
+   * Hand each channel which is ready to be written to its writer. A channel is not handed off
+   * again until its writer has drained the queue.
+   *
+   * @return time in ms until the next channel reaches its time threshold
+   */
+  private long cycle(final boolean force) {
     // CodeTimer ct0 = new CodeTimer("init");
-    for (final Iterator<Entry<String, ConcurrentLinkedQueue<TraceBuf>>> iter =
+    long wait = MAX_CYCLE_WAIT;
+    for (final Iterator<Entry<String, TraceBufRing>> iter =
         channelTraceBufs.entrySet().iterator(); iter.hasNext();) {
-      Entry<String, ConcurrentLinkedQueue<TraceBuf>> entry = iter.next();
-      String key = entry.getKey();
-      ConcurrentLinkedQueue<TraceBuf> q = entry.getValue();
-      if (q.isEmpty())
+      Entry<String, TraceBufRing> entry = iter.next();
+      final String key = entry.getKey();
+      final TraceBufRing q = entry.getValue();
+      if (scheduledChannels.contains(key))
         continue;
 
-      final Options ip = getOptions(q.peek());
+      final TraceBuf head = q.peek();
+      if (head == null)
+        continue;
 
-      if (force || ip.thresholdExceeded(q.peek().getStartTimeJ2K(), q.size())) {
+      final Options ip = getOptions(head);
 
-        importChannel(q);
-        if (channelMetadata.containsKey(key))
-          importMetadata(key, channelMetadata.get(key));
+      if (force || ip.thresholdExceeded(head.getStartTimeJ2K(), q.size())) {
+        final ChannelWriter writer = getWriter(key);
+        final Map<String, String> metadata = channelMetadata.get(key);
+        scheduledChannels.add(key);
+        writer.executor.execute(new Runnable() {
+          public void run() {
+            try {
+              importChannel(writer, q);
+              if (metadata != null)
+                importMetadata(writer, key, metadata);
+            } catch (final OutOfMemoryError e) {
+              handleOutOfMemoryError(e);
+            } catch (final Throwable e) {
+              LOGGER.error("Exception writing {}: {}", key, e.getLocalizedMessage());
+              e.printStackTrace();
+            } finally {
+              scheduledChannels.remove(key);
+              if (!q.isEmpty())
+                signalCycle();
+            }
+          }
+        });
+      } else {
+        wait = Math.min(wait, timeToThreshold(ip, head));
       }
 
     }
+
+    for (final ChannelSpool spool : channelSpools.values()) {
+      final String key = spool.getChannel();
+      if (scheduledChannels.contains(key))
+        continue;
+
+      final TraceBuf head = spool.peek();
+      if (head == null)
+        continue;
+
+      final Options ip = getOptions(head);
+
+      if (force || ip.thresholdExceeded(head.getStartTimeJ2K(), spool.size())) {
+        final ChannelWriter writer = getWriter(key);
+        final Map<String, String> metadata = channelMetadata.get(key);
+        scheduledChannels.add(key);
+        writer.executor.execute(new Runnable() {
+          public void run() {
+            try {
+              importSpool(writer, spool, ip.maxBacklog);
+              if (metadata != null)
+                importMetadata(writer, key, metadata);
+            } catch (final OutOfMemoryError e) {
+              handleOutOfMemoryError(e);
+            } catch (final Throwable e) {
+              LOGGER.error("Exception writing {}: {}", key, e.getLocalizedMessage());
+              e.printStackTrace();
+            } finally {
+              scheduledChannels.remove(key);
+              if (spool.size() > 0)
+                signalCycle();
+            }
+          }
+        });
+      } else {
+        wait = Math.min(wait, timeToThreshold(ip, head));
+      }
+    }
     // ct0.stop();
     // if (ct0.getRunTimeMillis() > 1000)
     // System.out.println("Long cycle: " + ct0);
+    return wait;
+  }
+
+  /**
+   * Return time in ms until a channel's oldest TraceBuf reaches the time threshold.
+   */
+  private static long timeToThreshold(final Options ip, final TraceBuf head) {
+    if (ip.timeThreshold == -1)
+      return MAX_CYCLE_WAIT;
+
+    return (long) ((head.getStartTimeJ2K() + ip.timeThreshold - J2kSec.now()) * 1000);
+  }
+
+  private ChannelWriter getWriter(final String channel) {
+    return writers[(channel.hashCode() & Integer.MAX_VALUE) % writers.length];
   }
 
   private Runnable getPurgeRunnable(final String code, final int maxDays) {
@@ -570,7 +930,7 @@ public class ImportEW extends Thread {
     };
   }
 
-  private Runnable getRepairRunnable(final String database, final String table) {
+  private synchronized Runnable getRepairRunnable(final String database, final String table) {
     if (underRepair.contains(table))
       return null;
 
@@ -598,44 +958,72 @@ public class ImportEW extends Thread {
     };
   }
 
-  private void importChannel(final ConcurrentLinkedQueue<TraceBuf> q) {
+  private void importChannel(final ChannelWriter writer, final TraceBufRing q) {
     if (q.isEmpty() || underRepair.contains("channels")) {
       System.out.println("isempty: " + q.isEmpty());
       System.out.println("underRepair: " + underRepair.contains("channels"));
       return;
     }
-    final TraceBuf tb = q.peek();
-    final String code = tb.toWinstonString();
-
-    if (!existingChannels.contains(code) && !channels.channelExists(code)) {
-      LOGGER.info("Creating new channel '" + code + "' in Winston database.");
-      channels.createChannel(code);
-    }
-    existingChannels.add(code);
 
     final ArrayList<TraceBuf> tbs = new ArrayList<TraceBuf>(q.size());
-    while (!q.isEmpty()) {
-      final TraceBuf t = q.poll();
-      tbs.add(t);
+    q.drainTo(tbs);
+    for (final TraceBuf t : tbs) {
       if (t.sendAck)
-        importGeneric.sendAck(t.seq);
+        sendAck(t.seq);
+    }
+
+    writeTraceBufs(writer, tbs);
+  }
 
+  /**
+   * Write up to maxBacklog TraceBufs from a channel's spool. The TraceBufs are removed from the
+   * spool only if every one of them was written or was already in the database; otherwise they are
+   * all read again after a delay, and those already written are found to be duplicates.
+   */
+  private void importSpool(final ChannelWriter writer, final ChannelSpool spool,
+      final int maxBacklog) {
+    if (underRepair.contains("channels"))
+      return;
+
+    final List<TraceBuf> tbs = spool.read(maxBacklog);
+    if (tbs.isEmpty()) {
+      spool.commit();
+    } else if (writeTraceBufs(writer, tbs)) {
+      spool.commit();
+    } else {
+      LOGGER.warn("TraceBufs not written, {} TraceBufs left in spool for {}", tbs.size(),
+          spool.getChannel());
+      spool.rewind(SPOOL_RETRY_DELAY);
     }
+  }
 
-    inputTimer.start();
+  /**
+   * Write a channel's TraceBufs and record the results.
+   *
+   * @return true if every TraceBuf was written or was already in the database
+   */
+  private boolean writeTraceBufs(final ChannelWriter writer, final List<TraceBuf> tbs) {
+    final TraceBuf tb = tbs.get(0);
+    final String code = tb.toWinstonString();
+
+    if (!existingChannels.contains(code) && !writer.channels.channelExists(code)) {
+      LOGGER.info("Creating new channel '" + code + "' in Winston database.");
+      writer.channels.createChannel(code);
+    }
+    existingChannels.add(code);
+
+    writer.inputTimer.start();
     // TODO: catch exceptions around here
     final Options ip = getOptions(tbs.get(0));
     final List<InputEW.InputResult> results =
-        input.inputTraceBufs(tbs, ip.rsamEnable, ip.rsamDelta, ip.rsamDuration);
-    inputTimer.stop();
+        writer.input.inputTraceBufs(tbs, ip.rsamEnable, ip.rsamDelta, ip.rsamDuration);
+    writer.inputTimer.stop();
 
-    ChannelStatus status = channelStatus.get(code);
-    if (status == null) {
-      status = new ChannelStatus(code);
-      channelStatus.put(code, status);
-    }
+    final ChannelStatus status = getChannelStatus(code);
     // TODO: suppress repetitive MySQL exceptions
+    boolean written = true;
     if (results.size() == 1) {
+      written = false;
       final InputEW.InputResult result = results.get(0);
       switch (result.code) {
         case ERROR_DATABASE:
@@ -659,6 +1047,10 @@ public class ImportEW extends Thread {
       for (int i = 0; i < results.size() - 2; i++) {
         final InputEW.InputResult result = results.get(i);
         status.process(result.traceBuf, result.code);
+        if (result.code != InputEW.InputResult.Code.SUCCESS
+            && result.code != InputEW.InputResult.Code.SUCCESS_CREATED_TABLE
+            && result.code != InputEW.InputResult.Code.ERROR_DUPLICATE)
+          written = false;
         boolean repair = false;
         switch (result.code) {
           case SUCCESS_CREATED_TABLE:
@@ -666,37 +1058,37 @@ public class ImportEW extends Thread {
                 + winstonDateFormat.format(J2kSec.asDate(tb.getStartTimeJ2K())));
             fixer.submit(getPurgeRunnable(code, ip.maxDays));
             attemptedRepair.remove(code);
-            totalTraceBufsWritten++;
+            totalTraceBufsWritten.incrementAndGet();
             LOGGER.debug("Insert: " + tb.toString());
             break;
           case SUCCESS:
             attemptedRepair.remove(code);
-            totalTraceBufsWritten++;
+            totalTraceBufsWritten.incrementAndGet();
             LOGGER.debug("Insert: " + tb.toString());
             break;
           case ERROR_DATABASE:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             repair = true;
             LOGGER.warn("Database error: " + tb.toString());
             break;
           case ERROR_UNKNOWN:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             repair = true;
             LOGGER.warn("Unknown insert error: " + tb.toString());
             break;
           case ERROR_CHANNEL:
           case ERROR_NULL_TRACEBUF:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             // these errors should never occur
             LOGGER.warn("Bad channel/null TraceBuf.");
             break;
           case ERROR_DUPLICATE:
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             LOGGER.warn("Duplicate TraceBuf: " + tb.toString());
             break;
           case NO_CODE:
             // this should never occur
-            totalTraceBufsFailed++;
+            totalTraceBufsFailed.incrementAndGet();
             LOGGER.warn("No error/success code: " + tb.toString());
             break;
           case ERROR_HELICORDER:
@@ -739,17 +1131,19 @@ public class ImportEW extends Thread {
           fixer.submit(repairTask);
       }
     }
+    return written;
   }
 
-  private void importMetadata(final String channel, final Map<String, String> m) {
+  private void importMetadata(final ChannelWriter writer, final String channel,
+      final Map<String, String> m) {
 
     if (underRepair.contains("channelmetadata")) {
       System.out.println("underRepair: " + underRepair.contains("channelmetadata"));
     } else if (!m.isEmpty()) {
-      inputTimer.start();
+      writer.inputTimer.start();
       System.out.println("importing metadata " + channel);
-      input.inputMetadata(channel, m);
-      inputTimer.stop();
+      writer.input.inputMetadata(channel, m);
+      writer.inputTimer.stop();
     }
   }
 
@@ -773,9 +1167,13 @@ public class ImportEW extends Thread {
     }
     while (!quit) {
       try {
-        cycle(true);
-        Thread.sleep(10); // avoid busy-waiting when importing few
-                          // channels
+        if (lazyCycle) {
+          final long wait = cycle(false);
+          awaitCycle(Math.max(1, Math.min(MAX_CYCLE_WAIT, wait)));
+        } else {
+          cycle(true);
+          awaitCycle(FORCED_CYCLE_WAIT);
+        }
       } catch (final OutOfMemoryError e) {
         handleOutOfMemoryError(e);
       } catch (final Throwable e) {
@@ -788,6 +1186,21 @@ public class ImportEW extends Thread {
     } catch (final Throwable e) {
       LOGGER.error("Exception during final cycle: {}", e);
     }
+
+    for (final ChannelWriter writer : writers)
+      writer.executor.shutdown();
+
+    try {
+      for (final ChannelWriter writer : writers)
+        writer.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    // only once no writer can touch them
+    for (final ChannelSpool spool : channelSpools.values())
+      spool.close();
   }
 
   protected Options getOptions(final TraceBuf tb) {
@@ -816,6 +1229,7 @@ public class ImportEW extends Thread {
 
     LOGGER.info("Quitting cleanly.");
     quit = true;
+    signalCycle();
   }
 
   public void printStatus() {
@@ -849,21 +1263,31 @@ public class ImportEW extends Thread {
         (rt.totalMemory() - rt.freeMemory()) / 1024.0 / 1024.0, rt.maxMemory() / 1024.0 / 1024.0));
 
     strings.add("---- TraceBufs");
-    strings.add("Accepted: " + totalTraceBufsAccepted);
-    strings.add("Written:  " + totalTraceBufsWritten);
-    strings.add("Failed:   " + totalTraceBufsFailed);
-    strings.add("Rejected: " + totalTraceBufsRejected);
-    strings.add("Dropped:  " + totalTraceBufsDropped);
-    final int pending = totalTraceBufsAccepted - totalTraceBufsWritten - totalTraceBufsFailed
-        - totalTraceBufsRejected - totalTraceBufsDropped;
+    final int written = totalTraceBufsWritten.get();
+    strings.add("Accepted: " + totalTraceBufsAccepted.get());
+    strings.add("Written:  " + written);
+    strings.add("Failed:   " + totalTraceBufsFailed.get());
+    strings.add("Rejected: " + totalTraceBufsRejected.get());
+    strings.add("Dropped:  " + totalTraceBufsDropped.get());
+    final int pending = totalTraceBufsAccepted.get() - written - totalTraceBufsFailed.get()
+        - totalTraceBufsRejected.get() - totalTraceBufsDropped.get();
     strings.add("Pending:  " + pending);
+    if (spoolDir != null) {
+      int spooled = 0;
+      for (final ChannelSpool spool : channelSpools.values())
+        spooled += spool.size();
+      strings.add("Spooled:  " + spooled);
+    }
 
     // by each filter
+    double inputTime = 0;
+    for (final ChannelWriter writer : writers)
+      inputTime += writer.inputTimer.getTotalTimeMillis();
     strings.add("---- Timing");
+    strings.add("Writers:  " + writers.length);
     strings.add(String.format("Total input time:        %s",
-        Time.secondsToString(inputTimer.getTotalTimeMillis() / 1000)));
-    strings.add(String.format("Input time per TraceBuf: %.2fms",
-        inputTimer.getTotalTimeMillis() / totalTraceBufsWritten));
+        Time.secondsToString(inputTime / 1000)));
+    strings.add(String.format("Input time per TraceBuf: %.2fms", inputTime / written));
 
     for (final String s : strings)
       System.out.println(s);
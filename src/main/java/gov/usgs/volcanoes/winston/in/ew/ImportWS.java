@@ -5,7 +5,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +56,9 @@ public class ImportWS {
   private static final int DEFAULT_RSAM_DELTA = 10;
   private static final int DEFAULT_RSAM_DURATION = 60;
 
+  private static final int DEFAULT_JOBS = 1;
+  private static final int REPORT_INTERVAL = 30;
+
   private WaveServer waveServer;
   private WinstonDatabase winston;
 
@@ -59,7 +72,7 @@ public class ImportWS {
   private boolean createDatabase;
 
   private List<ImportWSJob> jobs;
-  private ImportWSJob currentJob;
+  private final Set<ImportWSJob> runningJobs;
   private List<String> sourceChannels;
 
   private TimeSpan timeSpan;
@@ -68,6 +81,10 @@ public class ImportWS {
 
   private double chunkSize;
   private int chunkDelay;
+  private boolean bulkLoad;
+
+  private int jobCount;
+  private RateLimiter rateLimiter;
 
   private boolean rsamEnable;
   private int rsamDelta;
@@ -77,9 +94,13 @@ public class ImportWS {
   private double totalDownloadTime = 0;
   private double totalInsertTime = 0;
 
+  private final AtomicInteger jobsDone;
+  private final AtomicLong tbsInserted;
+  private final AtomicLong bytesDownloaded;
+
   private boolean requestSCNL = false;
 
-  private boolean quit = false;
+  private volatile boolean quit = false;
 
   private final CodeTimer appTimer;
 
@@ -104,6 +125,10 @@ public class ImportWS {
 
   public ImportWS() {
     appTimer = new CodeTimer("application");
+    runningJobs = Collections.synchronizedSet(new HashSet<ImportWSJob>());
+    jobsDone = new AtomicInteger();
+    tbsInserted = new AtomicLong();
+    bytesDownloaded = new AtomicLong();
   }
 
   public ImportWS(final String fileName) throws ParseException {
@@ -161,6 +186,24 @@ public class ImportWS {
     chunkDelay = StringUtils.stringToInt(config.getString("chunkDelay"), DEFAULT_CHUNK_DELAY);
     LOGGER.info("chunkDelay: {}", chunkDelay);
 
+    bulkLoad = StringUtils.stringToBoolean(config.getString("bulkLoad"), false);
+    LOGGER.info("bulkLoad: {}", bulkLoad);
+
+    jobCount = Math.max(1, StringUtils.stringToInt(config.getString("jobs"), DEFAULT_JOBS));
+    LOGGER.info("jobs: {}", jobCount);
+
+    final double maxRequestRate = StringUtils.stringToDouble(config.getString("maxRequestRate"), 0);
+    LOGGER.info("maxRequestRate: {}", maxRequestRate);
+
+    final double maxByteRate = StringUtils.stringToDouble(config.getString("maxByteRate"), 0);
+    LOGGER.info("maxByteRate: {}", maxByteRate);
+
+    rateLimiter = new RateLimiter(maxRequestRate, maxByteRate);
+    if (rateLimiter.isLimited() && chunkDelay > 0) {
+      LOGGER.info("Rate limited, ignoring chunkDelay.");
+      chunkDelay = 0;
+    }
+
     rsamEnable = StringUtils.stringToBoolean(config.getString("rsam.enable"), DEFAULT_RSAM_ENABLE);
     LOGGER.info("rsamEnable: {}", rsamEnable);
 
@@ -173,7 +216,7 @@ public class ImportWS {
     // TODO: log level
   }
 
-  public void addStats(final int t, final double td, final double ti) {
+  public synchronized void addStats(final int t, final double td, final double ti) {
     totalInserted += t;
     totalDownloadTime += td;
     totalInsertTime += ti;
@@ -193,6 +236,24 @@ public class ImportWS {
   // J2kSec.toDateString(endTime), Time.secondsToString(endTime - startTime)));
   // }
 
+  /**
+   * Account for bytes received from the wave server.
+   *
+   * @param bytes number of bytes
+   */
+  public void addDownload(final long bytes) {
+    bytesDownloaded.addAndGet(bytes);
+  }
+
+  /**
+   * Account for TraceBufs written.
+   *
+   * @param count number of TraceBufs
+   */
+  public void addInserted(final int count) {
+    tbsInserted.addAndGet(count);
+  }
+
   public void setWinston(final WinstonDatabase w) {
     winston = w;
   }
@@ -232,29 +293,69 @@ public class ImportWS {
             continue;
 
           LOGGER.info("Remote channel matched: {}", wc);
-          final ImportWSJob job = new ImportWSJob(winston, waveServer, this);
-          job.setChannel(wc);
-          job.setChunkDelay(chunkDelay);
-          job.setChunkSize(chunkSize);
-          job.setRSAMParameters(rsamEnable, rsamDelta, rsamDuration);
-          jobs.add(job);
+          jobs.add(createJob(wc, winston, waveServer));
         }
       }
     }
   }
 
-  public void startImport() {
-    for (final ImportWSJob job : jobs) {
-      currentJob = job;
-      LOGGER.info("{}: finding gaps", job.getChannel());
-      final List<TimeSpan> gaps = data.findGaps(job.getChannel(), timeSpan);
-      job.addSpans(gaps);
+  private ImportWSJob createJob(final String channel, final WinstonDatabase w,
+      final WaveServer ws) {
+    final ImportWSJob job = new ImportWSJob(w, ws, this);
+    job.setChannel(channel);
+    job.setChunkDelay(chunkDelay);
+    job.setChunkSize(chunkSize);
+    job.setBulkLoad(bulkLoad);
+    job.setRateLimiter(rateLimiter);
+    job.setRSAMParameters(rsamEnable, rsamDelta, rsamDuration);
+    return job;
+  }
 
-      job.go();
+  /**
+   * Run jobs. With more than one job at a time, each runner opens its own wave server and
+   * database connections and runs jobs from a shared queue.
+   */
+  public void startImport() {
+    final int runners = Math.min(Math.max(1, jobCount), Math.max(1, jobs.size()));
+    final ConcurrentLinkedQueue<ImportWSJob> queue = new ConcurrentLinkedQueue<ImportWSJob>(jobs);
 
-      if (quit)
-        break;
+    final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    final long start = System.currentTimeMillis();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        report(start);
+      }
+    }, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+
+    if (runners == 1) {
+      runJobs(queue, winston, waveServer);
+    } else {
+      LOGGER.info("Running {} jobs at a time.", runners);
+      final ExecutorService executor = Executors.newFixedThreadPool(runners);
+      for (int i = 0; i < runners; i++) {
+        executor.execute(new Runnable() {
+          public void run() {
+            final WinstonDatabase w = WinstonDatabase.processWinstonConfigFile(config);
+            final WaveServer ws = new WaveServer(waveServer.host + ":" + waveServer.port);
+            try {
+              runJobs(queue, w, ws);
+            } finally {
+              w.close();
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException e) {
+        quit();
+        Thread.currentThread().interrupt();
+      }
     }
+    reporter.shutdownNow();
+    report(start);
+
     appTimer.stop();
     LOGGER.info(
         String.format("%d tbs inserted, total download time: %s, total insert time: %s (%.3fms/tb)",
@@ -264,6 +365,50 @@ public class ImportWS {
     quit = true;
   }
 
+  /**
+   * Run jobs from a queue over the given connections until the queue is empty.
+   */
+  private void runJobs(final ConcurrentLinkedQueue<ImportWSJob> queue, final WinstonDatabase w,
+      final WaveServer ws) {
+    final Data jobData = w == winston ? data : new Data(w);
+    ImportWSJob queued;
+    while (!quit && (queued = queue.poll()) != null) {
+      final ImportWSJob job =
+          w == winston ? queued : createJob(queued.getChannel(), w, ws);
+      runningJobs.add(job);
+      try {
+        LOGGER.info("{}: finding gaps", job.getChannel());
+        final List<TimeSpan> gaps = jobData.findGaps(job.getChannel(), timeSpan);
+        job.addSpans(gaps);
+
+        // quit may have been called while this job was starting
+        if (quit)
+          job.quit();
+
+        job.go();
+      } finally {
+        runningJobs.remove(job);
+        jobsDone.incrementAndGet();
+      }
+    }
+  }
+
+  private void report(final long start) {
+    final double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    final long tbs = tbsInserted.get();
+    final long bytes = bytesDownloaded.get();
+    LOGGER.info("{}/{} jobs done, {} tbs inserted ({} tb/s), {} KB downloaded ({} KB/s)",
+        jobsDone.get(), jobs.size(), tbs, String.format("%.1f", tbs / seconds), bytes / 1024,
+        String.format("%.1f", bytes / 1024 / seconds));
+
+    synchronized (runningJobs) {
+      for (final ImportWSJob job : runningJobs) {
+        LOGGER.info("{}: {}% done", job.getChannel(),
+            String.format("%.0f", job.getProgress() * 100));
+      }
+    }
+  }
+
   public void go() {
     final Thread launchThread = new Thread(new Runnable() {
       public void run() {
@@ -275,11 +420,14 @@ public class ImportWS {
 
   public void quit() {
     LOGGER.info("Quitting cleanly.");
-    if (currentJob != null)
-      currentJob.quit();
-    else
-      LOGGER.info("Null job");
     quit = true;
+    synchronized (runningJobs) {
+      if (runningJobs.isEmpty())
+        LOGGER.info("Null job");
+      for (final ImportWSJob job : runningJobs) {
+        job.quit();
+      }
+    }
   }
 
   /**
@@ -3,6 +3,8 @@ package gov.usgs.volcanoes.winston.in.ew;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +30,14 @@ import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 public class ImportWSJob {
   private static final Logger LOGGER = LoggerFactory.getLogger(ImportWSJob.class);
 
+  /** Approximate size of a TraceBuf header on the wire */
+  private static final int TRACEBUF_HEADER_SIZE = 64;
+
+  /** Chunks downloaded ahead of the one being inserted */
+  private static final int CHUNKS_AHEAD = 1;
+
+  private static final Chunk END = new Chunk(null, 0, 0, 0);
+
   private final WinstonDatabase winston;
   private final WaveServer waveServer;
 
@@ -46,10 +56,17 @@ public class ImportWSJob {
   private int rsamDelta = 10;
   private int rsamDuration = 60;
 
-  private boolean quit = false;
+  private volatile boolean quit = false;
 
   private boolean requestSCNL = false;
 
+  private boolean bulkLoad = false;
+
+  private RateLimiter rateLimiter;
+
+  private double totalSeconds;
+  private volatile double secondsDone;
+
   private final ImportWS importWS;
 
   public ImportWSJob(final WinstonDatabase w, final WaveServer ws, final ImportWS is) {
@@ -89,34 +106,232 @@ public class ImportWSJob {
     chunkDelay = ms;
   }
 
+  public void setBulkLoad(final boolean b) {
+    bulkLoad = b;
+  }
+
+  /**
+   * Limit requests to the wave server. The limiter may be shared by jobs running concurrently.
+   *
+   * @param limiter the rate limiter
+   */
+  public void setRateLimiter(final RateLimiter limiter) {
+    rateLimiter = limiter;
+  }
+
+  /**
+   * Return the fraction of this job's gaps which have been requested.
+   *
+   * @return progress from 0 to 1
+   */
+  public double getProgress() {
+    return totalSeconds == 0 ? 0 : Math.min(1, secondsDone / totalSeconds);
+  }
+
   public void quit() {
     quit = true;
   }
 
   private void getData(final TimeSpan span) {
     LOGGER.debug("start get data");
+    final String[] ss = channel.split("\\$");
+    String loc = null;
+    if (ss.length == 4)
+      loc = ss[3];
+
+    if (requestSCNL && loc == null)
+      loc = "--";
+
+    final double t1 = J2kSec.fromEpoch(span.startTime);
+    final double t2 = J2kSec.fromEpoch(span.endTime);
+
+    LOGGER.info("{}: downloading gap: {} ({})", channel, span, span.span());
+
+    input.setRowParameters((int) chunkSize + 65, 60);
+
+    // the next chunk downloads while this one is inserted
+    final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(CHUNKS_AHEAD);
+    final Downloader downloader = new Downloader(ss[0], ss[1], ss[2], loc, t1, t2, chunks);
+    downloader.start();
+
+    final CodeTimer timer = new CodeTimer("chunk");
+    int total = 0;
+    double totalInsTime = 0;
     try {
-      final String[] ss = channel.split("\\$");
-      String loc = null;
-      if (ss.length == 4)
-        loc = ss[3];
+      while (true) {
+        final Chunk chunk = chunks.take();
+        if (chunk == END) {
+          break;
+        }
+        if (quit) {
+          LOGGER.debug("Job quitting");
+          break;
+        }
 
-      if (requestSCNL && loc == null)
-        loc = "--";
+        final List<TraceBuf> tbs = chunk.tbs;
+        final CodeTimer inputTimer = new CodeTimer("input");
+        final List<InputEW.InputResult> results;
+        if (bulkLoad) {
+          results = input.bulkInputTraceBufs(tbs, rsamEnable, rsamDelta, rsamDuration);
+        } else {
+          results = input.inputTraceBufs(tbs, rsamEnable, rsamDelta, rsamDuration);
+        }
 
-      final double t1 = J2kSec.fromEpoch(span.startTime);
-      final double t2 = J2kSec.fromEpoch(span.endTime);
+        inputTimer.stop();
+        totalInsTime += inputTimer.getTotalTimeMillis();
+        LOGGER.debug("{}: {} tb ({}/{}ms), [{} -> {}, {}]", channel, tbs.size(), chunk.netTime,
+            inputTimer.getRunTimeMillis(), J2kSec.toDateString(chunk.minTime),
+            J2kSec.toDateString(chunk.maxTime), Time.secondsToString(chunk.maxTime - chunk.minTime));
 
-      LOGGER.info("{}: downloading gap: {} ({})", channel, span, span.span());
+        final int inserted = countInserted(results);
+        total += inserted;
+        importWS.addInserted(inserted);
+      }
+    } catch (final InterruptedException e) {
+      LOGGER.info("{}: interrupted", channel);
+      quit = true;
+    } catch (final Throwable t) {
+      t.printStackTrace();
+    } finally {
+      // stop the download if inserting ended early
+      downloader.interrupt();
+      try {
+        downloader.join();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    timer.stop();
+    importWS.addStats(total, downloader.totalDlTime, totalInsTime);
+    LOGGER.info("{}: gap {}, {} tbs inserted in {}ms ({}ms/tb), download {}ms, insert {}ms",
+        channel, (quit ? "interrupted" : "finished"), total, timer.getTotalTimeMillis(),
+        (total == 0 ? 0 : timer.getTotalTimeMillis() / total), downloader.totalDlTime,
+        totalInsTime);
+    LOGGER.debug("end get data");
+  }
 
-      input.setRowParameters((int) chunkSize + 65, 60);
+  private int countInserted(final List<InputEW.InputResult> results) {
+    int inserted = 0;
+
+    // TODO: clean this up, unify with ImportEW
+    if (results.size() == 1) {
+      // TODO: handle errors
+      final InputEW.InputResult result = results.get(0);
+      LOGGER.warn("Error: {}", result.code);
+    } else {
+      for (int i = 0; i < results.size() - 2; i++) {
+        final InputEW.InputResult result = results.get(i);
+        final TraceBuf tb = result.traceBuf;
+        switch (result.code) {
+          case SUCCESS_CREATED_TABLE:
+            LOGGER.info("{}: day table created ({})", channel,
+                J2kSec.format("yyyy-MM-dd", tb.getEndTimeJ2K() + 1));
+            inserted++;
+            LOGGER.debug("Insert: {}", tb.toString());
+            break;
+          case SUCCESS:
+            inserted++;
+            LOGGER.debug("Insert: {}", tb.toString());
+            break;
+          case ERROR_DATABASE:
+            // fixing
+            LOGGER.debug("Database error: {}", tb.toString());
+            break;
+          case ERROR_UNKNOWN:
+            LOGGER.warn("Unknown insert error: {}", tb.toString());
+            break;
+          case ERROR_CHANNEL:
+          case ERROR_NULL_TRACEBUF:
+            // these errors should never occur
+            LOGGER.warn("Bad channel/null TraceBuf.");
+            break;
+          case ERROR_DUPLICATE:
+            LOGGER.info("Duplicate TraceBuf: {}", tb.toString());
+            break;
+          case NO_CODE:
+            // this should never occur
+            LOGGER.warn("No error/success code: {}", tb.toString());
+            break;
+          case ERROR_HELICORDER:
+            break;
+          case ERROR_INPUT:
+            break;
+          case ERROR_NO_WINSTON:
+            break;
+          case ERROR_TIME_SPAN:
+            break;
+          case SUCCESS_HELICORDER:
+            break;
+          case SUCCESS_TIME_SPAN:
+            break;
+          default:
+            break;
+        }
+      }
+    }
+    return inserted;
+  }
 
+  /**
+   * TraceBufs downloaded for one chunk of a gap.
+   */
+  private static class Chunk {
+    private final List<TraceBuf> tbs;
+    private final double netTime;
+    private final double minTime;
+    private final double maxTime;
+
+    private Chunk(final List<TraceBuf> tbs, final double netTime, final double minTime,
+        final double maxTime) {
+      this.tbs = tbs;
+      this.netTime = netTime;
+      this.minTime = minTime;
+      this.maxTime = maxTime;
+    }
+  }
+
+  /**
+   * Downloads a gap a chunk at a time, handing each chunk to the job to insert.
+   */
+  private class Downloader extends Thread {
+    private final String station;
+    private final String comp;
+    private final String network;
+    private final String loc;
+    private final double t1;
+    private final double t2;
+    private final BlockingQueue<Chunk> chunks;
+    private double totalDlTime;
+
+    private Downloader(final String station, final String comp, final String network,
+        final String loc, final double t1, final double t2, final BlockingQueue<Chunk> chunks) {
+      super("ImportWSJob-download-" + channel);
+      this.station = station;
+      this.comp = comp;
+      this.network = network;
+      this.loc = loc;
+      this.t1 = t1;
+      this.t2 = t2;
+      this.chunks = chunks;
+    }
+
+    @Override
+    public void run() {
+      try {
+        try {
+          download();
+        } catch (final RuntimeException e) {
+          LOGGER.error("{}: download failed", channel, e);
+        }
+        chunks.put(END);
+      } catch (final InterruptedException e) {
+        // the job is no longer taking chunks
+      }
+    }
+
+    private void download() throws InterruptedException {
       double ct = t1 - chunkSize;
-      List<TraceBuf> tbs = null;
-      final CodeTimer timer = new CodeTimer("chunk");
-      int total = 0;
-      double totalInsTime = 0;
-      double totalDlTime = 0;
       while (ct < t2) {
         if (quit) {
           LOGGER.debug("Job quitting");
@@ -124,129 +339,65 @@ public class ImportWSJob {
         }
         ct += chunkSize;
         final double ret = Math.min(ct + chunkSize + 5, t2 + 5);
+        secondsDone += Math.max(0, Math.min(chunkSize, t2 - ct));
+        if (rateLimiter != null) {
+          rateLimiter.acquireRequest();
+        }
         final CodeTimer netTimer = new CodeTimer("net");
-        LOGGER.debug("REQUESTING: {}_{}_{}_{} {}-{}",ss[0], ss[1], ss[2], loc, J2kSec.toDateString(ct - 5),
-            J2kSec.toDateString(ret));
-        tbs = waveServer.getTraceBufs(ss[0], ss[1], ss[2], loc, Time.j2kToEw(ct - 5),
-            Time.j2kToEw(ret));
+        LOGGER.debug("REQUESTING: {}_{}_{}_{} {}-{}", station, comp, network, loc,
+            J2kSec.toDateString(ct - 5), J2kSec.toDateString(ret));
+        final List<TraceBuf> tbs = waveServer.getTraceBufs(station, comp, network, loc,
+            Time.j2kToEw(ct - 5), Time.j2kToEw(ret));
         netTimer.stop();
         totalDlTime += netTimer.getTotalTimeMillis();
         if (tbs != null) {
           LOGGER.debug("Got {} tracebufs", tbs.size());
+          long bytes = 0;
+          for (final TraceBuf tb : tbs) {
+            bytes += TRACEBUF_HEADER_SIZE + tb.numSamples() * 4;
+          }
+          if (rateLimiter != null) {
+            rateLimiter.addBytes(bytes);
+          }
+          importWS.addDownload(bytes);
         } else {
           LOGGER.debug("Got null tracebufs");
         }
 
-        if (tbs != null && tbs.size() > 0) {
-          final Iterator<TraceBuf> it = tbs.iterator();
-          double minTime = 1E300;
-          double maxTime = -1E300;
-          while (it.hasNext()) {
-            final TraceBuf tb = it.next();
-            minTime = Math.min(tb.getStartTimeJ2K(), minTime);
-            maxTime = Math.max(tb.getEndTimeJ2K(), maxTime);
-            if (tb.getEndTimeJ2K() < t1 || tb.getStartTimeJ2K() > t2) {
-              // these are totally outside range so can be dropped quietly.
-              it.remove();
-              continue;
-            }
-            if (tb.getStartTimeJ2K() - t1 < -0.0001 || tb.getEndTimeJ2K() - t2 > 0.0001) {
-              it.remove();
-              LOGGER.debug("Overlapping TraceBuf skipped. {} - {}", tb.getStartTimeJ2K() - t1,
-                  tb.getEndTimeJ2K() - t2);
-              continue;
-            }
-            tb.createBytes();
-          }
-          if (tbs.size() == 0)
+        if (tbs == null || tbs.size() == 0)
+          continue;
+
+        final Iterator<TraceBuf> it = tbs.iterator();
+        double minTime = 1E300;
+        double maxTime = -1E300;
+        while (it.hasNext()) {
+          final TraceBuf tb = it.next();
+          minTime = Math.min(tb.getStartTimeJ2K(), minTime);
+          maxTime = Math.max(tb.getEndTimeJ2K(), maxTime);
+          if (tb.getEndTimeJ2K() < t1 || tb.getStartTimeJ2K() > t2) {
+            // these are totally outside range so can be dropped quietly.
+            it.remove();
             continue;
-          try {
-            if (chunkDelay > 0) {
-              LOGGER.debug("{}: delaying for {}ms...", channel, chunkDelay);
-              Thread.sleep(chunkDelay);
-            }
-          } catch (final Exception e) {
-            e.printStackTrace();
           }
-          final CodeTimer inputTimer = new CodeTimer("input");
-          final List<InputEW.InputResult> results =
-              input.inputTraceBufs(tbs, rsamEnable, rsamDelta, rsamDuration);
-
-          inputTimer.stop();
-          totalInsTime += inputTimer.getTotalTimeMillis();
-          LOGGER.debug("{}: {} tb ({}/{}ms), [{} -> {}, {}]", channel, tbs.size(),
-              netTimer.getRunTimeMillis(), inputTimer.getRunTimeMillis(),
-              J2kSec.toDateString(minTime), J2kSec.toDateString(maxTime),
-              Time.secondsToString(maxTime - minTime));
-
-          // TODO: clean this up, unify with ImportEW
-          if (results.size() == 1) {
-            // TODO: handle errors
-            final InputEW.InputResult result = results.get(0);
-            LOGGER.warn("Error: {}", result.code);
-          } else {
-            for (int i = 0; i < results.size() - 2; i++) {
-              final InputEW.InputResult result = results.get(i);
-              final TraceBuf tb = result.traceBuf;
-              switch (result.code) {
-                case SUCCESS_CREATED_TABLE:
-                  LOGGER.info("{}: day table created ({})", channel,
-                      J2kSec.format("yyyy-MM-dd", tb.getEndTimeJ2K() + 1));
-                  total++;
-                  LOGGER.debug("Insert: {}", tb.toString());
-                  break;
-                case SUCCESS:
-                  total++;
-                  LOGGER.debug("Insert: {}", tb.toString());
-                  break;
-                case ERROR_DATABASE:
-                  // fixing
-                  LOGGER.debug("Database error: {}", tb.toString());
-                  break;
-                case ERROR_UNKNOWN:
-                  LOGGER.warn("Unknown insert error: {}", tb.toString());
-                  break;
-                case ERROR_CHANNEL:
-                case ERROR_NULL_TRACEBUF:
-                  // these errors should never occur
-                  LOGGER.warn("Bad channel/null TraceBuf.");
-                  break;
-                case ERROR_DUPLICATE:
-                  LOGGER.info("Duplicate TraceBuf: {}", tb.toString());
-                  break;
-                case NO_CODE:
-                  // this should never occur
-                  LOGGER.warn("No error/success code: {}", tb.toString());
-                  break;
-                case ERROR_HELICORDER:
-                  break;
-                case ERROR_INPUT:
-                  break;
-                case ERROR_NO_WINSTON:
-                  break;
-                case ERROR_TIME_SPAN:
-                  break;
-                case SUCCESS_HELICORDER:
-                  break;
-                case SUCCESS_TIME_SPAN:
-                  break;
-                default:
-                  break;
-              }
-            }
+          if (tb.getStartTimeJ2K() - t1 < -0.0001 || tb.getEndTimeJ2K() - t2 > 0.0001) {
+            it.remove();
+            LOGGER.debug("Overlapping TraceBuf skipped. {} - {}", tb.getStartTimeJ2K() - t1,
+                tb.getEndTimeJ2K() - t2);
+            continue;
           }
+          tb.createBytes();
+        }
+        if (tbs.size() == 0)
+          continue;
+
+        chunks.put(new Chunk(tbs, netTimer.getRunTimeMillis(), minTime, maxTime));
+
+        if (chunkDelay > 0) {
+          LOGGER.debug("{}: delaying for {}ms...", channel, chunkDelay);
+          Thread.sleep(chunkDelay);
         }
       }
-      timer.stop();
-      importWS.addStats(total, totalDlTime, totalInsTime);
-      LOGGER.info("{}: gap {}, {} tbs inserted in {}ms ({}ms/tb)", channel,
-          (quit ? "interrupted" : "finished"), total, timer.getTotalTimeMillis(),
-          (total == 0 ? 0 : timer.getTotalTimeMillis() / total));
-    } catch (final Throwable t) {
-      t.printStackTrace();
     }
-    LOGGER.debug("end get data");
-
   }
 
   private void getAllData() {
@@ -264,6 +415,8 @@ public class ImportWSJob {
   }
 
   public void go() {
+    totalSeconds = getSpansDuration();
+    secondsDone = 0;
     for (final TimeSpan span : spans) {
       LOGGER.info("{}: gap: {} ({})", channel, span, span.span());
     }
@@ -32,14 +32,15 @@ public class McCalPulseFilter extends TraceBufFilter {
 
   @Override
   public boolean match(final TraceBuf tb, final Options options) {
+    if (!tb.channel().contains("EHZ")) // TOMPTEMP
+      return false;
 
     final double g = Goertzel.goertzel(preambleFreq, tb.samplingRate(), tb.samples(), false);
     final double g2 = Goertzel.goertzel(preambleFreq / 3, tb.samplingRate(), tb.samples(), false);
     final double g3 = Goertzel.goertzel(preambleFreq / 6, tb.samplingRate(), tb.samples(), false);
     final double g4 = Goertzel.goertzel(preambleFreq / 9, tb.samplingRate(), tb.samples(), false);
 
-    if (tb.channel().contains("EHZ") && (g / (g2 + g3 + g4)) > threshold) // TOMPTEMP
-    {
+    if ((g / (g2 + g3 + g4)) > threshold) {
       addMetadata("calPulse", String.format("%.2f", Time.j2kToEw(tb.firstSampleTime())));
       return true;
     } else
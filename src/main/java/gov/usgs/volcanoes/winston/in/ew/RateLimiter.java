@@ -0,0 +1,74 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of requests made to a wave server, and the rate of bytes received, across any
+ * number of threads. Each request is scheduled no sooner than the request interval after the one
+ * before it, and no sooner than the bytes already received allow.
+ */
+public class RateLimiter {
+  private final long requestInterval;
+  private final double byteInterval;
+  private long nextRequest;
+  private long nextByte;
+
+  /**
+   * Constructor.
+   *
+   * @param requestsPerSecond most requests per second, or 0 for no limit
+   * @param bytesPerSecond most bytes per second, or 0 for no limit
+   */
+  public RateLimiter(final double requestsPerSecond, final double bytesPerSecond) {
+    requestInterval = requestsPerSecond > 0 ? (long) (1e9 / requestsPerSecond) : 0;
+    byteInterval = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+    nextRequest = System.nanoTime();
+    nextByte = nextRequest;
+  }
+
+  /**
+   * Return true if either rate is limited.
+   *
+   * @return true if requests may be delayed
+   */
+  public boolean isLimited() {
+    return requestInterval > 0 || byteInterval > 0;
+  }
+
+  /**
+   * Wait until a request may be made.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void acquireRequest() throws InterruptedException {
+    if (!isLimited()) {
+      return;
+    }
+
+    final long wait;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      final long start = Math.max(now, Math.max(nextRequest, nextByte));
+      nextRequest = start + requestInterval;
+      wait = start - now;
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Account for bytes received. Later requests are delayed until the byte rate allows.
+   *
+   * @param bytes number of bytes received
+   */
+  public void addBytes(final long bytes) {
+    if (byteInterval == 0) {
+      return;
+    }
+
+    synchronized (this) {
+      nextByte = Math.max(nextByte, System.nanoTime()) + (long) (bytes * byteInterval);
+    }
+  }
+}
@@ -23,6 +23,11 @@ public class SCNLFilter extends TraceBufFilter {
   private String network;
   private String location;
 
+  private Pattern stationPattern;
+  private Pattern channelPattern;
+  private Pattern networkPattern;
+  private Pattern locationPattern;
+
   public SCNLFilter() {
     station = "*";
     channel = "*";
@@ -41,6 +46,7 @@ public class SCNLFilter extends TraceBufFilter {
     channel = c;
     network = n;
     location = l;
+    compile();
   }
 
   public void setFilter(final String scnl) {
@@ -54,6 +60,21 @@ public class SCNLFilter extends TraceBufFilter {
     channel = ss[1];
     network = ss[2];
     location = ss[3];
+    compile();
+  }
+
+  private void compile() {
+    stationPattern = compile(station);
+    channelPattern = compile(channel);
+    networkPattern = compile(network);
+    locationPattern = compile(location);
+  }
+
+  private static Pattern compile(final String crit) {
+    if (crit == null || crit.equals("*"))
+      return null;
+
+    return Pattern.compile(crit);
   }
 
   @Override
@@ -69,30 +90,35 @@ public class SCNLFilter extends TraceBufFilter {
     setFilter(scnl);
   }
 
-  private boolean test(final String crit, final String val) {
-    if (crit == null || crit.equals("*") || crit.equals(val))
+  private static boolean test(final String crit, final Pattern pattern, final String val) {
+    if (pattern == null || crit.equals(val))
       return true;
 
-    return Pattern.matches(crit, val);
+    return pattern.matcher(val).matches();
   }
 
   @Override
   public boolean match(final TraceBuf tb, final Options options) {
-    if (!test(station, tb.station()))
+    if (!test(station, stationPattern, tb.station()))
       return false;
 
-    if (!test(channel, tb.channel()))
+    if (!test(channel, channelPattern, tb.channel()))
       return false;
 
-    if (!test(network, tb.network()))
+    if (!test(network, networkPattern, tb.network()))
       return false;
 
-    if (!test(location, tb.location()))
+    if (!test(location, locationPattern, tb.location()))
       return false;
 
     return true;
   }
 
+  @Override
+  public boolean isChannelFilter() {
+    return true;
+  }
+
   @Override
   public String toString() {
     return String.format("SCNLFilter [%s: %s %s %s %s]", accept ? "accept" : "reject", station,
@@ -79,6 +79,16 @@ abstract public class TraceBufFilter implements Comparable<TraceBufFilter> {
     return terminal;
   }
 
+  /**
+   * Return true if match depends only on the TraceBuf's channel, so its result may be remembered
+   * for each channel rather than tested against every TraceBuf.
+   *
+   * @return true if the filter matches by channel alone
+   */
+  public boolean isChannelFilter() {
+    return false;
+  }
+
   public Map<String, String> getMetadata() {
     return metadata;
   }
@@ -0,0 +1,161 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+/**
+ * A bounded, array-backed queue of TraceBufs for a single channel. Any number of threads may add
+ * TraceBufs while the channel's writer removes them, without locking. When the queue is full the
+ * oldest TraceBuf is dropped to make room. Size is known in constant time.
+ *
+ * Each slot carries a sequence number which tells adding and removing threads whether the slot is
+ * free for the position they have claimed.
+ */
+public class TraceBufRing {
+  private final int capacity;
+  private final AtomicReferenceArray<TraceBuf> buffer;
+  private final AtomicLongArray sequence;
+  private final AtomicLong head;
+  private final AtomicLong tail;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity most TraceBufs to hold
+   */
+  public TraceBufRing(final int capacity) {
+    this.capacity = Math.max(1, capacity);
+    buffer = new AtomicReferenceArray<TraceBuf>(this.capacity);
+    sequence = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++)
+      sequence.set(i, i);
+
+    head = new AtomicLong();
+    tail = new AtomicLong();
+  }
+
+  /**
+   * Return most TraceBufs held.
+   *
+   * @return capacity
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Add a TraceBuf, dropping the oldest TraceBufs if the queue is full.
+   *
+   * @param tb the TraceBuf
+   * @return number of TraceBufs dropped
+   */
+  public int offer(final TraceBuf tb) {
+    int dropped = 0;
+    while (!tryOffer(tb)) {
+      if (poll() != null)
+        dropped++;
+    }
+    return dropped;
+  }
+
+  private boolean tryOffer(final TraceBuf tb) {
+    while (true) {
+      final long pos = tail.get();
+      final int i = (int) (pos % capacity);
+      final long seq = sequence.get(i);
+      if (seq == pos) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          buffer.set(i, tb);
+          sequence.set(i, pos + 1);
+          return true;
+        }
+      } else if (seq < pos) {
+        // slot still holds a TraceBuf from the previous lap
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Remove the oldest TraceBuf.
+   *
+   * @return the TraceBuf, or null if the queue is empty
+   */
+  public TraceBuf poll() {
+    while (true) {
+      final long pos = head.get();
+      final int i = (int) (pos % capacity);
+      final long seq = sequence.get(i);
+      if (seq == pos + 1) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          final TraceBuf tb = buffer.get(i);
+          buffer.set(i, null);
+          sequence.set(i, pos + capacity);
+          return tb;
+        }
+      } else if (seq < pos + 1) {
+        // slot not yet written
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Return the oldest TraceBuf without removing it.
+   *
+   * @return the TraceBuf, or null if the queue is empty
+   */
+  public TraceBuf peek() {
+    while (true) {
+      final long pos = head.get();
+      final int i = (int) (pos % capacity);
+      if (sequence.get(i) != pos + 1)
+        return null;
+
+      final TraceBuf tb = buffer.get(i);
+      if (head.get() == pos && tb != null)
+        return tb;
+    }
+  }
+
+  /**
+   * Remove TraceBufs into a list. At most one queue's worth is removed, so a writer is not held
+   * forever by a busy channel.
+   *
+   * @param tbs list to add to
+   * @return number of TraceBufs removed
+   */
+  public int drainTo(final List<TraceBuf> tbs) {
+    int count = 0;
+    TraceBuf tb;
+    while (count < capacity && (tb = poll()) != null) {
+      tbs.add(tb);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Return number of TraceBufs held.
+   *
+   * @return size
+   */
+  public int size() {
+    final long h = head.get();
+    final long size = tail.get() - h;
+    return (int) Math.max(0, Math.min(capacity, size));
+  }
+
+  /**
+   * Return true if no TraceBufs are held.
+   *
+   * @return true if empty
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+}
@@ -0,0 +1,308 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.core.time.TimeSpan;
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.winston.Channel;
+import gov.usgs.volcanoes.winston.db.Channels;
+import gov.usgs.volcanoes.winston.db.DbUtils;
+import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+
+/**
+ * A server-wide copy of the channel list. Readers get an immutable snapshot without locking or
+ * touching the database.
+ *
+ * The snapshot is kept current from a background thread. Every refresh interval the time span of
+ * each channel is read from the channels table alone; the full channel list, with instruments
+ * and groups, is read again only when channels are added or removed or when the reload interval
+ * has passed. Time spans may therefore lag the database by up to one refresh interval, and a
+ * span's start is limited to the lookback only when the span changes or the list is reloaded.
+ */
+public class ChannelCatalog {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChannelCatalog.class);
+  private static final AttributeKey<ChannelCatalog> channelCatalogKey;
+
+  static {
+    channelCatalogKey = AttributeKey.valueOf("channelCatalog");
+  }
+
+  private final WinstonDatabasePool databasePool;
+  private final long refreshInterval;
+  private final long reloadInterval;
+  private final ScheduledExecutorService executor;
+  private volatile Snapshot snapshot;
+  private volatile long version;
+  private long lastReload;
+
+  /** time spans of the last refresh, before the lookback is applied */
+  private Map<Integer, double[]> lastSpans;
+
+  /**
+   * Constructor.
+   *
+   * @param databasePool pool used to read channels
+   * @param refreshInterval milliseconds between reads of channel time spans
+   * @param reloadInterval milliseconds between full reads of the channel list
+   */
+  public ChannelCatalog(WinstonDatabasePool databasePool, long refreshInterval,
+      long reloadInterval) {
+    this.databasePool = databasePool;
+    this.refreshInterval = refreshInterval;
+    this.reloadInterval = reloadInterval;
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "wws-channel-catalog");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Read the channel list and begin refreshing it.
+   */
+  public void start() {
+    reload();
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          refresh();
+        } catch (Exception e) {
+          LOGGER.error("Unable to refresh channel catalog: {}", e.getMessage());
+        }
+      }
+    }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop refreshing.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Return all channels, ordered by code.
+   *
+   * @return unmodifiable list of channels, or null if the channels have not been read
+   */
+  public List<Channel> getChannels() {
+    final Snapshot current = snapshot;
+    return current == null ? null : current.channels;
+  }
+
+  /**
+   * Return all channels, indexed by network and station.
+   *
+   * @return channel index, or null if the channels have not been read
+   */
+  public ChannelIndex getIndex() {
+    final Snapshot current = snapshot;
+    return current == null ? null : current.index;
+  }
+
+  /**
+   * Return the catalog version, which changes whenever the full channel list is read, so when
+   * channels are added or removed or their details change. Time span refreshes leave it as is.
+   *
+   * @return catalog version
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Return a channel.
+   *
+   * @param code winston channel code
+   * @return the channel, or null if it is not known
+   */
+  public Channel getChannel(String code) {
+    final Snapshot current = snapshot;
+    return current == null ? null : current.byCode.get(code);
+  }
+
+  /**
+   * Return a channel.
+   *
+   * @param sid channel ID
+   * @return the channel, or null if it is not known
+   */
+  public Channel getChannel(int sid) {
+    final Snapshot current = snapshot;
+    return current == null ? null : current.bySid.get(sid);
+  }
+
+  /**
+   * Return the catalog used by a connection.
+   *
+   * @param ctx connection context
+   * @return the catalog, or null if there is none
+   */
+  public static ChannelCatalog get(ChannelHandlerContext ctx) {
+    return ctx.channel().attr(channelCatalogKey).get();
+  }
+
+  /**
+   * Return all channels, from the connection's catalog if it has one or else from the database.
+   *
+   * @param ctx connection context
+   * @param databasePool database pool
+   * @return list of channels
+   * @throws Exception when the database cannot be read
+   */
+  public static List<Channel> getChannels(ChannelHandlerContext ctx,
+      WinstonDatabasePool databasePool) throws Exception {
+    final ChannelCatalog catalog = get(ctx);
+    final List<Channel> channels = catalog == null ? null : catalog.getChannels();
+    if (channels != null) {
+      return channels;
+    }
+    return databasePool.doCommand(new GetChannelsConsumer());
+  }
+
+  /**
+   * Return an index of all channels, from the connection's catalog if it has one or else built
+   * from the database.
+   *
+   * @param ctx connection context
+   * @param databasePool database pool
+   * @return channel index, or null if channels cannot be read
+   * @throws Exception when the database cannot be read
+   */
+  public static ChannelIndex getIndex(ChannelHandlerContext ctx,
+      WinstonDatabasePool databasePool) throws Exception {
+    final ChannelCatalog catalog = get(ctx);
+    final ChannelIndex index = catalog == null ? null : catalog.getIndex();
+    if (index != null) {
+      return index;
+    }
+    final List<Channel> channels = databasePool.doCommand(new GetChannelsConsumer());
+    return channels == null ? null : new ChannelIndex(channels);
+  }
+
+  private void refresh() throws Exception {
+    if (snapshot == null || System.currentTimeMillis() - lastReload >= reloadInterval) {
+      reload();
+      return;
+    }
+
+    final double[] lookBack = new double[1];
+    final Map<Integer, double[]> spans =
+        databasePool.doCommand(new WinstonConsumer<Map<Integer, double[]>>() {
+          public Map<Integer, double[]> execute(WinstonDatabase winston) throws UtilException {
+            final Channels channels = new Channels(winston);
+            lookBack[0] = channels.getLookBack();
+            return channels.getTimeSpans();
+          }
+        });
+    if (spans == null) {
+      return;
+    }
+
+    final Snapshot current = snapshot;
+    if (!spans.keySet().equals(current.bySid.keySet())) {
+      LOGGER.debug("Channel list changed, reloading.");
+      reload();
+      return;
+    }
+
+    // compare spans as stored, so the moving lookback does not count as a change
+    final Map<Integer, double[]> previous = lastSpans;
+    lastSpans = spans;
+    boolean changed = false;
+    final List<Channel> channels = new ArrayList<Channel>(current.channels.size());
+    for (final Channel channel : current.channels) {
+      final double[] span = spans.get(channel.sid);
+      final double[] old = previous == null ? null : previous.get(channel.sid);
+      if (old != null && old[0] == span[0] && old[1] == span[1]) {
+        channels.add(channel);
+        continue;
+      }
+
+      final TimeSpan timeSpan = new TimeSpan(J2kSec.asEpoch(Math.max(span[0], lookBack[0])),
+          J2kSec.asEpoch(span[1]));
+      if (timeSpan.startTime == channel.timeSpan.startTime
+          && timeSpan.endTime == channel.timeSpan.endTime) {
+        channels.add(channel);
+      } else {
+        channels.add(withTimeSpan(channel, timeSpan));
+        changed = true;
+      }
+    }
+
+    // a time span alone does not change the version
+    if (changed) {
+      snapshot = new Snapshot(channels);
+    }
+  }
+
+  private void reload() {
+    final List<Channel> channels;
+    try {
+      channels = databasePool.doCommand(new GetChannelsConsumer());
+    } catch (Exception e) {
+      LOGGER.error("Unable to read channels: {}", e.getMessage());
+      return;
+    }
+
+    if (channels != null) {
+      snapshot = new Snapshot(channels);
+      version++;
+      lastSpans = null;
+      lastReload = System.currentTimeMillis();
+      LOGGER.debug("Read {} channels.", channels.size());
+    }
+  }
+
+  private static Channel withTimeSpan(Channel channel, TimeSpan timeSpan) {
+    final Channel.Builder builder = new Channel.Builder().sid(channel.sid)
+        .instrument(channel.instrument).scnl(channel.scnl).timeSpan(timeSpan)
+        .linearA(channel.linearA).linearB(channel.linearB).alias(channel.alias)
+        .unit(channel.unit).metadata(new HashMap<String, String>(channel.metadata));
+    for (final String group : channel.groups) {
+      builder.group(group);
+    }
+    return builder.build();
+  }
+
+  /**
+   * An immutable view of the channel list.
+   */
+  private static class Snapshot {
+    private final List<Channel> channels;
+    private final ChannelIndex index;
+    private final Map<String, Channel> byCode;
+    private final Map<Integer, Channel> bySid;
+
+    private Snapshot(List<Channel> channels) {
+      index = new ChannelIndex(channels);
+      this.channels = index.getChannels();
+      byCode = new HashMap<String, Channel>(channels.size() * 2);
+      bySid = new HashMap<Integer, Channel>(channels.size() * 2);
+      for (final Channel channel : channels) {
+        byCode.put(DbUtils.scnlAsWinstonCode(channel.scnl), channel);
+        bySid.put(channel.sid, channel);
+      }
+    }
+  }
+}
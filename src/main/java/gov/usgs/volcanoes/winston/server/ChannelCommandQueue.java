@@ -0,0 +1,201 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Hands commands received on a single connection to the database executor one at a time. Clients
+ * may pipeline requests, so a command is not dispatched until the one before it has finished. This
+ * keeps responses in request order.
+ *
+ * A command which must wait for a slow client does not hold its database thread. It hands the
+ * rest of its response to continueAfter() and returns; the rest is run on a database thread once
+ * the client has taken the last write, and the command is finished only when the rest is.
+ *
+ * Unless noted, methods must be called from the channel's event loop.
+ */
+public class ChannelCommandQueue {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChannelCommandQueue.class);
+
+  /**
+   * A command waiting to be run.
+   */
+  public abstract static class Command implements Runnable {
+    /**
+     * Called in place of run() when the command is dropped without being run. Override to free
+     * resources held by the command.
+     */
+    public void discard() {}
+
+    /**
+     * Called on the event loop once the command, and anything it continued with, has run or been
+     * abandoned. Override to free resources held by the command.
+     */
+    public void done() {}
+  }
+
+  /** continuation left by the command running on this thread */
+  private static final ThreadLocal<Continuation> CONTINUATION = new ThreadLocal<Continuation>();
+
+  /**
+   * The rest of a command, waiting on a write.
+   */
+  private static class Continuation {
+    final ChannelFuture write;
+    final Runnable task;
+
+    Continuation(ChannelFuture write, Runnable task) {
+      this.write = write;
+      this.task = task;
+    }
+  }
+
+  private final DatabaseExecutor databaseExecutor;
+  private final Queue<Command> pending;
+  private boolean running;
+
+  /**
+   * Constructor.
+   *
+   * @param databaseExecutor executor used to run commands
+   */
+  public ChannelCommandQueue(DatabaseExecutor databaseExecutor) {
+    this.databaseExecutor = databaseExecutor;
+    pending = new ArrayDeque<Command>();
+    running = false;
+  }
+
+  /**
+   * Queue a command. The command will be run on a database thread once all commands received
+   * before it have completed.
+   *
+   * @param ctx channel context
+   * @param command the command
+   */
+  public void submit(ChannelHandlerContext ctx, Command command) {
+    pending.add(command);
+    if (!running) {
+      runNext(ctx);
+    }
+  }
+
+  /**
+   * Finish the running command once a write has completed, by running a task on a database
+   * thread, rather than when the command returns. The task may itself call continueAfter(). If
+   * the write fails the task is not run. Must be called on the database thread running the
+   * command, or its continuation, which must return straight after.
+   *
+   * @param write a write of the command's response
+   * @param task the rest of the command
+   */
+  public static void continueAfter(ChannelFuture write, Runnable task) {
+    CONTINUATION.set(new Continuation(write, task));
+  }
+
+  /**
+   * Continue the running command once a write has completed if the channel will not take more
+   * now. Must be called on the database thread running the command, or its continuation.
+   *
+   * @param ctx channel context
+   * @param write the last write of the command's response, or null if there is none
+   * @param task the rest of the command
+   * @return true if the command must return and leave the rest to the task
+   */
+  public static boolean continueWhenWritable(ChannelHandlerContext ctx, ChannelFuture write,
+      Runnable task) {
+    if (write == null || ctx.channel().isWritable()) {
+      return false;
+    }
+    continueAfter(write, task);
+    return true;
+  }
+
+  private void runNext(final ChannelHandlerContext ctx) {
+    final Command command = pending.poll();
+    if (command == null) {
+      running = false;
+      return;
+    }
+
+    running = true;
+    if (!execute(ctx, command, command)) {
+      command.discard();
+    }
+  }
+
+  /**
+   * Run part of a command on a database thread, and then either its continuation or the next
+   * command.
+   *
+   * @return false if the executor would not take the task
+   */
+  private boolean execute(final ChannelHandlerContext ctx, final Command command,
+      final Runnable task) {
+    try {
+      databaseExecutor.execute(new Runnable() {
+        public void run() {
+          Continuation continuation = null;
+          try {
+            task.run();
+            continuation = CONTINUATION.get();
+          } finally {
+            CONTINUATION.remove();
+            if (continuation == null) {
+              finish(ctx, command);
+            } else {
+              resume(ctx, command, continuation);
+            }
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException ex) {
+      LOGGER.info("Server busy, closing connection to {}", ctx.channel().remoteAddress());
+      Command dropped;
+      while ((dropped = pending.poll()) != null) {
+        dropped.discard();
+      }
+      running = false;
+      ctx.close();
+      return false;
+    }
+  }
+
+  private void resume(final ChannelHandlerContext ctx, final Command command,
+      final Continuation continuation) {
+    continuation.write.addListener(new ChannelFutureListener() {
+      public void operationComplete(ChannelFuture future) {
+        // listeners run on the event loop
+        if (!future.isSuccess()) {
+          LOGGER.debug("Abandoning response to {}", ctx.channel().remoteAddress());
+          command.done();
+          runNext(ctx);
+        } else if (!execute(ctx, command, continuation.task)) {
+          command.done();
+        }
+      }
+    });
+  }
+
+  private void finish(final ChannelHandlerContext ctx, final Command command) {
+    ctx.executor().execute(new Runnable() {
+      public void run() {
+        command.done();
+        runNext(ctx);
+      }
+    });
+  }
+}
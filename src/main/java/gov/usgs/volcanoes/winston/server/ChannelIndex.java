@@ -0,0 +1,146 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gov.usgs.volcanoes.winston.Channel;
+
+/**
+ * An immutable list of channels indexed by network and by station, so requests naming networks
+ * or stations need not scan every channel.
+ */
+public class ChannelIndex {
+  private static final int[] EMPTY = new int[0];
+
+  private final List<Channel> channels;
+  private final Map<String, int[]> byNetwork;
+  private final Map<String, int[]> byStation;
+
+  /**
+   * Constructor.
+   *
+   * @param channels channels to index
+   */
+  public ChannelIndex(List<Channel> channels) {
+    this.channels = Collections.unmodifiableList(new ArrayList<Channel>(channels));
+
+    final Map<String, List<Integer>> networks = new HashMap<String, List<Integer>>();
+    final Map<String, List<Integer>> stations = new HashMap<String, List<Integer>>();
+    for (int i = 0; i < this.channels.size(); i++) {
+      final Channel channel = this.channels.get(i);
+      add(networks, channel.scnl.network, i);
+      add(stations, channel.scnl.station, i);
+    }
+    byNetwork = toArrays(networks);
+    byStation = toArrays(stations);
+  }
+
+  /**
+   * Return all channels.
+   *
+   * @return unmodifiable list of channels
+   */
+  public List<Channel> getChannels() {
+    return channels;
+  }
+
+  /**
+   * Return channels in any of the given networks and at any of the given stations, in the order
+   * they were indexed.
+   *
+   * @param networks network codes, or null for any network
+   * @param stations station codes, or null for any station
+   * @return matching channels
+   */
+  public List<Channel> find(Collection<String> networks, Collection<String> stations) {
+    if (networks == null && stations == null) {
+      return channels;
+    }
+
+    final int[] byNet = networks == null ? null : lookup(byNetwork, networks);
+    final int[] bySta = stations == null ? null : lookup(byStation, stations);
+
+    final List<Channel> found = new ArrayList<Channel>();
+    if (byNet == null || bySta == null) {
+      for (final int i : byNet == null ? bySta : byNet) {
+        found.add(channels.get(i));
+      }
+    } else {
+      // intersect sorted positions
+      int n = 0;
+      int s = 0;
+      while (n < byNet.length && s < bySta.length) {
+        if (byNet[n] < bySta[s]) {
+          n++;
+        } else if (byNet[n] > bySta[s]) {
+          s++;
+        } else {
+          found.add(channels.get(byNet[n]));
+          n++;
+          s++;
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Return sorted positions of channels under any of the given keys.
+   */
+  private static int[] lookup(Map<String, int[]> index, Collection<String> keys) {
+    if (keys.size() == 1) {
+      final int[] positions = index.get(keys.iterator().next());
+      return positions == null ? EMPTY : positions;
+    }
+
+    int size = 0;
+    for (final String key : keys) {
+      final int[] positions = index.get(key);
+      size += positions == null ? 0 : positions.length;
+    }
+
+    final int[] merged = new int[size];
+    int offset = 0;
+    for (final String key : keys) {
+      final int[] positions = index.get(key);
+      if (positions != null) {
+        System.arraycopy(positions, 0, merged, offset, positions.length);
+        offset += positions.length;
+      }
+    }
+    Arrays.sort(merged);
+    return merged;
+  }
+
+  private static void add(Map<String, List<Integer>> index, String key, int position) {
+    List<Integer> positions = index.get(key);
+    if (positions == null) {
+      positions = new ArrayList<Integer>();
+      index.put(key, positions);
+    }
+    positions.add(position);
+  }
+
+  private static Map<String, int[]> toArrays(Map<String, List<Integer>> index) {
+    final Map<String, int[]> arrays = new HashMap<String, int[]>(index.size() * 2);
+    for (final Map.Entry<String, List<Integer>> entry : index.entrySet()) {
+      final List<Integer> positions = entry.getValue();
+      final int[] array = new int[positions.size()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = positions.get(i);
+      }
+      arrays.put(entry.getKey(), array);
+    }
+    return arrays;
+  }
+}
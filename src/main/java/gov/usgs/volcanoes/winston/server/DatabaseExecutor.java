@@ -0,0 +1,183 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of threads used to run commands which block on the database. Keeps blocking JDBC
+ * calls off of the Netty event loop. One thread is started for each pooled database connection,
+ * so a running command never waits on the pool.
+ */
+public class DatabaseExecutor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseExecutor.class);
+
+  private final ThreadPoolExecutor executor;
+  private final int queueSize;
+  private final AtomicLong submittedCount;
+  private final AtomicLong startedCount;
+  private final AtomicLong completedCount;
+  private final AtomicLong rejectedCount;
+  private final AtomicLong totalWaitMs;
+  private final AtomicLong maxWaitMs;
+
+  /**
+   * Constructor.
+   *
+   * @param threads number of database threads, normally the size of the database pool
+   * @param queueSize number of commands which may wait for a thread before new commands are
+   *        rejected
+   */
+  public DatabaseExecutor(int threads, int queueSize) {
+    this.queueSize = queueSize;
+    submittedCount = new AtomicLong(0);
+    startedCount = new AtomicLong(0);
+    completedCount = new AtomicLong(0);
+    rejectedCount = new AtomicLong(0);
+    totalWaitMs = new AtomicLong(0);
+    maxWaitMs = new AtomicLong(0);
+
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger threadCount = new AtomicInteger(0);
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "wws-db-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Queue a task for execution on a database thread.
+   *
+   * @param task the task
+   * @throws RejectedExecutionException when the queue is full or the executor has been shut down
+   */
+  public void execute(final Runnable task) {
+    final long queuedTime = System.currentTimeMillis();
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          recordWait(System.currentTimeMillis() - queuedTime);
+          try {
+            task.run();
+          } finally {
+            completedCount.incrementAndGet();
+          }
+        }
+      });
+      submittedCount.incrementAndGet();
+    } catch (RejectedExecutionException ex) {
+      rejectedCount.incrementAndGet();
+      LOGGER.warn("Database queue is full, rejecting command. ({} waiting)", getQueueDepth());
+      throw ex;
+    }
+  }
+
+  private void recordWait(long waitMs) {
+    startedCount.incrementAndGet();
+    totalWaitMs.addAndGet(waitMs);
+    long max = maxWaitMs.get();
+    while (waitMs > max && !maxWaitMs.compareAndSet(max, waitMs)) {
+      max = maxWaitMs.get();
+    }
+  }
+
+  /**
+   * Stop accepting tasks. Queued tasks will still be run.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Return number of tasks waiting for a database thread.
+   *
+   * @return queue depth
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Return maximum number of tasks which may wait for a database thread.
+   *
+   * @return queue size
+   */
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * Return number of threads currently running a task.
+   *
+   * @return active thread count
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Return number of tasks accepted.
+   *
+   * @return submitted count
+   */
+  public long getSubmittedCount() {
+    return submittedCount.get();
+  }
+
+  /**
+   * Return number of tasks which have finished.
+   *
+   * @return completed count
+   */
+  public long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  /**
+   * Return number of tasks turned away because the queue was full.
+   *
+   * @return rejected count
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Return mean time, in milliseconds, a task waited for a database thread.
+   *
+   * @return mean wait time
+   */
+  public double getMeanWaitMs() {
+    long started = startedCount.get();
+    if (started == 0) {
+      return 0;
+    } else {
+      return (double) totalWaitMs.get() / started;
+    }
+  }
+
+  /**
+   * Return longest time, in milliseconds, a task waited for a database thread.
+   *
+   * @return max wait time
+   */
+  public long getMaxWaitMs() {
+    return maxWaitMs.get();
+  }
+}
@@ -64,18 +64,21 @@ public class PortUnificationDecoder extends ByteToMessageDecoder {
 
   private final ConfigFile configFile;
   private final WinstonDatabasePool winstonDatabasePool;
-
+  private final DatabaseExecutor databaseExecutor;
 
   /**
    * Constructor.
    * 
    * @param configFile config file
    * @param winstonDatabasePool database pool
+   * @param databaseExecutor executor used to run commands
    */
-  public PortUnificationDecoder(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool) {
+  public PortUnificationDecoder(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool,
+      DatabaseExecutor databaseExecutor) {
     super();
     this.configFile = configFile;
     this.winstonDatabasePool = winstonDatabasePool;
+    this.databaseExecutor = databaseExecutor;
   }
 
   @Override
@@ -110,7 +113,7 @@ public class PortUnificationDecoder extends ByteToMessageDecoder {
     pipeline.addLast(new HttpRequestDecoder());
     pipeline.addLast(new HttpObjectAggregator(1048576));
     pipeline.addLast(new HttpResponseEncoder());
-    pipeline.addLast(new HttpCommandHandler(configFile, winstonDatabasePool));
+    pipeline.addLast(new HttpCommandHandler(configFile, winstonDatabasePool, databaseExecutor));
     pipeline.remove(this);
   }
 
@@ -120,7 +123,7 @@ public class PortUnificationDecoder extends ByteToMessageDecoder {
     pipeline.addLast(new StringEncoder(CharsetUtil.US_ASCII));
     pipeline.addLast(new ByteArrayEncoder());
     pipeline.addLast(new WwsCommandStringDecoder());
-    pipeline.addLast(new WwsCommandHandler(configFile, winstonDatabasePool));
+    pipeline.addLast(new WwsCommandHandler(configFile, winstonDatabasePool, databaseExecutor));
     pipeline.remove(this);
   }
   
@@ -0,0 +1,355 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.TraceBufVisitor;
+import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+
+/**
+ * Holds the most recent TraceBufs of each requested channel, decompressed, so requests for recent
+ * data can be answered without reading the database. A channel is loaded the first time it is
+ * requested and then kept current by reading only rows newer than the last cached TraceBuf, no
+ * more than once per refresh interval. Requests which reach back beyond the cached window are
+ * left to the database.
+ *
+ * Each refresh also counts the rows in the cached span, so TraceBufs inserted out of order, older
+ * than the newest cached TraceBuf, cause the channel to be reloaded. Channels not requested for a
+ * full window are dropped.
+ */
+public class RecentDataCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RecentDataCache.class);
+
+  private final double window;
+  private final long refreshInterval;
+  private final boolean offHeap;
+  private final ConcurrentHashMap<String, ChannelCache> channels;
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private volatile long lastSweep;
+
+  /**
+   * Constructor.
+   *
+   * @param window seconds of data to hold for each channel
+   * @param refreshInterval milliseconds between reads of new rows for a channel
+   * @param offHeap if true, hold TraceBufs in direct buffers outside of the Java heap
+   */
+  public RecentDataCache(double window, long refreshInterval, boolean offHeap) {
+    this.window = window;
+    this.refreshInterval = refreshInterval;
+    this.offHeap = offHeap;
+    channels = new ConcurrentHashMap<String, ChannelCache>();
+    hitCount = new AtomicLong(0);
+    missCount = new AtomicLong(0);
+    lastSweep = System.currentTimeMillis();
+  }
+
+  /**
+   * Return cached TraceBufs which overlap t1..t2, in time order. The channel is read from the
+   * database first if it has not been read in the last refresh interval.
+   *
+   * @param databasePool pool used to refresh the channel
+   * @param code channel code
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @return TraceBufs, or null if the cache does not hold all of t1..t2
+   */
+  public List<CachedTraceBuf> getTraceBufs(WinstonDatabasePool databasePool, String code,
+      double t1, double t2) {
+    sweep();
+
+    if (t1 < J2kSec.now() - window) {
+      missCount.incrementAndGet();
+      return null;
+    }
+
+    ChannelCache channel = channels.get(code);
+    if (channel == null) {
+      channel = new ChannelCache(code);
+      final ChannelCache existing = channels.putIfAbsent(code, channel);
+      if (existing != null) {
+        channel = existing;
+      }
+    }
+
+    final List<CachedTraceBuf> traceBufs = channel.getTraceBufs(databasePool, t1, t2);
+    if (traceBufs == null) {
+      missCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    return traceBufs;
+  }
+
+  /**
+   * Hand cached TraceBufs to a visitor.
+   *
+   * @param traceBufs TraceBufs returned by getTraceBufs
+   * @param visitor receives each TraceBuf
+   * @return false if the visitor stopped early
+   */
+  public static boolean visit(List<CachedTraceBuf> traceBufs, TraceBufVisitor visitor) {
+    for (final CachedTraceBuf tb : traceBufs) {
+      if (!visitor.visit(tb.st, tb.et, tb.sr, tb.dataType, tb.getTraceBuf())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Assemble cached TraceBufs into a wave, as Data.getWave() would.
+   *
+   * @param traceBufs TraceBufs returned by getTraceBufs
+   * @return wave or null if there are no TraceBufs
+   * @throws UtilException when a TraceBuf cannot be parsed
+   */
+  public static Wave toWave(List<CachedTraceBuf> traceBufs) throws UtilException {
+    if (traceBufs.isEmpty()) {
+      return null;
+    }
+
+    final List<TraceBuf> bufs = new ArrayList<TraceBuf>(traceBufs.size());
+    try {
+      for (final CachedTraceBuf tb : traceBufs) {
+        bufs.add(new TraceBuf(tb.getTraceBuf()));
+      }
+    } catch (final IOException e) {
+      throw new UtilException("Cannot parse cached TraceBuf: " + e.getMessage());
+    }
+    final Wave wave = TraceBuf.traceBufToWave(bufs);
+    wave.convertToJ2K();
+    return wave;
+  }
+
+  /**
+   * Return number of requests answered from the cache.
+   *
+   * @return hit count
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Return number of requests left to the database.
+   *
+   * @return miss count
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Return number of channels held.
+   *
+   * @return channel count
+   */
+  public int getChannelCount() {
+    return channels.size();
+  }
+
+  /**
+   * Return cache window.
+   *
+   * @return window, in seconds
+   */
+  public double getWindow() {
+    return window;
+  }
+
+  private void sweep() {
+    final long now = System.currentTimeMillis();
+    if (now - lastSweep < window * 1000) {
+      return;
+    }
+    lastSweep = now;
+
+    final Iterator<ChannelCache> it = channels.values().iterator();
+    while (it.hasNext()) {
+      if (now - it.next().lastAccess > window * 1000) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * A decompressed TraceBuf and the columns stored alongside it.
+   */
+  public static class CachedTraceBuf {
+    /** start time, J2kSec */
+    public final double st;
+
+    /** end time, J2kSec */
+    public final double et;
+
+    /** sample rate */
+    public final double sr;
+
+    /** earthworm data type */
+    public final String dataType;
+
+    private final ByteBuffer traceBuf;
+
+    private CachedTraceBuf(double st, double et, double sr, String dataType, byte[] traceBuf,
+        boolean offHeap) {
+      this.st = st;
+      this.et = et;
+      this.sr = sr;
+      this.dataType = dataType;
+      if (offHeap) {
+        this.traceBuf = ByteBuffer.allocateDirect(traceBuf.length);
+        this.traceBuf.put(traceBuf);
+      } else {
+        this.traceBuf = ByteBuffer.wrap(traceBuf);
+      }
+    }
+
+    /**
+     * Return the TraceBuf. Must not be modified.
+     *
+     * @return decompressed TraceBuf
+     */
+    public byte[] getTraceBuf() {
+      if (traceBuf.hasArray()) {
+        return traceBuf.array();
+      }
+      final byte[] bytes = new byte[traceBuf.capacity()];
+      final ByteBuffer src = traceBuf.duplicate();
+      src.clear();
+      src.get(bytes);
+      return bytes;
+    }
+  }
+
+  /**
+   * Recent TraceBufs of a single channel, oldest first.
+   */
+  private class ChannelCache {
+    private final String code;
+    private final ArrayDeque<CachedTraceBuf> traceBufs;
+
+    /** the cache holds every TraceBuf which ends after this time */
+    private double coverStart;
+    private long lastRefresh;
+    private volatile long lastAccess;
+
+    private ChannelCache(String code) {
+      this.code = code;
+      traceBufs = new ArrayDeque<CachedTraceBuf>();
+      coverStart = Double.NaN;
+    }
+
+    private synchronized List<CachedTraceBuf> getTraceBufs(WinstonDatabasePool databasePool,
+        double t1, double t2) {
+      lastAccess = System.currentTimeMillis();
+      if (lastAccess - lastRefresh >= refreshInterval && !refresh(databasePool)) {
+        return null;
+      }
+
+      if (Double.isNaN(coverStart) || t1 < coverStart) {
+        return null;
+      }
+
+      final List<CachedTraceBuf> overlapping = new ArrayList<CachedTraceBuf>();
+      for (final CachedTraceBuf tb : traceBufs) {
+        if (tb.st > t2) {
+          break;
+        }
+        if (tb.et >= t1) {
+          overlapping.add(tb);
+        }
+      }
+      return overlapping;
+    }
+
+    /**
+     * Read rows newer than the last cached TraceBuf and drop TraceBufs which have left the
+     * window. If the database holds more rows in the cached span than the cache does, rows were
+     * inserted out of order and the whole window is read again.
+     */
+    private boolean refresh(WinstonDatabasePool databasePool) {
+      final double now = J2kSec.now();
+      final double cutoff = now - window;
+
+      final boolean read;
+      try {
+        read = databasePool.doCommand(new WinstonConsumer<Boolean>() {
+          public Boolean execute(WinstonDatabase winston) throws UtilException {
+            final Data data = new Data(winston);
+            if (!traceBufs.isEmpty()) {
+              final double first = Math.min(coverStart, traceBufs.peekFirst().st);
+              final int count = data.countTraceBufs(code, first, traceBufs.peekLast().st);
+              if (count == -1) {
+                return false;
+              } else if (count != traceBufs.size()) {
+                LOGGER.debug("Rows inserted out of order for {}, reloading cache", code);
+                traceBufs.clear();
+                coverStart = Double.NaN;
+              }
+            }
+
+            final double t1;
+            if (Double.isNaN(coverStart)) {
+              t1 = cutoff;
+            } else if (traceBufs.isEmpty()) {
+              t1 = coverStart;
+            } else {
+              t1 = traceBufs.peekLast().st;
+            }
+            final double lastStart = traceBufs.isEmpty() ? Double.NEGATIVE_INFINITY : t1;
+
+            final boolean visited = data.visitTraceBufs(code, t1, now + window, 0,
+                new TraceBufVisitor() {
+                  public boolean visit(double st, double et, double sr, String dataType,
+                      byte[] traceBuf) {
+                    if (st > lastStart) {
+                      traceBufs.add(new CachedTraceBuf(st, et, sr, dataType, traceBuf, offHeap));
+                    }
+                    return true;
+                  }
+                });
+            if (visited && Double.isNaN(coverStart)) {
+              coverStart = t1;
+            }
+            return visited;
+          }
+        });
+      } catch (final Exception e) {
+        LOGGER.info("Unable to refresh cache for {}: {}", code, e.getMessage());
+        return false;
+      }
+
+      if (!read) {
+        return false;
+      }
+
+      while (!traceBufs.isEmpty() && traceBufs.peekFirst().et < cutoff) {
+        traceBufs.removeFirst();
+      }
+      coverStart = Math.max(coverStart, cutoff);
+      lastRefresh = System.currentTimeMillis();
+      return true;
+    }
+  }
+}
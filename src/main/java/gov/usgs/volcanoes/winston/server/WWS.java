@@ -10,6 +10,8 @@ import java.io.Console;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.log4j.Level;
@@ -22,6 +24,9 @@ import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Version;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.server.http.cmd.HeliImageCache;
+import gov.usgs.volcanoes.winston.server.http.cmd.HeliPreRenderer;
+import gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.StationXmlCache;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -46,6 +51,16 @@ import io.netty.util.concurrent.Future;
 public class WWS {
   private static final Logger LOGGER = LoggerFactory.getLogger(WWS.class);
   private static final int DEFAULT_DB_CONNECTIONS = 5;
+  private static final int DEFAULT_DB_QUEUE_PER_CONNECTION = 20;
+  private static final int DEFAULT_RAW_CHUNK_SIZE = 64 * 1024;
+  private static final int DEFAULT_CACHE_WINDOW = 0;
+  private static final int DEFAULT_CACHE_REFRESH = 1000;
+  private static final int DEFAULT_CHANNEL_REFRESH = 30 * 1000;
+  private static final int DEFAULT_CHANNEL_RELOAD = 10 * 60 * 1000;
+  private static final int DEFAULT_STATION_CACHE_SIZE = 16;
+  private static final int DEFAULT_HELI_CACHE_SIZE = 32;
+  private static final int DEFAULT_HELI_CACHE_MAX_AGE = 60;
+  private static final int DEFAULT_HELI_PRERENDER_INTERVAL = 60;
 
   /**
    * Launch the WWS.
@@ -137,9 +152,27 @@ public class WWS {
 
   private final ConfigFile configFile;
   protected final int dbConnections;
+  protected final int dbQueueSize;
+  protected final int rawChunkSize;
+  protected final int cacheWindow;
+  protected final int cacheRefresh;
+  protected final boolean cacheOffHeap;
+  protected final int channelRefresh;
+  protected final int channelReload;
+  protected final int stationCacheSize;
+  protected final int heliCacheSize;
+  protected final int heliCacheMaxAge;
+  protected final List<String> heliPrerender;
+  protected final int heliPrerenderInterval;
   private final InetAddress serverIp;
   private final int serverPort;
   private NioEventLoopGroup group;
+  private DatabaseExecutor databaseExecutor;
+  private RecentDataCache recentDataCache;
+  private ChannelCatalog channelCatalog;
+  private StationXmlCache stationXmlCache;
+  private HeliImageCache heliImageCache;
+  private HeliPreRenderer heliPreRenderer;
   private final ConnectionStatistics connectionStatistics;
 
   /**
@@ -182,6 +215,53 @@ public class WWS {
     dbConnections =
         StringUtils.stringToInt(configFile.getString("wws.dbConnections"), DEFAULT_DB_CONNECTIONS);
     LOGGER.info("config: wws.dbConnections={}.", dbConnections);
+
+    dbQueueSize = StringUtils.stringToInt(configFile.getString("wws.dbQueueSize"),
+        dbConnections * DEFAULT_DB_QUEUE_PER_CONNECTION);
+    LOGGER.info("config: wws.dbQueueSize={}.", dbQueueSize);
+
+    rawChunkSize =
+        StringUtils.stringToInt(configFile.getString("wws.rawChunkSize"), DEFAULT_RAW_CHUNK_SIZE);
+    LOGGER.info("config: wws.rawChunkSize={}.", rawChunkSize);
+
+    cacheWindow =
+        StringUtils.stringToInt(configFile.getString("wws.cacheWindow"), DEFAULT_CACHE_WINDOW);
+    LOGGER.info("config: wws.cacheWindow={}.", cacheWindow);
+
+    cacheRefresh =
+        StringUtils.stringToInt(configFile.getString("wws.cacheRefresh"), DEFAULT_CACHE_REFRESH);
+    LOGGER.info("config: wws.cacheRefresh={}.", cacheRefresh);
+
+    cacheOffHeap = StringUtils.stringToBoolean(configFile.getString("wws.cacheOffHeap"), false);
+    LOGGER.info("config: wws.cacheOffHeap={}.", cacheOffHeap);
+
+    channelRefresh = StringUtils.stringToInt(configFile.getString("wws.channelRefresh"),
+        DEFAULT_CHANNEL_REFRESH);
+    LOGGER.info("config: wws.channelRefresh={}.", channelRefresh);
+
+    channelReload =
+        StringUtils.stringToInt(configFile.getString("wws.channelReload"), DEFAULT_CHANNEL_RELOAD);
+    LOGGER.info("config: wws.channelReload={}.", channelReload);
+
+    stationCacheSize = StringUtils.stringToInt(configFile.getString("wws.stationCacheSize"),
+        DEFAULT_STATION_CACHE_SIZE);
+    LOGGER.info("config: wws.stationCacheSize={}.", stationCacheSize);
+
+    heliCacheSize = StringUtils.stringToInt(configFile.getString("wws.heliCacheSize"),
+        DEFAULT_HELI_CACHE_SIZE);
+    LOGGER.info("config: wws.heliCacheSize={}.", heliCacheSize);
+
+    heliCacheMaxAge = StringUtils.stringToInt(configFile.getString("wws.heliCacheMaxAge"),
+        DEFAULT_HELI_CACHE_MAX_AGE);
+    LOGGER.info("config: wws.heliCacheMaxAge={}.", heliCacheMaxAge);
+
+    final List<String> prerender = configFile.getList("wws.heliPrerender");
+    heliPrerender = prerender == null ? new ArrayList<String>() : prerender;
+    LOGGER.info("config: wws.heliPrerender={}.", heliPrerender);
+
+    heliPrerenderInterval = StringUtils.stringToInt(
+        configFile.getString("wws.heliPrerenderInterval"), DEFAULT_HELI_PRERENDER_INTERVAL);
+    LOGGER.info("config: wws.heliPrerenderInterval={}.", heliPrerenderInterval);
   }
 
   /**
@@ -201,9 +281,37 @@ public class WWS {
     
     winstonConfig.put("maxDays", "" + maxDays);
     final WinstonDatabasePool databasePool = new WinstonDatabasePool(winstonConfig, poolConfig);
+    databaseExecutor = new DatabaseExecutor(dbConnections, dbQueueSize);
+    if (cacheWindow > 0) {
+      recentDataCache = new RecentDataCache(cacheWindow, cacheRefresh, cacheOffHeap);
+    }
+    if (channelRefresh > 0) {
+      channelCatalog = new ChannelCatalog(databasePool, channelRefresh, channelReload);
+      channelCatalog.start();
+      if (stationCacheSize > 0) {
+        stationXmlCache = new StationXmlCache(stationCacheSize * 1024L * 1024L, channelRefresh);
+      }
+    }
+    if (heliCacheSize > 0) {
+      heliImageCache = new HeliImageCache(heliCacheSize * 1024L * 1024L, heliCacheMaxAge * 1000L);
+      if (!heliPrerender.isEmpty() && heliPrerenderInterval > 0) {
+        heliPreRenderer = new HeliPreRenderer(databasePool, configFile, channelCatalog,
+            heliImageCache, heliPrerender, heliPrerenderInterval * 1000L);
+        heliPreRenderer.start();
+      }
+    }
 
     final AttributeKey<ConnectionStatistics> connectionStatsKey =
         AttributeKey.valueOf("connectionStatistics");
+    final AttributeKey<DatabaseExecutor> databaseExecutorKey =
+        AttributeKey.valueOf("databaseExecutor");
+    final AttributeKey<Integer> rawChunkSizeKey = AttributeKey.valueOf("rawChunkSize");
+    final AttributeKey<RecentDataCache> recentDataCacheKey =
+        AttributeKey.valueOf("recentDataCache");
+    final AttributeKey<ChannelCatalog> channelCatalogKey = AttributeKey.valueOf("channelCatalog");
+    final AttributeKey<StationXmlCache> stationXmlCacheKey =
+        AttributeKey.valueOf("stationXmlCache");
+    final AttributeKey<HeliImageCache> heliImageCacheKey = AttributeKey.valueOf("heliImageCache");
 
     final ServerBootstrap b = new ServerBootstrap();
     b.group(group).channel(NioServerSocketChannel.class)
@@ -219,9 +327,15 @@ public class WWS {
             connectionStatistics.mapChannel(remoteAddress, trafficCounter);
 
             ch.pipeline().addLast(trafficCounter);
-            ch.pipeline().addLast(new PortUnificationDecoder(configFile, databasePool));
+            ch.pipeline().addLast(new PortUnificationDecoder(configFile, databasePool, databaseExecutor));
 
             ch.attr(connectionStatsKey).set(connectionStatistics);
+            ch.attr(databaseExecutorKey).set(databaseExecutor);
+            ch.attr(rawChunkSizeKey).set(rawChunkSize);
+            ch.attr(recentDataCacheKey).set(recentDataCache);
+            ch.attr(channelCatalogKey).set(channelCatalog);
+            ch.attr(stationXmlCacheKey).set(stationXmlCache);
+            ch.attr(heliImageCacheKey).set(heliImageCache);
             ch.closeFuture().addListener(new ChannelFutureListener() {
               public void operationComplete(ChannelFuture future) throws Exception {
                 connectionStatistics.decrOpenCount();
@@ -258,6 +372,13 @@ public class WWS {
       Thread.currentThread().interrupt();
       throw new RuntimeException(ex);
     }
+    databaseExecutor.shutdown();
+    if (channelCatalog != null) {
+      channelCatalog.shutdown();
+    }
+    if (heliPreRenderer != null) {
+      heliPreRenderer.shutdown();
+    }
   }
 
 }
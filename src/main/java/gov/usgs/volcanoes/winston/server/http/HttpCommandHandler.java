@@ -28,8 +28,10 @@ import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.Version;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.server.ChannelCommandQueue;
 import gov.usgs.volcanoes.winston.server.ConnectionStatistics;
-import gov.usgs.volcanoes.winston.server.GetChannelsConsumer;
+import gov.usgs.volcanoes.winston.server.DatabaseExecutor;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
@@ -47,6 +49,7 @@ import io.netty.util.AttributeKey;
 
 /**
  * Receives an HTTP command from the pipeline and passes it to the correct HTTP command class for execution.
+ * Commands are run on the database executor.
  * 
  * Derived from HttpSnoopServerHandler
  *
@@ -59,6 +62,7 @@ public class HttpCommandHandler extends SimpleChannelInboundHandler<FullHttpRequ
 
   private final WinstonDatabasePool winstonDatabasePool;
   private final ConfigFile configFile;
+  private final ChannelCommandQueue commandQueue;
 
   private static final AttributeKey<ConnectionStatistics> connectionStatsKey;
 
@@ -71,14 +75,49 @@ public class HttpCommandHandler extends SimpleChannelInboundHandler<FullHttpRequ
    * 
    * @param configFile my config file
    * @param winstonDatabasePool my database pool
+   * @param databaseExecutor executor used to run commands
    */
-  public HttpCommandHandler(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool) {
+  public HttpCommandHandler(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool,
+      DatabaseExecutor databaseExecutor) {
+    super(false);
     this.winstonDatabasePool = winstonDatabasePool;
     this.configFile = configFile;
+    commandQueue = new ChannelCommandQueue(databaseExecutor);
   }
 
   @Override
-  public void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
+  public void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest req)
+      throws Exception {
+
+    // Commands block on the database, run them off of the event loop. The request is released
+    // once the command, including any part left until the client caught up, has run.
+    commandQueue.submit(ctx, new ChannelCommandQueue.Command() {
+      public void run() {
+        try {
+          handleRequest(ctx, req);
+        } catch (Exception e) {
+          LOGGER.error("Unable to handle HTTP request {}. ({})", req.getUri(), e.getMessage());
+          ctx.close();
+        }
+      }
+
+      @Override
+      public void done() {
+        // If keep-alive is not set, close the connection once the content is fully written.
+        if (!HttpHeaders.isKeepAlive(req)) {
+          ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+        req.release();
+      }
+
+      @Override
+      public void discard() {
+        req.release();
+      }
+    });
+  }
+
+  private void handleRequest(ChannelHandlerContext ctx, FullHttpRequest req) throws Exception {
 
     LOGGER.info("Received HTTP req: {}", req.getUri());
     FullHttpResponse response = null;
@@ -90,7 +129,7 @@ public class HttpCommandHandler extends SimpleChannelInboundHandler<FullHttpRequ
         host = ctx.channel().localAddress().toString().substring(1);
       }
       response = buildResponse(req.getProtocolVersion(), HttpResponseStatus.OK,
-          sendUsage(host));
+          sendUsage(ctx, host));
     } else {
 
       // HTTP command
@@ -133,11 +172,6 @@ public class HttpCommandHandler extends SimpleChannelInboundHandler<FullHttpRequ
       }
       ctx.writeAndFlush(response);
     }
-
-    // If keep-alive is not set, close the connection once the content is fully written.
-    if (!HttpHeaders.isKeepAlive(req)) {
-      ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-    }
   }
 
   private FullHttpResponse buildResponse(HttpVersion httpVersion, HttpResponseStatus status,
@@ -159,10 +193,10 @@ public class HttpCommandHandler extends SimpleChannelInboundHandler<FullHttpRequ
     return response;
   }
 
-  private String sendUsage(String host) throws UtilException {
+  private String sendUsage(ChannelHandlerContext ctx, String host) throws UtilException {
     List<Channel> channels;
     try {
-      channels = winstonDatabasePool.doCommand(new GetChannelsConsumer());
+      channels = ChannelCatalog.getChannels(ctx, winstonDatabasePool);
     } catch (Exception e) {
       LOGGER.error(e.getClass().getName());
       throw new UtilException(e.getMessage());
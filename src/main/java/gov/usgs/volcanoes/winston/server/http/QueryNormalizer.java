@@ -0,0 +1,35 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.http;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reduces query arguments to a string so equivalent queries can share a cache key.
+ */
+public final class QueryNormalizer {
+  private QueryNormalizer() {}
+
+  /**
+   * Normalize a query. Argument names are compared without case and values without surrounding
+   * white space; the order of the arguments does not matter.
+   *
+   * @param arguments query arguments
+   * @return normalized query
+   */
+  public static String normalize(Map<String, String> arguments) {
+    final StringBuilder sb = new StringBuilder();
+    final Map<String, String> sorted = new TreeMap<String, String>();
+    for (final Map.Entry<String, String> entry : arguments.entrySet()) {
+      sorted.put(entry.getKey().toLowerCase(), entry.getValue().trim());
+    }
+    for (final Map.Entry<String, String> entry : sorted.entrySet()) {
+      sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -5,6 +5,8 @@
 
 package gov.usgs.volcanoes.winston.server.http.cmd;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -12,14 +14,20 @@ import gov.usgs.volcanoes.core.data.HelicorderData;
 import gov.usgs.volcanoes.core.data.Scnl;
 import gov.usgs.volcanoes.core.legacy.plot.HelicorderSettings;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
+import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.DbUtils;
+import gov.usgs.volcanoes.winston.db.HelicorderVisitor;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.http.HttpBaseCommand;
 import gov.usgs.volcanoes.winston.server.http.HttpConstants;
+import gov.usgs.volcanoes.winston.server.http.QueryNormalizer;
 import gov.usgs.volcanoes.winston.server.http.UnsupportedMethodException;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
@@ -28,6 +36,7 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AttributeKey;
 
 /**
  * Return the wave server menu. Similar to earthworm getmenu command.
@@ -40,6 +49,11 @@ public final class HeliCommand extends HttpBaseCommand {
   private static final int MAX_HOURS = 144;
   private static final int MIN_HOURS = 1;
   private static final double MAX_TC = 21600;
+  private static final AttributeKey<HeliImageCache> heliImageCacheKey;
+
+  static {
+    heliImageCacheKey = AttributeKey.valueOf("heliImageCache");
+  }
 
   /**
    * Constructor.
@@ -59,49 +73,154 @@ public final class HeliCommand extends HttpBaseCommand {
       throw new MalformedCommandException();
     }
 
+    final byte[] png = getImage(params, ChannelCatalog.get(ctx),
+        ctx.channel().attr(heliImageCacheKey).get());
+
+    FullHttpResponse response = new DefaultFullHttpResponse(request.getProtocolVersion(),
+        HttpResponseStatus.OK, Unpooled.copiedBuffer(png));
+    response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, png.length);
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "image/png");
+
+    int httpRefreshInterval = configFile.getInt("wws.httpRefreshInterval", -1);
+    if (httpRefreshInterval > 0)
+      response.headers().set("Refresh", httpRefreshInterval + "; url=" + request.getUri());
+
+    if (HttpHeaders.isKeepAlive(request)) {
+      response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+    }
+    ctx.write(response);
+  }
+
+  /**
+   * Return a helicorder image, from the cache if it holds a current one or else rendered.
+   *
+   * @param params request parameters
+   * @param catalog channel catalog, or null if there is none
+   * @param cache image cache, or null if there is none
+   * @return PNG bytes
+   * @throws UtilException when the data cannot be read or drawn
+   * @throws MalformedCommandException when the parameters are bad
+   */
+  byte[] getImage(Map<String, String> params, ChannelCatalog catalog, HeliImageCache cache)
+      throws UtilException, MalformedCommandException {
     final HelicorderSettings settings = validateParams(params);
+    // the catalog and row cache are keyed by Winston code, whatever form the channel was given in
     final Scnl scnl = Scnl.parse(settings.channel);
-    final double startTime = settings.startTime;
-    final double endTime = settings.endTime;
+    final String code = DbUtils.scnlAsWinstonCode(scnl);
 
-    HelicorderData heliData = null;
-    try {
-      heliData = databasePool.doCommand(new WinstonConsumer<HelicorderData>() {
-
-        public HelicorderData execute(WinstonDatabase winston) throws UtilException {
-          return new Data(winston).getHelicorderData(scnl, startTime, endTime, 0);
-        }
-      });
-    } catch (Exception e) {
-      throw new UtilException(e.getMessage());
+    final Channel channel = catalog == null ? null : catalog.getChannel(code);
+    final double dataEnd =
+        channel == null ? Double.NaN : J2kSec.fromEpoch(channel.timeSpan.endTime);
+    final String query = QueryNormalizer.normalize(params);
+    if (cache != null) {
+      final byte[] png = cache.getImage(query, dataEnd);
+      if (png != null) {
+        return png;
+      }
     }
 
-    if (heliData == null || heliData.rows() <= 0) {
+    // data before this time are not expected to change; without a catalog allow an hour
+    final double now = J2kSec.now();
+    final double settled =
+        Double.isNaN(dataEnd) ? now - HttpConstants.ONE_HOUR_S : Math.min(dataEnd, now);
+    final List<double[]> rows = getRows(settings, scnl, code, settled, cache);
+    if (rows.isEmpty()) {
       throw new UtilException("Error: could not get helicorder data, check channel (code).");
     }
 
     byte[] png = null;
     try {
-      png = settings.createPlot(heliData).getPNGBytes();
+      png = settings.createPlot(new HelicorderData(rows)).getPNGBytes();
     } catch (PlotException e) {
       throw new UtilException(e.getLocalizedMessage());
     }
 
-    FullHttpResponse response = new DefaultFullHttpResponse(request.getProtocolVersion(),
-        HttpResponseStatus.OK, Unpooled.copiedBuffer(png));
-    response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, png.length);
-    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "image/png");
+    if (cache != null) {
+      cache.putImage(query, png, dataEnd, settings.endTime < settled);
+    }
+    return png;
+  }
 
-    int httpRefreshInterval = configFile.getInt("wws.httpRefreshInterval", -1);
-    if (httpRefreshInterval > 0)
-      response.headers().set("Refresh", httpRefreshInterval + "; url=" + request.getUri());
+  /**
+   * Read the rows of a plot. Rows of whole hours before the settled time are taken from the cache
+   * where it holds them and added to it where it does not.
+   */
+  private List<double[]> getRows(final HelicorderSettings settings, final Scnl scnl,
+      final String code, final double settled, final HeliImageCache cache) throws UtilException {
+    final double startTime = settings.startTime;
+    final double endTime = settings.endTime;
+    // no row need be finer than a pixel
+    final double binSize = settings.timeChunk / settings.width;
 
-    if (HttpHeaders.isKeepAlive(request)) {
-      response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+    final double firstHour = Math.ceil(startTime / HttpConstants.ONE_HOUR_S)
+        * HttpConstants.ONE_HOUR_S;
+    final double lastHour = Math.floor(Math.min(settled, endTime) / HttpConstants.ONE_HOUR_S)
+        * HttpConstants.ONE_HOUR_S;
+
+    try {
+      return databasePool.doCommand(new WinstonConsumer<List<double[]>>() {
+
+        public List<double[]> execute(WinstonDatabase winston) throws UtilException {
+          final Data data = new Data(winston);
+          final List<double[]> rows = new ArrayList<double[]>();
+          if (cache == null || firstHour >= lastHour) {
+            readRows(data, scnl, startTime, endTime, binSize, Double.POSITIVE_INFINITY, rows);
+            return rows;
+          }
+
+          readRows(data, scnl, startTime, firstHour, binSize, firstHour, rows);
+          double hour = firstHour;
+          while (hour < lastHour) {
+            final List<double[]> held = cache.getRows(code, binSize, hour);
+            if (held != null) {
+              rows.addAll(held);
+              hour += HttpConstants.ONE_HOUR_S;
+              continue;
+            }
+
+            // read the run of hours not held in one go
+            double runEnd = hour + HttpConstants.ONE_HOUR_S;
+            while (runEnd < lastHour && cache.getRows(code, binSize, runEnd) == null) {
+              runEnd += HttpConstants.ONE_HOUR_S;
+            }
+            final List<double[]> run = new ArrayList<double[]>();
+            readRows(data, scnl, hour, runEnd, binSize, runEnd, run);
+            int i = 0;
+            for (; hour < runEnd; hour += HttpConstants.ONE_HOUR_S) {
+              final List<double[]> hourRows = new ArrayList<double[]>();
+              while (i < run.size() && run.get(i)[0] < hour + HttpConstants.ONE_HOUR_S) {
+                hourRows.add(run.get(i++));
+              }
+              cache.putRows(code, binSize, hour, hourRows);
+              rows.addAll(hourRows);
+            }
+          }
+          readRows(data, scnl, lastHour, endTime, binSize, Double.POSITIVE_INFINITY, rows);
+          return rows;
+        }
+      });
+    } catch (Exception e) {
+      throw new UtilException(e.getMessage());
     }
-    ctx.write(response);
   }
 
+  /**
+   * Add the rows between t1 and t2 which come before a limit.
+   */
+  private static void readRows(Data data, Scnl scnl, double t1, double t2, double binSize,
+      final double limit, final List<double[]> rows) throws UtilException {
+    if (t1 >= t2) {
+      return;
+    }
+    data.visitHelicorderData(scnl, t1, t2, 0, binSize, new HelicorderVisitor() {
+      public boolean visit(double j2ksec, double min, double max) {
+        if (j2ksec < limit) {
+          rows.add(new double[] {j2ksec, min, max});
+        }
+        return true;
+      }
+    });
+  }
 
   private HelicorderSettings validateParams(Map<String, String> params)
       throws MalformedCommandException {
@@ -0,0 +1,200 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.http.cmd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Holds rendered helicorder images, keyed by normalized query, and the helicorder rows of
+ * completed hours, keyed by channel, bin size, and hour.
+ *
+ * An image of a plot which ends before the channel's latest data is complete and is held until it
+ * is pushed out. Any other image is held only until new data arrive for its channel, or until it
+ * reaches the maximum age, as its window moves with the clock. Rows of a completed hour let a plot
+ * of recent data be drawn again after new data arrive while reading only the current hour. Data
+ * written to a completed hour later, by a backfill or merge, are not seen until the hour is pushed
+ * out.
+ *
+ * Least recently used entries are dropped to stay within the size limit.
+ */
+public class HeliImageCache {
+  /** rough size of a row beyond its values */
+  private static final int ROW_OVERHEAD = 16;
+
+  private final long maxSize;
+  private final long maxAge;
+  private final LinkedHashMap<String, Entry> entries;
+  private long size;
+  private long hitCount;
+  private long missCount;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize most bytes of images and rows to hold
+   * @param maxAge milliseconds to hold an image of an incomplete plot
+   */
+  public HeliImageCache(long maxSize, long maxAge) {
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+
+  /**
+   * Return an image.
+   *
+   * @param query normalized query
+   * @param dataEnd time of the channel's latest data, J2kSec, or NaN if not known
+   * @return the image, or null if none is held or the held image is out of date
+   */
+  public synchronized byte[] getImage(String query, double dataEnd) {
+    final String key = imageKey(query);
+    Entry entry = entries.get(key);
+    if (entry != null && !entry.complete
+        && (entry.dataEnd != dataEnd || System.currentTimeMillis() - entry.created > maxAge)) {
+      remove(key);
+      entry = null;
+    }
+
+    if (entry == null) {
+      missCount++;
+      return null;
+    } else {
+      hitCount++;
+      return entry.image;
+    }
+  }
+
+  /**
+   * Hold an image.
+   *
+   * @param query normalized query
+   * @param image rendered PNG
+   * @param dataEnd time of the channel's latest data when the image was rendered, J2kSec, or NaN
+   *        if not known
+   * @param complete true if no new data will change the image
+   */
+  public synchronized void putImage(String query, byte[] image, double dataEnd,
+      boolean complete) {
+    // without a data time, an incomplete image cannot be known to be current
+    if (!complete && Double.isNaN(dataEnd)) {
+      return;
+    }
+    put(imageKey(query), new Entry(image, null, dataEnd, complete));
+  }
+
+  /**
+   * Return the rows of a completed hour.
+   *
+   * @param code channel code
+   * @param binSize bin size the rows were read for
+   * @param hour start of the hour, J2kSec
+   * @return the rows, or null if none are held
+   */
+  public synchronized List<double[]> getRows(String code, double binSize, double hour) {
+    final Entry entry = entries.get(rowsKey(code, binSize, hour));
+    return entry == null ? null : entry.rows;
+  }
+
+  /**
+   * Hold the rows of a completed hour.
+   *
+   * @param code channel code
+   * @param binSize bin size the rows were read for
+   * @param hour start of the hour, J2kSec
+   * @param rows helicorder rows, in time order
+   */
+  public synchronized void putRows(String code, double binSize, double hour,
+      List<double[]> rows) {
+    put(rowsKey(code, binSize, hour), new Entry(null, rows, Double.NaN, true));
+  }
+
+  /**
+   * Return the size of the largest entry which will be held.
+   *
+   * @return size in bytes
+   */
+  public long getMaxEntrySize() {
+    return maxSize / 4;
+  }
+
+  /**
+   * Return number of images answered from the cache.
+   *
+   * @return hit count
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Return number of images not answered from the cache.
+   *
+   * @return miss count
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  private void put(String key, Entry entry) {
+    if (entry.size > getMaxEntrySize()) {
+      return;
+    }
+
+    remove(key);
+    entries.put(key, entry);
+    size += entry.size;
+
+    final Iterator<Entry> it = entries.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      size -= it.next().size;
+      it.remove();
+    }
+  }
+
+  private void remove(String key) {
+    final Entry old = entries.remove(key);
+    if (old != null) {
+      size -= old.size;
+    }
+  }
+
+  private static String imageKey(String query) {
+    return "image\n" + query;
+  }
+
+  private static String rowsKey(String code, double binSize, double hour) {
+    return "rows\n" + code + '\n' + binSize + '\n' + hour;
+  }
+
+  /**
+   * An image or the rows of an hour.
+   */
+  private static class Entry {
+    private final byte[] image;
+    private final List<double[]> rows;
+    private final double dataEnd;
+    private final boolean complete;
+    private final long created;
+    private final long size;
+
+    private Entry(byte[] image, List<double[]> rows, double dataEnd, boolean complete) {
+      this.image = image;
+      this.rows = rows;
+      this.dataEnd = dataEnd;
+      this.complete = complete;
+      created = System.currentTimeMillis();
+      if (image != null) {
+        size = image.length;
+      } else {
+        final int rowSize = rows.isEmpty() ? 0 : rows.get(0).length * 8 + ROW_OVERHEAD;
+        size = (long) rows.size() * rowSize;
+      }
+    }
+  }
+}
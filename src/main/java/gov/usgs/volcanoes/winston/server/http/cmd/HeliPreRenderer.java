@@ -0,0 +1,105 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.http.cmd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
+import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * Keeps a list of helicorder plots in the image cache, so they are drawn before they are asked
+ * for. Each interval, every plot which the cache does not hold a current image of is drawn just as
+ * a request for it would be.
+ */
+public class HeliPreRenderer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(HeliPreRenderer.class);
+
+  private final HeliCommand command;
+  private final ChannelCatalog catalog;
+  private final HeliImageCache cache;
+  private final List<Map<String, String>> plots;
+  private final long interval;
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Constructor.
+   *
+   * @param databasePool pool used to read data
+   * @param configFile server config
+   * @param catalog channel catalog, or null if there is none
+   * @param cache image cache to fill
+   * @param queries helicorder queries, as they would follow heli? in a request
+   * @param interval milliseconds between passes
+   */
+  public HeliPreRenderer(WinstonDatabasePool databasePool, ConfigFile configFile,
+      ChannelCatalog catalog, HeliImageCache cache, List<String> queries, long interval) {
+    this.catalog = catalog;
+    this.cache = cache;
+    this.interval = interval;
+    command = new HeliCommand();
+    command.databasePool(databasePool);
+    command.setConfig(configFile);
+
+    plots = new ArrayList<Map<String, String>>(queries.size());
+    for (final String query : queries) {
+      final QueryStringDecoder decoder = new QueryStringDecoder(query, false);
+      final Map<String, String> params = new HashMap<String, String>();
+      for (final Map.Entry<String, List<String>> param : decoder.parameters().entrySet()) {
+        params.put(param.getKey(), param.getValue().get(0));
+      }
+      plots.add(params);
+    }
+
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "wws-heli-prerender");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Begin drawing plots.
+   */
+  public void start() {
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        render();
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop drawing plots.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  private void render() {
+    for (final Map<String, String> params : plots) {
+      try {
+        command.getImage(params, catalog, cache);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to draw helicorder {}: {}", params, e.getMessage());
+      }
+    }
+  }
+}
@@ -23,7 +23,7 @@ import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
-import gov.usgs.volcanoes.winston.server.GetChannelsConsumer;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.http.HttpBaseCommand;
@@ -86,7 +86,7 @@ public final class MenuCommand extends HttpBaseCommand {
 
       throw new MalformedCommandException(error.toString());
     } else {
-      String html = prepareResponse(sortCol, order, timeZone);
+      String html = prepareResponse(ctx, sortCol, order, timeZone);
 
       FullHttpResponse response = new DefaultFullHttpResponse(request.getProtocolVersion(),
           HttpResponseStatus.OK, Unpooled.copiedBuffer(html, Charset.forName("UTF-8")));
@@ -103,7 +103,8 @@ public final class MenuCommand extends HttpBaseCommand {
   }
 
 
-  private String prepareResponse(int sortCol, char order, TimeZone timeZone) throws UtilException {
+  private String prepareResponse(ChannelHandlerContext ctx, int sortCol, char order,
+      TimeZone timeZone) throws UtilException {
     // write header
     final String[] colTitle = {null, "Pin", "S", "C", "N", "L", "Earliest", "Most Recent", "Type"};
     colTitle[sortCol] += order == 'a' ? " &#9652;" : " &#9662;";
@@ -127,7 +128,7 @@ public final class MenuCommand extends HttpBaseCommand {
     // get and sort menu
     List<Channel> channels;
     try {
-      channels = databasePool.doCommand(new GetChannelsConsumer());
+      channels = ChannelCatalog.getChannels(ctx, databasePool);
     } catch (Exception e) {
 
       throw new UtilException(e.getMessage());
@@ -25,7 +25,9 @@ import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 import gov.usgs.volcanoes.winston.server.ConnectionStatistics;
-import gov.usgs.volcanoes.winston.server.GetChannelsConsumer;
+import gov.usgs.volcanoes.winston.server.DatabaseExecutor;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
+import gov.usgs.volcanoes.winston.server.RecentDataCache;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.http.HttpBaseCommand;
 import gov.usgs.volcanoes.winston.server.http.HttpTemplateConfiguration;
@@ -49,9 +51,13 @@ public final class StatusCommand extends HttpBaseCommand {
   private static final Logger LOGGER = LoggerFactory.getLogger(StatusCommand.class);
 
   private static final AttributeKey<ConnectionStatistics> connectionStatsKey;
+  private static final AttributeKey<DatabaseExecutor> databaseExecutorKey;
+  private static final AttributeKey<RecentDataCache> recentDataCacheKey;
 
   static {
     connectionStatsKey = AttributeKey.valueOf("connectionStatistics");
+    databaseExecutorKey = AttributeKey.valueOf("databaseExecutor");
+    recentDataCacheKey = AttributeKey.valueOf("recentDataCache");
   }
 
   /**
@@ -68,7 +74,7 @@ public final class StatusCommand extends HttpBaseCommand {
     // get and sort menu
     List<Channel> sts;
     try {
-      sts = databasePool.doCommand(new GetChannelsConsumer());
+      sts = ChannelCatalog.getChannels(ctx, databasePool);
     } catch (Exception e) {
       throw new UtilException(e.getMessage());
     }
@@ -115,6 +121,24 @@ public final class StatusCommand extends HttpBaseCommand {
     ConnectionStatistics connectionStatistics = ctx.channel().attr(connectionStatsKey).get();
     root.put("connectionCount", connectionStatistics.getOpen());
 
+    DatabaseExecutor databaseExecutor = ctx.channel().attr(databaseExecutorKey).get();
+    root.put("dbActiveCount", databaseExecutor.getActiveCount());
+    root.put("dbQueueDepth", databaseExecutor.getQueueDepth());
+    root.put("dbQueueSize", databaseExecutor.getQueueSize());
+    root.put("dbCompletedCount", databaseExecutor.getCompletedCount());
+    root.put("dbRejectedCount", databaseExecutor.getRejectedCount());
+    root.put("dbMeanWait", formatter.format(databaseExecutor.getMeanWaitMs()));
+    root.put("dbMaxWait", databaseExecutor.getMaxWaitMs());
+
+    RecentDataCache recentDataCache = ctx.channel().attr(recentDataCacheKey).get();
+    root.put("cacheEnabled", recentDataCache != null);
+    if (recentDataCache != null) {
+      root.put("cacheWindow", formatter.format(recentDataCache.getWindow()));
+      root.put("cacheChannelCount", recentDataCache.getChannelCount());
+      root.put("cacheHitCount", recentDataCache.getHitCount());
+      root.put("cacheMissCount", recentDataCache.getMissCount());
+    }
+
     final Channel chan = sts.get(0);
     root.put("mostRecentChan", chan.scnl.toString("_"));
     root.put("mostRecentTime", formatter.format(now - J2kSec.fromEpoch(chan.timeSpan.endTime)));
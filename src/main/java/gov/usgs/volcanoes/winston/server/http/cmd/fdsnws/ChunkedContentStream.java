@@ -0,0 +1,148 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.http.cmd.fdsnws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import gov.usgs.volcanoes.winston.server.ChannelCommandQueue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * Sends bytes as the content of a chunked HTTP response. The response header is sent with the
+ * first bytes written, so a request without data can still be answered with an error. The stream
+ * never waits on the client; a command should call continueWhenWritable() at points where it can
+ * stop, so a slow client pushes back on it without holding a database thread.
+ *
+ * Must not be used from the channel's event loop.
+ */
+@SuppressWarnings("deprecation")
+class ChunkedContentStream extends OutputStream {
+  private final ChannelHandlerContext ctx;
+  private final FullHttpRequest request;
+  private final String contentType;
+  private final int chunkSize;
+  private ByteBuf buf;
+  private ChannelFuture lastWrite;
+  private boolean started;
+
+  /**
+   * Constructor.
+   *
+   * @param ctx handler context
+   * @param request the request
+   * @param contentType content type of the response
+   * @param chunkSize number of bytes to buffer before writing
+   */
+  ChunkedContentStream(ChannelHandlerContext ctx, FullHttpRequest request, String contentType,
+      int chunkSize) {
+    this.ctx = ctx;
+    this.request = request;
+    this.contentType = contentType;
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (!started) {
+      sendHeader();
+    }
+
+    while (length > 0) {
+      if (buf == null) {
+        buf = ctx.alloc().buffer(chunkSize);
+      }
+
+      final int n = Math.min(chunkSize - buf.writerIndex(), length);
+      buf.writeBytes(bytes, offset, n);
+      offset += n;
+      length -= n;
+
+      if (buf.writerIndex() >= chunkSize) {
+        writeChunk();
+      }
+    }
+  }
+
+  /**
+   * Return true once the response header has been sent.
+   *
+   * @return true if the response has started
+   */
+  boolean isStarted() {
+    return started;
+  }
+
+  /**
+   * Leave the rest of the command to a task, run once the last chunk has been written, if the
+   * channel will not take more now. See ChannelCommandQueue.continueWhenWritable().
+   *
+   * @param task the rest of the command
+   * @return true if the command must return and leave the rest to the task
+   */
+  boolean continueWhenWritable(Runnable task) {
+    return ChannelCommandQueue.continueWhenWritable(ctx, lastWrite, task);
+  }
+
+  /**
+   * Send any buffered bytes and end the response.
+   */
+  void finish() {
+    if (!started) {
+      sendHeader();
+    }
+    if (buf != null) {
+      ctx.write(new DefaultHttpContent(buf));
+      buf = null;
+    }
+    ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+  }
+
+  /**
+   * Release any bytes not sent. The response is left incomplete.
+   */
+  @Override
+  public void close() {
+    if (buf != null) {
+      buf.release();
+      buf = null;
+    }
+  }
+
+  private void sendHeader() {
+    final HttpResponse response =
+        new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+    HttpHeaders.setTransferEncodingChunked(response);
+    if (HttpHeaders.isKeepAlive(request)) {
+      response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+    }
+    ctx.write(response);
+    started = true;
+  }
+
+  private void writeChunk() throws IOException {
+    lastWrite = ctx.writeAndFlush(new DefaultHttpContent(buf));
+    buf = null;
+    if (!ctx.channel().isActive()) {
+      throw new IOException("Connection closed by client.");
+    }
+  }
+}
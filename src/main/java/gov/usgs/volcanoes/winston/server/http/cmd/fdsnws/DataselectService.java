@@ -5,6 +5,7 @@
 
 package gov.usgs.volcanoes.winston.server.http.cmd.fdsnws;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -13,11 +14,17 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.DbUtils;
+import gov.usgs.volcanoes.winston.db.TraceBufVisitor;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.format.MiniSeedWriter;
+import gov.usgs.volcanoes.winston.server.ChannelIndex;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
 import gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.constraint.ChannelConstraint;
@@ -37,7 +44,6 @@ public class DataselectService extends FdsnwsService {
   private static final String VERSION = "1.1.2";
   private static final String SERVICE = "dataselect";
 
-  @SuppressWarnings("unused")
   private static final Logger LOGGER = LoggerFactory.getLogger(DataselectService.class);
 
   static {
@@ -84,92 +90,245 @@ public class DataselectService extends FdsnwsService {
   private static void sendQueryResponse(WinstonDatabasePool databasePool, ChannelHandlerContext ctx,
       FullHttpRequest request) throws FdsnException, UtilException {
     Map<String, String> arguments = parseRequest(request);
-
+    final int recordLength = getRecordLength(arguments);
 
     List<ChannelConstraint> chanConstraints = new ArrayList<ChannelConstraint>();
-    chanConstraints.add(ChannelConstraint.build(arguments));
-    chanConstraints.addAll(ChannelConstraint.buildMulti(arguments));
-
-    List<Channel> channels = getChannels(databasePool);
-    if (channels == null) {
-      ErrorResponse error = new ErrorResponse(ctx);
-      error.request(request);
-      error.version(VERSION);
-      error.status(HttpResponseStatus.NOT_FOUND);
-      error.shortDescription("No data");
-      error.detailedDescription("No matching data found.");
-      error.sendError();
-      return;
+    if (arguments.containsKey("chans")) {
+      chanConstraints.addAll(ChannelConstraint.buildMulti(arguments));
+    } else {
+      chanConstraints.add(ChannelConstraint.build(arguments));
     }
 
-    for (ChannelConstraint chanConstraint : chanConstraints) {
-      sendChannel(chanConstraint, channels, databasePool, ctx);
+    ChannelIndex index = getChannelIndex(databasePool, ctx);
+    final List<ChannelRequest> channels = new ArrayList<ChannelRequest>();
+    if (index != null) {
+      for (ChannelConstraint chanConstraint : chanConstraints) {
+        addChannels(chanConstraint, findChannels(index, chanConstraint), channels);
+      }
     }
+
+    final ChunkedContentStream out = new ChunkedContentStream(ctx, request,
+        "application/vnd.fdsn.mseed", recordLength * 8);
+    new DataselectSender(databasePool, ctx, request, channels, recordLength, out).send();
   }
 
-  private static void sendChannel(ChannelConstraint chanConstraint, List<Channel> channels,
-      WinstonDatabasePool databasePool, ChannelHandlerContext ctx) throws UtilException {
+  private static int getRecordLength(Map<String, String> arguments) throws FdsnException {
+    final String arg = arguments.get("recordlength");
+    if (arg == null) {
+      return MiniSeedWriter.DEFAULT_RECORD_LENGTH;
+    }
+
+    final int recordLength = StringUtils.stringToInt(arg, -1);
+    if (recordLength != 512 && recordLength != 4096) {
+      throw new FdsnException(400, "Record length must be 512 or 4096: " + arg);
+    }
+    return recordLength;
+  }
+
+  /**
+   * Add the time spans to read of matching channels.
+   */
+  private static void addChannels(ChannelConstraint chanConstraint, List<Channel> channels,
+      List<ChannelRequest> requests) {
+    final TimeSimpleConstraint timeConstraint = chanConstraint.getTimeSimpleConstraint();
+
     for (final Channel c : channels) {
       if (!chanConstraint.nameMatches(c)) {
         continue;
       }
 
-      TimeSimpleConstraint timeConstraint = chanConstraint.getTimeSimpleConstraint();
-      final double st = timeConstraint.startTimeJ2k;
-      final double et = timeConstraint.endTimeJ2k;
+      final double st =
+          Math.max(timeConstraint.startTimeJ2k, J2kSec.fromEpoch(c.timeSpan.startTime));
+      final double et = Math.min(timeConstraint.endTimeJ2k, J2kSec.fromEpoch(c.timeSpan.endTime));
+      if (st < et) {
+        requests.add(new ChannelRequest(c, st, et));
+      }
+    }
+  }
+
+  /**
+   * A channel and the time span to read from it.
+   */
+  private static class ChannelRequest {
+    final Channel channel;
+    final double st;
+    final double et;
+
+    ChannelRequest(Channel channel, double st, double et) {
+      this.channel = channel;
+      this.st = st;
+      this.et = et;
+    }
+  }
+
+  /**
+   * Streams channels as miniSEED. Each channel's TraceBufs are encoded as they are read from the
+   * database. When the client falls behind, reading stops after the TraceBuf just written, the
+   * database connection and thread are given up, and reading picks up after that TraceBuf on a
+   * database thread once the client has caught up.
+   */
+  private static class DataselectSender implements Runnable {
+    private final WinstonDatabasePool databasePool;
+    private final ChannelHandlerContext ctx;
+    private final FullHttpRequest request;
+    private final List<ChannelRequest> channels;
+    private final int recordLength;
+    private final ChunkedContentStream out;
+    private int next;
+    private MiniSeedWriter writer;
+    private double lastStart;
+
+    DataselectSender(WinstonDatabasePool databasePool, ChannelHandlerContext ctx,
+        FullHttpRequest request, List<ChannelRequest> channels, int recordLength,
+        ChunkedContentStream out) {
+      this.databasePool = databasePool;
+      this.ctx = ctx;
+      this.request = request;
+      this.channels = channels;
+      this.recordLength = recordLength;
+      this.out = out;
+    }
+
+    public void run() {
+      try {
+        send();
+      } catch (UtilException e) {
+        LOGGER.error("Dataselect request failed: {}", e.getMessage());
+        ctx.close();
+      }
+    }
+
+    /**
+     * Send the response, or as much of it as the client will take.
+     *
+     * @throws UtilException if the data could not be read before the response was started
+     */
+    @SuppressWarnings("deprecation")
+    void send() throws UtilException {
+      try {
+        if (!sendChannels()) {
+          return;
+        }
+      } catch (IOException e) {
+        LOGGER.info("Dataselect request abandoned: {}", e.getMessage());
+        out.close();
+        return;
+      } catch (UtilException e) {
+        out.close();
+        if (!out.isStarted()) {
+          throw e;
+        }
+
+        // too late for an error response
+        LOGGER.error("Dataselect request failed: {}", e.getMessage());
+        ctx.close();
+        return;
+      }
+
+      if (out.isStarted()) {
+        out.finish();
+      } else {
+        ErrorResponse error = new ErrorResponse(ctx);
+        error.request(request);
+        error.version(VERSION);
+        error.status(HttpResponseStatus.NOT_FOUND);
+        error.shortDescription("No data");
+        error.detailedDescription("No matching data found.");
+        error.sendError();
+      }
+    }
+
+    /**
+     * Send channels, starting with the one left off at.
+     *
+     * @return false if the rest was left to a continuation
+     * @throws IOException when the client goes away
+     */
+    private boolean sendChannels() throws UtilException, IOException {
+      while (next < channels.size()) {
+        final ChannelRequest c = channels.get(next);
+        if (writer == null) {
+          writer = new MiniSeedWriter(c.channel.scnl, recordLength, out);
+          lastStart = Double.NEGATIVE_INFINITY;
+        }
+        if (!sendChannel(c)) {
+          return false;
+        }
+        writer.flush();
+        writer = null;
+        next++;
+      }
+      return true;
+    }
 
-      Wave wave;
+    /**
+     * Send TraceBufs of a channel which start after the last one sent.
+     *
+     * @return false if the rest was left to a continuation
+     * @throws IOException when the client goes away
+     */
+    private boolean sendChannel(final ChannelRequest c) throws UtilException, IOException {
+      final String code = DbUtils.scnlAsWinstonCode(c.channel.scnl);
+      final double t1 = Math.max(c.st, lastStart);
+      final IOException[] error = new IOException[1];
+      final boolean[] paused = new boolean[1];
       try {
-        wave = databasePool.doCommand(new WinstonConsumer<Wave>() {
-          public Wave execute(WinstonDatabase winston) throws UtilException {
-            Data data = new Data(winston);
-            return data.getWave(c.sid, st, et, 0);
+        databasePool.doCommand(new WinstonConsumer<Boolean>() {
+          public Boolean execute(WinstonDatabase winston) throws UtilException {
+            return new Data(winston).visitTraceBufs(code, t1, c.et, 0, new TraceBufVisitor() {
+              public boolean visit(double tbSt, double tbEt, double sr, String dataType,
+                  byte[] traceBuf) {
+                if (tbSt <= lastStart) {
+                  return true;
+                }
+                lastStart = tbSt;
+
+                final TraceBuf tb;
+                try {
+                  tb = new TraceBuf(traceBuf);
+                } catch (IOException e) {
+                  LOGGER.error("Unable to parse TraceBuf for {}: {}", code, e.getMessage());
+                  return true;
+                }
+
+                try {
+                  writeSamples(writer, tb, c.st, c.et);
+                } catch (IOException e) {
+                  error[0] = e;
+                  return false;
+                }
+
+                // the continuation runs only once this command has returned its connection
+                paused[0] = out.continueWhenWritable(DataselectSender.this);
+                return !paused[0];
+              }
+            });
           }
         });
-      } catch (Exception e1) {
-        throw new UtilException(e1.getMessage());
+      } catch (Exception e) {
+        throw new UtilException(e.getMessage());
       }
 
+      if (error[0] != null) {
+        throw error[0];
+      }
+      return !paused[0];
+    }
+  }
+
+  /**
+   * Write samples of a TraceBuf which fall between st and et.
+   */
+  private static void writeSamples(MiniSeedWriter writer, TraceBuf tb, double st, double et)
+      throws IOException {
+    final double start = tb.getStartTimeJ2K();
+    final double sr = tb.samplingRate();
+    final int[] samples = tb.samples();
 
-//      DataHeader header = new DataHeader(seq++, 'D', false);
-//
-//      header.setStationIdentifier(c.station);
-//      header.setChannelIdentifier(c.channel);
-//      header.setNetworkCode(c.network);
-//      header.setLocationIdentifier(c.location);
-//
-//      header.setNumSamples((short) wave.numSamples());
-//      header.setSampleRate(wave.getSamplingRate());
-//      Btime btime = new Btime(Util.j2KToDate(wave.getStartTime()));
-//      header.setStartBtime(btime);
-//
-//      DataRecord record = new DataRecord(header);
-//
-//      try {
-//        Blockette1000 blockette1000 = new Blockette1000();
-//        blockette1000.setEncodingFormat((byte) B1000Types.STEIM2);
-//        blockette1000.setWordOrder((byte) 1);
-//
-//        // todo:fix this
-//        // pad data or split
-//        blockette1000.setDataRecordLength(
-//            (byte) (Math.ceil(Math.log(wave.buffer.length * 5) / Math.log(2))));
-//
-//        record.addBlockette(blockette1000);
-//
-//        SteimFrameBlock data = null;
-//
-//        try {
-//          data = Steim2.encode(wave.buffer, 63);
-//          record.setData(data.getEncodedData());
-//          // record.write(dos);
-//        } catch (SteimException e) {
-//          e.printStackTrace();
-//        }
-//      } catch (SeedFormatException e) {
-//        e.printStackTrace();
-//      } finally {
-//      }
+    final int first = (int) Math.max(0, Math.ceil((st - start) * sr));
+    final int last = (int) Math.min(samples.length, Math.ceil((et - start) * sr));
+    if (first < last) {
+      writer.write(start + first / sr, sr, samples, first, last - first);
     }
   }
 
@@ -14,25 +14,22 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSOutput;
-import org.w3c.dom.ls.LSSerializer;
 
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.Version;
-import gov.usgs.volcanoes.winston.db.Channels;
-import gov.usgs.volcanoes.winston.db.WinstonDatabase;
-import gov.usgs.volcanoes.winston.server.WinstonConsumer;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
+import gov.usgs.volcanoes.winston.server.ChannelIndex;
 import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
 import gov.usgs.volcanoes.winston.server.http.HttpTemplateConfiguration;
+import gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.constraint.ChannelConstraint;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
@@ -53,6 +50,8 @@ import io.netty.util.CharsetUtil;
 abstract public class FdsnwsService {
   private static final Logger LOGGER = LoggerFactory.getLogger(FdsnwsService.class);
 
+  private static final String XSI = "http://www.w3.org/2001/XMLSchema-instance";
+
   protected static String version;
   protected static String service;
 
@@ -99,42 +98,25 @@ abstract public class FdsnwsService {
   }
 
 
-  protected static Element createRootElement(final Document doc) {
-    final Element rootElement = doc.createElement("FDSNStationXML");
-    rootElement.setAttribute("schemaVersion", "1.0");
-    rootElement.setAttribute("xsi:schemaLocation",
+  protected static void writeRootElement(final XMLStreamWriter xml) throws XMLStreamException {
+    xml.writeStartElement("FDSNStationXML");
+    xml.writeDefaultNamespace("http://www.fdsn.org/xml/station/1");
+    xml.writeNamespace("xsi", XSI);
+    xml.writeAttribute("schemaVersion", "1.0");
+    xml.writeAttribute("xsi", XSI, "schemaLocation",
         "http://www.fdsn.org/xml/station/fdsn-station-1.0.xsd");
-    rootElement.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-    rootElement.setAttribute("xmlns", "http://www.fdsn.org/xml/station/1");
-    doc.appendChild(rootElement);
-
-    final Element source = doc.createElement("source");
-    source.appendChild(doc.createTextNode("Winston"));
-    rootElement.appendChild(source);
-
-    final Element module = doc.createElement("module");
-    module.appendChild(doc.createTextNode("Winston " + Version.VERSION_STRING));
-    rootElement.appendChild(module);
-
-    final Element created = doc.createElement("Created");
-    created.appendChild(doc.createTextNode(FdsnwsDate.toString(new Date())));
-    rootElement.appendChild(created);
-    
-    return rootElement;
-  }
 
-  protected static String serialize(final Document doc) {
-    final DOMImplementation impl = doc.getImplementation();
-    final DOMImplementationLS implLS = (DOMImplementationLS) impl.getFeature("LS", "3.0");
-    final LSSerializer lsSerializer = implLS.createLSSerializer();
-    lsSerializer.getDomConfig().setParameter("format-pretty-print", true);
-
-    final LSOutput lsOutput = implLS.createLSOutput();
-    lsOutput.setEncoding("UTF-8");
-    final Writer stringWriter = new StringWriter();
-    lsOutput.setCharacterStream(stringWriter);
-    lsSerializer.write(doc, lsOutput);
-    return stringWriter.toString();
+    xml.writeStartElement("Source");
+    xml.writeCharacters("Winston");
+    xml.writeEndElement();
+
+    xml.writeStartElement("Module");
+    xml.writeCharacters("Winston " + Version.VERSION_STRING);
+    xml.writeEndElement();
+
+    xml.writeStartElement("Created");
+    xml.writeCharacters(FdsnwsDate.toString(new Date()));
+    xml.writeEndElement();
   }
   
   protected static String getArg(Map<String, String> arguments, final String s1, final String s2) {
@@ -160,11 +142,12 @@ abstract public class FdsnwsService {
       String[] lines = request.content().toString(CharsetUtil.UTF_8).split("\n");
       StringBuffer chans = new StringBuffer();
       for (String list : lines) {
+        list = list.trim();
         int idx = list.indexOf('=');
         if (idx != -1) {
-          arguments.put(list.substring(0, idx), list.substring(idx, list.length()));
-        } else {
-          chans.append(list);
+          arguments.put(list.substring(0, idx).trim(), list.substring(idx + 1).trim());
+        } else if (list.length() > 0) {
+          chans.append(list).append('\n');
         }
       }
       if (chans.length() > 0) {
@@ -176,23 +159,40 @@ abstract public class FdsnwsService {
   }
 
 
-  protected static List<Channel> getChannels(WinstonDatabasePool databasePool)
-      throws UtilException {
+  protected static List<Channel> getChannels(WinstonDatabasePool databasePool,
+      ChannelHandlerContext ctx) throws UtilException {
     List<Channel> channels;
     try {
-      channels = databasePool.doCommand(new WinstonConsumer<List<Channel>>() {
-
-        public List<Channel> execute(WinstonDatabase winston) throws UtilException {
-          return new Channels(winston).getChannels();
-        }
-
-      });
+      channels = ChannelCatalog.getChannels(ctx, databasePool);
     } catch (Exception e) {
       throw new UtilException(e.getMessage());
     }
     return channels;
   }
 
+  protected static ChannelIndex getChannelIndex(WinstonDatabasePool databasePool,
+      ChannelHandlerContext ctx) throws UtilException {
+    ChannelIndex index;
+    try {
+      index = ChannelCatalog.getIndex(ctx, databasePool);
+    } catch (Exception e) {
+      throw new UtilException(e.getMessage());
+    }
+    return index;
+  }
+
+  /**
+   * Return channels which may match a constraint. Exact network and station codes are looked up
+   * in the index; only wildcard terms return every channel.
+   *
+   * @param index channel index
+   * @param constraint channel constraint
+   * @return candidate channels
+   */
+  protected static List<Channel> findChannels(ChannelIndex index, ChannelConstraint constraint) {
+    return index.find(constraint.getNetworkCodes(), constraint.getStationCodes());
+  }
+
 
 
 }
@@ -5,20 +5,21 @@
 
 package gov.usgs.volcanoes.winston.server.http.cmd.fdsnws;
 
-import java.nio.charset.Charset;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.time.TimeSpan;
@@ -26,7 +27,10 @@ import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.Instrument;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
+import gov.usgs.volcanoes.winston.server.ChannelIndex;
 import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
+import gov.usgs.volcanoes.winston.server.http.QueryNormalizer;
 import gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.constraint.ChannelConstraint;
 import gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.constraint.FdsnConstraint;
 import gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.constraint.GeographicConstraint;
@@ -38,6 +42,7 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AttributeKey;
 
 /**
  * Implement FDSN-WS station service.
@@ -50,11 +55,16 @@ public class StationService extends FdsnwsService {
   private static final String SERVICE = "station";
   private static final String DEFAULT_LEVEL = "station";
 
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
   private static final Logger LOGGER = LoggerFactory.getLogger(StationService.class);
+  private static final AttributeKey<StationXmlCache> stationXmlCacheKey;
 
   static {
     version = VERSION;
     service = SERVICE;
+    stationXmlCacheKey = AttributeKey.valueOf("stationXmlCache");
   }
 
   /**
@@ -105,8 +115,22 @@ public class StationService extends FdsnwsService {
     List<FdsnConstraint> constraints = buildConstraints(arguments);
     LOGGER.debug("got constraints");
 
-    List<Channel> channels = getChannels(databasePool);
-    if (channels == null) {
+    // read the version before the channels so a response is never cached under a newer version
+    final ChannelCatalog catalog = ChannelCatalog.get(ctx);
+    final StationXmlCache cache =
+        catalog == null ? null : ctx.channel().attr(stationXmlCacheKey).get();
+    final long catalogVersion = catalog == null ? 0 : catalog.getVersion();
+    final String query = QueryNormalizer.normalize(arguments);
+    if (cache != null) {
+      byte[] xml = cache.get(query, catalogVersion);
+      if (xml != null) {
+        sendXml(ctx, request, xml);
+        return;
+      }
+    }
+
+    ChannelIndex index = getChannelIndex(databasePool, ctx);
+    if (index == null) {
       ErrorResponse error = new ErrorResponse(ctx);
       error.request(request);
       error.version(VERSION);
@@ -117,135 +141,168 @@ public class StationService extends FdsnwsService {
       return;
     }
 
-    final DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+    List<Channel> channels = findChannels(index, constraints);
+
+    // a response is no larger than the catalog, so it is written without stopping for the client
+    final ChunkedContentStream out =
+        new ChunkedContentStream(ctx, request, "application/xml; charset=UTF-8", CHUNK_SIZE);
+    final CapturingStream capture =
+        new CapturingStream(out, cache == null ? 0 : cache.getMaxEntrySize());
     try {
-      DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-      final Document doc = dBuilder.newDocument();
-      Element rootElement = createRootElement(doc);
-
-      Element networkElement = null;
-      Element stationElement = null;
-      double stationStart = Double.MAX_VALUE;
-      double stationEnd = -Double.MAX_VALUE;
-      String net = null;
-      String sta = null;
+      XMLStreamWriter xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(capture, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      writeRootElement(xml);
 
+      String net = null;
+      List<Channel> station = new ArrayList<Channel>();
       for (final Channel c : channels) {
         if (pruneChannel(constraints, c)) {
           continue;
         }
 
+        if (!station.isEmpty() && (!c.scnl.network.equals(net)
+            || !c.scnl.station.equals(station.get(0).scnl.station))) {
+          writeStation(xml, station, level);
+          station.clear();
+        }
+
         if (!c.scnl.network.equals(net)) {
+          if (net != null) {
+            xml.writeEndElement();
+          }
           net = c.scnl.network;
-          networkElement = doc.createElement("Network");
-          networkElement.setAttribute("code", net);
-          rootElement.appendChild(networkElement);
+          xml.writeStartElement("Network");
+          xml.writeAttribute("code", net);
         }
 
         if ("network".equals(level))
           continue;
 
-        if (!c.scnl.station.equals(sta)) {
-          if (stationElement != null) {
-            final String s = FdsnwsDate.toString(J2kSec.asDate(stationStart));
-            stationElement.setAttribute("startDate", s);
-            stationStart = Double.MAX_VALUE;
-
-            final String e = FdsnwsDate.toString(J2kSec.asDate(stationEnd));
-            stationElement.setAttribute("endDate", e);
-            stationEnd = -Double.MAX_VALUE;
-
-            final Element creationElement = doc.createElement("CreationDate");
-            creationElement
-                .appendChild(doc.createTextNode(FdsnwsDate.toString(J2kSec.asDate(stationStart))));
-          }
-
-          sta = c.scnl.station;
-          stationElement = createStationElement(c, doc);
-          networkElement.appendChild(stationElement);
-        }
-
-        TimeSpan timeSpan = c.timeSpan;
-        stationStart = Math.min(stationStart, J2kSec.fromEpoch(timeSpan.startTime));
-        stationEnd = Math.max(stationEnd, J2kSec.fromEpoch(timeSpan.endTime));
-
-        if (!"station".equals(level))
-          stationElement.appendChild(createChannelElement(c, doc));
+        station.add(c);
+      }
+      writeStation(xml, station, level);
+      if (net != null) {
+        xml.writeEndElement();
       }
 
-
-      final String responseXml = serialize(doc);
-      FullHttpResponse response = new DefaultFullHttpResponse(request.getProtocolVersion(),
-          HttpResponseStatus.OK, Unpooled.copiedBuffer(responseXml, Charset.forName("UTF-8")));
-      response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, responseXml.length());
-      response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/xml; charset=UTF-8");
-
-      if (HttpHeaders.isKeepAlive(request)) {
-        response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+      xml.writeEndElement();
+      xml.writeEndDocument();
+      xml.flush();
+      xml.close();
+      out.finish();
+    } catch (XMLStreamException e) {
+      out.close();
+      LOGGER.error("Unable to write StationXML: {}", e.getLocalizedMessage());
+      if (out.isStarted()) {
+        ctx.close();
       }
-      ctx.writeAndFlush(response);
-    } catch (final ParserConfigurationException e) {
-      e.printStackTrace();
+      return;
     }
 
+    if (cache != null && capture.getCaptured() != null) {
+      cache.put(query, catalogVersion, capture.getCaptured());
+    }
   }
 
+  @SuppressWarnings("deprecation")
+  private static void sendXml(ChannelHandlerContext ctx, FullHttpRequest request, byte[] xml) {
+    FullHttpResponse response = new DefaultFullHttpResponse(request.getProtocolVersion(),
+        HttpResponseStatus.OK, Unpooled.wrappedBuffer(xml));
+    response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, xml.length);
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/xml; charset=UTF-8");
+
+    if (HttpHeaders.isKeepAlive(request)) {
+      response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+    }
+    ctx.writeAndFlush(response);
+  }
 
-   private static Element createStationElement(final Channel c, final Document doc) {
-    final Element station = doc.createElement("Station");
-    station.setAttribute("code", c.scnl.station);
-    Instrument instrument = c.instrument;
+  /**
+   * Write a station and, at channel level, its channels.
+   * 
+   * @param channels channels at the station, may be empty
+   */
+  private static void writeStation(XMLStreamWriter xml, List<Channel> channels, String level)
+      throws XMLStreamException {
+    if (channels.isEmpty())
+      return;
+
+    double stationStart = Double.MAX_VALUE;
+    double stationEnd = -Double.MAX_VALUE;
+    for (Channel c : channels) {
+      TimeSpan timeSpan = c.timeSpan;
+      stationStart = Math.min(stationStart, J2kSec.fromEpoch(timeSpan.startTime));
+      stationEnd = Math.max(stationEnd, J2kSec.fromEpoch(timeSpan.endTime));
+    }
 
-    Element e;
-    e = doc.createElement("Latitude");
-    e.appendChild(doc.createTextNode("" + instrument.latitude));
-    station.appendChild(e);
+    final Channel c = channels.get(0);
+    final String start = FdsnwsDate.toString(J2kSec.asDate(stationStart));
+    xml.writeStartElement("Station");
+    xml.writeAttribute("code", c.scnl.station);
+    xml.writeAttribute("startDate", start);
+    xml.writeAttribute("endDate", FdsnwsDate.toString(J2kSec.asDate(stationEnd)));
 
-    e = doc.createElement("Longitude");
-    e.appendChild(doc.createTextNode("" + instrument.longitude));
-    station.appendChild(e);
+    Instrument instrument = c.instrument;
+    writeElement(xml, "Latitude", "" + instrument.latitude);
+    writeElement(xml, "Longitude", "" + instrument.longitude);
+    writeElement(xml, "Elevation", "" + instrument.height);
 
-    e = doc.createElement("Elevation");
-    e.appendChild(doc.createTextNode("" + instrument.height));
-    station.appendChild(e);
+    xml.writeStartElement("Site");
+    writeElement(xml, "Name", instrument.description);
+    xml.writeEndElement();
 
-    e = doc.createElement("Site");
-    final Element n = doc.createElement("Name");
-    n.appendChild(doc.createTextNode(instrument.description));
-    e.appendChild(n);
-    station.appendChild(e);
+    writeElement(xml, "CreationDate", start);
 
-    return station;
+    if (!"station".equals(level)) {
+      for (Channel channel : channels) {
+        writeChannel(xml, channel);
+      }
+    }
+    xml.writeEndElement();
   }
 
-  private static Element createChannelElement(final Channel c, final Document doc) {
-    final Element channelElement = doc.createElement("Channel");
+  private static void writeChannel(XMLStreamWriter xml, Channel c) throws XMLStreamException {
     final String loc = c.scnl.location.equals("--") ? "  " : c.scnl.location;
-    channelElement.setAttribute("locationCode", loc);
-    channelElement.setAttribute("code", c.scnl.channel);
-    Instrument instrument = c.instrument;
+    xml.writeStartElement("Channel");
+    xml.writeAttribute("locationCode", loc);
+    xml.writeAttribute("code", c.scnl.channel);
 
-    Element e;
-    e = doc.createElement("Latitude");
-    e.appendChild(doc.createTextNode("" + instrument.latitude));
-    channelElement.appendChild(e);
+    Instrument instrument = c.instrument;
+    writeElement(xml, "Latitude", "" + instrument.latitude);
+    writeElement(xml, "Longitude", "" + instrument.longitude);
+    writeElement(xml, "Elevation", "" + instrument.height);
 
-    e = doc.createElement("Longitude");
-    e.appendChild(doc.createTextNode("" + instrument.longitude));
-    channelElement.appendChild(e);
+    xml.writeStartElement("Depth");
+    xml.writeAttribute("Supported", "no");
+    xml.writeCharacters("" + 0);
+    xml.writeEndElement();
 
-    e = doc.createElement("Elevation");
-    e.appendChild(doc.createTextNode("" + instrument.height));
-    channelElement.appendChild(e);
+    xml.writeEndElement();
+  }
 
-    e = doc.createElement("Depth");
-    e.setAttribute("Supported", "no");
-    e.appendChild(doc.createTextNode("" + 0));
-    channelElement.appendChild(e);
+  private static void writeElement(XMLStreamWriter xml, String name, String text)
+      throws XMLStreamException {
+    xml.writeStartElement(name);
+    if (text != null)
+      xml.writeCharacters(text);
+    xml.writeEndElement();
+  }
 
-    return channelElement;
+  /**
+   * Return channels which may match all constraints, using the first channel constraint which
+   * names networks or stations.
+   */
+  private static List<Channel> findChannels(ChannelIndex index, List<FdsnConstraint> constraints) {
+    for (FdsnConstraint constraint : constraints) {
+      if (constraint instanceof ChannelConstraint) {
+        ChannelConstraint chanConstraint = (ChannelConstraint) constraint;
+        if (chanConstraint.getNetworkCodes() != null || chanConstraint.getStationCodes() != null)
+          return findChannels(index, chanConstraint);
+      }
+    }
+    return index.getChannels();
   }
-  
+
   private static boolean pruneChannel(List<FdsnConstraint> constraints, final Channel c) {
     boolean prune = false;
     Iterator<FdsnConstraint> it = constraints.iterator();
@@ -268,4 +325,48 @@ public class StationService extends FdsnwsService {
     return constraints;
   }
 
+  /**
+   * Passes bytes through to another stream, keeping a copy of them until a size limit is passed.
+   */
+  private static class CapturingStream extends FilterOutputStream {
+    private final long limit;
+    private ByteArrayOutputStream copy;
+
+    private CapturingStream(OutputStream out, long limit) {
+      super(out);
+      this.limit = limit;
+      copy = limit > 0 ? new ByteArrayOutputStream() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      if (copy != null) {
+        if (copy.size() + length > limit) {
+          copy = null;
+        } else {
+          copy.write(bytes, offset, length);
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      // the response is ended by ChunkedContentStream.finish()
+    }
+
+    /**
+     * Return the bytes written.
+     *
+     * @return bytes written, or null if the limit was passed
+     */
+    private byte[] getCaptured() {
+      return copy == null ? null : copy.toByteArray();
+    }
+  }
 }
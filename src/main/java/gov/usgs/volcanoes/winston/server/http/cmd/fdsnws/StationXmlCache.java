@@ -0,0 +1,143 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.http.cmd.fdsnws;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds serialized StationXML responses, keyed by normalized query and the version of the channel
+ * catalog they were built from. Responses built from an older catalog are dropped as soon as a
+ * newer one is seen. The version does not change when only time spans are refreshed, so a
+ * response is also dropped once it reaches the maximum age, which keeps the start and end times it
+ * reports from falling further behind than that. Least recently used responses are dropped to
+ * stay within the size limit.
+ */
+public class StationXmlCache {
+  private final long maxSize;
+  private final long maxAge;
+  private final LinkedHashMap<String, Entry> responses;
+  private long size;
+  private long version;
+  private long hitCount;
+  private long missCount;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize most bytes of responses to hold
+   * @param maxAge milliseconds to hold a response
+   */
+  public StationXmlCache(long maxSize, long maxAge) {
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+    responses = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+
+  /**
+   * Return a response.
+   *
+   * @param query normalized query
+   * @param catalogVersion current version of the channel catalog
+   * @return the response, or null if none is held for this query and catalog version or the held
+   *         response is too old
+   */
+  public synchronized byte[] get(String query, long catalogVersion) {
+    setVersion(catalogVersion);
+    Entry entry = responses.get(query);
+    if (entry != null && System.currentTimeMillis() - entry.created > maxAge) {
+      remove(query);
+      entry = null;
+    }
+
+    if (entry == null) {
+      missCount++;
+      return null;
+    } else {
+      hitCount++;
+      return entry.response;
+    }
+  }
+
+  /**
+   * Hold a response.
+   *
+   * @param query normalized query
+   * @param catalogVersion version of the channel catalog the response was built from
+   * @param response serialized response
+   */
+  public synchronized void put(String query, long catalogVersion, byte[] response) {
+    setVersion(catalogVersion);
+    if (catalogVersion != version || response.length > getMaxEntrySize()) {
+      return;
+    }
+
+    remove(query);
+    responses.put(query, new Entry(response));
+    size += response.length;
+
+    final Iterator<Entry> it = responses.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      size -= it.next().response.length;
+      it.remove();
+    }
+  }
+
+  /**
+   * Return the size of the largest response which will be held.
+   *
+   * @return size in bytes
+   */
+  public long getMaxEntrySize() {
+    return maxSize / 4;
+  }
+
+  /**
+   * Return number of requests answered from the cache.
+   *
+   * @return hit count
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Return number of requests not answered from the cache.
+   *
+   * @return miss count
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  private void remove(String query) {
+    final Entry old = responses.remove(query);
+    if (old != null) {
+      size -= old.response.length;
+    }
+  }
+
+  private void setVersion(long catalogVersion) {
+    if (catalogVersion > version) {
+      version = catalogVersion;
+      responses.clear();
+      size = 0;
+    }
+  }
+
+  /**
+   * A response and when it was built.
+   */
+  private static class Entry {
+    private final byte[] response;
+    private final long created;
+
+    private Entry(byte[] response) {
+      this.response = response;
+      created = System.currentTimeMillis();
+    }
+  }
+}
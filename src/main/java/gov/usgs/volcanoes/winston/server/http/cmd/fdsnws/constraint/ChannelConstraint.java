@@ -6,8 +6,11 @@
 package gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.constraint;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,10 +34,17 @@ public class ChannelConstraint extends FdsnConstraint {
   private final String station;
   private final String channel;
   private final String location;
+  private final Pattern networkPattern;
+  private final Pattern stationPattern;
+  private final Pattern channelPattern;
+  private final Pattern locationPattern;
+  private final Set<String> networkCodes;
+  private final Set<String> stationCodes;
   private TimeSimpleConstraint timeConstraint;
 
   /**
-   * Constructor.
+   * Constructor. Each term is a comma-separated list of codes which may contain the wildcards *
+   * and ?.
    * 
    * @param station station
    * @param channel channel
@@ -49,15 +59,23 @@ public class ChannelConstraint extends FdsnConstraint {
     this.network = stringToString(network, "*");
     this.location = stringToString(location, "*");
 
-    LOGGER.info("channel constraint: {}:{}:{}:{}", this.station, this.channel, this.network,
+    stationPattern = Pattern.compile(regExify(this.station));
+    channelPattern = Pattern.compile(regExify(this.channel));
+    networkPattern = Pattern.compile(regExify(this.network));
+    locationPattern = Pattern.compile(regExify(this.location));
+
+    stationCodes = exactCodes(this.station);
+    networkCodes = exactCodes(this.network);
+
+    LOGGER.debug("channel constraint: {}:{}:{}:{}", this.station, this.channel, this.network,
         this.location);
   }
 
   public static ChannelConstraint build(Map<String, String> arguments) throws FdsnException {
-    String station = regExify(getArg(arguments, "station", "sta"));
-    String channel = regExify(getArg(arguments, "channel", "cha"));
-    String network = regExify(getArg(arguments, "network", "net"));
-    String location = regExify(getArg(arguments, "location", "loc"));
+    String station = getArg(arguments, "station", "sta");
+    String channel = getArg(arguments, "channel", "cha");
+    String network = getArg(arguments, "network", "net");
+    String location = getArg(arguments, "location", "loc");
     
     String startTime = getArg(arguments, "starttime", "start");
     String endTime = getArg(arguments, "endtime", "end");
@@ -75,8 +93,9 @@ public class ChannelConstraint extends FdsnConstraint {
     if (chans != null) {
       String[] chan = chans.split("\n");
       for (String ch : chan) {
-        String[] chanParts = ch.split("\\s");
-        ChannelConstraint channelConstraint = new ChannelConstraint(chanParts[1], chanParts[3], chanParts[0], chanParts[2]);
+        String[] chanParts = ch.trim().split("\\s+");
+        ChannelConstraint channelConstraint =
+            new ChannelConstraint(chanParts[1], chanParts[3], chanParts[0], chanParts[2]);
         TimeSimpleConstraint timeConstraint = new TimeSimpleConstraint(chanParts[4], chanParts[5]);
         channelConstraint.setTimeConstraint(timeConstraint);
         constraints.add(channelConstraint);
@@ -124,23 +143,8 @@ public class ChannelConstraint extends FdsnConstraint {
     if (chan == null)
       return false;
 
-    final String net = chan.scnl.network;
-    if (net != null && !net.matches(network))
-      return false;
-
-    final String cha = chan.scnl.channel;
-    if (cha != null && !cha.matches(channel))
-      return false;
-
-    final String sta = chan.scnl.station;
-    if (sta != null && !sta.matches(station))
-      return false;
-
-    final String loc = chan.scnl.location;
-    if (loc != null && !loc.matches(location))
-      return false;
-    
-    return true;
+    return nameMatches(chan.scnl.network, chan.scnl.station, chan.scnl.channel,
+        chan.scnl.location);
   }
   
   /**
@@ -154,28 +158,50 @@ public class ChannelConstraint extends FdsnConstraint {
     if (buf == null)
       return false;
 
-    final String net = buf.network();
-    if (net != null && !net.matches(network))
+    if (!nameMatches(buf.network(), buf.station(), buf.channel(), buf.location()))
       return false;
 
-    final String cha = buf.channel();
-    if (cha != null && !cha.matches(channel))
+    if (timeConstraint != null)
+      return timeConstraint.matches(buf);
+
+    return true;
+  }
+
+  private boolean nameMatches(final String net, final String sta, final String cha,
+      final String loc) {
+    if (net != null && !networkPattern.matcher(net).matches())
       return false;
 
-    final String sta = buf.station();
-    if (sta != null && !sta.matches(station))
+    if (cha != null && !channelPattern.matcher(cha).matches())
       return false;
 
-    final String loc = buf.location();
-    if (loc != null && !loc.matches(location))
+    if (sta != null && !stationPattern.matcher(sta).matches())
       return false;
 
-    if (timeConstraint != null)
-      return timeConstraint.matches(buf);
+    if (loc != null && !locationPattern.matcher(loc).matches())
+      return false;
 
     return true;
   }
 
+  /**
+   * Network codes accessor.
+   *
+   * @return network codes matched, or null if the network term contains a wildcard
+   */
+  public Set<String> getNetworkCodes() {
+    return networkCodes;
+  }
+
+  /**
+   * Station codes accessor.
+   *
+   * @return station codes matched, or null if the station term contains a wildcard
+   */
+  public Set<String> getStationCodes() {
+    return stationCodes;
+  }
+
   /**
    * timeConstraint accessor.
    *
@@ -191,9 +217,35 @@ public class ChannelConstraint extends FdsnConstraint {
   }
 
   private static String regExify(String inString) {
-    String outString = inString.replace("*", ".*");
-    outString = outString.replace("?", ".{1}*");
+    StringBuilder sb = new StringBuilder();
+    for (String code : inString.split(",")) {
+      if (sb.length() > 0)
+        sb.append('|');
+
+      for (char c : code.trim().toCharArray()) {
+        if (c == '*')
+          sb.append(".*");
+        else if (c == '?')
+          sb.append('.');
+        else if (Character.isLetterOrDigit(c))
+          sb.append(c);
+        else
+          sb.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+
+    return sb.toString();
+  }
+
+  private static Set<String> exactCodes(String inString) {
+    if (inString.indexOf('*') != -1 || inString.indexOf('?') != -1)
+      return null;
+
+    Set<String> codes = new HashSet<String>();
+    for (String code : inString.split(",")) {
+      codes.add(code.trim());
+    }
 
-    return outString;
+    return codes;
   }
- }
+}
@@ -8,6 +8,7 @@ package gov.usgs.volcanoes.winston.server.wws;
 import java.net.InetSocketAddress;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,7 +16,10 @@ import org.slf4j.LoggerFactory;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.server.BaseCommand;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
+import gov.usgs.volcanoes.winston.server.RecentDataCache;
+import gov.usgs.volcanoes.winston.server.RecentDataCache.CachedTraceBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
 
 /**
  *
@@ -23,6 +27,11 @@ import io.netty.channel.ChannelHandlerContext;
  */
 abstract public class WwsBaseCommand extends BaseCommand implements WwsCommand {
   private static final Logger LOGGER = LoggerFactory.getLogger(WwsBaseCommand.class);
+  private static final AttributeKey<RecentDataCache> recentDataCacheKey;
+
+  static {
+    recentDataCacheKey = AttributeKey.valueOf("recentDataCache");
+  }
 
   protected final static int ONE_HOUR_S = 60 * 60;
   protected final static int ONE_DAY_S = 24 * ONE_HOUR_S;
@@ -60,6 +69,24 @@ abstract public class WwsBaseCommand extends BaseCommand implements WwsCommand {
     }
   }
 
+  /**
+   * Return TraceBufs from the recent data cache.
+   *
+   * @param ctx my context
+   * @param code channel code
+   * @param t1 start time, J2kSec
+   * @param t2 end time, J2kSec
+   * @return TraceBufs, or null if the cache is disabled or does not cover t1..t2
+   */
+  protected List<CachedTraceBuf> getCachedTraceBufs(ChannelHandlerContext ctx, String code,
+      double t1, double t2) {
+    final RecentDataCache cache = ctx.channel().attr(recentDataCacheKey).get();
+    if (cache == null) {
+      return null;
+    }
+    return cache.getTraceBufs(databasePool, code, t1, t2);
+  }
+
   protected String prettyRequest(WwsCommandString req) {
     return req.commandString;
   }
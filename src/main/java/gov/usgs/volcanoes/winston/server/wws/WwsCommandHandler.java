@@ -12,7 +12,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.winston.server.ChannelCommandQueue;
 import gov.usgs.volcanoes.winston.server.ConnectionStatistics;
+import gov.usgs.volcanoes.winston.server.DatabaseExecutor;
 import gov.usgs.volcanoes.winston.server.WinstonDatabasePool;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
@@ -21,7 +23,7 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.util.AttributeKey;
 
 /**
- * 
+ * Receives a WWS command from the pipeline and hands it to the database executor for execution.
  * 
  * @author Tom Parker
  *
@@ -31,6 +33,7 @@ public class WwsCommandHandler extends SimpleChannelInboundHandler<WwsCommandStr
   private static final Logger LOGGER = LoggerFactory.getLogger(WwsCommandHandler.class);
 
   private final WinstonDatabasePool winstonDatabasePool;
+  private final ChannelCommandQueue commandQueue;
   private ConnectionStatistics connectionStatistics;
 
   private static final AttributeKey<ConnectionStatistics> connectionStatsKey;
@@ -44,23 +47,46 @@ public class WwsCommandHandler extends SimpleChannelInboundHandler<WwsCommandStr
    * 
    * @param configFile my config file
    * @param winstonDatabasePool my database pool
+   * @param databaseExecutor executor used to run commands
    */
-  public WwsCommandHandler(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool) {
+  public WwsCommandHandler(ConfigFile configFile, WinstonDatabasePool winstonDatabasePool,
+      DatabaseExecutor databaseExecutor) {
     this.winstonDatabasePool = winstonDatabasePool;
+    commandQueue = new ChannelCommandQueue(databaseExecutor);
   }
 
   @Override
-  public void channelRead0(ChannelHandlerContext ctx, WwsCommandString request) throws Exception {
+  public void channelRead0(final ChannelHandlerContext ctx, final WwsCommandString request)
+      throws Exception {
     connectionStatistics = ctx.channel().attr(connectionStatsKey).get();
 
-    try {
-      final WwsBaseCommand wwsWorker = WwsCommandFactory.get(winstonDatabasePool, request);
-      connectionStatistics.incrWwsCount(ctx.channel().remoteAddress());
-      wwsWorker.respond(ctx, request);
-    } catch (final UnsupportedCommandException e) {
-      LOGGER.info(e.getLocalizedMessage());
-      ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
-    }
+    // Commands block on the database, run them off of the event loop.
+    commandQueue.submit(ctx, new ChannelCommandQueue.Command() {
+      public void run() {
+        try {
+          final WwsBaseCommand wwsWorker = WwsCommandFactory.get(winstonDatabasePool, request);
+          connectionStatistics.incrWwsCount(ctx.channel().remoteAddress());
+          wwsWorker.respond(ctx, request);
+
+          // some commands leave their response for channelReadComplete() to flush, which has
+          // already run by now
+          ctx.flush();
+        } catch (final UnsupportedCommandException e) {
+          LOGGER.info(e.getLocalizedMessage());
+          ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        } catch (final Exception e) {
+          ctx.executor().execute(new Runnable() {
+            public void run() {
+              try {
+                exceptionCaught(ctx, e);
+              } catch (Exception e1) {
+                LOGGER.error("Exception caught catching exception. ({})", e1.getLocalizedMessage());
+              }
+            }
+          });
+        }
+      }
+    });
   }
 
   @Override
@@ -0,0 +1,164 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.wws.cmd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.usgs.volcanoes.winston.server.ChannelCommandQueue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Writes samples to a client as space-separated ASCII integers. Samples are formatted directly
+ * into buffers obtained from the channel's allocator and sent one chunk at a time. If the channel
+ * stops being writable the rest of the samples are left to a continuation, run on a database
+ * thread once the last chunk has been written, so slow clients push back on the command rather
+ * than filling the outbound buffer or holding a database thread.
+ *
+ * Must be used from a command run by a ChannelCommandQueue.
+ */
+public class AsciiSampleWriter implements Runnable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsciiSampleWriter.class);
+
+  /** default chunk size in bytes */
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+  private static final byte[] MIN_VALUE_BYTES =
+      Integer.toString(Integer.MIN_VALUE).getBytes(CharsetUtil.US_ASCII);
+
+  /** longest possible formatted sample, including the separator */
+  private static final int MAX_SAMPLE_LENGTH = MIN_VALUE_BYTES.length + 1;
+
+  private final ChannelHandlerContext ctx;
+  private final byte[] fillValue;
+  private final int chunkSize;
+  private ByteBuf buf;
+  private ChannelFuture lastWrite;
+  private int[] samples;
+  private int count;
+  private int noData;
+  private int next;
+
+  /**
+   * Constructor.
+   *
+   * @param ctx channel context
+   * @param fillValue string sent in place of missing samples
+   * @param chunkSize number of bytes to buffer before writing
+   */
+  public AsciiSampleWriter(ChannelHandlerContext ctx, String fillValue, int chunkSize) {
+    this.ctx = ctx;
+    this.fillValue = fillValue.getBytes(CharsetUtil.US_ASCII);
+    this.chunkSize = Math.max(chunkSize, this.fillValue.length + MAX_SAMPLE_LENGTH);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctx channel context
+   * @param fillValue string sent in place of missing samples
+   */
+  public AsciiSampleWriter(ChannelHandlerContext ctx, String fillValue) {
+    this(ctx, fillValue, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Write samples, each followed by a space, and terminate the response. The command must return
+   * straight after, as the samples may be finished by a continuation.
+   *
+   * @param samples sample buffer
+   * @param count number of samples to write
+   * @param noData sample value which marks missing data
+   */
+  public void write(int[] samples, int count, int noData) {
+    this.samples = samples;
+    this.count = count;
+    this.noData = noData;
+    next = 0;
+    run();
+  }
+
+  /**
+   * Write the samples not yet written.
+   */
+  public void run() {
+    for (; next < count; next++) {
+      if (buf == null) {
+        buf = ctx.alloc().buffer(chunkSize);
+      } else if (buf.writableBytes() < fillValue.length + MAX_SAMPLE_LENGTH) {
+        if (!writeChunk()) {
+          LOGGER.debug("Connection closed while sending samples");
+          return;
+        }
+        if (ChannelCommandQueue.continueWhenWritable(ctx, lastWrite, this)) {
+          return;
+        }
+        buf = ctx.alloc().buffer(chunkSize);
+      }
+
+      final int sample = samples[next];
+      if (sample == noData) {
+        buf.writeBytes(fillValue);
+      } else {
+        writeSample(buf, sample);
+      }
+      buf.writeByte(' ');
+    }
+    finish();
+  }
+
+  /**
+   * Write any buffered samples and terminate the response.
+   */
+  private void finish() {
+    if (buf == null) {
+      buf = ctx.alloc().buffer(1);
+    }
+    buf.writeByte('\n');
+    ctx.writeAndFlush(buf);
+    buf = null;
+  }
+
+  private boolean writeChunk() {
+    lastWrite = ctx.writeAndFlush(buf);
+    buf = null;
+    return ctx.channel().isActive();
+  }
+
+  /**
+   * Format a sample as decimal ASCII without creating an intermediate String.
+   *
+   * @param buf destination buffer
+   * @param value sample value
+   */
+  static void writeSample(ByteBuf buf, int value) {
+    if (value == Integer.MIN_VALUE) {
+      buf.writeBytes(MIN_VALUE_BYTES);
+      return;
+    }
+
+    if (value < 0) {
+      buf.writeByte('-');
+      value = -value;
+    }
+
+    int digits = 1;
+    for (int v = value / 10; v != 0; v /= 10) {
+      digits++;
+    }
+
+    buf.ensureWritable(digits);
+    int idx = buf.writerIndex() + digits;
+    buf.writerIndex(idx);
+    do {
+      buf.setByte(--idx, '0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+  }
+}
@@ -7,12 +7,17 @@
 package gov.usgs.volcanoes.winston.server.wws.cmd;
 
 import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.DbUtils;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
+import io.netty.channel.ChannelHandlerContext;
 
 /**
  * Abstract request for data using an Earthworm WSV-style command
@@ -21,7 +26,16 @@ import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
  *
  */
 public abstract class EwDataRequest extends WwsBaseCommand {
-  protected Integer getChanId(final Scnl scnl) throws UtilException {
+  protected Integer getChanId(final ChannelHandlerContext ctx, final Scnl scnl)
+      throws UtilException {
+    final ChannelCatalog catalog = ChannelCatalog.get(ctx);
+    if (catalog != null) {
+      final Channel channel = catalog.getChannel(DbUtils.scnlAsWinstonCode(scnl));
+      if (channel != null) {
+        return channel.sid;
+      }
+    }
+
     final Integer chanId;
     try {
       chanId = databasePool.doCommand(new WinstonConsumer<Integer>() {
@@ -35,7 +49,17 @@ public abstract class EwDataRequest extends WwsBaseCommand {
     return chanId;
   }
 
-  protected double[] getTimeSpan(final Integer chanId) throws UtilException {
+  protected double[] getTimeSpan(final ChannelHandlerContext ctx, final Integer chanId)
+      throws UtilException {
+    final ChannelCatalog catalog = ChannelCatalog.get(ctx);
+    if (catalog != null) {
+      final Channel channel = catalog.getChannel(chanId);
+      if (channel != null) {
+        return new double[] {J2kSec.fromEpoch(channel.timeSpan.startTime),
+            J2kSec.fromEpoch(channel.timeSpan.endTime)};
+      }
+    }
+
     double[] timeSpan;
     try {
       timeSpan = databasePool.doCommand(new WinstonConsumer<double[]>() {
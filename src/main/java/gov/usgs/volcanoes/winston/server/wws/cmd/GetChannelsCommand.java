@@ -14,7 +14,7 @@ import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
-import gov.usgs.volcanoes.winston.server.GetChannelsConsumer;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
@@ -48,7 +48,7 @@ public class GetChannelsCommand extends WwsBaseCommand {
 
     List<Channel> chs = null;
     try {
-      chs = databasePool.doCommand(new GetChannelsConsumer());
+      chs = ChannelCatalog.getChannels(ctx, databasePool);
     } catch (Exception e) {
       throw new UtilException("Unable to get channels.");
     }
@@ -17,6 +17,7 @@ import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.Instrument;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
@@ -33,13 +34,6 @@ import io.netty.channel.ChannelHandlerContext;
  */
 public class GetMetadataCommand extends WwsBaseCommand {
   
-  static private class RequestChannels implements WinstonConsumer<List<Channel>> {
-    @Override
-    public List<Channel> execute(WinstonDatabase winston) throws UtilException {
-      return new Channels(winston).getChannels();
-    }
-  }
-
   static private class RequestInstruments implements WinstonConsumer<List<Instrument>> {
     @Override
     public List<Instrument> execute(WinstonDatabase winston) {
@@ -69,7 +63,7 @@ public class GetMetadataCommand extends WwsBaseCommand {
         sb.append(getInstrumentMetadata(instruments));
 
       } else if ("CHANNEL".equals(cmd.args[0])) {
-        List<Channel> channels = databasePool.doCommand(new RequestChannels());
+        List<Channel> channels = ChannelCatalog.getChannels(ctx, databasePool);
         sb.append(String.format("%s %d%n", cmd.id, channels.size()));
         sb.append(getChannelMetadata(channels));
       } else {
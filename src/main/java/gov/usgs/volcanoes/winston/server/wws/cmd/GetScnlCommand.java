@@ -1,5 +1,7 @@
 package gov.usgs.volcanoes.winston.server.wws.cmd;
 
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,8 +13,11 @@ import gov.usgs.volcanoes.core.time.Time;
 import gov.usgs.volcanoes.core.time.TimeSpan;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.db.Data;
+import gov.usgs.volcanoes.winston.db.DbUtils;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
+import gov.usgs.volcanoes.winston.server.RecentDataCache;
+import gov.usgs.volcanoes.winston.server.RecentDataCache.CachedTraceBuf;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsCommandString;
 import io.netty.channel.ChannelHandlerContext;
@@ -56,7 +61,7 @@ public class GetScnlCommand extends EwDataRequest {
       throw new MalformedCommandException("Cannot parse command. " + cmd);
     }
 
-    final Integer chanId = getChanId(scnl);
+    final Integer chanId = getChanId(ctx, scnl);
     if (chanId == -1) {
       ctx.writeAndFlush(String.format("%s FN%n", cmd.id));
       return;
@@ -66,7 +71,7 @@ public class GetScnlCommand extends EwDataRequest {
     final double startTime = J2kSec.fromEpoch(timeSpan.startTime);
     final double endTime = J2kSec.fromEpoch(timeSpan.endTime);
 
-    final double[] chanTimeSpan = getTimeSpan(chanId);
+    final double[] chanTimeSpan = getTimeSpan(ctx, chanId);
 
     String hdrPreamble = cmd.id + " " + chanId + " " + chan + " ";
     String errorString = null;
@@ -89,17 +94,24 @@ public class GetScnlCommand extends EwDataRequest {
       return;
     }
 
+    final double st = Math.max(startTime, chanTimeSpan[0]);
+    final double et = Math.min(endTime, chanTimeSpan[1]);
+    final List<CachedTraceBuf> cached =
+        getCachedTraceBufs(ctx, DbUtils.scnlAsWinstonCode(scnl), st, et);
+
     final Wave wave;
-    try {
-      wave = databasePool.doCommand(new WinstonConsumer<Wave>() {
-        public Wave execute(WinstonDatabase winston) throws UtilException {
-          double st = Math.max(startTime, chanTimeSpan[0]);
-          double et = Math.min(endTime, chanTimeSpan[1]);
-          return new Data(winston).getWave(chanId, st, et, 0);
-        }
-      });
-    } catch (Exception e) {
-      throw new UtilException("Unable to get chanId");
+    if (cached != null) {
+      wave = RecentDataCache.toWave(cached);
+    } else {
+      try {
+        wave = databasePool.doCommand(new WinstonConsumer<Wave>() {
+          public Wave execute(WinstonDatabase winston) throws UtilException {
+            return new Data(winston).getWave(chanId, st, et, 0);
+          }
+        });
+      } catch (Exception e) {
+        throw new UtilException("Unable to get chanId");
+      }
     }
 
 
@@ -113,16 +125,7 @@ public class GetScnlCommand extends EwDataRequest {
         wave.getSamplingRate());
 
     ctx.write(header);
-    for (int i = 0; i < wave.numSamples(); i++) {
-      int sample = wave.buffer[i];
-      if (sample == Wave.NO_DATA) {
-        ctx.write(fillValue);
-      } else {
-        ctx.write(Integer.toString(wave.buffer[i]));
-      }
-      ctx.writeAndFlush(" ");
-    }
-    ctx.writeAndFlush("\n");
+    new AsciiSampleWriter(ctx, fillValue).write(wave.buffer, wave.numSamples(), Wave.NO_DATA);
   }
 
   protected String prettyRequest(WwsCommandString cmd) {
@@ -5,9 +5,7 @@
 
 package gov.usgs.volcanoes.winston.server.wws.cmd;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -15,18 +13,21 @@ import org.slf4j.LoggerFactory;
 
 import gov.usgs.volcanoes.core.contrib.HashCodeUtil;
 import gov.usgs.volcanoes.core.data.Scnl;
-import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.time.Time;
 import gov.usgs.volcanoes.core.time.TimeSpan;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.db.Data;
 import gov.usgs.volcanoes.winston.db.DbUtils;
+import gov.usgs.volcanoes.winston.db.TraceBufVisitor;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
+import gov.usgs.volcanoes.winston.server.RecentDataCache;
+import gov.usgs.volcanoes.winston.server.RecentDataCache.CachedTraceBuf;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsCommandString;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
 
 /**
  * Answers requests using the earthworm WSV GETSCNLRAW command.
@@ -37,6 +38,14 @@ import io.netty.channel.ChannelHandlerContext;
 public class GetScnlRawCommand extends EwDataRequest {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(GetScnlRawCommand.class);
+  private static final AttributeKey<Integer> rawChunkSizeKey;
+
+  /** most bytes of TraceBufs held in memory while answering a request */
+  private static final int BATCH_SIZE = 4 * 1024 * 1024;
+
+  static {
+    rawChunkSizeKey = AttributeKey.valueOf("rawChunkSize");
+  }
 
   protected Scnl scnl;
   protected TimeSpan timeSpan;
@@ -61,7 +70,7 @@ public class GetScnlRawCommand extends EwDataRequest {
     return scnl.toString(" ");
   }
 
-  public void doCommand(ChannelHandlerContext ctx, WwsCommandString cmd)
+  public void doCommand(final ChannelHandlerContext ctx, WwsCommandString cmd)
       throws MalformedCommandException, UtilException {
 
     parseCommand(cmd);
@@ -73,16 +82,16 @@ public class GetScnlRawCommand extends EwDataRequest {
     final double startTime = J2kSec.fromEpoch(timeSpan.startTime);
     final double endTime = J2kSec.fromEpoch(timeSpan.endTime);
 
-    final Integer chanId = getChanId(scnl);
+    final Integer chanId = getChanId(ctx, scnl);
     if (chanId == -1) {
       LOGGER.info("Cannot find  {}", scnl);
       ctx.writeAndFlush(id + " " + id + " 0 " + chan + " FN\n");
       return;
     }
 
-    final double[] timeSpan = getTimeSpan(chanId);
+    final double[] timeSpan = getTimeSpan(ctx, chanId);
 
-    String hdrPreamble = id + " " + chanId + " " + chan;
+    final String hdrPreamble = id + " " + chanId + " " + chan;
     String errorString = null;
     if (endTime < startTime) {
       errorString = hdrPreamble + " FB";
@@ -98,53 +107,268 @@ public class GetScnlRawCommand extends EwDataRequest {
       return;
     }
 
-    final List<byte[]> bufs;
-    try {
-      bufs = databasePool.doCommand(new WinstonConsumer<List<byte[]>>() {
-        public List<byte[]> execute(WinstonDatabase winston) throws UtilException {
-          double st = Math.max(startTime, timeSpan[0]);
-          double et = Math.min(endTime, timeSpan[1]);
-          if (et < endTime) {
-            LOGGER.debug("Trimming end time: " + J2kSec.toDateString(endTime) + " -> " + J2kSec.toDateString(et) + "\n");
-          }
-          return new Data(winston).getTraceBufBytes(code, st, et, 0);
+    final int chunkSize;
+    final Integer configuredChunkSize = ctx.channel().attr(rawChunkSizeKey).get();
+    if (configuredChunkSize == null) {
+      chunkSize = TraceBufWriter.DEFAULT_CHUNK_SIZE;
+    } else {
+      chunkSize = configuredChunkSize;
+    }
+
+    final double st = Math.max(startTime, timeSpan[0]);
+    final double et = Math.min(endTime, timeSpan[1]);
+    if (et < endTime) {
+      LOGGER.debug("Trimming end time: " + J2kSec.toDateString(endTime) + " -> " + J2kSec.toDateString(et) + "\n");
+    }
+
+    final List<CachedTraceBuf> cached = getCachedTraceBufs(ctx, code, st, et);
+    if (cached != null) {
+      sendTraceBufs(ctx, hdrPreamble, code, st, chunkSize, new TraceBufReader() {
+        public boolean read(double t1, TraceBufVisitor visitor) {
+          RecentDataCache.visit(cached, visitor);
+          return true;
+        }
+
+        public double[] sum(double after) {
+          final TraceBufBatch rest = new TraceBufBatch(after, 0);
+          RecentDataCache.visit(cached, rest);
+          return new double[] {rest.count, rest.length, rest.lastEnd};
         }
       });
-    } catch (Exception e) {
-      throw new UtilException("Unable to get chanId");
+      return;
     }
 
-    if (bufs == null || bufs.size() == 0) {
+    sendTraceBufs(ctx, hdrPreamble, code, st, chunkSize, new TraceBufReader() {
+      public boolean read(final double t1, final TraceBufVisitor visitor) throws UtilException {
+        final Boolean read;
+        try {
+          read = databasePool.doCommand(new WinstonConsumer<Boolean>() {
+            public Boolean execute(WinstonDatabase winston) throws UtilException {
+              return new Data(winston).visitTraceBufs(code, t1, et, 0, visitor);
+            }
+          });
+        } catch (Exception e) {
+          throw new UtilException("Unable to get bufs.");
+        }
+        return read != null && read;
+      }
+
+      public double[] sum(final double after) throws UtilException {
+        try {
+          return databasePool.doCommand(new WinstonConsumer<double[]>() {
+            public double[] execute(WinstonDatabase winston) {
+              return new Data(winston).sumTraceBufLengths(code, after, et);
+            }
+          });
+        } catch (Exception e) {
+          throw new UtilException("Unable to get bufs.");
+        }
+      }
+    });
+  }
+
+  /**
+   * A source of TraceBufs which can be read from a given time.
+   */
+  private interface TraceBufReader {
+    /**
+     * Hand each TraceBuf from a given time to a visitor. The visitor may also be handed earlier
+     * TraceBufs.
+     *
+     * @param t1 start time, J2kSec
+     * @param visitor receives each TraceBuf
+     * @return false if the TraceBufs could not be read
+     * @throws UtilException when things go wrong
+     */
+    boolean read(double t1, TraceBufVisitor visitor) throws UtilException;
+
+    /**
+     * Return the number of TraceBufs after a given time, their total length and the end of the
+     * last, from the same rows as Data.getTraceBufLength.
+     *
+     * @param after time, J2kSec, before the first TraceBuf summed
+     * @return count, length and end time, or null if the TraceBufs could not be read
+     * @throws UtilException when things go wrong
+     */
+    double[] sum(double after) throws UtilException;
+  }
+
+  /**
+   * Send header and TraceBufs. The header must carry the total response length, so TraceBufs are
+   * read into memory, up to BATCH_SIZE bytes, before anything is sent. A response which fits is
+   * read once. For a larger response the lengths of the remaining TraceBufs are summed from their
+   * rows' times, rates and data types, and the TraceBufs are then read a batch at a time as the
+   * previous batch is sent, stopping at the length given in the header so newly arrived data
+   * cannot change it. Should the first batch show rows whose TraceBufs are not the length their
+   * columns give, the remaining TraceBufs are read once more to sum their lengths instead. No rows
+   * are being read, and no database thread is held, while waiting on the client.
+   */
+  private void sendTraceBufs(ChannelHandlerContext ctx, String hdrPreamble, String code,
+      double startTime, int chunkSize, TraceBufReader reader) throws UtilException {
+
+    final TraceBufBatch batch = new TraceBufBatch(Double.NEGATIVE_INFINITY, BATCH_SIZE);
+    if (!reader.read(startTime, batch) || batch.count == 0) {
       ctx.writeAndFlush(hdrPreamble + " FG s4\n");
       LOGGER.debug("Returning empty trace list");
       return;
     }
 
-    final TraceBuf firstBuf;
-    final TraceBuf lastBuf;
-    try {
-      firstBuf = new TraceBuf(bufs.get(0));
-      lastBuf = new TraceBuf(bufs.get(bufs.size() - 1));
-    } catch (IOException e) {
-      throw new UtilException("Unable to get bufs.");
+    int count = batch.count;
+    long length = batch.length;
+    double lastEnd = batch.lastEnd;
+    if (batch.full) {
+      double[] rest = null;
+      if (batch.lengthsKnown) {
+        rest = reader.sum(batch.lastStart);
+      } else {
+        LOGGER.debug("TraceBuf lengths of {} differ from their rows, reading to sum them", code);
+        final TraceBufBatch restBatch = new TraceBufBatch(batch.lastStart, 0);
+        if (reader.read(batch.lastStart, restBatch)) {
+          rest = new double[] {restBatch.count, restBatch.length, restBatch.lastEnd};
+        }
+      }
+      if (rest != null && rest[0] > 0) {
+        count += (int) rest[0];
+        length += (long) rest[1];
+        lastEnd = rest[2];
+      }
     }
 
-    int total = 0;
-    for (final byte[] buf : bufs) {
-      total += buf.length;
+    String hdr = String.format("%s F %s %f %f %d", hdrPreamble, batch.dataType,
+        Time.j2kToEw(batch.firstStart), Time.j2kToEw(lastEnd), length);
+    ctx.write(hdr + "\n");
+    LOGGER.debug("Returning header: {}", hdr);
+
+    new TraceBufSender(ctx, code, reader, new TraceBufWriter(ctx, chunkSize), batch, count,
+        length).run();
+  }
+
+  /**
+   * Sends TraceBufs a batch at a time, up to the count and length given in the header. When the
+   * client falls behind, the rest is left to run on a database thread once it has caught up.
+   */
+  private static class TraceBufSender implements Runnable {
+    private final ChannelHandlerContext ctx;
+    private final String code;
+    private final TraceBufReader reader;
+    private final TraceBufWriter writer;
+    private final int count;
+    private final long length;
+    private TraceBufBatch batch;
+    private int index;
+    private int sent;
+
+    TraceBufSender(ChannelHandlerContext ctx, String code, TraceBufReader reader,
+        TraceBufWriter writer, TraceBufBatch batch, int count, long length) {
+      this.ctx = ctx;
+      this.code = code;
+      this.reader = reader;
+      this.writer = writer;
+      this.batch = batch;
+      this.count = count;
+      this.length = length;
     }
 
-    String hdr = String.format("%s F %s %f %f %d", hdrPreamble, firstBuf.dataType(),
-        firstBuf.getStartTime(), lastBuf.getEndTime(), total);
-    ctx.writeAndFlush(hdr + "\n");
-    LOGGER.debug("Returning header: {}", hdr);
-    final ByteBuffer bb = ByteBuffer.allocate(total);
-    for (final Iterator<byte[]> it = bufs.iterator(); it.hasNext();) {
-      bb.put((byte[]) it.next());
+    public void run() {
+      try {
+        if (send()) {
+          finish();
+        }
+      } catch (UtilException e) {
+        LOGGER.error("Unable to send TraceBufs for {}. ({})", code, e.getMessage());
+        ctx.close();
+      }
+    }
+
+    /**
+     * Send TraceBufs.
+     *
+     * @return true when done, false if the rest was left to a continuation
+     */
+    private boolean send() throws UtilException {
+      while (true) {
+        while (index < batch.traceBufs.size()) {
+          final byte[] traceBuf = batch.traceBufs.get(index);
+          if (sent == count || writer.getBytesWritten() + traceBuf.length > length
+              || !writer.write(traceBuf)) {
+            return true;
+          }
+          index++;
+          sent++;
+          if (writer.continueWhenWritable(this)) {
+            return false;
+          }
+        }
+
+        if (!batch.full || sent >= count) {
+          return true;
+        }
+        final double after = batch.lastStart;
+        batch = new TraceBufBatch(after, BATCH_SIZE);
+        index = 0;
+        if (!reader.read(after, batch) || batch.count == 0) {
+          return true;
+        }
+      }
+    }
+
+    private void finish() {
+      writer.finish();
+      if (writer.getBytesWritten() != length) {
+        LOGGER.info("TraceBufs changed while sending {}. Sent {} of {} bytes, closing connection.",
+            code, writer.getBytesWritten(), length);
+        ctx.close();
+      } else {
+        LOGGER.debug("GETSCNLRAW returning {} bytes", length);
+      }
+    }
+  }
+
+  /**
+   * Collects TraceBufs starting after a given time, and the response header fields, until a byte
+   * limit is reached. With no limit the TraceBufs are counted but not kept. Notes whether each
+   * TraceBuf is the length its row gives.
+   */
+  private static class TraceBufBatch implements TraceBufVisitor {
+    final double after;
+    final long limit;
+    final List<byte[]> traceBufs = new ArrayList<byte[]>();
+    boolean full = false;
+    boolean lengthsKnown = true;
+    int count = 0;
+    long length = 0;
+    String dataType;
+    double firstStart;
+    double lastStart;
+    double lastEnd;
+
+    TraceBufBatch(double after, long limit) {
+      this.after = after;
+      this.limit = limit;
+    }
+
+    public boolean visit(double st, double et, double sr, String dataType, byte[] traceBuf) {
+      if (st <= after) {
+        return true;
+      }
+      if (limit > 0) {
+        if (count > 0 && length + traceBuf.length > limit) {
+          full = true;
+          return false;
+        }
+        traceBufs.add(traceBuf);
+      }
+      if (count == 0) {
+        this.dataType = dataType;
+        firstStart = st;
+      }
+      lastStart = st;
+      lastEnd = et;
+      length += traceBuf.length;
+      lengthsKnown &= traceBuf.length == Data.getTraceBufLength(st, et, sr, dataType);
+      count++;
+      return true;
     }
-    bb.flip();
-    LOGGER.debug("GETSCNLRAW returning {} bytes", bb.capacity());
-    ctx.write(bb.array());
   }
 
   @Override
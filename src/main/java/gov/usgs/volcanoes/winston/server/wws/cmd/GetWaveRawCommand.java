@@ -6,6 +6,7 @@
 package gov.usgs.volcanoes.winston.server.wws.cmd;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +21,8 @@ import gov.usgs.volcanoes.winston.db.Data;
 import gov.usgs.volcanoes.winston.db.DbUtils;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
+import gov.usgs.volcanoes.winston.server.RecentDataCache;
+import gov.usgs.volcanoes.winston.server.RecentDataCache.CachedTraceBuf;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
 import gov.usgs.volcanoes.winston.server.wws.WwsCommandString;
@@ -58,15 +61,20 @@ public class GetWaveRawCommand extends WwsBaseCommand {
     }
 
     Wave wave = null;
-    try {
-      wave = databasePool.doCommand(new WinstonConsumer<Wave>() {
-        public Wave execute(WinstonDatabase winston) throws UtilException {
-          Data data = new Data(winston);
-          return data.getWave(code, st, et, 0);
-        }
-      });
-    } catch (Exception e1) {
-      LOGGER.info(e1.getMessage());
+    final List<CachedTraceBuf> cached = getCachedTraceBufs(ctx, code, st, et);
+    if (cached != null) {
+      wave = RecentDataCache.toWave(cached);
+    } else {
+      try {
+        wave = databasePool.doCommand(new WinstonConsumer<Wave>() {
+          public Wave execute(WinstonDatabase winston) throws UtilException {
+            Data data = new Data(winston);
+            return data.getWave(code, st, et, 0);
+          }
+        });
+      } catch (Exception e1) {
+        LOGGER.info(e1.getMessage());
+      }
     }
 
     ByteBuffer bb;
@@ -20,7 +20,7 @@ import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
-import gov.usgs.volcanoes.winston.server.GetChannelsConsumer;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
@@ -63,7 +63,7 @@ public class MenuCommand extends WwsBaseCommand {
 
     List<Channel> channels;
     try {
-      channels = databasePool.doCommand(new GetChannelsConsumer());
+      channels = ChannelCatalog.getChannels(ctx, databasePool);
     } catch (Exception e) {
       throw new UtilException(e.getMessage());
     }
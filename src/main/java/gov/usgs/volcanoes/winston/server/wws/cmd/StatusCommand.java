@@ -17,7 +17,7 @@ import gov.usgs.volcanoes.winston.Channel;
 import gov.usgs.volcanoes.winston.db.Channels;
 import gov.usgs.volcanoes.winston.db.WinstonDatabase;
 import gov.usgs.volcanoes.winston.server.ConnectionStatistics;
-import gov.usgs.volcanoes.winston.server.GetChannelsConsumer;
+import gov.usgs.volcanoes.winston.server.ChannelCatalog;
 import gov.usgs.volcanoes.winston.server.MalformedCommandException;
 import gov.usgs.volcanoes.winston.server.WinstonConsumer;
 import gov.usgs.volcanoes.winston.server.wws.WwsBaseCommand;
@@ -63,7 +63,7 @@ public class StatusCommand extends WwsBaseCommand {
 
     List<Channel> sts;
     try {
-      sts = databasePool.doCommand(new GetChannelsConsumer());
+      sts = ChannelCatalog.getChannels(ctx, databasePool);
     } catch (Exception e) {
       throw new UtilException("Unable to get channels for status command");
     }
@@ -0,0 +1,112 @@
+/**
+ * I waive copyright and related rights in the this work worldwide through the CC0 1.0 Universal
+ * public domain dedication. https://creativecommons.org/publicdomain/zero/1.0/legalcode
+ */
+
+package gov.usgs.volcanoes.winston.server.wws.cmd;
+
+import gov.usgs.volcanoes.winston.server.ChannelCommandQueue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Writes raw TraceBufs to a client. TraceBufs are copied into buffers obtained from the channel's
+ * allocator and sent one chunk at a time. The writer never waits on the client; a command should
+ * call continueWhenWritable() between TraceBufs so a slow client pushes back on it without
+ * holding a database thread.
+ *
+ * Must not be used from the channel's event loop.
+ */
+public class TraceBufWriter {
+  /** default chunk size in bytes */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  private final ChannelHandlerContext ctx;
+  private final int chunkSize;
+  private ByteBuf buf;
+  private ChannelFuture lastWrite;
+  private long bytesWritten;
+
+  /**
+   * Constructor.
+   *
+   * @param ctx channel context
+   * @param chunkSize number of bytes to buffer before writing
+   */
+  public TraceBufWriter(ChannelHandlerContext ctx, int chunkSize) {
+    this.ctx = ctx;
+    this.chunkSize = Math.max(chunkSize, 1);
+    bytesWritten = 0;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ctx channel context
+   */
+  public TraceBufWriter(ChannelHandlerContext ctx) {
+    this(ctx, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Write a TraceBuf.
+   *
+   * @param traceBuf the TraceBuf
+   * @return false if the channel was closed before the TraceBuf could be written
+   */
+  public boolean write(byte[] traceBuf) {
+    int offset = 0;
+    while (offset < traceBuf.length) {
+      if (buf == null) {
+        buf = ctx.alloc().buffer(chunkSize);
+      }
+
+      final int length = Math.min(chunkSize - buf.writerIndex(), traceBuf.length - offset);
+      buf.writeBytes(traceBuf, offset, length);
+      offset += length;
+
+      if (buf.writerIndex() >= chunkSize && !writeChunk()) {
+        return false;
+      }
+    }
+    bytesWritten += traceBuf.length;
+    return true;
+  }
+
+  /**
+   * Write any buffered TraceBufs.
+   */
+  public void finish() {
+    if (buf != null) {
+      ctx.writeAndFlush(buf);
+      buf = null;
+    }
+  }
+
+  /**
+   * Leave the rest of the command to a task, run once the last chunk has been written, if the
+   * channel will not take more now. See ChannelCommandQueue.continueWhenWritable().
+   *
+   * @param task the rest of the command
+   * @return true if the command must return and leave the rest to the task
+   */
+  public boolean continueWhenWritable(Runnable task) {
+    return ChannelCommandQueue.continueWhenWritable(ctx, lastWrite, task);
+  }
+
+  /**
+   * Return number of bytes accepted by write().
+   *
+   * @return byte count
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  private boolean writeChunk() {
+    lastWrite = ctx.writeAndFlush(buf);
+    buf = null;
+    return ctx.channel().isActive();
+  }
+}
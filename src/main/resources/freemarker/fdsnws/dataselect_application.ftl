@@ -18,6 +18,7 @@
 		    <param name="station" style="query"  type="xs:string"/>
 		    <param name="location" style="query" type="xs:string"/>
 		    <param name="channel" style="query" type="xs:string"/>
+		    <param name="recordlength" style="query" type="xs:int" default="4096"/>
 	      </request>
           <response>
             <representation mediaType="text/plain"/>
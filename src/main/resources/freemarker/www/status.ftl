@@ -46,6 +46,54 @@
 							<TD>most recent</TD>
 							<TD>${mostRecentChan} ${mostRecentTime} seconds ago</TD>
 						</TR>
+						<TR STYLE="background: #eeffee;">
+							<TD ALIGN=center COLSPAN=2><B>Database Queue</B></TD>
+						</TR>
+						<TR STYLE="background: #eeeeff;">
+							<TD>active commands</TD>
+							<TD>${dbActiveCount}</TD>
+						</TR>
+						<TR>
+							<TD>queue depth</TD>
+							<TD>${dbQueueDepth} of ${dbQueueSize}</TD>
+						</TR>
+						<TR STYLE="background: #eeeeff;">
+							<TD>mean wait</TD>
+							<TD>${dbMeanWait} ms</TD>
+						</TR>
+						<TR>
+							<TD>max wait</TD>
+							<TD>${dbMaxWait?c} ms</TD>
+						</TR>
+						<TR STYLE="background: #eeeeff;">
+							<TD>completed commands</TD>
+							<TD>${dbCompletedCount?c}</TD>
+						</TR>
+						<TR>
+							<TD>rejected commands</TD>
+							<TD>${dbRejectedCount?c}</TD>
+						</TR>
+						<#if cacheEnabled>
+						<TR STYLE="background: #eeffee;">
+							<TD ALIGN=center COLSPAN=2><B>Recent Data Cache</B></TD>
+						</TR>
+						<TR STYLE="background: #eeeeff;">
+							<TD>window</TD>
+							<TD>${cacheWindow} seconds</TD>
+						</TR>
+						<TR>
+							<TD>cached channels</TD>
+							<TD>${cacheChannelCount}</TD>
+						</TR>
+						<TR STYLE="background: #eeeeff;">
+							<TD>hits</TD>
+							<TD>${cacheHitCount?c}</TD>
+						</TR>
+						<TR>
+							<TD>misses</TD>
+							<TD>${cacheMissCount?c}</TD>
+						</TR>
+						</#if>
 						<TR STYLE="background: #eeffee;">
 							<TD ALIGN=center COLSPAN=2><B>Data Freshness</B></TD>
 						</TR>
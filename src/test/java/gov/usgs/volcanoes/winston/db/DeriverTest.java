@@ -0,0 +1,99 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+/**
+ * Checks the Deriver's consistency test against a day written by InputEW, on a local MySQL
+ * server. Skipped unless a server is given, for example:
+ *
+ * mvn test -Dtest=DeriverTest -Dwinston.test.url=jdbc:mysql://localhost/?user=root
+ */
+public class DeriverTest {
+  private static final String URL = System.getProperty("winston.test.url");
+  private static final String PREFIX = "DERIVERTEST";
+  private static final Scnl SCNL = new Scnl("DRV", "SHZ", "AK", "--");
+  private static final String CODE = DbUtils.scnlAsWinstonCode(SCNL);
+  private static final String DATE = "2005_03_27";
+  private static final int SECONDS = 3600;
+  private static final int RATE = 100;
+
+  private WinstonDatabase winston;
+  private Deriver.DayJob day;
+
+  @Before
+  public void setUp() throws SQLException {
+    assumeTrue(URL != null);
+    winston = new WinstonDatabase(Merge.DRIVER, URL, PREFIX);
+    drop();
+    winston.checkDatabase();
+    new Channels(winston).createChannel(CODE);
+
+    double dayStart = HelicorderRollup.getDayStart(DATE);
+    day = new Deriver.DayJob(CODE, DATE, dayStart, dayStart + 86400);
+
+    // an hour of one second TraceBufs in the middle of the day
+    List<TraceBuf> tbs = new ArrayList<TraceBuf>(SECONDS);
+    Random random = new Random(1);
+    for (int s = 0; s < SECONDS; s++) {
+      int[] samples = new int[RATE];
+      for (int i = 0; i < RATE; i++) {
+        samples[i] = random.nextInt(2000) - 1000;
+      }
+      TraceBuf tb = new TraceBuf(CODE, new Wave(samples, dayStart + 36000 + s, RATE));
+      tb.createBytes();
+      tbs.add(tb);
+    }
+    InputEW input = new InputEW(winston);
+    input.setRowParameters(SECONDS + 5, 100);
+    input.inputTraceBufs(tbs, true, 10, 60);
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    if (winston != null) {
+      drop();
+      winston.close();
+    }
+  }
+
+  @Test
+  public void complete_day_is_consistent() throws SQLException {
+    assertTrue(Deriver.isConsistent(winston, day));
+  }
+
+  @Test
+  public void missing_helicorder_samples_are_found() throws SQLException {
+    // ten minutes of rows lose their samples
+    winston.useDatabase(CODE);
+    winston.getStatement().execute("UPDATE `" + CODE + "$$H" + DATE
+        + "` SET rcnt = 0 WHERE j2ksec < " + (day.t1 + 36600));
+    assertFalse(Deriver.isConsistent(winston, day));
+  }
+
+  @Test
+  public void missing_helicorder_table_is_found() throws SQLException {
+    winston.useDatabase(CODE);
+    winston.getStatement().execute("DROP TABLE `" + CODE + "$$H" + DATE + "`");
+    assertFalse(Deriver.isConsistent(winston, day));
+  }
+
+  private void drop() throws SQLException {
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_ROOT`");
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_" + CODE + "`");
+  }
+}
@@ -0,0 +1,138 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+/**
+ * Times Export.export() from a local MySQL server, for each streamed format, with channels
+ * exported one at a time and all at once. A synthetic day of four 100 sps channels in one second
+ * TraceBufs is written to day tables first, so each export reads and decompresses TraceBufs just
+ * as it would from a live Winston. Heap use is sampled during each export to show it does not
+ * grow with the length of the export.
+ *
+ * Run with: java -cp target/test-classes:target/classes:... ExportBenchmark
+ * jdbc:mysql://localhost/?user=root
+ */
+public class ExportBenchmark {
+  private static final String PREFIX = "EXPORTBENCH";
+  private static final int CHANNELS = 4;
+  private static final int SECONDS = 86400;
+  private static final int RATE = 100;
+  private static final double START = 5e8;
+  private static final int BATCH = 3600;
+
+  private static volatile long peakHeap;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1) {
+      System.err.println("Usage: ExportBenchmark <jdbc url>");
+      System.exit(1);
+    }
+
+    List<String> codes = new ArrayList<String>();
+    for (int c = 0; c < CHANNELS; c++) {
+      codes.add(DbUtils.scnlAsWinstonCode(new Scnl("S" + c, "BHZ", "XX", "--")));
+    }
+
+    File dir = new File(System.getProperty("java.io.tmpdir"), "ExportBenchmark");
+    dir.mkdirs();
+    WinstonDatabase winston = new WinstonDatabase(Merge.DRIVER, args[0], PREFIX);
+    try {
+      drop(winston, codes);
+      winston.checkDatabase();
+      long start = System.nanoTime();
+      for (int c = 0; c < CHANNELS; c++) {
+        load(winston, codes.get(c), c);
+      }
+      System.out.printf("Loaded %d channel days in %.1f s%n", CHANNELS,
+          (System.nanoTime() - start) / 1e9);
+
+      Export export = new Export(winston);
+      String prefix = new File(dir, "bench").getPath();
+      for (Export.Format format : new Export.Format[] {Export.Format.MSEED, Export.Format.SAC,
+          Export.Format.TRACEBUF}) {
+        for (int threads : new int[] {1, CHANNELS}) {
+          Thread sampler = startSampler();
+          start = System.nanoTime();
+          export.export(codes, prefix, START, START + SECONDS, format, threads);
+          double seconds = (System.nanoTime() - start) / 1e9;
+          sampler.interrupt();
+          sampler.join();
+
+          long samples = (long) CHANNELS * SECONDS * RATE;
+          System.out.printf("%-8s %d thread(s): %6.2f s, %5.1f M samples/s, peak heap %5.1f MB%n",
+              format, threads, seconds, samples / seconds / 1e6, peakHeap / 1e6);
+          for (File file : dir.listFiles()) {
+            file.delete();
+          }
+        }
+      }
+    } finally {
+      drop(winston, codes);
+      winston.close();
+      dir.delete();
+    }
+  }
+
+  /**
+   * Write a day of a random walk, which compresses like real data, to a channel.
+   */
+  private static void load(WinstonDatabase winston, String code, int seed) {
+    new Channels(winston).createChannel(code);
+    InputEW input = new InputEW(winston);
+    Random random = new Random(seed);
+    int value = 0;
+    List<TraceBuf> batch = new ArrayList<TraceBuf>(BATCH);
+    for (int s = 0; s < SECONDS; s++) {
+      int[] samples = new int[RATE];
+      for (int i = 0; i < RATE; i++) {
+        value += random.nextInt(201) - 100;
+        samples[i] = value;
+      }
+      TraceBuf tb = new TraceBuf(code, new Wave(samples, START + s, RATE));
+      tb.createBytes();
+      batch.add(tb);
+      if (batch.size() == BATCH) {
+        input.bulkInputTraceBufs(batch, false, 0, 0);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      input.bulkInputTraceBufs(batch, false, 0, 0);
+    }
+  }
+
+  private static Thread startSampler() {
+    peakHeap = 0;
+    Thread sampler = new Thread() {
+      public void run() {
+        Runtime runtime = Runtime.getRuntime();
+        while (!isInterrupted()) {
+          peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    };
+    sampler.setDaemon(true);
+    sampler.start();
+    return sampler;
+  }
+
+  private static void drop(WinstonDatabase winston, List<String> codes) throws SQLException {
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_ROOT`");
+    for (String code : codes) {
+      winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_" + code + "`");
+    }
+  }
+}
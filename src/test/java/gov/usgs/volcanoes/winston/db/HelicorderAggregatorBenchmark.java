@@ -0,0 +1,142 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import gov.usgs.volcanoes.winston.db.InputEW.HeliFields;
+
+/**
+ * Times helicorder aggregation of an hour of one second TraceBufs at 100 and 500 samples per
+ * second, comparing per sample running means over rows held in a TreeMap with the primitive
+ * kernel over rows held in a ring.
+ *
+ * Run with: java -cp target/test-classes:target/classes HelicorderAggregatorBenchmark
+ */
+public class HelicorderAggregatorBenchmark {
+  private static final int SECONDS = 3600;
+  private static final int MAX_ROWS = 300;
+  private static final int ROWS_TO_DELETE = 60;
+  private static final int DELTA = 10;
+  private static final int DURATION = 60;
+  private static final int ITERATIONS = 10;
+
+  public static void main(String[] args) {
+    for (int rate : new int[] {100, 500}) {
+      Random random = new Random(rate);
+      int[][] bufs = new int[SECONDS][rate];
+      for (int[] buf : bufs) {
+        for (int i = 0; i < buf.length; i++) {
+          buf[i] = 1000 + (int) (random.nextGaussian() * 500);
+        }
+      }
+      // start part way through a second so each TraceBuf spans two rows
+      double start = 5e8 + 0.25;
+
+      // warm up, then time
+      double mapSum = map(bufs, start, rate);
+      double ringSum = ring(bufs, start, rate);
+
+      long begin = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        mapSum = map(bufs, start, rate);
+      }
+      double mapMs = (System.nanoTime() - begin) / 1e6 / ITERATIONS;
+
+      begin = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        ringSum = ring(bufs, start, rate);
+      }
+      double ringMs = (System.nanoTime() - begin) / 1e6 / ITERATIONS;
+
+      System.out.printf("%3d sps: map %8.3f ms (%.1f), ring %8.3f ms (%.1f)%n", rate, mapMs, mapSum,
+          ringMs, ringSum);
+    }
+  }
+
+  /**
+   * Aggregate as before the kernel, returning the sum of RSAM for comparison.
+   */
+  private static double map(int[][] bufs, double start, int rate) {
+    SortedMap<Double, double[]> rows = new TreeMap<Double, double[]>();
+    double rsam = 0;
+    for (int b = 0; b < bufs.length; b++) {
+      double st = start + b;
+      double fst = Math.floor(st);
+      double cet = Math.ceil(st + 1);
+      double[][] heliList = new double[((int) Math.round(cet - fst)) + 1][];
+      int j = 0;
+      for (int i = (int) Math.round(fst); i <= (int) Math.round(cet); i++) {
+        double[] d = rows.get((double) i);
+        if (d == null) {
+          d = new double[] {i, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0, 0, 0};
+          rows.put((double) i, d);
+          if (rows.size() > MAX_ROWS) {
+            for (int k = 0; k < ROWS_TO_DELETE; k++) {
+              rows.remove(rows.firstKey());
+            }
+          }
+        }
+        d[HeliFields.MU] = mapMu(rows, i);
+        heliList[j++] = d;
+      }
+
+      double dt = 1.0 / rate;
+      for (int i = 0; i < bufs[b].length; i++) {
+        double[] d = heliList[(int) (Math.floor(st) - fst)];
+        int sample = bufs[b][i];
+        d[HeliFields.SMIN] = Math.min(d[HeliFields.SMIN], sample);
+        d[HeliFields.SMAX] = Math.max(d[HeliFields.SMAX], sample);
+        d[HeliFields.RSAM] =
+            (d[HeliFields.RSAM] * d[HeliFields.RCNT] + Math.abs(sample)) / (d[HeliFields.RCNT] + 1);
+        d[HeliFields.MEAN] =
+            (d[HeliFields.MEAN] * d[HeliFields.RCNT] + sample) / (d[HeliFields.RCNT] + 1);
+        d[HeliFields.WEIGHTED_RSAM] =
+            (d[HeliFields.WEIGHTED_RSAM] * d[HeliFields.RCNT] + Math.abs(sample - d[HeliFields.MU]))
+                / (d[HeliFields.RCNT] + 1);
+        d[HeliFields.RCNT]++;
+        st += dt;
+      }
+      rsam += heliList[0][HeliFields.WEIGHTED_RSAM];
+    }
+    return rsam;
+  }
+
+  private static double mapMu(SortedMap<Double, double[]> rows, double j2ksec) {
+    double sampleSum = 0;
+    double sampleCount = 0;
+    for (int k = -DELTA - DURATION; k < -DELTA; k++) {
+      double[] hr = rows.get(j2ksec + k);
+      if (hr != null) {
+        sampleSum += hr[HeliFields.MEAN] * hr[HeliFields.RCNT];
+        sampleCount += hr[HeliFields.RCNT];
+      }
+    }
+    return sampleCount == 0 ? 0 : sampleSum / sampleCount;
+  }
+
+  private static double ring(int[][] bufs, double start, int rate) {
+    HelicorderRing rows = new HelicorderRing(MAX_ROWS);
+    double rsam = 0;
+    for (int b = 0; b < bufs.length; b++) {
+      double st = start + b;
+      double fst = Math.floor(st);
+      double cet = Math.ceil(st + 1);
+      double[][] heliList = new double[((int) Math.round(cet - fst)) + 1][];
+      int j = 0;
+      for (long i = (long) fst; i <= (long) cet; i++) {
+        double[] d = rows.get(i);
+        if (d == null) {
+          d = new double[] {i, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0, 0, 0};
+          rows.put(i, d);
+        }
+        d[HeliFields.MU] = rows.getMu(i, DELTA, DURATION);
+        heliList[j++] = d;
+      }
+
+      HelicorderAggregator.addSamples(heliList, fst, bufs[b], bufs[b].length, st, rate, true);
+      rsam += heliList[0][HeliFields.WEIGHTED_RSAM];
+    }
+    return rsam;
+  }
+}
@@ -0,0 +1,117 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.winston.db.InputEW.HeliFields;
+
+public class HelicorderAggregatorTest {
+  private static final double FIRST_SECOND = 5e8;
+  private static final int ROWS = 4;
+
+  @Test
+  public void matches_per_sample_aggregation_across_second_boundary() {
+    for (int rate : new int[] {4, 32, 128}) {
+      int[] samples = samples(rate, rate * 2);
+      // start half way through a second so the samples span three rows
+      double start = FIRST_SECOND + 0.5;
+
+      double[][] expected = rows();
+      double[][] actual = rows();
+      addSamples(expected, samples, samples.length, start, rate, true);
+      HelicorderAggregator.addSamples(actual, FIRST_SECOND, samples, samples.length, start, rate,
+          true);
+      assertRows(expected, actual);
+    }
+  }
+
+  @Test
+  public void adds_only_count_samples() {
+    int[] samples = samples(32, 64);
+    double[][] expected = rows();
+    double[][] actual = rows();
+    addSamples(expected, samples, 40, FIRST_SECOND + 0.25, 32, true);
+    HelicorderAggregator.addSamples(actual, FIRST_SECOND, samples, 40, FIRST_SECOND + 0.25, 32,
+        true);
+    assertRows(expected, actual);
+  }
+
+  @Test
+  public void leaves_rsam_fields_alone_without_rsam() {
+    int[] samples = samples(32, 64);
+    double[][] expected = rows();
+    double[][] actual = rows();
+    addSamples(expected, samples, samples.length, FIRST_SECOND + 0.5, 32, false);
+    HelicorderAggregator.addSamples(actual, FIRST_SECOND, samples, samples.length,
+        FIRST_SECOND + 0.5, 32, false);
+    assertRows(expected, actual);
+  }
+
+  private static int[] samples(int seed, int count) {
+    Random random = new Random(seed);
+    int[] samples = new int[count];
+    for (int i = 0; i < count; i++) {
+      samples[i] = random.nextInt(20001) - 10000;
+    }
+    samples[count / 3] = -Integer.MAX_VALUE;
+    samples[count / 2] = Integer.MAX_VALUE;
+    return samples;
+  }
+
+  /**
+   * Rows for four seconds. The first already holds samples and each has its own DC offset.
+   */
+  private static double[][] rows() {
+    double[][] rows = new double[ROWS][];
+    for (int i = 0; i < ROWS; i++) {
+      rows[i] = new double[] {FIRST_SECOND + i, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0,
+          100 * i - 50, 0};
+    }
+    double[] d = rows[0];
+    d[HeliFields.SMIN] = -20000;
+    d[HeliFields.SMAX] = 5;
+    d[HeliFields.RCNT] = 7;
+    d[HeliFields.RSAM] = 300;
+    d[HeliFields.MEAN] = -12.5;
+    d[HeliFields.WEIGHTED_RSAM] = 250;
+    return rows;
+  }
+
+  /**
+   * Aggregate one sample at a time, as InputEW did before HelicorderAggregator.
+   */
+  private static void addSamples(double[][] rows, int[] samples, int count, double startTime,
+      double samplingRate, boolean computeRsam) {
+    double st = startTime;
+    double dt = 1 / samplingRate;
+    for (int i = 0; i < count; i++) {
+      double[] d = rows[(int) (Math.floor(st) - FIRST_SECOND)];
+      int sample = samples[i];
+      d[HeliFields.SMIN] = Math.min(d[HeliFields.SMIN], sample);
+      d[HeliFields.SMAX] = Math.max(d[HeliFields.SMAX], sample);
+      if (computeRsam) {
+        d[HeliFields.RSAM] = (d[HeliFields.RSAM] * d[HeliFields.RCNT] + Math.abs(sample))
+            / (d[HeliFields.RCNT] + 1);
+        d[HeliFields.MEAN] =
+            (d[HeliFields.MEAN] * d[HeliFields.RCNT] + sample) / (d[HeliFields.RCNT] + 1);
+        d[HeliFields.WEIGHTED_RSAM] =
+            (d[HeliFields.WEIGHTED_RSAM] * d[HeliFields.RCNT] + Math.abs(sample - d[HeliFields.MU]))
+                / (d[HeliFields.RCNT] + 1);
+        d[HeliFields.RCNT]++;
+      }
+      st += dt;
+    }
+  }
+
+  private static void assertRows(double[][] expected, double[][] actual) {
+    for (int i = 0; i < expected.length; i++) {
+      for (int f = 0; f < expected[i].length; f++) {
+        double tolerance = Math.abs(expected[i][f]) * 1e-9;
+        assertEquals("row " + i + " field " + f, expected[i][f], actual[i][f], tolerance);
+      }
+    }
+  }
+}
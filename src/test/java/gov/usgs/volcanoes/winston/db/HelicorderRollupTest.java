@@ -0,0 +1,198 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.data.HelicorderData;
+import gov.usgs.volcanoes.core.data.RSAMData;
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.math.DownsamplingType;
+
+/**
+ * Compares helicorder and RSAM reads from rollups with the same reads from per-second rows, on a
+ * local MySQL server. Skipped unless a server is given, for example:
+ *
+ * mvn test -Dtest=HelicorderRollupTest -Dwinston.test.url=jdbc:mysql://localhost/?user=root
+ */
+public class HelicorderRollupTest {
+  private static final String URL = System.getProperty("winston.test.url");
+  private static final String PREFIX = "ROLLUPTEST";
+  private static final Scnl SCNL = new Scnl("CRP", "SHZ", "AK", "--");
+  private static final String CODE = DbUtils.scnlAsWinstonCode(SCNL);
+  private static final String[] DATES = {"2005_03_27", "2005_03_28"};
+  private static final double EPSILON = 1e-9;
+
+  private WinstonDatabase winston;
+  private double t1;
+  private double t2;
+
+  @Before
+  public void setUp() throws SQLException {
+    assumeTrue(URL != null);
+    winston = new WinstonDatabase(Merge.DRIVER, URL, PREFIX);
+    drop();
+    winston.checkDatabase();
+    new Channels(winston).createChannel(CODE);
+    winston.useDatabase(CODE);
+
+    Random random = new Random(1);
+    for (String date : DATES) {
+      String table = CODE + "$$H" + date;
+      winston.getStatement().execute("CREATE TABLE `" + table
+          + "` (j2ksec DOUBLE PRIMARY KEY, smin INT, smax INT, rcnt INT, rsam DOUBLE)");
+      double dayStart = HelicorderRollup.getDayStart(date);
+      StringBuilder sql = new StringBuilder();
+      for (int i = 0; i < 86400; i++) {
+        // leave gaps and seconds without samples
+        if (i % 5000 < 300) {
+          continue;
+        }
+        int rcnt = i % 997 == 0 ? 0 : 100;
+        int smin = random.nextInt(2000) - 1000;
+        sql.append(sql.length() == 0 ? "" : ",").append('(').append(dayStart + i).append(',')
+            .append(smin).append(',').append(smin + random.nextInt(1000)).append(',').append(rcnt)
+            .append(',').append(random.nextDouble() * 500).append(')');
+        if (sql.length() > 500000) {
+          winston.getStatement().execute("INSERT INTO `" + table + "` VALUES " + sql);
+          sql.setLength(0);
+        }
+      }
+      winston.getStatement().execute("INSERT INTO `" + table + "` VALUES " + sql);
+    }
+
+    t1 = HelicorderRollup.getDayStart(DATES[0]) + 7200;
+    // whole hours, so every bin is complete
+    t2 = HelicorderRollup.getDayStart(DATES[1]) + 14 * 3600 - 1;
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    if (winston != null) {
+      drop();
+      winston.close();
+    }
+  }
+
+  @Test
+  public void rollup_means_match_raw() throws Exception {
+    for (int dsInt : new int[] {600, 3600, 7200}) {
+      RSAMData raw = new Data(winston).getRSAMData(SCNL, t1, t2, 0, DownsamplingType.MEAN, dsInt);
+      rebuild();
+      RSAMData rolled =
+          new Data(winston).getRSAMData(SCNL, t1, t2, 0, DownsamplingType.MEAN, dsInt);
+      assertRowsEqual(raw.getData().toArray(), rolled.getData().toArray());
+      unroll();
+    }
+  }
+
+  @Test
+  public void unaligned_means_match_raw() throws Exception {
+    // start within a minute and within an hour, and end within a minute
+    double[][] spans = {{t1 + 30, t2}, {t1 + 600, t2}, {t1, t2 - 100}};
+    for (double[] span : spans) {
+      for (int dsInt : new int[] {600, 3600}) {
+        RSAMData raw =
+            new Data(winston).getRSAMData(SCNL, span[0], span[1], 0, DownsamplingType.MEAN, dsInt);
+        rebuild();
+        RSAMData rolled =
+            new Data(winston).getRSAMData(SCNL, span[0], span[1], 0, DownsamplingType.MEAN, dsInt);
+        assertRowsEqual(raw.getData().toArray(), rolled.getData().toArray());
+        unroll();
+      }
+    }
+  }
+
+  @Test
+  public void rollup_extremes_match_raw() throws Exception {
+    HelicorderData raw = new Data(winston).getHelicorderData(SCNL, t1, t2, 0);
+    rebuild();
+    for (int binSize : new int[] {HelicorderRollup.MINUTE, HelicorderRollup.HOUR}) {
+      HelicorderData rolled = new Data(winston).getHelicorderData(SCNL, t1, t2, 0, binSize);
+      assertRowsEqual(extremes(raw.getData().toArray(), binSize), rolled.getData().toArray());
+    }
+  }
+
+  @Test
+  public void updated_rows_are_rolled_up() throws Exception {
+    rebuild();
+    String date = DATES[1];
+    double dayStart = HelicorderRollup.getDayStart(date);
+    winston.useDatabase(CODE);
+    winston.getStatement().execute("UPDATE `" + CODE + "$$H" + date
+        + "` SET smin=-5000, rsam=rsam*3 WHERE j2ksec>=" + (dayStart + 1000) + " AND j2ksec<"
+        + (dayStart + 1090));
+    HelicorderRollup.update(winston, CODE, date, dayStart + 1000, dayStart + 1089);
+
+    RSAMData rolled = new Data(winston).getRSAMData(SCNL, t1, t2, 0, DownsamplingType.MEAN, 600);
+    HelicorderData rolledHeli = new Data(winston).getHelicorderData(SCNL, t1, t2, 0, 60);
+    unroll();
+    RSAMData raw = new Data(winston).getRSAMData(SCNL, t1, t2, 0, DownsamplingType.MEAN, 600);
+    HelicorderData rawHeli = new Data(winston).getHelicorderData(SCNL, t1, t2, 0);
+
+    assertRowsEqual(raw.getData().toArray(), rolled.getData().toArray());
+    assertRowsEqual(extremes(rawHeli.getData().toArray(), 60), rolledHeli.getData().toArray());
+  }
+
+  private void rebuild() {
+    for (String date : DATES) {
+      HelicorderRollup.rebuild(winston, CODE, date);
+    }
+  }
+
+  private void unroll() throws SQLException {
+    winston.useDatabase(CODE);
+    winston.getStatement().execute("DELETE FROM `" + CODE + "$$Rdays`");
+  }
+
+  /**
+   * Reduce per-second rows to the first time, least minimum and greatest maximum of each bin.
+   */
+  private static double[][] extremes(double[][] rows, int binSize) {
+    List<double[]> bins = new ArrayList<double[]>();
+    double[] bin = null;
+    for (double[] row : rows) {
+      double start = Math.floor(row[0] / binSize) * binSize;
+      if (bin == null || bin[0] != start) {
+        bin = new double[] {start, row[1], row[2]};
+        bins.add(bin);
+      } else {
+        bin[1] = Math.min(bin[1], row[1]);
+        bin[2] = Math.max(bin[2], row[2]);
+      }
+    }
+    return bins.toArray(new double[bins.size()][]);
+  }
+
+  private static void assertRowsEqual(double[][] expected, double[][] actual) {
+    assertEquals(expected.length, actual.length);
+    // grouped rows come back in no particular order
+    Comparator<double[]> byTime = new Comparator<double[]>() {
+      public int compare(double[] a, double[] b) {
+        return Double.compare(a[0], b[0]);
+      }
+    };
+    Arrays.sort(expected, byTime);
+    Arrays.sort(actual, byTime);
+    for (int i = 0; i < expected.length; i++) {
+      for (int j = 0; j < expected[i].length; j++) {
+        assertEquals(expected[i][j], actual[i][j], EPSILON * Math.max(1, Math.abs(expected[i][j])));
+      }
+    }
+  }
+
+  private void drop() throws SQLException {
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_ROOT`");
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_" + CODE + "`");
+  }
+}
@@ -0,0 +1,91 @@
+package gov.usgs.volcanoes.winston.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+import gov.usgs.volcanoes.winston.db.InputEW.InputResult;
+
+/**
+ * Times TraceBuf inserts into a local MySQL server, writing an hour of one second, 100 sps
+ * TraceBufs. With one TraceBuf per call each TraceBuf gets its own INSERT, as every TraceBuf did
+ * before inserts were batched. With a minute of TraceBufs per call they are inserted in batches.
+ * Helicorder rows and time spans are written as usual in both cases.
+ *
+ * Run with: java -cp target/test-classes:target/classes:... InputEWBenchmark
+ * jdbc:mysql://localhost/?user=root
+ */
+public class InputEWBenchmark {
+  private static final String PREFIX = "INPUTEWBENCH";
+  private static final Scnl SCNL = new Scnl("BENCH", "HHZ", "XX", "--");
+  private static final String CODE = DbUtils.scnlAsWinstonCode(SCNL);
+  private static final int SECONDS = 3600;
+  private static final int RATE = 100;
+  private static final double START = 5e8;
+  private static final int MAX_ROWS = 300;
+  private static final int ROWS_TO_DELETE = 60;
+  private static final int DELTA = 10;
+  private static final int DURATION = 60;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1) {
+      System.err.println("Usage: InputEWBenchmark <jdbc url>");
+      System.exit(1);
+    }
+
+    List<TraceBuf> traceBufs = createTraceBufs();
+    WinstonDatabase winston = new WinstonDatabase(Merge.DRIVER, args[0], PREFIX);
+    try {
+      for (int perCall : new int[] {1, 60}) {
+        drop(winston);
+        winston.checkDatabase();
+        new Channels(winston).createChannel(CODE);
+
+        InputEW input = new InputEW(winston);
+        input.setRowParameters(MAX_ROWS, ROWS_TO_DELETE);
+        int errors = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < traceBufs.size(); i += perCall) {
+          List<TraceBuf> batch = traceBufs.subList(i, Math.min(i + perCall, traceBufs.size()));
+          for (InputResult result : input.inputTraceBufs(batch, true, DELTA, DURATION)) {
+            if (result.code.name().startsWith("ERROR")) {
+              errors++;
+            }
+          }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%2d TraceBuf(s) per call: %6.2f s, %6.0f rows/s, %d errors%n", perCall,
+            seconds, traceBufs.size() / seconds, errors);
+      }
+    } finally {
+      drop(winston);
+      winston.close();
+    }
+  }
+
+  private static List<TraceBuf> createTraceBufs() {
+    List<TraceBuf> traceBufs = new ArrayList<TraceBuf>(SECONDS);
+    Random random = new Random(1);
+    int value = 0;
+    for (int s = 0; s < SECONDS; s++) {
+      int[] samples = new int[RATE];
+      for (int i = 0; i < RATE; i++) {
+        value += random.nextInt(201) - 100;
+        samples[i] = value;
+      }
+      TraceBuf tb = new TraceBuf(CODE, new Wave(samples, START + s, RATE));
+      tb.createBytes();
+      traceBufs.add(tb);
+    }
+    return traceBufs;
+  }
+
+  private static void drop(WinstonDatabase winston) throws SQLException {
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_ROOT`");
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_" + CODE + "`");
+  }
+}
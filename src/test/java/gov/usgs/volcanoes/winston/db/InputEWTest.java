@@ -0,0 +1,147 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+/**
+ * Checks that bulk inserts of data already in the database leave wave and helicorder rows as they
+ * were, on a local MySQL server. Skipped unless a server is given, for example:
+ *
+ * mvn test -Dtest=InputEWTest -Dwinston.test.url=jdbc:mysql://localhost/?user=root
+ */
+public class InputEWTest {
+  private static final String URL = System.getProperty("winston.test.url");
+  private static final String PREFIX = "INPUTEWTEST";
+  private static final Scnl SCNL = new Scnl("INP", "SHZ", "AK", "--");
+  private static final String CODE = DbUtils.scnlAsWinstonCode(SCNL);
+  private static final String DATE = "2005_03_27";
+  private static final int SECONDS = 600;
+  private static final int RATE = 100;
+
+  private WinstonDatabase winston;
+  private InputEW input;
+  private double start;
+
+  @Before
+  public void setUp() throws SQLException {
+    assumeTrue(URL != null);
+    winston = new WinstonDatabase(Merge.DRIVER, URL, PREFIX);
+    drop();
+    winston.checkDatabase();
+    new Channels(winston).createChannel(CODE);
+    input = new InputEW(winston);
+    input.setRowParameters(SECONDS + 5, 100);
+    start = HelicorderRollup.getDayStart(DATE) + 36000;
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    if (winston != null) {
+      drop();
+      winston.close();
+    }
+  }
+
+  @Test
+  public void repeated_bulk_insert_changes_nothing() throws SQLException {
+    List<TraceBuf> tbs = traceBufs(start);
+    input.bulkInputTraceBufs(tbs, true, 10, 60);
+    List<String> waves = waveRows();
+    List<String> helis = heliRows();
+    assertEquals(SECONDS, waves.size());
+
+    input.bulkInputTraceBufs(tbs, true, 10, 60);
+    assertEquals(waves, waveRows());
+    assertEquals(helis, heliRows());
+  }
+
+  @Test
+  public void bulk_insert_after_insert_changes_nothing() throws SQLException {
+    List<TraceBuf> tbs = traceBufs(start);
+    input.inputTraceBufs(tbs, true, 10, 60);
+    List<String> waves = waveRows();
+    List<String> helis = heliRows();
+
+    input.bulkInputTraceBufs(tbs, true, 10, 60);
+    assertEquals(waves, waveRows());
+    assertEquals(helis, heliRows());
+  }
+
+  @Test
+  public void overlapping_bulk_insert_keeps_covered_seconds() throws SQLException {
+    input.bulkInputTraceBufs(traceBufs(start), true, 10, 60);
+    List<String> helis = heliRows();
+
+    // the same span again, half a second later, as a second source of the channel might send
+    input.bulkInputTraceBufs(traceBufs(start + 0.5), true, 10, 60);
+    List<String> merged = heliRows();
+    assertEquals(helis, merged.subList(0, helis.size()));
+
+    winston.useDatabase(CODE);
+    ResultSet rs = winston.getStatement()
+        .executeQuery("SELECT MAX(rcnt) FROM `" + CODE + "$$H" + DATE + "`");
+    rs.next();
+    assertTrue(rs.getInt(1) <= RATE);
+    rs.close();
+  }
+
+  private List<TraceBuf> traceBufs(double first) {
+    List<TraceBuf> tbs = new ArrayList<TraceBuf>(SECONDS);
+    Random random = new Random(1);
+    for (int s = 0; s < SECONDS; s++) {
+      int[] samples = new int[RATE];
+      for (int i = 0; i < RATE; i++) {
+        samples[i] = random.nextInt(2000) - 1000;
+      }
+      TraceBuf tb = new TraceBuf(CODE, new Wave(samples, first + s, RATE));
+      tb.createBytes();
+      tbs.add(tb);
+    }
+    return tbs;
+  }
+
+  private List<String> waveRows() throws SQLException {
+    return rows("SELECT st, et, sr, datatype, MD5(tracebuf) FROM `" + CODE + "$$" + DATE
+        + "` ORDER BY st", 5);
+  }
+
+  private List<String> heliRows() throws SQLException {
+    return rows("SELECT j2ksec, smin, smax, rcnt, rsam FROM `" + CODE + "$$H" + DATE
+        + "` ORDER BY j2ksec", 5);
+  }
+
+  private List<String> rows(String sql, int columns) throws SQLException {
+    winston.useDatabase(CODE);
+    List<String> rows = new ArrayList<String>();
+    ResultSet rs = winston.getStatement().executeQuery(sql);
+    while (rs.next()) {
+      StringBuilder row = new StringBuilder();
+      for (int i = 1; i <= columns; i++) {
+        row.append(rs.getString(i)).append(' ');
+      }
+      rows.add(row.toString());
+    }
+    rs.close();
+    return rows;
+  }
+
+  private void drop() throws SQLException {
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_ROOT`");
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + PREFIX + "_" + CODE + "`");
+  }
+}
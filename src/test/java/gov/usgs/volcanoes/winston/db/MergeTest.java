@@ -0,0 +1,185 @@
+package gov.usgs.volcanoes.winston.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Merges two Winstons on a local MySQL server and compares the result with a reference copy
+ * holding every row. Skipped unless a server is given, for example:
+ *
+ * mvn test -Dtest=MergeTest -Dwinston.test.url=jdbc:mysql://localhost/?user=root
+ */
+public class MergeTest {
+  private static final String URL = System.getProperty("winston.test.url");
+  private static final String SOURCE = "MERGETEST_SRC";
+  private static final String DEST = "MERGETEST_DST";
+  private static final String REFERENCE = "MERGETEST_REF";
+  private static final String[] CODES = {"CRP_SHZ_AK", "KABU_EHZ_AV"};
+  private static final String[] DATES = {"2005_03_27", "2005_03_28"};
+
+  private WinstonDatabase source;
+  private WinstonDatabase dest;
+  private WinstonDatabase reference;
+
+  @Before
+  public void setUp() throws SQLException {
+    assumeTrue(URL != null);
+    source = create(SOURCE);
+    dest = create(DEST);
+    reference = create(REFERENCE);
+
+    Random random = new Random(1);
+    for (String code : CODES) {
+      for (String date : DATES) {
+        // source holds rows 0-599, destination rows 400-999
+        for (int i = 0; i < 1000; i++) {
+          byte[] tracebuf = new byte[200 + random.nextInt(800)];
+          random.nextBytes(tracebuf);
+          int[] heli = {random.nextInt(), random.nextInt(), random.nextInt(1000)};
+          if (i < 600) {
+            insert(source, code, date, i, tracebuf, heli);
+          }
+          if (i >= 400) {
+            insert(dest, code, date, i, tracebuf, heli);
+          }
+          insert(reference, code, date, i, tracebuf, heli);
+        }
+      }
+    }
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    for (WinstonDatabase winston : new WinstonDatabase[] {source, dest, reference}) {
+      if (winston != null) {
+        drop(winston);
+        winston.close();
+      }
+    }
+  }
+
+  @Test
+  public void merged_tables_match_reference() throws SQLException {
+    Merge merge = new Merge(URL, SOURCE, URL, DEST);
+    merge.setWorkers(3);
+    merge.merge(Arrays.asList(CODES), null, null);
+
+    for (String code : CODES) {
+      for (String date : DATES) {
+        String waves = "SELECT st, et, sr, datatype, HEX(tracebuf) FROM `" + code + "$$" + date
+            + "` ORDER BY st";
+        assertEquals(rows(reference, code, waves), rows(dest, code, waves));
+
+        String helis = "SELECT j2ksec, smin, smax, rcnt, rsam FROM `" + code + "$$H" + date
+            + "` ORDER BY j2ksec";
+        assertEquals(rows(reference, code, helis), rows(dest, code, helis));
+      }
+    }
+  }
+
+  @Test
+  public void merge_is_repeatable() throws SQLException {
+    Merge merge = new Merge(URL, SOURCE, URL, DEST);
+    merge.merge(Arrays.asList(CODES), null, null);
+    merge.merge(Arrays.asList(CODES), null, null);
+
+    String count = "SELECT COUNT(*) FROM `" + CODES[0] + "$$" + DATES[0] + "`";
+    assertEquals(rows(reference, CODES[0], count), rows(dest, CODES[0], count));
+  }
+
+  @Test
+  public void creates_missing_channel() throws SQLException {
+    String code = CODES[1];
+    dest.getStatement().execute("DROP DATABASE `" + DEST + "_" + code + "`");
+    dest.getStatement()
+        .execute("DELETE FROM `" + DEST + "_ROOT`.channels WHERE code='" + code + "'");
+
+    Merge merge = new Merge(URL, SOURCE, URL, DEST);
+    merge.setWorkers(3);
+    merge.merge(Arrays.asList(CODES), null, null);
+
+    String channels = "SELECT COUNT(*) FROM `" + DEST + "_ROOT`.channels WHERE code='" + code + "'";
+    assertEquals(Arrays.asList("1|"), rows(dest, code, channels));
+    for (String date : DATES) {
+      String waves = "SELECT st, et, sr, datatype, HEX(tracebuf) FROM `" + code + "$$" + date
+          + "` ORDER BY st";
+      assertEquals(rows(source, code, waves), rows(dest, code, waves));
+
+      String helis = "SELECT j2ksec, smin, smax, rcnt, rsam FROM `" + code + "$$H" + date
+          + "` ORDER BY j2ksec";
+      assertEquals(rows(source, code, helis), rows(dest, code, helis));
+    }
+  }
+
+  private static WinstonDatabase create(String prefix) throws SQLException {
+    WinstonDatabase winston = new WinstonDatabase(Merge.DRIVER, URL, prefix);
+    drop(winston);
+    winston.checkDatabase();
+    for (String code : CODES) {
+      new Channels(winston).createChannel(code);
+      winston.useDatabase(code);
+      for (String date : DATES) {
+        winston.getStatement().execute("CREATE TABLE `" + code + "$$" + date
+            + "` (st DOUBLE PRIMARY KEY, et DOUBLE, sr DOUBLE, datatype CHAR(3), tracebuf BLOB)");
+        winston.getStatement().execute("CREATE TABLE `" + code + "$$H" + date
+            + "` (j2ksec DOUBLE PRIMARY KEY, smin INT, smax INT, rcnt INT, rsam DOUBLE)");
+      }
+    }
+    return winston;
+  }
+
+  private static void drop(WinstonDatabase winston) throws SQLException {
+    winston.getStatement().execute("DROP DATABASE IF EXISTS `" + winston.databasePrefix + "_ROOT`");
+    for (String code : CODES) {
+      winston.getStatement()
+          .execute("DROP DATABASE IF EXISTS `" + winston.databasePrefix + "_" + code + "`");
+    }
+  }
+
+  private static void insert(WinstonDatabase winston, String code, String date, int i,
+      byte[] tracebuf, int[] heli) throws SQLException {
+    winston.useDatabase(code);
+    double st = 1.646e8 + i * 1.5;
+    PreparedStatement ps = winston.getConnection()
+        .prepareStatement("INSERT INTO `" + code + "$$" + date + "` VALUES (?,?,?,?,?)");
+    ps.setDouble(1, st);
+    ps.setDouble(2, st + 1.49);
+    ps.setDouble(3, 100);
+    ps.setString(4, "s4");
+    ps.setBytes(5, tracebuf);
+    ps.execute();
+    ps.close();
+
+    winston.getStatement().execute("INSERT INTO `" + code + "$$H" + date + "` VALUES (" + (1.646e8
+        + i) + "," + heli[0] + "," + heli[1] + "," + heli[2] + "," + (heli[2] / 7.0) + ")");
+  }
+
+  private static List<String> rows(WinstonDatabase winston, String code, String sql)
+      throws SQLException {
+    winston.useDatabase(code);
+    ResultSet rs = winston.getStatement().executeQuery(sql);
+    int columns = rs.getMetaData().getColumnCount();
+    List<String> rows = new ArrayList<String>();
+    while (rs.next()) {
+      StringBuilder sb = new StringBuilder();
+      for (int c = 1; c <= columns; c++) {
+        sb.append(rs.getString(c)).append('|');
+      }
+      rows.add(sb.toString());
+    }
+    rs.close();
+    return rows;
+  }
+}
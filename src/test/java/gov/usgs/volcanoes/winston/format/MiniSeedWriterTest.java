@@ -0,0 +1,169 @@
+package gov.usgs.volcanoes.winston.format;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.sc.seis.seisFile.mseed.B1000Types;
+import edu.sc.seis.seisFile.mseed.Blockette1000;
+import edu.sc.seis.seisFile.mseed.Btime;
+import edu.sc.seis.seisFile.mseed.DataHeader;
+import edu.sc.seis.seisFile.mseed.DataRecord;
+import edu.sc.seis.seisFile.mseed.SeedFormatException;
+import edu.sc.seis.seisFile.mseed.SeedRecord;
+import gov.usgs.volcanoes.core.data.Scnl;
+
+public class MiniSeedWriterTest {
+
+  private static final Scnl SCNL = new Scnl("STA", "EHZ", "AV", "--");
+
+  @Test
+  public void round_trips_samples_through_steim2() throws IOException {
+    Random random = new Random(42);
+    int[] samples = new int[20000];
+    int value = 0;
+    for (int i = 0; i < samples.length; i++) {
+      // mix of small and large differences to use every packing
+      int scale = 1 << random.nextInt(28);
+      value += random.nextInt(scale) - scale / 2;
+      samples[i] = value;
+    }
+    samples[5000] = Integer.MAX_VALUE;
+    samples[5001] = Integer.MIN_VALUE;
+
+    for (int recordLength : new int[] {512, 4096}) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      MiniSeedWriter writer = new MiniSeedWriter(SCNL, recordLength, out);
+      for (int i = 0; i < samples.length; i += 1000) {
+        writer.write(100 + i / 100.0, 100, samples, i, 1000);
+      }
+      writer.flush();
+
+      byte[] bytes = out.toByteArray();
+      assertEquals(0, bytes.length % recordLength);
+      assertEquals(bytes.length / recordLength, writer.getRecordCount());
+      assertArrayEquals(samples, decode(bytes, recordLength));
+    }
+  }
+
+  @Test
+  public void starts_new_record_at_gap() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MiniSeedWriter writer = new MiniSeedWriter(SCNL, 512, out);
+    writer.write(0, 50, new int[] {1, 2, 3}, 0, 3);
+    writer.write(3 / 50.0, 50, new int[] {4, 5}, 0, 2);
+    writer.write(10, 50, new int[] {6, 7}, 0, 2);
+    writer.flush();
+
+    byte[] bytes = out.toByteArray();
+    assertEquals(2, writer.getRecordCount());
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    assertEquals(5, buf.getShort(30));
+    assertEquals(2, buf.getShort(512 + 30));
+    assertArrayEquals(new int[] {1, 2, 3, 4, 5, 6, 7}, decode(bytes, 512));
+  }
+
+  @Test
+  public void writes_header() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MiniSeedWriter writer = new MiniSeedWriter(SCNL, 512, out);
+
+    // 2000-01-02 12:00:01.2345 UTC
+    writer.write(86401.2345, 100, new int[] {1}, 0, 1);
+    writer.flush();
+
+    ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+    assertEquals("000001D STA    EHZAV", new String(out.toByteArray(), 0, 20, "US-ASCII"));
+    assertEquals(2000, buf.getShort(20));
+    assertEquals(2, buf.getShort(22));
+    assertEquals(12, buf.get(24));
+    assertEquals(0, buf.get(25));
+    assertEquals(1, buf.get(26));
+    assertEquals(2345, buf.getShort(28));
+    assertEquals(100, buf.getShort(32));
+    assertEquals(1, buf.getShort(34));
+    assertEquals(1000, buf.getShort(48));
+    assertEquals(11, buf.get(52));
+    assertEquals(9, buf.get(54));
+  }
+
+  @Test
+  public void expresses_sample_rates() {
+    assertArrayEquals(new short[] {100, 1}, MiniSeedWriter.rateFactorMultiplier(100));
+    assertArrayEquals(new short[] {1005, -10}, MiniSeedWriter.rateFactorMultiplier(100.5));
+    assertArrayEquals(new short[] {-10, 1}, MiniSeedWriter.rateFactorMultiplier(0.1));
+  }
+
+  @Test
+  public void is_read_by_seisfile() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MiniSeedWriter writer = new MiniSeedWriter(SCNL, 512, out);
+    writer.write(86401.2345, 100.5, new int[] {1, -2, 300000, 4}, 0, 4);
+    writer.flush();
+
+    DataRecord record = read(out.toByteArray(), 512).get(0);
+    DataHeader header = record.getHeader();
+    assertEquals("STA", header.getStationIdentifier().trim());
+    assertEquals("EHZ", header.getChannelIdentifier().trim());
+    assertEquals("AV", header.getNetworkCode().trim());
+    assertEquals("", header.getLocationIdentifier().trim());
+    assertEquals(4, header.getNumSamples());
+    assertEquals(1005, header.getSampleRateFactor());
+    assertEquals(-10, header.getSampleRateMultiplier());
+
+    Btime start = header.getStartBtime();
+    assertEquals(2000, start.year);
+    assertEquals(2, start.jday);
+    assertEquals(12, start.hour);
+    assertEquals(1, start.sec);
+    assertEquals(2345, start.tenthMilli);
+
+    Blockette1000 b1000 = (Blockette1000) record.getBlockettes(1000)[0];
+    assertEquals(B1000Types.STEIM2, b1000.getEncodingFormat());
+    assertEquals(9, b1000.getDataRecordLength());
+  }
+
+  /**
+   * Decode records with seisFile's reader and Steim2 decoder.
+   */
+  private static int[] decode(byte[] bytes, int recordLength) throws IOException {
+    int[] samples = new int[0];
+    for (DataRecord record : read(bytes, recordLength)) {
+      int[] decoded;
+      try {
+        decoded = record.decompress().getAsInt();
+      } catch (Exception e) {
+        throw new IOException("Cannot decode record: " + e.getMessage());
+      }
+      assertEquals(record.getHeader().getNumSamples(), decoded.length);
+      int length = samples.length;
+      samples = Arrays.copyOf(samples, length + decoded.length);
+      System.arraycopy(decoded, 0, samples, length, decoded.length);
+    }
+    return samples;
+  }
+
+  private static List<DataRecord> read(byte[] bytes, int recordLength) throws IOException {
+    List<DataRecord> records = new ArrayList<DataRecord>();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      while (in.available() > 0) {
+        records.add((DataRecord) SeedRecord.read(in, recordLength));
+      }
+    } catch (SeedFormatException e) {
+      throw new IOException("Cannot read record: " + e.getMessage());
+    }
+    return records;
+  }
+}
@@ -0,0 +1,192 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+public class ChannelSpoolTest {
+  private static final String CODE = "SPOOL$EHZ$XX$--";
+  private static final double START = 5e8;
+  private static final int RATE = 100;
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void reads_in_order_and_commits() throws IOException {
+    File dir = folder.newFolder();
+    ChannelSpool spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    List<TraceBuf> tbs = append(spool, 0, 5);
+    assertEquals(5, spool.size());
+    assertArrayEquals(tbs.get(0).bytes, spool.peek().bytes);
+
+    assertTraceBufs(tbs.subList(0, 3), spool.read(3));
+    assertEquals(2, spool.size());
+    spool.commit();
+    assertTraceBufs(tbs.subList(3, 5), spool.read(10));
+    spool.commit();
+    assertEquals(0, spool.size());
+    assertNull(spool.peek());
+    spool.close();
+  }
+
+  @Test
+  public void rewind_replays_uncommitted() throws IOException {
+    File dir = folder.newFolder();
+    ChannelSpool spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    List<TraceBuf> tbs = append(spool, 0, 4);
+
+    spool.read(1);
+    spool.commit();
+    assertTraceBufs(tbs.subList(1, 3), spool.read(2));
+    spool.rewind(0);
+    assertEquals(3, spool.size());
+    assertTraceBufs(tbs.subList(1, 4), spool.read(10));
+    spool.close();
+  }
+
+  @Test
+  public void rewind_delays_reads() throws IOException {
+    File dir = folder.newFolder();
+    ChannelSpool spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    append(spool, 0, 1);
+
+    spool.read(1);
+    spool.rewind(60000);
+    assertEquals(1, spool.size());
+    assertNull(spool.peek());
+    spool.close();
+  }
+
+  @Test
+  public void reopen_replays_uncommitted_once() throws IOException {
+    File dir = folder.newFolder();
+    ChannelSpool spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    List<TraceBuf> tbs = append(spool, 0, 5);
+    spool.read(2);
+    spool.commit();
+    spool.read(2);
+    spool.close();
+
+    spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    assertEquals(3, spool.size());
+    assertTraceBufs(tbs.subList(2, 5), spool.read(10));
+    spool.commit();
+    spool.close();
+
+    spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    assertEquals(0, spool.size());
+    assertTrue(spool.read(10).isEmpty());
+    spool.close();
+  }
+
+  @Test
+  public void recovers_without_close() throws IOException {
+    File dir = folder.newFolder();
+    ChannelSpool spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    List<TraceBuf> tbs = append(spool, 0, 4);
+    spool.read(1);
+    spool.commit();
+
+    // abandon the spool as a crash would
+    spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    assertTraceBufs(tbs.subList(1, 4), spool.read(10));
+    spool.close();
+  }
+
+  @Test
+  public void recovers_record_written_without_length() throws IOException {
+    File dir = folder.newFolder();
+    ChannelSpool spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    List<TraceBuf> tbs = append(spool, 0, 3);
+    spool.close();
+
+    // write the next record's body but not its length, as a crash between the two would
+    TraceBuf partial = traceBuf(3);
+    File segment = dir.listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.seek(8 + 3 * (4 + tbs.get(0).bytes.length) + 4);
+      file.write(partial.bytes);
+    } finally {
+      file.close();
+    }
+
+    spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    assertEquals(3, spool.size());
+    tbs.addAll(append(spool, 4, 2));
+    spool.close();
+
+    spool = new ChannelSpool(CODE, dir, SEGMENT_SIZE, false);
+    assertEquals(5, spool.size());
+    assertTraceBufs(tbs, spool.read(10));
+    spool.close();
+  }
+
+  @Test
+  public void rolls_over_segments() throws IOException {
+    File dir = folder.newFolder();
+    int recordSize = 4 + traceBuf(0).bytes.length;
+    int segmentSize = 8 + 3 * recordSize;
+    ChannelSpool spool = new ChannelSpool(CODE, dir, segmentSize, false);
+    List<TraceBuf> tbs = append(spool, 0, 10);
+    assertEquals(4, dir.list().length);
+
+    assertTraceBufs(tbs.subList(0, 7), spool.read(7));
+    spool.commit();
+    assertEquals(2, dir.list().length);
+    spool.read(2);
+    spool.close();
+
+    spool = new ChannelSpool(CODE, dir, segmentSize, false);
+    assertEquals(3, spool.size());
+    tbs.addAll(append(spool, 10, 3));
+    assertTraceBufs(tbs.subList(7, 13), spool.read(20));
+    spool.commit();
+    assertEquals(1, dir.list().length);
+    spool.close();
+  }
+
+  private static List<TraceBuf> append(ChannelSpool spool, int first, int count)
+      throws IOException {
+    List<TraceBuf> tbs = new ArrayList<TraceBuf>(count);
+    for (int i = first; i < first + count; i++) {
+      TraceBuf tb = traceBuf(i);
+      spool.append(tb);
+      tbs.add(tb);
+    }
+    return tbs;
+  }
+
+  private static TraceBuf traceBuf(int second) {
+    int[] samples = new int[RATE];
+    for (int i = 0; i < RATE; i++) {
+      samples[i] = second * RATE + i;
+    }
+    TraceBuf tb = new TraceBuf(CODE, new Wave(samples, START + second, RATE));
+    tb.createBytes();
+    return tb;
+  }
+
+  private static void assertTraceBufs(List<TraceBuf> expected, List<TraceBuf> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i).bytes, actual.get(i).bytes);
+    }
+  }
+}
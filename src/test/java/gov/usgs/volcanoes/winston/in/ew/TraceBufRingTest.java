@@ -0,0 +1,156 @@
+package gov.usgs.volcanoes.winston.in.ew;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.legacy.ew.message.TraceBuf;
+
+public class TraceBufRingTest {
+  private static final String CODE = "RING$EHZ$XX$--";
+  private static final int PRODUCERS = 4;
+  private static final int PER_PRODUCER = 50000;
+
+  @Test
+  public void drops_oldest_when_full() {
+    TraceBufRing ring = new TraceBufRing(4);
+    TraceBuf[] tbs = traceBufs(10);
+    int dropped = 0;
+    for (TraceBuf tb : tbs) {
+      dropped += ring.offer(tb);
+      assertTrue(ring.size() <= ring.capacity());
+    }
+    assertEquals(6, dropped);
+    assertEquals(4, ring.size());
+    assertSame(tbs[6], ring.peek());
+    for (int i = 6; i < 10; i++) {
+      assertSame(tbs[i], ring.poll());
+    }
+    assertNull(ring.poll());
+    assertTrue(ring.isEmpty());
+  }
+
+  @Test
+  public void drain_takes_at_most_capacity() {
+    TraceBufRing ring = new TraceBufRing(8);
+    for (TraceBuf tb : traceBufs(8)) {
+      ring.offer(tb);
+    }
+    List<TraceBuf> drained = new ArrayList<TraceBuf>();
+    assertEquals(8, ring.drainTo(drained));
+    assertEquals(8, drained.size());
+    assertEquals(0, ring.drainTo(drained));
+  }
+
+  @Test
+  public void nothing_lost_or_duplicated_with_consumer() throws Exception {
+    checkConcurrent(64);
+  }
+
+  @Test
+  public void drops_counted_under_contention() throws Exception {
+    checkConcurrent(4);
+  }
+
+  /**
+   * Offer TraceBufs from several threads while one thread removes them. Every TraceBuf must be
+   * removed, dropped or left in the ring exactly once, and each producer's TraceBufs must be
+   * removed in the order they were offered.
+   */
+  private void checkConcurrent(int capacity) throws Exception {
+    final TraceBufRing ring = new TraceBufRing(capacity);
+    final TraceBuf[][] offered = new TraceBuf[PRODUCERS][];
+    final Map<TraceBuf, int[]> origin = new IdentityHashMap<TraceBuf, int[]>();
+    for (int p = 0; p < PRODUCERS; p++) {
+      offered[p] = traceBufs(PER_PRODUCER);
+      for (int i = 0; i < PER_PRODUCER; i++) {
+        origin.put(offered[p][i], new int[] {p, i});
+      }
+    }
+
+    final AtomicInteger dropped = new AtomicInteger();
+    final AtomicBoolean oversize = new AtomicBoolean();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> producers = new ArrayList<Thread>();
+    for (int p = 0; p < PRODUCERS; p++) {
+      final TraceBuf[] tbs = offered[p];
+      final Thread producer = new Thread() {
+        @Override
+        public void run() {
+          awaitQuietly(start);
+          for (TraceBuf tb : tbs) {
+            dropped.addAndGet(ring.offer(tb));
+            if (ring.size() > ring.capacity())
+              oversize.set(true);
+          }
+        }
+      };
+      producer.start();
+      producers.add(producer);
+    }
+
+    final List<TraceBuf> received = new ArrayList<TraceBuf>();
+    final AtomicBoolean producing = new AtomicBoolean(true);
+    final Thread consumer = new Thread() {
+      @Override
+      public void run() {
+        awaitQuietly(start);
+        while (producing.get()) {
+          ring.drainTo(received);
+        }
+      }
+    };
+    consumer.start();
+
+    start.countDown();
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    producing.set(false);
+    consumer.join();
+    ring.drainTo(received);
+
+    assertFalse(oversize.get());
+    assertEquals(PRODUCERS * PER_PRODUCER, received.size() + dropped.get());
+
+    final Map<TraceBuf, Boolean> seen = new IdentityHashMap<TraceBuf, Boolean>();
+    final int[] last = new int[PRODUCERS];
+    Arrays.fill(last, -1);
+    for (TraceBuf tb : received) {
+      assertNull("duplicate TraceBuf", seen.put(tb, Boolean.TRUE));
+      final int[] from = origin.get(tb);
+      assertTrue("out of order", from[1] > last[from[0]]);
+      last[from[0]] = from[1];
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static TraceBuf[] traceBufs(int count) {
+    TraceBuf[] tbs = new TraceBuf[count];
+    for (int i = 0; i < count; i++) {
+      tbs[i] = new TraceBuf(CODE, new Wave(new int[] {i}, i, 100));
+    }
+    return tbs;
+  }
+}
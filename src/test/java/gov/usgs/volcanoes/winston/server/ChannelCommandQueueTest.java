@@ -0,0 +1,129 @@
+package gov.usgs.volcanoes.winston.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+
+public class ChannelCommandQueueTest {
+  private LocalEventLoopGroup group;
+  private DatabaseExecutor executor;
+  private ChannelHandlerContext ctx;
+  private ChannelCommandQueue queue;
+  private List<String> events;
+
+  @Before
+  public void setUp() throws Exception {
+    group = new LocalEventLoopGroup(1);
+    executor = new DatabaseExecutor(2, 10);
+    queue = new ChannelCommandQueue(executor);
+    events = Collections.synchronizedList(new ArrayList<String>());
+
+    final LocalChannel channel = new LocalChannel();
+    group.register(channel).sync();
+    final CountDownLatch added = new CountDownLatch(1);
+    channel.pipeline().addLast(new ChannelHandlerAdapter() {
+      @Override
+      public void handlerAdded(ChannelHandlerContext context) {
+        ctx = context;
+        added.countDown();
+      }
+    });
+    assertTrue(added.await(5, TimeUnit.SECONDS));
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+    group.shutdownGracefully();
+  }
+
+  @Test
+  public void next_command_waits_for_continuation() throws Exception {
+    final ChannelPromise write = ctx.newPromise();
+    final CountDownLatch finished = new CountDownLatch(1);
+    submit(command("a", write), command("b", null, finished));
+
+    awaitEvents(1);
+    Thread.sleep(200);
+    assertEquals(Arrays.asList("a"), events);
+
+    write.setSuccess();
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a", "a continued", "a done", "b", "b done"), events);
+  }
+
+  @Test
+  public void failed_write_abandons_continuation() throws Exception {
+    final ChannelPromise write = ctx.newPromise();
+    final CountDownLatch finished = new CountDownLatch(1);
+    submit(command("a", write), command("b", null, finished));
+
+    awaitEvents(1);
+    write.setFailure(new IOException("closed"));
+    assertTrue(finished.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("a", "a done", "b", "b done"), events);
+  }
+
+  private void submit(final ChannelCommandQueue.Command... commands) {
+    ctx.executor().execute(new Runnable() {
+      public void run() {
+        for (ChannelCommandQueue.Command command : commands) {
+          queue.submit(ctx, command);
+        }
+      }
+    });
+  }
+
+  private ChannelCommandQueue.Command command(String name, ChannelPromise write) {
+    return command(name, write, new CountDownLatch(1));
+  }
+
+  /**
+   * Return a command which, given a write, continues once it completes.
+   */
+  private ChannelCommandQueue.Command command(final String name, final ChannelPromise write,
+      final CountDownLatch finished) {
+    return new ChannelCommandQueue.Command() {
+      public void run() {
+        events.add(name);
+        if (write != null) {
+          ChannelCommandQueue.continueAfter(write, new Runnable() {
+            public void run() {
+              events.add(name + " continued");
+            }
+          });
+        }
+      }
+
+      @Override
+      public void done() {
+        events.add(name + " done");
+        finished.countDown();
+      }
+    };
+  }
+
+  private void awaitEvents(int count) throws InterruptedException {
+    final long end = System.currentTimeMillis() + 5000;
+    while (events.size() < count && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+  }
+}
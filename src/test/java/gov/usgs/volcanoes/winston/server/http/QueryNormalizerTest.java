@@ -0,0 +1,33 @@
+package gov.usgs.volcanoes.winston.server.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class QueryNormalizerTest {
+
+  @Test
+  public void equivalent_queries_match() {
+    Map<String, String> a = new LinkedHashMap<String, String>();
+    a.put("net", "AV");
+    a.put("sta", " SPCP");
+    Map<String, String> b = new LinkedHashMap<String, String>();
+    b.put("STA", "SPCP ");
+    b.put("Net", "AV");
+    assertEquals(QueryNormalizer.normalize(a), QueryNormalizer.normalize(b));
+  }
+
+  @Test
+  public void different_values_differ() {
+    Map<String, String> a = new HashMap<String, String>();
+    a.put("sta", "SPCP");
+    Map<String, String> b = new HashMap<String, String>();
+    b.put("sta", "spcp");
+    assertFalse(QueryNormalizer.normalize(a).equals(QueryNormalizer.normalize(b)));
+  }
+}
@@ -0,0 +1,78 @@
+package gov.usgs.volcanoes.winston.server.http.cmd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HeliImageCacheTest {
+  private static final byte[] IMAGE = new byte[100];
+
+  @Test
+  public void complete_image_is_kept_as_data_arrive() {
+    HeliImageCache cache = new HeliImageCache(1000, 60000);
+    cache.putImage("q", IMAGE, 100, true);
+    assertArrayEquals(IMAGE, cache.getImage("q", 200));
+    assertArrayEquals(IMAGE, cache.getImage("q", Double.NaN));
+  }
+
+  @Test
+  public void incomplete_image_is_dropped_when_data_arrive() {
+    HeliImageCache cache = new HeliImageCache(1000, 60000);
+    cache.putImage("q", IMAGE, 100, false);
+    assertArrayEquals(IMAGE, cache.getImage("q", 100));
+    assertNull(cache.getImage("q", 101));
+    assertNull(cache.getImage("q", 100));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void incomplete_image_is_dropped_when_old() {
+    HeliImageCache cache = new HeliImageCache(1000, -1);
+    cache.putImage("q", IMAGE, 100, false);
+    assertNull(cache.getImage("q", 100));
+  }
+
+  @Test
+  public void incomplete_image_without_data_time_is_not_held() {
+    HeliImageCache cache = new HeliImageCache(1000, 60000);
+    cache.putImage("q", IMAGE, Double.NaN, false);
+    assertNull(cache.getImage("q", Double.NaN));
+  }
+
+  @Test
+  public void least_recently_used_is_dropped() {
+    HeliImageCache cache = new HeliImageCache(1000, 60000);
+    for (int i = 0; i < 10; i++) {
+      cache.putImage("q" + i, IMAGE, 100, true);
+    }
+    cache.getImage("q0", 100);
+    cache.putImage("q10", IMAGE, 100, true);
+    assertArrayEquals(IMAGE, cache.getImage("q0", 100));
+    assertNull(cache.getImage("q1", 100));
+    assertArrayEquals(IMAGE, cache.getImage("q10", 100));
+  }
+
+  @Test
+  public void large_image_is_not_held() {
+    HeliImageCache cache = new HeliImageCache(1000, 60000);
+    cache.putImage("q", new byte[(int) cache.getMaxEntrySize() + 1], 100, true);
+    assertNull(cache.getImage("q", 100));
+  }
+
+  @Test
+  public void rows_are_held_by_channel_bin_and_hour() {
+    HeliImageCache cache = new HeliImageCache(100000, 60000);
+    List<double[]> rows = new ArrayList<double[]>();
+    rows.add(new double[] {3600, -1, 1});
+    cache.putRows("CRP$SHZ$AK", 60, 3600, rows);
+    assertEquals(rows, cache.getRows("CRP$SHZ$AK", 60, 3600));
+    assertNull(cache.getRows("CRP$SHZ$AK", 1, 3600));
+    assertNull(cache.getRows("CRP$SHZ$AK", 60, 7200));
+  }
+}
@@ -0,0 +1,76 @@
+package gov.usgs.volcanoes.winston.server.http.cmd.fdsnws;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class StationXmlCacheTest {
+  private static final byte[] XML = new byte[100];
+
+  @Test
+  public void response_is_held_for_catalog_version() {
+    StationXmlCache cache = new StationXmlCache(1000, 60000);
+    cache.put("q", 1, XML);
+    assertArrayEquals(XML, cache.get("q", 1));
+    assertNull(cache.get("r", 1));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void newer_catalog_drops_responses() {
+    StationXmlCache cache = new StationXmlCache(1000, 60000);
+    cache.put("q", 1, XML);
+    assertNull(cache.get("q", 2));
+    assertNull(cache.get("q", 1));
+  }
+
+  @Test
+  public void response_from_older_catalog_is_not_held() {
+    StationXmlCache cache = new StationXmlCache(1000, 60000);
+    cache.get("q", 2);
+    cache.put("q", 1, XML);
+    assertNull(cache.get("q", 2));
+  }
+
+  @Test
+  public void response_is_dropped_when_old() {
+    StationXmlCache cache = new StationXmlCache(1000, -1);
+    cache.put("q", 1, XML);
+    assertNull(cache.get("q", 1));
+  }
+
+  @Test
+  public void least_recently_used_is_dropped() {
+    StationXmlCache cache = new StationXmlCache(1000, 60000);
+    for (int i = 0; i < 10; i++) {
+      cache.put("q" + i, 1, XML);
+    }
+    cache.get("q0", 1);
+    cache.put("q10", 1, XML);
+    assertArrayEquals(XML, cache.get("q0", 1));
+    assertNull(cache.get("q1", 1));
+    assertArrayEquals(XML, cache.get("q10", 1));
+  }
+
+  @Test
+  public void replaced_response_is_counted_once() {
+    StationXmlCache cache = new StationXmlCache(1000, 60000);
+    for (int i = 0; i < 20; i++) {
+      cache.put("q", 1, XML);
+    }
+    for (int i = 0; i < 9; i++) {
+      cache.put("r" + i, 1, XML);
+    }
+    assertArrayEquals(XML, cache.get("q", 1));
+  }
+
+  @Test
+  public void large_response_is_not_held() {
+    StationXmlCache cache = new StationXmlCache(1000, 60000);
+    cache.put("q", 1, new byte[251]);
+    assertNull(cache.get("q", 1));
+  }
+}
@@ -0,0 +1,80 @@
+package gov.usgs.volcanoes.winston.server.http.cmd.fdsnws.constraint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import gov.usgs.volcanoes.core.data.Scnl;
+import gov.usgs.volcanoes.winston.Channel;
+import gov.usgs.volcanoes.winston.server.ChannelIndex;
+
+public class ChannelConstraintTest {
+
+  private static Channel channel(String sta, String cha, String net, String loc) {
+    return new Channel.Builder().scnl(new Scnl(sta, cha, net, loc)).build();
+  }
+
+  @Test
+  public void matches_wildcards_and_lists() {
+    Channel c = channel("ANCK", "BHZ", "AV", "--");
+
+    assertTrue(new ChannelConstraint(null, null, null, null).nameMatches(c));
+    assertTrue(new ChannelConstraint("AN*", "BH?", "AK,AV", "--").nameMatches(c));
+    assertFalse(new ChannelConstraint("AN?", "BHZ", "AV", "--").nameMatches(c));
+    assertFalse(new ChannelConstraint("ANCK", "BHZ", "AK", "--").nameMatches(c));
+  }
+
+  @Test
+  public void exposes_exact_codes() {
+    ChannelConstraint exact = new ChannelConstraint("ANCK,SPCP", "*", "AV", "*");
+    assertEquals(new HashSet<String>(Arrays.asList("ANCK", "SPCP")), exact.getStationCodes());
+    assertEquals(new HashSet<String>(Arrays.asList("AV")), exact.getNetworkCodes());
+
+    ChannelConstraint wild = new ChannelConstraint("AN*", "*", null, "*");
+    assertNull(wild.getStationCodes());
+    assertNull(wild.getNetworkCodes());
+  }
+
+  @Test
+  public void index_finds_same_channels_as_scan() {
+    List<Channel> channels = new ArrayList<Channel>();
+    for (String net : new String[] {"AK", "AV", "UW"}) {
+      for (int s = 0; s < 20; s++) {
+        for (String cha : new String[] {"BHE", "BHN", "BHZ"}) {
+          channels.add(channel("S" + s, cha, net, "--"));
+        }
+      }
+    }
+    ChannelIndex index = new ChannelIndex(channels);
+
+    ChannelConstraint[] constraints = {new ChannelConstraint("S1,S12", "BHZ", "AV", "--"),
+        new ChannelConstraint("S3", "*", null, null),
+        new ChannelConstraint("S1*", "BH?", "UW,AK", "*"),
+        new ChannelConstraint(null, null, null, null)};
+
+    for (ChannelConstraint constraint : constraints) {
+      List<Channel> scanned = new ArrayList<Channel>();
+      for (Channel c : channels) {
+        if (constraint.nameMatches(c)) {
+          scanned.add(c);
+        }
+      }
+
+      List<Channel> found = new ArrayList<Channel>();
+      for (Channel c : index.find(constraint.getNetworkCodes(), constraint.getStationCodes())) {
+        if (constraint.nameMatches(c)) {
+          found.add(c);
+        }
+      }
+      assertEquals(scanned, found);
+    }
+  }
+}
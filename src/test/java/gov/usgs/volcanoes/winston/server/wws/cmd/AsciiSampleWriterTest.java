@@ -0,0 +1,70 @@
+package gov.usgs.volcanoes.winston.server.wws.cmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+
+public class AsciiSampleWriterTest {
+
+  @Test
+  public void formats_samples_like_integer_toString() {
+    int[] samples = {0, 1, -1, 9, 10, -10, 12345, -98765, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    for (int sample : samples) {
+      ByteBuf buf = Unpooled.buffer(2);
+      AsciiSampleWriter.writeSample(buf, sample);
+      assertEquals(Integer.toString(sample), buf.toString(CharsetUtil.US_ASCII));
+      buf.release();
+    }
+  }
+
+  @Test
+  public void appends_to_existing_content() {
+    ByteBuf buf = Unpooled.buffer();
+    AsciiSampleWriter.writeSample(buf, 42);
+    buf.writeByte(' ');
+    AsciiSampleWriter.writeSample(buf, -7);
+    assertEquals("42 -7", buf.toString(CharsetUtil.US_ASCII));
+    buf.release();
+  }
+
+  @Test
+  public void writes_samples_in_chunks() {
+    final ChannelHandlerContext[] ctx = new ChannelHandlerContext[1];
+    EmbeddedChannel channel = new EmbeddedChannel(new ChannelHandlerAdapter() {
+      @Override
+      public void handlerAdded(ChannelHandlerContext context) {
+        ctx[0] = context;
+      }
+    });
+
+    int[] samples = new int[1000];
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = i % 7 == 0 ? -1 : i * 1001 - 500000;
+      expected.append(samples[i] == -1 ? "x" : Integer.toString(samples[i])).append(' ');
+    }
+    expected.append('\n');
+
+    new AsciiSampleWriter(ctx[0], "x", 64).write(samples, samples.length, -1);
+
+    StringBuilder actual = new StringBuilder();
+    int chunks = 0;
+    ByteBuf buf;
+    while ((buf = (ByteBuf) channel.readOutbound()) != null) {
+      actual.append(buf.toString(CharsetUtil.US_ASCII));
+      buf.release();
+      chunks++;
+    }
+    assertEquals(expected.toString(), actual.toString());
+    assertTrue(chunks > 1);
+    channel.finish();
+  }
+}